@@ -5,7 +5,9 @@ USE digitallocker;
 CREATE TABLE IF NOT EXISTS users (
     id INT AUTO_INCREMENT PRIMARY KEY,
     username VARCHAR(50) NOT NULL UNIQUE,
-    password VARCHAR(255) NOT NULL, -- In a real app, store hashed passwords (e.g., using BCrypt)
+    password VARCHAR(255) NOT NULL, -- PBKDF2 hash: pbkdf2-sha256$iterations$salt$hash (older rows: plain text, upgraded on login)
+    used_bytes BIGINT NOT NULL DEFAULT 0, -- Sum of size_bytes over the user's live files and their earlier versions, kept current by every insert and delete
+    quota_bytes BIGINT NULL, -- Storage quota; NULL for the default quota
     created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
 );
 
@@ -13,8 +15,80 @@ CREATE TABLE IF NOT EXISTS files (
     id INT AUTO_INCREMENT PRIMARY KEY,
     user_id INT NOT NULL,
     original_filename VARCHAR(255) NOT NULL,
-    stored_filename VARCHAR(255) NOT NULL UNIQUE, -- UUID for security and uniqueness
+    stored_filename VARCHAR(255) NOT NULL, -- SHA-256 of the content (see blobs); older uploads use a UUID
     upload_date TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+    codec VARCHAR(16) NOT NULL DEFAULT 'none', -- Compression codec of the stored content ('none', 'deflate', ...)
+    size_bytes BIGINT NULL, -- Original, uncompressed size; NULL for files uploaded before sizes were recorded
+    encrypted BOOLEAN NOT NULL DEFAULT FALSE, -- Content encrypted with the owner's data key (see user_keys)
+    deleted_at TIMESTAMP NULL DEFAULT NULL, -- Tombstone: set on delete, row and content reclaimed by the sweeper
+    storage_tier VARCHAR(8) NOT NULL DEFAULT 'hot', -- Where the content is stored: 'hot' (locker_files) or 'cold' (the compressed cold root)
+    last_accessed_at TIMESTAMP NULL DEFAULT NULL, -- Last retrieval, recorded in batches; NULL if never retrieved
+    FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE,
+    INDEX idx_files_stored_filename (stored_filename),
+    INDEX idx_files_user_upload (user_id, deleted_at, upload_date, id), -- Keyset pagination of a user's live files
+    INDEX idx_files_deleted (deleted_at, id),
+    INDEX idx_files_user_name (user_id, original_filename), -- An upload under an existing name becomes a new version
+    INDEX idx_files_tier (storage_tier, deleted_at, id) -- The tiering pass walks live hot files
+);
+
+-- Earlier versions of files; the files row always holds the latest one. Stored content is referenced
+-- like a files row's: 'chunked' content is a manifest blob listing content-defined chunks (see BlobStore)
+CREATE TABLE IF NOT EXISTS file_versions (
+    file_id INT NOT NULL,
+    version INT NOT NULL, -- 1 for the first upload, counting up; the files row holds MAX(version) + 1
+    stored_filename VARCHAR(255) NOT NULL,
+    codec VARCHAR(16) NOT NULL DEFAULT 'none',
+    size_bytes BIGINT NULL, -- Original size; counts towards used_bytes while the file is live
+    encrypted BOOLEAN NOT NULL DEFAULT FALSE,
+    created_at TIMESTAMP NOT NULL, -- When this version was uploaded
+    PRIMARY KEY (file_id, version),
+    FOREIGN KEY (file_id) REFERENCES files(id) ON DELETE CASCADE,
+    INDEX idx_file_versions_stored_filename (stored_filename)
+);
+
+-- Content-addressed blobs in locker_files, shared by every file row with identical content
+CREATE TABLE IF NOT EXISTS blobs (
+    sha256 CHAR(64) PRIMARY KEY, -- Hex digest of the content, also its filename on disk
+    size_bytes BIGINT NOT NULL, -- Original, uncompressed size
+    codec VARCHAR(16) NOT NULL DEFAULT 'none',
+    stored_bytes BIGINT NULL, -- Size on disk after compression
+    ref_count INT NOT NULL DEFAULT 0, -- Number of files rows pointing at this blob
+    crc32c BIGINT NULL, -- CRC-32C of the bytes on disk; NULL for blobs stored before checksums were kept
+    verified_at TIMESTAMP NULL DEFAULT NULL, -- Last time the integrity scrubber re-read the blob
+    corrupt BOOLEAN NOT NULL DEFAULT FALSE, -- Set when the bytes on disk no longer match crc32c and stored_bytes
+    created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+    INDEX idx_blobs_corrupt (corrupt)
+);
+
+-- Per-user data keys for encryption at rest, wrapped with the master key kept outside the database
+CREATE TABLE IF NOT EXISTS user_keys (
+    user_id INT PRIMARY KEY,
+    wrapped_key VARBINARY(64) NOT NULL,
+    created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
     FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE
 );
 
+-- Upgrading an existing database:
+-- ALTER TABLE files DROP INDEX stored_filename, ADD INDEX idx_files_stored_filename (stored_filename);
+-- ALTER TABLE files ADD COLUMN deleted_at TIMESTAMP NULL DEFAULT NULL,
+--     ADD INDEX idx_files_user_upload (user_id, deleted_at, upload_date, id), ADD INDEX idx_files_deleted (deleted_at, id);
+-- ALTER TABLE files ADD COLUMN codec VARCHAR(16) NOT NULL DEFAULT 'none' AFTER upload_date,
+--     ADD COLUMN size_bytes BIGINT NULL AFTER codec;
+-- ALTER TABLE blobs ADD COLUMN codec VARCHAR(16) NOT NULL DEFAULT 'none' AFTER size_bytes,
+--     ADD COLUMN stored_bytes BIGINT NULL AFTER codec;
+-- ALTER TABLE files ADD COLUMN encrypted BOOLEAN NOT NULL DEFAULT FALSE AFTER size_bytes;
+-- ALTER TABLE users ADD COLUMN used_bytes BIGINT NOT NULL DEFAULT 0 AFTER password,
+--     ADD COLUMN quota_bytes BIGINT NULL AFTER used_bytes;
+-- UPDATE users u SET used_bytes = (SELECT COALESCE(SUM(size_bytes), 0) FROM files f
+--     WHERE f.user_id = u.id AND f.deleted_at IS NULL); -- Once; the counter is maintained incrementally from then on
+-- ALTER TABLE blobs ADD COLUMN crc32c BIGINT NULL AFTER ref_count, ADD COLUMN verified_at TIMESTAMP NULL DEFAULT NULL AFTER crc32c,
+--     ADD COLUMN corrupt BOOLEAN NOT NULL DEFAULT FALSE AFTER verified_at, ADD INDEX idx_blobs_corrupt (corrupt);
+-- ALTER TABLE files ADD INDEX idx_files_user_name (user_id, original_filename);
+-- ALTER TABLE files ADD COLUMN storage_tier VARCHAR(8) NOT NULL DEFAULT 'hot' AFTER deleted_at,
+--     ADD COLUMN last_accessed_at TIMESTAMP NULL DEFAULT NULL AFTER storage_tier,
+--     ADD INDEX idx_files_tier (storage_tier, deleted_at, id);
+-- (file_versions is created by re-running this script: CREATE TABLE IF NOT EXISTS)
+-- UPDATE users u SET used_bytes = (SELECT COALESCE(SUM(size_bytes), 0) FROM files f
+--     WHERE f.user_id = u.id AND f.deleted_at IS NULL)
+--     + (SELECT COALESCE(SUM(v.size_bytes), 0) FROM file_versions v JOIN files f ON f.id = v.file_id
+--     WHERE f.user_id = u.id AND f.deleted_at IS NULL); -- Once, now that earlier versions count towards used_bytes
@@ -0,0 +1,135 @@
+package com.digitallocker.benchmark;
+
+import com.digitallocker.service.BlobStore;
+import com.digitallocker.util.CompressionCodecs;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Compares storing and reading back files with compression on and off.
+ * "text" content is log-like lines; "random" content stands in for JPEG, ZIP or MP4 files, which the
+ * incompressibility check should store as they are. Besides throughput, every store reports the
+ * logical and on-disk bytes as auxiliary counters, so the JSON output carries the compression ratio.
+ *
+ * Run with: mvn -Pjmh compile exec:exec -Djmh.args="CompressionBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({"none", "deflate"})
+    public String codec;
+
+    @Param({"text", "random"})
+    public String content;
+
+    @Param({"1048576", "16777216"})
+    public int sizeBytes;
+
+    private Path root;
+    private BlobStore blobStore;
+    private byte[] data;
+    private String storedName;
+    private String storedCodec;
+    private long counter;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Bytes {
+        public long logicalBytes;
+        public long diskBytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("locker-bench-");
+        blobStore = new BlobStore(root, new InMemoryBlobDAO(), CompressionCodecs.forName(codec));
+        data = "text".equals(content) ? textContent(sizeBytes) : randomContent(sizeBytes);
+
+        BlobStore.StoredBlob blob = blobStore.store(new ByteArrayInputStream(data));
+        storedName = blob.getName();
+        storedCodec = blob.getCodec();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void store(Bytes bytes) throws Exception {
+        // Make every upload distinct so that deduplication does not short-circuit the write
+        long n = ++counter;
+        for (int i = 0; i < 8; i++) {
+            data[i] = (byte) (n >>> (i * 8));
+        }
+        BlobStore.StoredBlob blob = blobStore.store(new ByteArrayInputStream(data));
+        bytes.logicalBytes += blob.getSizeBytes();
+        bytes.diskBytes += Files.size(blobStore.resolve(blob.getName()));
+        blobStore.release(blob.getName());
+    }
+
+    @Benchmark
+    public void retrieve(Blackhole blackhole) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = blobStore.openStream(storedName, storedCodec, null)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                blackhole.consume(read);
+            }
+        }
+    }
+
+    private static byte[] textContent(int size) {
+        Random random = new Random(42);
+        String[] levels = {"INFO", "DEBUG", "WARN", "ERROR"};
+        StringBuilder sb = new StringBuilder(size + 128);
+        while (sb.length() < size) {
+            sb.append("2024-05-").append(10 + random.nextInt(20)).append(' ')
+                    .append(levels[random.nextInt(levels.length)])
+                    .append(" [upload-worker-").append(random.nextInt(4)).append("] user=")
+                    .append(random.nextInt(10_000)).append(" file=report_").append(random.nextInt(500))
+                    .append(".csv bytes=").append(random.nextInt(1 << 20)).append(" status=OK\n");
+        }
+        byte[] bytes = sb.toString().getBytes(StandardCharsets.US_ASCII);
+        byte[] out = new byte[size];
+        System.arraycopy(bytes, 0, out, 0, size);
+        return out;
+    }
+
+    private static byte[] randomContent(int size) {
+        byte[] out = new byte[size];
+        new Random(42).nextBytes(out);
+        return out;
+    }
+}
@@ -0,0 +1,159 @@
+package com.digitallocker.benchmark;
+
+import com.digitallocker.dao.DAOFactory;
+import com.digitallocker.dao.FileDAO;
+import com.digitallocker.dao.UserDAO;
+import com.digitallocker.model.FileMetadata;
+import com.digitallocker.model.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * FileDAO and UserDAO on both metadata backends: "jdbc" goes through the connection pool to an embedded
+ * H2 database in MySQL mode, "journal" to the embedded MetadataJournal in a scratch directory.
+ * Absolute JDBC numbers are not MySQL's, since there is no network round trip and a different engine, but
+ * relative changes to the SQL, indexes, batching or pooling show up here first.
+ * fileById goes through the file metadata cache on jdbc, as it does in production.
+ * Note that the in-memory H2 database never syncs to disk while every journal commit waits for an fsync;
+ * add -jvmArgsAppend -Ddigitallocker.metadata.fsync=false to compare them on equal terms.
+ *
+ * Run with: mvn -Pjmh compile exec:exec -Djmh.args="DaoBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DaoBenchmark {
+
+    @Param({"1000", "100000"})
+    public int filesPerUser;
+
+    @Param({"jdbc", "journal"})
+    public String backend;
+
+    private static final int BATCH_SIZE = 100;
+    private static final int PAGE_SIZE = 200;
+
+    private final AtomicLong counter = new AtomicLong();
+    private FileDAO fileDAO;
+    private UserDAO userDAO;
+    private int userId;
+    private int firstFileId;
+    private FileMetadata middleOfLocker;
+    private Path journalDir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // Each trial runs in a fresh fork, so the backend can be chosen before DAOFactory is first used
+        if ("journal".equals(backend)) {
+            journalDir = Files.createTempDirectory("locker-journal-");
+            System.setProperty("digitallocker.metadata.backend", "journal");
+            System.setProperty("digitallocker.metadata.dir", journalDir.toString());
+        } else {
+            EmbeddedDatabase.start();
+        }
+        fileDAO = DAOFactory.getFileDAO();
+        userDAO = DAOFactory.getUserDAO();
+        userId = userDAO.registerUser(new User("dao-bench", "unused"));
+
+        List<FileMetadata> rows = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < filesPerUser; i++) {
+            rows.add(newRow(i));
+            if (rows.size() == 1000 || i == filesPerUser - 1) {
+                int[] ids = fileDAO.addFileMetadataBatch(rows);
+                if (i < 1000) {
+                    firstFileId = ids[0];
+                }
+                rows.clear();
+            }
+        }
+        List<FileMetadata> page = fileDAO.getFilesByUserIdAfter(userId, null, 0, filesPerUser / 2);
+        middleOfLocker = page.get(page.size() - 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        DAOFactory.shutdown();
+        if (journalDir != null) {
+            try (Stream<Path> paths = Files.walk(journalDir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    @Benchmark
+    public int registerUser() throws SQLException {
+        return userDAO.registerUser(new User("user-" + counter.incrementAndGet(), "unused"));
+    }
+
+    @Benchmark
+    public User userByUsername() throws SQLException {
+        return userDAO.getUserByUsername("dao-bench");
+    }
+
+    @Benchmark
+    public int addFileMetadata() throws SQLException {
+        return fileDAO.addFileMetadata(newRow(counter.incrementAndGet()));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int[] addFileMetadataBatch() throws SQLException {
+        List<FileMetadata> rows = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            rows.add(newRow(counter.incrementAndGet()));
+        }
+        return fileDAO.addFileMetadataBatch(rows);
+    }
+
+    @Benchmark
+    public FileMetadata fileById() throws SQLException {
+        int fileId = firstFileId + ThreadLocalRandom.current().nextInt(filesPerUser);
+        return fileDAO.getFileByIdAndUserId(fileId, userId);
+    }
+
+    @Benchmark
+    public List<FileMetadata> firstPage() throws SQLException {
+        return fileDAO.getFilesByUserIdAfter(userId, null, 0, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public List<FileMetadata> deepPage() throws SQLException {
+        return fileDAO.getFilesByUserIdAfter(userId, middleOfLocker.getUploadDate(), middleOfLocker.getId(), PAGE_SIZE);
+    }
+
+    @Benchmark
+    public int countFiles() throws SQLException {
+        return fileDAO.countFilesByUserId(userId);
+    }
+
+    private FileMetadata newRow(long i) {
+        return new FileMetadata(userId, "file-" + i + ".txt", String.format("%064x", i), "none", 1024, false);
+    }
+}
@@ -0,0 +1,67 @@
+package com.digitallocker.benchmark;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Points the real DAOs at an in-process H2 database in MySQL mode, created from database_schema.sql,
+ * so DAO and service benchmarks need no MySQL server and no network.
+ * Must be called before the first DAO call in the JVM: DBConnection reads its URL once.
+ */
+final class EmbeddedDatabase {
+    private static final String SCHEMA_FILE = "database_schema.sql";
+
+    private static boolean started;
+
+    private EmbeddedDatabase() {
+    }
+
+    /**
+     * Creates the schema in a fresh in-memory database and makes it the DAOs' database.
+     * Later calls in the same JVM do nothing, so several benchmark states can each call it.
+     */
+    static synchronized void start() throws IOException, SQLException {
+        if (started) {
+            return;
+        }
+        started = true;
+        String url = "jdbc:h2:mem:locker;MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1";
+        System.setProperty("digitallocker.db.url", url);
+        System.setProperty("digitallocker.db.user", "sa");
+        System.setProperty("digitallocker.db.password", "");
+        try (Connection conn = DriverManager.getConnection(url, "sa", "");
+             Statement stmt = conn.createStatement()) {
+            for (String sql : readSchema()) {
+                stmt.execute(sql);
+            }
+        }
+    }
+
+    /**
+     * Reads the CREATE TABLE statements of the production schema, without comments and the
+     * MySQL-only CREATE DATABASE / USE lines.
+     */
+    private static String[] readSchema() throws IOException {
+        Path file = Paths.get(System.getProperty("digitallocker.schemaFile", SCHEMA_FILE));
+        StringBuilder sql = new StringBuilder();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            int comment = line.indexOf("--");
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            String trimmed = line.trim();
+            if (trimmed.startsWith("CREATE DATABASE") || trimmed.startsWith("USE ")) {
+                continue;
+            }
+            sql.append(line).append('\n');
+        }
+        return sql.toString().trim().split(";\\s*");
+    }
+}
@@ -0,0 +1,121 @@
+package com.digitallocker.benchmark;
+
+import com.digitallocker.util.FrameCipher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Compares storing and reading a file through framed AES-GCM encryption with the plain
+ * Files.copy path used before encryption at rest, at one crypto thread and at one per core.
+ * rangeRead reads 64 KiB from the middle of the file and shows that a ranged read only pays
+ * for the frames it touches.
+ *
+ * Run with: mvn -Pjmh compile exec:exec -Djmh.args="EncryptionBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncryptionBenchmark {
+
+    @Param({"1048576", "67108864"})
+    public int sizeBytes;
+
+    @Param({"1", "0"}) // 0 means one thread per core
+    public int threads;
+
+    private Path root;
+    private Path source;
+    private Path encrypted;
+    private Path target;
+    private ExecutorService executor;
+    private FrameCipher cipher;
+    private SecretKey key;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        int poolSize = threads == 0 ? Runtime.getRuntime().availableProcessors() : threads;
+        executor = Executors.newFixedThreadPool(poolSize);
+        cipher = new FrameCipher(executor, poolSize * 2, FrameCipher.DEFAULT_FRAME_SIZE);
+        byte[] keyBytes = new byte[32];
+        new SecureRandom().nextBytes(keyBytes);
+        key = new SecretKeySpec(keyBytes, "AES");
+
+        root = Files.createTempDirectory("locker-bench-");
+        source = root.resolve("source");
+        encrypted = root.resolve("encrypted");
+        target = root.resolve("target");
+        byte[] data = new byte[sizeBytes];
+        new SecureRandom().nextBytes(data);
+        Files.write(source, data);
+        try (OutputStream out = cipher.encrypt(Files.newOutputStream(encrypted), key)) {
+            out.write(data);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void plainCopy() throws IOException {
+        Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Benchmark
+    public void encrypt() throws IOException {
+        try (InputStream in = Files.newInputStream(source);
+             OutputStream out = cipher.encrypt(Files.newOutputStream(target), key)) {
+            in.transferTo(out);
+        }
+    }
+
+    @Benchmark
+    public void decrypt() throws IOException {
+        try (InputStream in = cipher.decrypt(Files.newInputStream(encrypted), key);
+             OutputStream out = Files.newOutputStream(target)) {
+            in.transferTo(out);
+        }
+    }
+
+    @Benchmark
+    public void rangeRead(Blackhole blackhole) throws IOException {
+        try (InputStream in = cipher.decryptRange(FileChannel.open(encrypted), key, sizeBytes / 2, 64 * 1024)) {
+            blackhole.consume(in.readNBytes(64 * 1024));
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.digitallocker.benchmark;
+
+import com.digitallocker.dao.DAOFactory;
+import com.digitallocker.model.FileMetadata;
+import com.digitallocker.model.User;
+import com.digitallocker.service.FileLockerService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end cost of the FileLockerService operations the dashboard uses, from 1 KB to 1 GB files,
+ * with the default pipeline (deduplication, compression check, encryption) and the real DAOs running
+ * against an embedded H2 database. Content is random, so it is stored uncompressed.
+ * Large sizes take a long time and need a few GB of free space in java.io.tmpdir; pick sizes with -p:
+ *
+ * Run with: mvn -Pjmh compile exec:exec -Djmh.args="FileLockerServiceBenchmark -p sizeBytes=1024,1048576"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class FileLockerServiceBenchmark {
+
+    /**
+     * A locker holding one file of the given size, plus a source file to upload.
+     */
+    @State(Scope.Benchmark)
+    public static class Transfer {
+        @Param({"1024", "1048576", "67108864", "1073741824"})
+        public long sizeBytes;
+
+        Path root;
+        FileLockerService service;
+        int userId;
+        File source;
+        Path destination;
+        int storedFileId;
+        int deletableFileId;
+        private long counter;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            root = Files.createTempDirectory("locker-bench-");
+            userId = openLocker(root, "transfer");
+            service = new FileLockerService();
+            source = writeRandomFile(root.resolve("source.bin"), sizeBytes).toFile();
+            destination = root.resolve("retrieved.bin");
+            if (!service.uploadFile(userId, source)) {
+                throw new IllegalStateException("Initial upload failed");
+            }
+            storedFileId = newestFileId(service, userId);
+        }
+
+        /**
+         * Makes the next upload distinct, so deduplication does not short-circuit the write.
+         */
+        void changeSource() throws IOException {
+            ByteBuffer stamp = ByteBuffer.allocate(Long.BYTES).putLong(0, ++counter);
+            try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.WRITE)) {
+                channel.write(stamp, 0);
+            }
+        }
+
+        /**
+         * Deletes everything uploaded during the iteration except the retrieval target, so the sweeper
+         * keeps disk use bounded.
+         */
+        @TearDown(Level.Iteration)
+        public void deleteUploads() {
+            List<Integer> ids = new ArrayList<>();
+            for (FileMetadata file : service.getUserFiles(userId)) {
+                if (file.getId() != storedFileId) {
+                    ids.add(file.getId());
+                }
+            }
+            service.deleteFiles(userId, ids);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            deleteRecursively(root);
+        }
+    }
+
+    /**
+     * A freshly uploaded copy of the stored file for every deleteFile call; the copy deduplicates, so
+     * preparing it costs a hash of the content but no write.
+     */
+    @State(Scope.Thread)
+    public static class Deletable {
+        int fileId;
+
+        @Setup(Level.Invocation)
+        public void upload(Transfer transfer) {
+            if (!transfer.service.uploadFile(transfer.userId, transfer.source)) {
+                throw new IllegalStateException("Upload before delete failed");
+            }
+            fileId = newestFileId(transfer.service, transfer.userId);
+        }
+    }
+
+    /**
+     * A locker holding many small files, for listing.
+     */
+    @State(Scope.Benchmark)
+    public static class Listing {
+        @Param({"10", "1000", "10000"})
+        public int fileCount;
+
+        Path root;
+        FileLockerService service;
+        int userId;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            root = Files.createTempDirectory("locker-bench-");
+            userId = openLocker(root, "listing");
+            service = new FileLockerService();
+            List<FileMetadata> rows = new ArrayList<>(fileCount);
+            for (int i = 0; i < fileCount; i++) {
+                rows.add(new FileMetadata(userId, "file-" + i + ".txt", String.format("%064x", i), "none", 1024, false));
+            }
+            DAOFactory.getFileDAO().addFileMetadataBatch(rows);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            deleteRecursively(root);
+        }
+    }
+
+    @Benchmark
+    public boolean uploadFile(Transfer transfer) throws IOException {
+        transfer.changeSource();
+        return transfer.service.uploadFile(transfer.userId, transfer.source);
+    }
+
+    @Benchmark
+    public boolean retrieveFile(Transfer transfer) {
+        return transfer.service.retrieveFile(transfer.storedFileId, transfer.userId, transfer.destination);
+    }
+
+    @Benchmark
+    public boolean deleteFile(Transfer transfer, Deletable deletable) {
+        return transfer.service.deleteFile(deletable.fileId, transfer.userId);
+    }
+
+    @Benchmark
+    public List<FileMetadata> getUserFiles(Listing listing) {
+        return listing.service.getUserFiles(listing.userId);
+    }
+
+    /**
+     * Points storage, the master key and the DAOs at a scratch directory and an embedded database,
+     * and registers the locker's owner.
+     * @return The owner's user ID.
+     */
+    private static int openLocker(Path root, String username) throws Exception {
+        System.setProperty("digitallocker.storage.dir", root.resolve("locker_files").toString());
+        System.setProperty("digitallocker.encryption.masterKeyFile", root.resolve("master.key").toString());
+        System.setProperty("digitallocker.sweeper.intervalMs", "500");
+        System.setProperty("digitallocker.sweeper.filesPerSecond", "10000");
+        EmbeddedDatabase.start();
+        return DAOFactory.getUserDAO().registerUser(new User(username, "unused"));
+    }
+
+    private static int newestFileId(FileLockerService service, int userId) {
+        int newest = -1;
+        for (FileMetadata file : service.getUserFiles(userId)) {
+            newest = Math.max(newest, file.getId());
+        }
+        return newest;
+    }
+
+    private static Path writeRandomFile(Path file, long size) throws IOException {
+        Random random = new Random(42);
+        byte[] block = new byte[1024 * 1024];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                channel.write(ByteBuffer.wrap(block, 0, (int) Math.min(block.length, size - written)));
+            }
+        }
+        return file;
+    }
+
+    private static void deleteRecursively(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
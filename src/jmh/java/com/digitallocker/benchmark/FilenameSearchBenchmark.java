@@ -0,0 +1,118 @@
+package com.digitallocker.benchmark;
+
+import com.digitallocker.model.FileMetadata;
+import com.digitallocker.service.FilenameIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Search-as-you-type over one user's filenames, as the dashboard's search box issues it: a page of
+ * up to 1000 matches per keystroke. Names are built from a small vocabulary plus numbers, so common
+ * words match many files and numbers few. Also measures keeping the index current on upload/delete.
+ *
+ * Run with: mvn -Pjmh compile exec:exec -Djmh.args="FilenameSearchBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class FilenameSearchBenchmark {
+    private static final String[] WORDS = {"report", "invoice", "photo", "scan", "contract", "notes", "budget",
+            "resume", "backup", "draft", "final", "summary", "letter", "receipt", "holiday", "project"};
+    private static final String[] EXTENSIONS = {".pdf", ".docx", ".jpg", ".png", ".txt", ".xlsx", ".zip"};
+    private static final int LIMIT = 1000;
+
+    @Param({"1000000"})
+    public int files;
+
+    private FilenameIndex index;
+    private int nextId;
+
+    @Setup
+    public void setUp() {
+        index = new FilenameIndex();
+        Random random = new Random(42);
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        for (nextId = 1; nextId <= files; nextId++) {
+            index.add(newFile(nextId, random, now));
+        }
+    }
+
+    @Benchmark
+    public List<FileMetadata> prefixCommon() {
+        return index.search("invoice", LIMIT);
+    }
+
+    @Benchmark
+    public List<FileMetadata> prefixRare() {
+        return index.search("invoice-2021-0042", LIMIT);
+    }
+
+    @Benchmark
+    public List<FileMetadata> substringCommon() {
+        return index.search("final", LIMIT);
+    }
+
+    @Benchmark
+    public List<FileMetadata> substringRare() {
+        return index.search("31337", LIMIT);
+    }
+
+    @Benchmark
+    public List<FileMetadata> substringAbsent() {
+        return index.search("zzqx", LIMIT);
+    }
+
+    @Benchmark
+    public List<FileMetadata> twoCharacters() {
+        return index.search("fi", LIMIT);
+    }
+
+    @Benchmark
+    public List<FileMetadata> oneCharacter() {
+        return index.search("v", LIMIT);
+    }
+
+    @Benchmark
+    public List<FileMetadata> twoCharactersAbsent() {
+        return index.search("qz", LIMIT);
+    }
+
+    /** Every trigram is common, but no name has them in this order. */
+    @Benchmark
+    public List<FileMetadata> commonTrigramsNoMatch() {
+        return index.search("-2020-final", LIMIT);
+    }
+
+    /** One upload followed by its deletion, so the index stays the same size. */
+    @Benchmark
+    public void addAndRemove() {
+        int fileId = nextId++;
+        index.add(new FileMetadata(fileId, 1, "scan-" + fileId + "-final.pdf", null, null));
+        index.remove(fileId);
+    }
+
+    private static FileMetadata newFile(int id, Random random, Timestamp uploadDate) {
+        String name = WORDS[random.nextInt(WORDS.length)] + "-" + (2015 + random.nextInt(10)) + "-"
+                + String.format("%05d", random.nextInt(100_000))
+                + (random.nextInt(4) == 0 ? "-" + WORDS[random.nextInt(WORDS.length)] : "")
+                + EXTENSIONS[random.nextInt(EXTENSIONS.length)];
+        return new FileMetadata(id, 1, name, null, uploadDate);
+    }
+}
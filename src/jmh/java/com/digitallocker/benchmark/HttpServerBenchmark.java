@@ -0,0 +1,194 @@
+package com.digitallocker.benchmark;
+
+import com.digitallocker.http.LockerHttpServer;
+import com.digitallocker.model.FileMetadata;
+import com.digitallocker.service.AuthService;
+import com.digitallocker.service.FileLockerService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Load test of the HTTP API: every invocation fires concurrency requests at once, half uploads of a
+ * new file and half downloads of a stored one, over as many connections, and waits for all of them.
+ * The server runs in-process on the journal metadata backend, without encryption, so the cipher pool
+ * is not the bottleneck and the transport is what gets measured. Besides the time per round, the peak
+ * number of live platform threads is printed at the end of the trial: with virtual threads (Java 21
+ * and later) it stays near the baseline however high concurrency goes, while on older runtimes the
+ * fallback pool caps it and requests queue instead. The client runs on a small fixed pool, so the
+ * threads counted are the server's.
+ *
+ * Run with: mvn -Pjmh compile exec:exec -Djmh.args="HttpServerBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class HttpServerBenchmark {
+    @Param({"1000", "4000"})
+    public int concurrency;
+
+    @Param({"65536"})
+    public int sizeBytes;
+
+    private Path root;
+    private FileLockerService service;
+    private LockerHttpServer server;
+    private ExecutorService clientExecutor;
+    private HttpClient client;
+    private String baseUrl;
+    private String token;
+    private int userId;
+    private int storedFileId;
+    private byte[] content;
+    private long counter;
+    private int baselineThreads;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("locker-bench-");
+        System.setProperty("digitallocker.metadata.backend", "journal");
+        System.setProperty("digitallocker.metadata.dir", root.resolve("metadata").toString());
+        System.setProperty("digitallocker.storage.dir", root.resolve("locker_files").toString());
+        System.setProperty("digitallocker.encryption.enabled", "false");
+        System.setProperty("digitallocker.sweeper.intervalMs", "500");
+        System.setProperty("digitallocker.sweeper.filesPerSecond", "10000");
+
+        service = new FileLockerService();
+        server = new LockerHttpServer(new InetSocketAddress("127.0.0.1", 0), new AuthService(), service);
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getPort() + "/api";
+        clientExecutor = Executors.newFixedThreadPool(4);
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).executor(clientExecutor).build();
+
+        send(form("/register", "username=bench&password=bench-password"), 201);
+        String login = send(form("/login", "username=bench&password=bench-password"), 200);
+        token = jsonField(login, "token");
+        userId = Integer.parseInt(jsonField(login, "userId"));
+
+        content = new byte[sizeBytes];
+        new Random(42).nextBytes(content);
+        storedFileId = Integer.parseInt(jsonField(send(upload("stored.bin"), 201), "id"));
+
+        baselineThreads = threads.getThreadCount();
+        threads.resetPeakThreadCount();
+    }
+
+    /**
+     * Deletes the files uploaded during the iteration, so the sweeper keeps disk use bounded.
+     */
+    @TearDown(Level.Iteration)
+    public void deleteUploads() {
+        List<Integer> ids = new ArrayList<>();
+        for (FileMetadata file : service.getUserFiles(userId)) {
+            if (file.getId() != storedFileId) {
+                ids.add(file.getId());
+            }
+        }
+        service.deleteFiles(userId, ids);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        System.out.println();
+        System.out.println("Concurrency " + concurrency + ": " + threads.getPeakThreadCount()
+                + " peak live threads, " + baselineThreads + " before the load, "
+                + (server.usesVirtualThreads() ? "virtual threads" : "fallback pool"));
+        server.stop(0);
+        clientExecutor.shutdown();
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public int concurrentTransfers() {
+        List<CompletableFuture<HttpResponse<byte[]>>> responses = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            HttpRequest request = i % 2 == 0
+                    ? upload("upload-" + (++counter) + ".bin")
+                    : authorized("/files/" + storedFileId).GET().build();
+            responses.add(client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()));
+        }
+        int bytes = 0;
+        for (CompletableFuture<HttpResponse<byte[]>> response : responses) {
+            HttpResponse<byte[]> r = response.join();
+            if (r.statusCode() >= 300) {
+                throw new IllegalStateException("HTTP " + r.statusCode() + ": " + new String(r.body()));
+            }
+            bytes += r.body().length;
+        }
+        return bytes;
+    }
+
+    private HttpRequest upload(String name) {
+        return authorized("/files?name=" + name).PUT(HttpRequest.BodyPublishers.ofByteArray(content)).build();
+    }
+
+    private HttpRequest.Builder authorized(String path) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + path)).header("Authorization", "Bearer " + token);
+    }
+
+    private HttpRequest form(String path, String body) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(body)).build();
+    }
+
+    private String send(HttpRequest request, int expectedStatus) throws Exception {
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != expectedStatus) {
+            throw new IllegalStateException(request.uri() + " answered " + response.statusCode() + ": " + response.body());
+        }
+        return response.body();
+    }
+
+    /**
+     * Pulls a string or number field out of a flat JSON object.
+     */
+    private static String jsonField(String json, String name) {
+        int start = json.indexOf("\"" + name + "\":") + name.length() + 3;
+        int end = start;
+        if (json.charAt(start) == '"') {
+            end = json.indexOf('"', ++start);
+        } else {
+            while (end < json.length() && Character.isDigit(json.charAt(end))) {
+                end++;
+            }
+        }
+        return json.substring(start, end);
+    }
+}
@@ -0,0 +1,107 @@
+package com.digitallocker.benchmark;
+
+import com.digitallocker.dao.BlobDAO;
+import com.digitallocker.model.BlobIntegrity;
+import com.digitallocker.model.DedupStats;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * BlobDAO kept in a map, so that benchmarks measure the blob store's disk path without a MySQL server.
+ */
+public class InMemoryBlobDAO implements BlobDAO {
+    private static class Row {
+        final long sizeBytes;
+        final String codec;
+        volatile long storedBytes;
+        volatile long crc32c;
+        int refCount;
+
+        Row(long sizeBytes, String codec, long storedBytes, long crc32c) {
+            this.sizeBytes = sizeBytes;
+            this.codec = codec;
+            this.storedBytes = storedBytes;
+            this.crc32c = crc32c;
+        }
+    }
+
+    private final Map<String, Row> rows = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean acquireReference(String sha256, long sizeBytes, String codec, long storedBytes, long crc32c) {
+        boolean[] created = {false};
+        rows.compute(sha256, (k, row) -> {
+            if (row == null) {
+                row = new Row(sizeBytes, codec, storedBytes, crc32c);
+                created[0] = true;
+            }
+            row.refCount++;
+            return row;
+        });
+        return created[0];
+    }
+
+    @Override
+    public String getCodec(String sha256) {
+        Row row = rows.get(sha256);
+        return row == null ? null : row.codec;
+    }
+
+    @Override
+    public BlobIntegrity getIntegrity(String sha256) {
+        Row row = rows.get(sha256);
+        return row == null ? null : new BlobIntegrity(sha256, row.codec, row.storedBytes, row.crc32c, 0, false);
+    }
+
+    @Override
+    public void replaceContent(String sha256, long storedBytes, long crc32c) {
+        Row row = rows.get(sha256);
+        if (row != null) {
+            row.storedBytes = storedBytes;
+            row.crc32c = crc32c;
+        }
+    }
+
+    // Benchmarks do not scrub
+    @Override
+    public List<BlobIntegrity> getBlobsToVerify(String afterSha256, long verifiedBeforeMillis, int limit) {
+        return List.of();
+    }
+
+    @Override
+    public boolean recordVerification(String sha256, long crc32c, boolean corrupt) {
+        return rows.containsKey(sha256);
+    }
+
+    @Override
+    public List<BlobIntegrity> getCorruptBlobs(int limit) {
+        return List.of();
+    }
+
+    @Override
+    public int releaseReference(String sha256) {
+        int[] remaining = {-1};
+        rows.computeIfPresent(sha256, (k, row) -> {
+            remaining[0] = --row.refCount;
+            return row.refCount <= 0 ? null : row;
+        });
+        return remaining[0];
+    }
+
+    @Override
+    public DedupStats getDedupStats() {
+        long refs = 0;
+        long unique = 0;
+        long logical = 0;
+        long disk = 0;
+        for (Row row : rows.values()) {
+            refs += row.refCount;
+            unique += row.sizeBytes;
+            logical += row.sizeBytes * row.refCount;
+            disk += row.storedBytes;
+        }
+        return new DedupStats(rows.size(), refs, unique, logical, disk);
+    }
+}
@@ -0,0 +1,51 @@
+package com.digitallocker.benchmark;
+
+import com.digitallocker.dao.UserDAO;
+import com.digitallocker.model.StorageUsage;
+import com.digitallocker.model.User;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * UserDAO kept in a map, so that benchmarks measure hashing and scheduling without a MySQL server.
+ */
+public class InMemoryUserDAO implements UserDAO {
+    private final Map<String, User> usersByName = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+
+    @Override
+    public int registerUser(User user) {
+        int id = nextId.getAndIncrement();
+        User stored = new User(id, user.getUsername(), user.getPassword());
+        return usersByName.putIfAbsent(user.getUsername(), stored) == null ? id : -1;
+    }
+
+    @Override
+    public User getUserByUsername(String username) {
+        User user = usersByName.get(username);
+        return user == null ? null : new User(user.getId(), user.getUsername(), user.getPassword());
+    }
+
+    @Override
+    public boolean updatePassword(int userId, String passwordHash) {
+        for (User user : usersByName.values()) {
+            if (user.getId() == userId) {
+                user.setPassword(passwordHash);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public StorageUsage getStorageUsage(int userId) {
+        return new StorageUsage(userId, 0, StorageUsage.UNLIMITED); // Benchmarks store no files
+    }
+
+    @Override
+    public boolean setQuota(int userId, long quotaBytes) {
+        return false;
+    }
+}
@@ -0,0 +1,59 @@
+package com.digitallocker.benchmark;
+
+import com.digitallocker.service.AuthService;
+import com.digitallocker.util.PasswordHasher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Login throughput as the PBKDF2 cost changes, with 16 concurrent callers standing in for a burst
+ * of logins. Throughput is bounded by the hashing pool (one thread per core), so it should fall in
+ * proportion to the iteration count while the machine stays responsive.
+ *
+ * Run with: mvn -Pjmh compile exec:exec -Djmh.args="LoginBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@Threads(16)
+public class LoginBenchmark {
+
+    @Param({"10000", "100000", "600000"})
+    public int iterations;
+
+    private AuthService authService;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        authService = new AuthService(new InMemoryUserDAO(), new PasswordHasher(iterations));
+        if (authService.register("alice", "correct horse battery staple") == null) {
+            throw new IllegalStateException("Could not register the benchmark user");
+        }
+    }
+
+    @Benchmark
+    public Object login() {
+        return authService.login("alice", "correct horse battery staple");
+    }
+
+    @Benchmark
+    public Object loginWrongPassword() {
+        return authService.login("alice", "wrong password");
+    }
+}
@@ -0,0 +1,46 @@
+package com.digitallocker.benchmark;
+
+import com.digitallocker.util.Metrics;
+import com.digitallocker.util.OperationMetrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the instrumentation wrapped around every service and DAO call: one timed call with
+ * bytes, from several threads hitting the same operation. Add "-prof gc" to confirm that
+ * recording allocates nothing.
+ *
+ * Run with: mvn -Pjmh compile exec:exec -Djmh.args="MetricsBenchmark -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class MetricsBenchmark {
+    private final OperationMetrics metrics = Metrics.operation("MetricsBenchmark", "record");
+
+    @Benchmark
+    public void baseline() {
+        System.nanoTime();
+    }
+
+    @Benchmark
+    public void record() {
+        long startNanos = System.nanoTime();
+        metrics.addBytesIn(4096);
+        metrics.record(startNanos);
+    }
+}
@@ -0,0 +1,168 @@
+package com.digitallocker.benchmark;
+
+import com.digitallocker.model.DedupStats;
+import com.digitallocker.service.BlobStore;
+import com.digitallocker.util.CompressionCodecs;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures storing successive versions of a document that each differ from the last by a few small
+ * edits (insertions, deletions and overwrites at random places). averageChunkSize 0 stores every
+ * version as one whole blob, the way files without versions are stored; otherwise versions are stored
+ * as content-defined chunks of that average size. Besides throughput, every store reports the logical
+ * bytes and the bytes it added on disk as auxiliary counters, so the JSON output carries the savings.
+ * Like the service, only the last MAX_VERSIONS versions are kept.
+ *
+ * Run with: mvn -Pjmh compile exec:exec -Djmh.args="VersioningBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VersioningBenchmark {
+    private static final int MAX_VERSIONS = 10;
+
+    @Param({"0", "16384", "65536"})
+    public int averageChunkSize;
+
+    @Param({"4194304"})
+    public int sizeBytes;
+
+    @Param({"8"})
+    public int editsPerVersion;
+
+    private Path root;
+    private InMemoryBlobDAO blobDAO;
+    private BlobStore blobStore;
+    private byte[] document;
+    private Random random;
+    private final Deque<String> versions = new ArrayDeque<>();
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Bytes {
+        public long logicalBytes;
+        public long diskBytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("locker-bench-");
+        blobDAO = new InMemoryBlobDAO();
+        blobStore = new BlobStore(root, blobDAO, CompressionCodecs.getDefault(),
+                averageChunkSize > 0 ? averageChunkSize : 64 * 1024);
+        random = new Random(42);
+        document = textContent(sizeBytes, random);
+        versions.addLast(store(document).getName());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void storeVersion(Bytes bytes) throws Exception {
+        for (int i = 0; i < editsPerVersion; i++) {
+            document = edit(document, random);
+        }
+        long diskBefore = diskBytes();
+        BlobStore.StoredBlob blob = store(document);
+        bytes.logicalBytes += blob.getSizeBytes();
+        bytes.diskBytes += diskBytes() - diskBefore;
+
+        versions.addLast(blob.getName());
+        if (versions.size() > MAX_VERSIONS) {
+            blobStore.release(versions.removeFirst());
+        }
+    }
+
+    private BlobStore.StoredBlob store(byte[] content) throws Exception {
+        return averageChunkSize > 0
+                ? blobStore.storeChunked(new ByteArrayInputStream(content), null)
+                : blobStore.store(new ByteArrayInputStream(content));
+    }
+
+    private long diskBytes() {
+        DedupStats stats = blobDAO.getDedupStats();
+        return stats.getDiskBytes();
+    }
+
+    /**
+     * Inserts, deletes or overwrites up to 64 bytes at a random position.
+     */
+    private static byte[] edit(byte[] content, Random random) {
+        int position = random.nextInt(content.length);
+        int length = 1 + random.nextInt(64);
+        byte[] patch = new byte[length];
+        for (int i = 0; i < length; i++) {
+            patch[i] = (byte) ('a' + random.nextInt(26));
+        }
+        switch (random.nextInt(3)) {
+            case 0: {
+                byte[] out = new byte[content.length + length];
+                System.arraycopy(content, 0, out, 0, position);
+                System.arraycopy(patch, 0, out, position, length);
+                System.arraycopy(content, position, out, position + length, content.length - position);
+                return out;
+            }
+            case 1: {
+                int removed = Math.min(length, content.length - position);
+                byte[] out = new byte[content.length - removed];
+                System.arraycopy(content, 0, out, 0, position);
+                System.arraycopy(content, position + removed, out, position, content.length - position - removed);
+                return out;
+            }
+            default: {
+                byte[] out = content.clone();
+                System.arraycopy(patch, 0, out, position, Math.min(length, content.length - position));
+                return out;
+            }
+        }
+    }
+
+    private static byte[] textContent(int size, Random random) {
+        String[] levels = {"INFO", "DEBUG", "WARN", "ERROR"};
+        StringBuilder sb = new StringBuilder(size + 128);
+        while (sb.length() < size) {
+            sb.append("2024-05-").append(10 + random.nextInt(20)).append(' ')
+                    .append(levels[random.nextInt(levels.length)])
+                    .append(" [upload-worker-").append(random.nextInt(4)).append("] user=")
+                    .append(random.nextInt(10_000)).append(" file=report_").append(random.nextInt(500))
+                    .append(".csv bytes=").append(random.nextInt(1 << 20)).append(" status=OK\n");
+        }
+        byte[] bytes = sb.toString().getBytes(StandardCharsets.US_ASCII);
+        byte[] out = new byte[size];
+        System.arraycopy(bytes, 0, out, 0, size);
+        return out;
+    }
+}
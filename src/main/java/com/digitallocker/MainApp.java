@@ -1,15 +1,28 @@
 package com.digitallocker;
 
 import com.digitallocker.gui.LoginRegisterFrame;
+import com.digitallocker.http.LockerHttpServer;
+import com.digitallocker.service.AuthService;
+import com.digitallocker.service.FileLockerService;
 
 import javax.swing.*;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 
 /*
   Main application class for the Digital Locker System.
-  This class serves as the entry point for the GUI application.
+  This class serves as the entry point for the GUI application, or with --headless
+  for the HTTP API (see LockerHttpServer) on a machine without a display.
  */
 public class MainApp {
+    private static final String HTTP_HOST = System.getProperty("digitallocker.http.host", "127.0.0.1");
+    private static final int HTTP_PORT = Integer.getInteger("digitallocker.http.port", 8080);
+
     public static void main(String[] args) {
+        if (args.length > 0 && "--headless".equals(args[0])) {
+            startHeadless();
+            return;
+        }
         // Ensure GUI updates are done on the Event Dispatch Thread (EDT)
         SwingUtilities.invokeLater(new Runnable() {
             @Override
@@ -18,5 +31,18 @@ public class MainApp {
             }
         });
     }
-}
 
+    private static void startHeadless() {
+        LockerHttpServer server;
+        try {
+            server = new LockerHttpServer(new InetSocketAddress(HTTP_HOST, HTTP_PORT),
+                    new AuthService(), new FileLockerService());
+        } catch (IOException e) {
+            System.err.println("Could not start the HTTP API on " + HTTP_HOST + ":" + HTTP_PORT + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(5), "http-shutdown"));
+    }
+}
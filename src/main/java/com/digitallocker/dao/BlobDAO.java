@@ -0,0 +1,99 @@
+package com.digitallocker.dao;
+
+import com.digitallocker.model.BlobIntegrity;
+import com.digitallocker.model.DedupStats;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Data Access Object for the reference-counted, content-addressed blobs
+ * that back the files table.
+ * Implemented over JDBC ({@link JdbcBlobDAO}) and over the embedded journal ({@link JournalBlobDAO});
+ * {@link DAOFactory} picks one at startup.
+ */
+public interface BlobDAO {
+
+    /**
+     * Adds a reference to a blob, creating its row if this is the first one.
+     * @param sha256 The hex SHA-256 digest identifying the blob.
+     * @param sizeBytes The size of the blob's content in bytes.
+     * @param codec The compression codec the content is stored with, used only if the row is created.
+     * @param storedBytes The size of the content on disk after compression, used only if the row is created.
+     * @param crc32c The CRC-32C of the content on disk, used only if the row is created.
+     * @return true if the blob row was newly created (the caller must store the content), false if it already existed.
+     * @throws SQLException If a database access error occurs.
+     */
+    boolean acquireReference(String sha256, long sizeBytes, String codec, long storedBytes, long crc32c)
+            throws SQLException;
+
+    /**
+     * Gets the compression codec an existing blob is stored with.
+     * @param sha256 The hex SHA-256 digest identifying the blob.
+     * @return The codec's name, or null if no such blob is tracked.
+     * @throws SQLException If a database access error occurs.
+     */
+    String getCodec(String sha256) throws SQLException;
+
+    /**
+     * Gets the recorded size, checksum and scrub state of a blob's bytes on disk.
+     * @param sha256 The hex SHA-256 digest identifying the blob.
+     * @return The BlobIntegrity, or null if no such blob is tracked.
+     * @throws SQLException If a database access error occurs.
+     */
+    BlobIntegrity getIntegrity(String sha256) throws SQLException;
+
+    /**
+     * Records that a blob's bytes on disk were replaced by a fresh copy, clearing any corrupt flag.
+     * @param sha256 The hex SHA-256 digest identifying the blob.
+     * @param storedBytes The size of the new copy on disk.
+     * @param crc32c The CRC-32C of the new copy.
+     * @throws SQLException If a database access error occurs.
+     */
+    void replaceContent(String sha256, long storedBytes, long crc32c) throws SQLException;
+
+    /**
+     * Retrieves one page of the blobs due for an integrity scrub, in name order: those not flagged
+     * corrupt and not verified since the given time.
+     * @param afterSha256 Only blobs with a larger name are returned; pass "" to start from the beginning.
+     * @param verifiedBeforeMillis Blobs verified at or after this time are skipped.
+     * @param limit The maximum number of blobs to return.
+     * @return A list of BlobIntegrity objects.
+     * @throws SQLException If a database access error occurs.
+     */
+    List<BlobIntegrity> getBlobsToVerify(String afterSha256, long verifiedBeforeMillis, int limit) throws SQLException;
+
+    /**
+     * Records the outcome of re-reading a blob.
+     * @param sha256 The hex SHA-256 digest identifying the blob.
+     * @param crc32c The checksum read, recorded only if the blob had none yet; BlobIntegrity.UNKNOWN to leave it.
+     * @param corrupt Whether the bytes on disk disagreed with the recorded size or checksum.
+     * @return true if the blob is still tracked.
+     * @throws SQLException If a database access error occurs.
+     */
+    boolean recordVerification(String sha256, long crc32c, boolean corrupt) throws SQLException;
+
+    /**
+     * Retrieves blobs flagged corrupt, in name order.
+     * @param limit The maximum number of blobs to return.
+     * @return A list of BlobIntegrity objects.
+     * @throws SQLException If a database access error occurs.
+     */
+    List<BlobIntegrity> getCorruptBlobs(int limit) throws SQLException;
+
+    /**
+     * Drops a reference to a blob and removes its row once no references remain.
+     * @param sha256 The hex SHA-256 digest identifying the blob.
+     * @return The number of references left (0 means the blob's content may be deleted),
+     *         or -1 if no such blob is tracked (e.g. a file stored before deduplication).
+     * @throws SQLException If a database access error occurs.
+     */
+    int releaseReference(String sha256) throws SQLException;
+
+    /**
+     * Computes how much space deduplication and compression are saving across all blobs.
+     * @return The aggregate DedupStats.
+     * @throws SQLException If a database access error occurs.
+     */
+    DedupStats getDedupStats() throws SQLException;
+}
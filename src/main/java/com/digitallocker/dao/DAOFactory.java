@@ -0,0 +1,79 @@
+package com.digitallocker.dao;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Creates the DAOs for the metadata backend chosen at startup with the digitallocker.metadata.backend
+ * system property: "jdbc" (the default) for MySQL through the connection pool, or "journal" for the
+ * embedded {@link MetadataJournal}, which needs no database server at all.
+ */
+public final class DAOFactory {
+    public static final String BACKEND = System.getProperty("digitallocker.metadata.backend", "jdbc");
+
+    private static MetadataJournal journal;
+    private static boolean shutdownHookAdded;
+
+    static {
+        if (!"jdbc".equals(BACKEND) && !"journal".equals(BACKEND)) {
+            throw new IllegalArgumentException("Unknown metadata backend '" + BACKEND + "'; use jdbc or journal.");
+        }
+    }
+
+    private DAOFactory() {
+    }
+
+    public static FileDAO getFileDAO() {
+        return isJournal() ? new JournalFileDAO(getJournal()) : new JdbcFileDAO();
+    }
+
+    public static UserDAO getUserDAO() {
+        return isJournal() ? new JournalUserDAO(getJournal()) : new JdbcUserDAO();
+    }
+
+    public static BlobDAO getBlobDAO() {
+        return isJournal() ? new JournalBlobDAO(getJournal()) : new JdbcBlobDAO();
+    }
+
+    public static KeyDAO getKeyDAO() {
+        return isJournal() ? new JournalKeyDAO(getJournal()) : new JdbcKeyDAO();
+    }
+
+    /**
+     * Flushes, snapshots and closes the journal if it is open. Subsequent calls to the getters open it again.
+     */
+    public static synchronized void shutdown() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                System.err.println("Error closing metadata journal: " + e.getMessage());
+            }
+            journal = null;
+        }
+    }
+
+    private static boolean isJournal() {
+        return "journal".equals(BACKEND);
+    }
+
+    /**
+     * Opens the journal on first use; it is flushed, snapshotted and closed when the JVM exits.
+     * @throws UncheckedIOException If the journal cannot be opened, e.g. another process holds it.
+     */
+    private static synchronized MetadataJournal getJournal() {
+        if (journal == null) {
+            try {
+                journal = new MetadataJournal();
+            } catch (IOException e) {
+                System.err.println("Could not open metadata journal: " + e.getMessage());
+                throw new UncheckedIOException(e);
+            }
+            if (!shutdownHookAdded) {
+                Runtime.getRuntime().addShutdownHook(new Thread(DAOFactory::shutdown, "journal-shutdown"));
+                shutdownHookAdded = true;
+            }
+        }
+        return journal;
+    }
+}
@@ -1,152 +1,234 @@
 package com.digitallocker.dao;
 
 import com.digitallocker.model.FileMetadata;
-import com.digitallocker.util.DBConnection;
+import com.digitallocker.model.FileVersion;
+import com.digitallocker.model.TierUsage;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
-import java.util.ArrayList;
+import java.sql.Timestamp;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Data Access Object for FileMetadata operations.
+ * Implemented over JDBC ({@link JdbcFileDAO}) and over the embedded journal ({@link JournalFileDAO});
+ * {@link DAOFactory} picks one at startup.
  */
-public class FileDAO {
+public interface FileDAO {
 
     /**
-     * Adds new file metadata to the database.
+     * Adds new file metadata.
      * @param fileMetadata The FileMetadata object to add.
      * @return The ID of the newly added file metadata, or -1 if insertion fails.
      * @throws SQLException If a database access error occurs.
      */
-    public int addFileMetadata(FileMetadata fileMetadata) throws SQLException {
-        String sql = "INSERT INTO files (user_id, original_filename, stored_filename) VALUES (?, ?, ?)";
-        Connection conn = null;
-        PreparedStatement pstmt = null;
-        ResultSet rs = null;
-        int fileId = -1;
-
-        try {
-            conn = DBConnection.getConnection();
-            pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
-            pstmt.setInt(1, fileMetadata.getUserId());
-            pstmt.setString(2, fileMetadata.getOriginalFilename());
-            pstmt.setString(3, fileMetadata.getStoredFilename());
-
-            int affectedRows = pstmt.executeUpdate();
-            if (affectedRows > 0) {
-                rs = pstmt.getGeneratedKeys();
-                if (rs.next()) {
-                    fileId = rs.getInt(1);
-                }
-            }
-        } finally {
-            DBConnection.close(conn, pstmt, rs);
-        }
-        return fileId;
-    }
-
-    /**
-     * Retrieves all file metadata for a specific user.
+    int addFileMetadata(FileMetadata fileMetadata) throws SQLException;
+
+    /**
+     * Adds metadata for many files atomically: either every row is inserted or none is.
+     * @param files The FileMetadata objects to add.
+     * @return The generated IDs, in the same order as the input list.
+     * @throws SQLException If a database access error occurs; nothing is inserted in that case.
+     */
+    int[] addFileMetadataBatch(List<FileMetadata> files) throws SQLException;
+
+    /**
+     * Retrieves all live file metadata for a specific user, ordered by (upload date, id).
+     * For large lockers prefer {@link #getFilesByUserIdAfter(int, Timestamp, int, int)}.
      * @param userId The ID of the user.
      * @return A list of FileMetadata objects belonging to the user.
      * @throws SQLException If a database access error occurs.
      */
-    public List<FileMetadata> getFilesByUserId(int userId) throws SQLException {
-        List<FileMetadata> files = new ArrayList<>();
-        String sql = "SELECT id, user_id, original_filename, stored_filename, upload_date FROM files WHERE user_id = ?";
-        Connection conn = null;
-        PreparedStatement pstmt = null;
-        ResultSet rs = null;
-
-        try {
-            conn = DBConnection.getConnection();
-            pstmt = conn.prepareStatement(sql);
-            pstmt.setInt(1, userId);
-
-            rs = pstmt.executeQuery();
-            while (rs.next()) {
-                files.add(new FileMetadata(
-                    rs.getInt("id"),
-                    rs.getInt("user_id"),
-                    rs.getString("original_filename"),
-                    rs.getString("stored_filename"),
-                    rs.getTimestamp("upload_date")
-                ));
-            }
-        } finally {
-            DBConnection.close(conn, pstmt, rs);
-        }
-        return files;
-    }
-
-    /**
-     * Retrieves file metadata by its ID and user ID.
-     * This is crucial for access control.
+    List<FileMetadata> getFilesByUserId(int userId) throws SQLException;
+
+    /**
+     * Retrieves one page of a user's live files, ordered by (upload date, id). Pages are addressed by
+     * the key of the last row of the previous page, so a deep page costs the same as the first.
+     * @param userId The ID of the user.
+     * @param afterUploadDate The upload date of the last row already seen, or null for the first page.
+     * @param afterId The ID of the last row already seen (ignored for the first page).
+     * @param limit The maximum number of rows to return.
+     * @return A list of at most limit FileMetadata objects following the given key.
+     * @throws SQLException If a database access error occurs.
+     */
+    List<FileMetadata> getFilesByUserIdAfter(int userId, Timestamp afterUploadDate, int afterId, int limit)
+            throws SQLException;
+
+    /**
+     * Counts the live files belonging to a user.
+     * @param userId The ID of the user.
+     * @return The number of files the user has.
+     * @throws SQLException If a database access error occurs.
+     */
+    int countFilesByUserId(int userId) throws SQLException;
+
+    /**
+     * Retrieves live file metadata by its ID and user ID. This is crucial for access control.
      * @param fileId The ID of the file.
      * @param userId The ID of the user who owns the file.
      * @return The FileMetadata object if found and owned by the user, null otherwise.
      * @throws SQLException If a database access error occurs.
      */
-    public FileMetadata getFileByIdAndUserId(int fileId, int userId) throws SQLException {
-        String sql = "SELECT id, user_id, original_filename, stored_filename, upload_date FROM files WHERE id = ? AND user_id = ?";
-        Connection conn = null;
-        PreparedStatement pstmt = null;
-        ResultSet rs = null;
-        FileMetadata fileMetadata = null;
-
-        try {
-            conn = DBConnection.getConnection();
-            pstmt = conn.prepareStatement(sql);
-            pstmt.setInt(1, fileId);
-            pstmt.setInt(2, userId);
-
-            rs = pstmt.executeQuery();
-            if (rs.next()) {
-                fileMetadata = new FileMetadata(
-                    rs.getInt("id"),
-                    rs.getInt("user_id"),
-                    rs.getString("original_filename"),
-                    rs.getString("stored_filename"),
-                    rs.getTimestamp("upload_date")
-                );
-            }
-        } finally {
-            DBConnection.close(conn, pstmt, rs);
-        }
-        return fileMetadata;
-    }
-
-    /**
-     * Deletes file metadata from the database.
+    FileMetadata getFileByIdAndUserId(int fileId, int userId) throws SQLException;
+
+    /**
+     * Deletes file metadata immediately, tombstoned or not.
      * @param fileId The ID of the file metadata to delete.
      * @param userId The ID of the user who owns the file (for access control).
      * @return true if the file metadata was deleted, false otherwise.
      * @throws SQLException If a database access error occurs.
      */
-    public boolean deleteFileMetadata(int fileId, int userId) throws SQLException {
-        String sql = "DELETE FROM files WHERE id = ? AND user_id = ?";
-        Connection conn = null;
-        PreparedStatement pstmt = null;
-        boolean deleted = false;
-
-        try {
-            conn = DBConnection.getConnection();
-            pstmt = conn.prepareStatement(sql);
-            pstmt.setInt(1, fileId);
-            pstmt.setInt(2, userId);
-
-            int affectedRows = pstmt.executeUpdate();
-            if (affectedRows > 0) {
-                deleted = true;
-            }
-        } finally {
-            DBConnection.close(conn, pstmt, null);
-        }
-        return deleted;
-    }
-}
+    boolean deleteFileMetadata(int fileId, int userId) throws SQLException;
+
+    /**
+     * Marks files as deleted without touching their stored content, all in one transaction.
+     * Tombstoned rows disappear from every user-facing query at once; their content is reclaimed
+     * later by the background sweeper.
+     * @param userId The ID of the user who owns the files (for access control).
+     * @param fileIds The IDs of the files to delete. IDs not owned by the user are ignored.
+     * @return The number of files that were tombstoned.
+     * @throws SQLException If a database access error occurs; no file is tombstoned in that case.
+     */
+    int tombstoneFiles(int userId, Collection<Integer> fileIds) throws SQLException;
+
+    /**
+     * Retrieves tombstoned files awaiting reclamation, in ID order.
+     * @param afterId Only rows with a larger ID are returned; pass 0 to start from the beginning.
+     * @param limit The maximum number of rows to return.
+     * @return A list of tombstoned FileMetadata objects.
+     * @throws SQLException If a database access error occurs.
+     */
+    List<FileMetadata> getTombstonedFiles(int afterId, int limit) throws SQLException;
+
+    /**
+     * Permanently removes a tombstoned file's row. Rows that are not tombstoned are never touched.
+     * @param fileId The ID of the tombstoned file.
+     * @return true if the row was removed by this call, false if it was already gone.
+     * @throws SQLException If a database access error occurs.
+     */
+    boolean purgeFileMetadata(int fileId) throws SQLException;
+
+    /**
+     * Counts tombstoned files still waiting for the sweeper.
+     * @return The number of tombstoned rows.
+     * @throws SQLException If a database access error occurs.
+     */
+    int countTombstonedFiles() throws SQLException;
+
+    /**
+     * Retrieves the live file a user has under a name. Files uploaded before versioning may share a
+     * name; the most recently added one is returned then.
+     * @param userId The ID of the user.
+     * @param originalFilename The file's name.
+     * @return The FileMetadata, or null if the user has no live file of that name.
+     * @throws SQLException If a database access error occurs.
+     */
+    FileMetadata getLiveFileByName(int userId, String originalFilename) throws SQLException;
+
+    /**
+     * Makes new content the latest version of a live file, atomically: the file's current content is
+     * kept as an earlier version and the row takes the new content and upload date, on the hot tier.
+     * The new content is added to the owner's usage; the replaced content keeps counting as the earlier
+     * version. The new upload date moves the file to the end of the user's list.
+     * @param current The file as the caller last read it. Nothing is changed if its content has changed since.
+     * @param previous The current content as it is to be kept: usually current's own, or a re-encoding of it.
+     *                 Its version number is ignored.
+     * @param next The new content; its stored filename, codec, size and encryption flag are used.
+     * @return The number of the new version, or -1 if the file was deleted or changed meanwhile.
+     * @throws SQLException If a database access error occurs; nothing is changed in that case.
+     */
+    int addFileVersion(FileMetadata current, FileVersion previous, FileMetadata next) throws SQLException;
+
+    /**
+     * Retrieves the earlier versions of a file, newest first. The current version is not included.
+     * @param fileId The ID of the file (ownership is the caller's to check).
+     * @return A list of FileVersion objects; empty if the file has no earlier versions.
+     * @throws SQLException If a database access error occurs.
+     */
+    List<FileVersion> getFileVersions(int fileId) throws SQLException;
+
+    /**
+     * Retrieves one earlier version of a file.
+     * @param fileId The ID of the file (ownership is the caller's to check).
+     * @param version The version number.
+     * @return The FileVersion, or null if there is no such earlier version.
+     * @throws SQLException If a database access error occurs.
+     */
+    FileVersion getFileVersion(int fileId, int version) throws SQLException;
+
+    /**
+     * Deletes all but the newest earlier versions of a file. Each version row is deleted only once,
+     * so of two overlapping calls only one returns a given version and releases its content. The
+     * versions' sizes come off the owner's usage if the file is live.
+     * @param fileId The ID of the file.
+     * @param keep The number of earlier versions to keep; 0 deletes them all (before a file is purged).
+     * @return The versions deleted by this call.
+     * @throws SQLException If a database access error occurs.
+     */
+    List<FileVersion> deleteFileVersions(int fileId, int keep) throws SQLException;
+
+    /**
+     * Retrieves one page of the distinct stored filenames referenced by any row, live or tombstoned,
+     * or by an earlier version, in ascending order. Pages are addressed by the last name already seen, so walking every page
+     * streams the whole table in sorted order while holding only one page in memory.
+     * @param afterName Only names sorting after this one are returned; pass "" to start from the beginning.
+     * @param limit The maximum number of names to return.
+     * @return The names, in ascending order.
+     * @throws SQLException If a database access error occurs.
+     */
+    List<String> getStoredFilenamesAfter(String afterName, int limit) throws SQLException;
+
+    /**
+     * Counts the rows, live or tombstoned, and the earlier versions that refer to a stored file.
+     * @param storedFilename The stored filename.
+     * @return The number of rows; 0 if nothing refers to the file.
+     * @throws SQLException If a database access error occurs.
+     */
+    int countFilesByStoredFilename(String storedFilename) throws SQLException;
+
+    /**
+     * Retrieves the live files whose content is the given stored file, of any user.
+     * @param storedFilename The stored filename.
+     * @return A list of FileMetadata objects, in ID order.
+     * @throws SQLException If a database access error occurs.
+     */
+    List<FileMetadata> getFilesByStoredFilename(String storedFilename) throws SQLException;
 
+    /**
+     * Records when files were last retrieved, all in one batch. A time earlier than the one already
+     * recorded is ignored, and IDs of files that are gone are skipped.
+     * @param lastAccessMillis The time of the latest retrieval of each file, by file ID.
+     * @return The number of rows updated.
+     * @throws SQLException If a database access error occurs.
+     */
+    int recordAccesses(Map<Integer, Long> lastAccessMillis) throws SQLException;
+
+    /**
+     * Retrieves live files on the hot tier that no one has uploaded or retrieved since a cutoff, in ID
+     * order. Files whose content is shared with a live file used since the cutoff are left out, as
+     * moving it would only have it brought back.
+     * @param usedBefore The cutoff.
+     * @param afterId Only rows with a larger ID are returned; pass 0 to start from the beginning.
+     * @param limit The maximum number of rows to return.
+     * @return A list of FileMetadata objects.
+     * @throws SQLException If a database access error occurs.
+     */
+    List<FileMetadata> getColdCandidates(Timestamp usedBefore, int afterId, int limit) throws SQLException;
+
+    /**
+     * Records which tier holds stored content, on every row that refers to it.
+     * @param storedFilenames The stored filenames of the content moved.
+     * @param tier FileMetadata.TIER_HOT or FileMetadata.TIER_COLD.
+     * @return The number of rows updated.
+     * @throws SQLException If a database access error occurs.
+     */
+    int setStorageTier(Collection<String> storedFilenames, String tier) throws SQLException;
+
+    /**
+     * Counts the live files and their original bytes per storage tier.
+     * @return One TierUsage per tier that holds any live file.
+     * @throws SQLException If a database access error occurs.
+     */
+    List<TierUsage> getTierUsage() throws SQLException;
+}
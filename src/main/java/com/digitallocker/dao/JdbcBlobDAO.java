@@ -0,0 +1,315 @@
+package com.digitallocker.dao;
+
+import com.digitallocker.model.BlobIntegrity;
+import com.digitallocker.model.DedupStats;
+import com.digitallocker.util.DBConnection;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link BlobDAO} backed by the MySQL blobs table, through the shared connection pool.
+ */
+public class JdbcBlobDAO implements BlobDAO {
+    private static final String INTEGRITY_COLUMNS = "sha256, codec, stored_bytes, crc32c, verified_at, corrupt";
+
+    /**
+     * Adds a reference to a blob, creating its row if this is the first one.
+     * @param sha256 The hex SHA-256 digest identifying the blob.
+     * @param sizeBytes The size of the blob's content in bytes.
+     * @param codec The compression codec the content is stored with, used only if the row is created.
+     * @param storedBytes The size of the content on disk after compression, used only if the row is created.
+     * @param crc32c The CRC-32C of the content on disk, used only if the row is created.
+     * @return true if the blob row was newly created (the caller must store the content), false if it already existed.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public boolean acquireReference(String sha256, long sizeBytes, String codec, long storedBytes, long crc32c)
+            throws SQLException {
+        String sql = "INSERT INTO blobs (sha256, size_bytes, codec, stored_bytes, crc32c, ref_count) VALUES (?, ?, ?, ?, ?, 1) "
+                + "ON DUPLICATE KEY UPDATE ref_count = ref_count + 1";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+
+        try {
+            conn = DBConnection.getConnection();
+            pstmt = conn.prepareStatement(sql);
+            pstmt.setString(1, sha256);
+            pstmt.setLong(2, sizeBytes);
+            pstmt.setString(3, codec);
+            pstmt.setLong(4, storedBytes);
+            pstmt.setLong(5, crc32c);
+
+            // MySQL reports 1 affected row for an insert and 2 for an update of an existing row
+            return pstmt.executeUpdate() == 1;
+        } finally {
+            DBConnection.close(conn, pstmt, null);
+        }
+    }
+
+    /**
+     * Gets the compression codec an existing blob is stored with.
+     * @param sha256 The hex SHA-256 digest identifying the blob.
+     * @return The codec's name, or null if no such blob is tracked.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public String getCodec(String sha256) throws SQLException {
+        String sql = "SELECT codec FROM blobs WHERE sha256 = ?";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+
+        try {
+            conn = DBConnection.getConnection();
+            pstmt = conn.prepareStatement(sql);
+            pstmt.setString(1, sha256);
+            rs = pstmt.executeQuery();
+            return rs.next() ? rs.getString(1) : null;
+        } finally {
+            DBConnection.close(conn, pstmt, rs);
+        }
+    }
+
+    /**
+     * Gets the recorded size, checksum and scrub state of a blob's bytes on disk.
+     * @param sha256 The hex SHA-256 digest identifying the blob.
+     * @return The BlobIntegrity, or null if no such blob is tracked.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public BlobIntegrity getIntegrity(String sha256) throws SQLException {
+        String sql = "SELECT " + INTEGRITY_COLUMNS + " FROM blobs WHERE sha256 = ?";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+
+        try {
+            conn = DBConnection.getConnection();
+            pstmt = conn.prepareStatement(sql);
+            pstmt.setString(1, sha256);
+            rs = pstmt.executeQuery();
+            return rs.next() ? mapIntegrity(rs) : null;
+        } finally {
+            DBConnection.close(conn, pstmt, rs);
+        }
+    }
+
+    /**
+     * Records that a blob's bytes on disk were replaced by a fresh copy, clearing any corrupt flag.
+     * @param sha256 The hex SHA-256 digest identifying the blob.
+     * @param storedBytes The size of the new copy on disk.
+     * @param crc32c The CRC-32C of the new copy.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public void replaceContent(String sha256, long storedBytes, long crc32c) throws SQLException {
+        String sql = "UPDATE blobs SET stored_bytes = ?, crc32c = ?, corrupt = FALSE, verified_at = NULL WHERE sha256 = ?";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+
+        try {
+            conn = DBConnection.getConnection();
+            pstmt = conn.prepareStatement(sql);
+            pstmt.setLong(1, storedBytes);
+            pstmt.setLong(2, crc32c);
+            pstmt.setString(3, sha256);
+            pstmt.executeUpdate();
+        } finally {
+            DBConnection.close(conn, pstmt, null);
+        }
+    }
+
+    /**
+     * Retrieves one page of the blobs due for an integrity scrub, in name order.
+     * @param afterSha256 Only blobs with a larger name are returned; pass "" to start from the beginning.
+     * @param verifiedBeforeMillis Blobs verified at or after this time are skipped.
+     * @param limit The maximum number of blobs to return.
+     * @return A list of BlobIntegrity objects.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public List<BlobIntegrity> getBlobsToVerify(String afterSha256, long verifiedBeforeMillis, int limit)
+            throws SQLException {
+        String sql = "SELECT " + INTEGRITY_COLUMNS + " FROM blobs WHERE sha256 > ? AND corrupt = FALSE "
+                + "AND (verified_at IS NULL OR verified_at < ?) ORDER BY sha256 LIMIT ?";
+        List<BlobIntegrity> blobs = new ArrayList<>();
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+
+        try {
+            conn = DBConnection.getConnection();
+            pstmt = conn.prepareStatement(sql);
+            pstmt.setString(1, afterSha256);
+            pstmt.setTimestamp(2, new Timestamp(verifiedBeforeMillis));
+            pstmt.setInt(3, limit);
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                blobs.add(mapIntegrity(rs));
+            }
+        } finally {
+            DBConnection.close(conn, pstmt, rs);
+        }
+        return blobs;
+    }
+
+    /**
+     * Records the outcome of re-reading a blob. The time is taken from this process's clock, like the
+     * cutoff passed to getBlobsToVerify.
+     * @param sha256 The hex SHA-256 digest identifying the blob.
+     * @param crc32c The checksum read, recorded only if the blob had none yet; BlobIntegrity.UNKNOWN to leave it.
+     * @param corrupt Whether the bytes on disk disagreed with the recorded size or checksum.
+     * @return true if the blob is still tracked.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public boolean recordVerification(String sha256, long crc32c, boolean corrupt) throws SQLException {
+        String sql = "UPDATE blobs SET verified_at = ?, corrupt = ?, crc32c = COALESCE(crc32c, ?) WHERE sha256 = ?";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+
+        try {
+            conn = DBConnection.getConnection();
+            pstmt = conn.prepareStatement(sql);
+            pstmt.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+            pstmt.setBoolean(2, corrupt);
+            if (crc32c == BlobIntegrity.UNKNOWN) {
+                pstmt.setNull(3, Types.BIGINT);
+            } else {
+                pstmt.setLong(3, crc32c);
+            }
+            pstmt.setString(4, sha256);
+            return pstmt.executeUpdate() > 0;
+        } finally {
+            DBConnection.close(conn, pstmt, null);
+        }
+    }
+
+    /**
+     * Retrieves blobs flagged corrupt, in name order.
+     * @param limit The maximum number of blobs to return.
+     * @return A list of BlobIntegrity objects.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public List<BlobIntegrity> getCorruptBlobs(int limit) throws SQLException {
+        String sql = "SELECT " + INTEGRITY_COLUMNS + " FROM blobs WHERE corrupt = TRUE ORDER BY sha256 LIMIT ?";
+        List<BlobIntegrity> blobs = new ArrayList<>();
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+
+        try {
+            conn = DBConnection.getConnection();
+            pstmt = conn.prepareStatement(sql);
+            pstmt.setInt(1, limit);
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                blobs.add(mapIntegrity(rs));
+            }
+        } finally {
+            DBConnection.close(conn, pstmt, rs);
+        }
+        return blobs;
+    }
+
+    /**
+     * Drops a reference to a blob and removes its row once no references remain.
+     * @param sha256 The hex SHA-256 digest identifying the blob.
+     * @return The number of references left (0 means the blob's content may be deleted),
+     *         or -1 if no such blob is tracked (e.g. a file stored before deduplication).
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public int releaseReference(String sha256) throws SQLException {
+        String updateSql = "UPDATE blobs SET ref_count = ref_count - 1 WHERE sha256 = ?";
+        String selectSql = "SELECT ref_count FROM blobs WHERE sha256 = ?";
+        String deleteSql = "DELETE FROM blobs WHERE sha256 = ? AND ref_count <= 0";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        int remaining = -1;
+
+        try {
+            conn = DBConnection.getConnection();
+            conn.setAutoCommit(false);
+
+            pstmt = conn.prepareStatement(updateSql);
+            pstmt.setString(1, sha256);
+            int affectedRows = pstmt.executeUpdate();
+            pstmt.close();
+
+            if (affectedRows > 0) {
+                pstmt = conn.prepareStatement(selectSql);
+                pstmt.setString(1, sha256);
+                rs = pstmt.executeQuery();
+                remaining = rs.next() ? Math.max(0, rs.getInt(1)) : 0;
+                rs.close();
+                rs = null;
+                pstmt.close();
+
+                if (remaining == 0) {
+                    pstmt = conn.prepareStatement(deleteSql);
+                    pstmt.setString(1, sha256);
+                    pstmt.executeUpdate();
+                }
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            if (conn != null) {
+                conn.rollback();
+            }
+            throw e;
+        } finally {
+            DBConnection.close(conn, pstmt, rs);
+        }
+        return remaining;
+    }
+
+    /**
+     * Computes how much space deduplication and compression are saving across all blobs.
+     * @return The aggregate DedupStats.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public DedupStats getDedupStats() throws SQLException {
+        String sql = "SELECT COUNT(*), COALESCE(SUM(ref_count), 0), COALESCE(SUM(size_bytes), 0), "
+                + "COALESCE(SUM(size_bytes * ref_count), 0), COALESCE(SUM(COALESCE(stored_bytes, size_bytes)), 0) FROM blobs";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+
+        try {
+            conn = DBConnection.getConnection();
+            pstmt = conn.prepareStatement(sql);
+            rs = pstmt.executeQuery();
+            if (rs.next()) {
+                return new DedupStats(rs.getLong(1), rs.getLong(2), rs.getLong(3), rs.getLong(4), rs.getLong(5));
+            }
+            return new DedupStats(0, 0, 0, 0, 0);
+        } finally {
+            DBConnection.close(conn, pstmt, rs);
+        }
+    }
+
+    private static BlobIntegrity mapIntegrity(ResultSet rs) throws SQLException {
+        long storedBytes = rs.getLong("stored_bytes");
+        if (rs.wasNull()) {
+            storedBytes = BlobIntegrity.UNKNOWN;
+        }
+        long crc32c = rs.getLong("crc32c");
+        if (rs.wasNull()) {
+            crc32c = BlobIntegrity.UNKNOWN;
+        }
+        Timestamp verifiedAt = rs.getTimestamp("verified_at");
+        return new BlobIntegrity(rs.getString("sha256"), rs.getString("codec"), storedBytes, crc32c,
+                verifiedAt == null ? 0 : verifiedAt.getTime(), rs.getBoolean("corrupt"));
+    }
+}
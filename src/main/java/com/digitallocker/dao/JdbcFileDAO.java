@@ -0,0 +1,1328 @@
+package com.digitallocker.dao;
+
+import com.digitallocker.model.FileMetadata;
+import com.digitallocker.model.FileVersion;
+import com.digitallocker.model.TierUsage;
+import com.digitallocker.util.CacheStats;
+import com.digitallocker.util.ConnectionPool;
+import com.digitallocker.util.DBConnection;
+import com.digitallocker.util.LruCache;
+import com.digitallocker.util.Metrics;
+import com.digitallocker.util.OperationMetrics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link FileDAO} backed by the MySQL files table, through the shared connection pool.
+ */
+public class JdbcFileDAO implements FileDAO {
+    // Per-operation call, error and latency metrics, also exposed over JMX (see Metrics)
+    private static final OperationMetrics ADD_FILE_METADATA_METRICS = Metrics.operation("FileDAO", "addFileMetadata");
+    private static final OperationMetrics ADD_FILE_METADATA_BATCH_METRICS = Metrics.operation("FileDAO", "addFileMetadataBatch");
+    private static final OperationMetrics GET_FILES_BY_USER_ID_METRICS = Metrics.operation("FileDAO", "getFilesByUserId");
+    private static final OperationMetrics GET_FILES_BY_USER_ID_AFTER_METRICS = Metrics.operation("FileDAO", "getFilesByUserIdAfter");
+    private static final OperationMetrics COUNT_FILES_BY_USER_ID_METRICS = Metrics.operation("FileDAO", "countFilesByUserId");
+    private static final OperationMetrics GET_FILE_BY_ID_AND_USER_ID_METRICS = Metrics.operation("FileDAO", "getFileByIdAndUserId");
+    private static final OperationMetrics DELETE_FILE_METADATA_METRICS = Metrics.operation("FileDAO", "deleteFileMetadata");
+    private static final OperationMetrics TOMBSTONE_FILES_METRICS = Metrics.operation("FileDAO", "tombstoneFiles");
+    private static final OperationMetrics GET_TOMBSTONED_FILES_METRICS = Metrics.operation("FileDAO", "getTombstonedFiles");
+    private static final OperationMetrics PURGE_FILE_METADATA_METRICS = Metrics.operation("FileDAO", "purgeFileMetadata");
+    private static final OperationMetrics COUNT_TOMBSTONED_FILES_METRICS = Metrics.operation("FileDAO", "countTombstonedFiles");
+    private static final OperationMetrics GET_LIVE_FILE_BY_NAME_METRICS = Metrics.operation("FileDAO", "getLiveFileByName");
+    private static final OperationMetrics ADD_FILE_VERSION_METRICS = Metrics.operation("FileDAO", "addFileVersion");
+    private static final OperationMetrics GET_FILE_VERSIONS_METRICS = Metrics.operation("FileDAO", "getFileVersions");
+    private static final OperationMetrics GET_FILE_VERSION_METRICS = Metrics.operation("FileDAO", "getFileVersion");
+    private static final OperationMetrics DELETE_FILE_VERSIONS_METRICS = Metrics.operation("FileDAO", "deleteFileVersions");
+    private static final OperationMetrics GET_STORED_FILENAMES_AFTER_METRICS = Metrics.operation("FileDAO", "getStoredFilenamesAfter");
+    private static final OperationMetrics COUNT_FILES_BY_STORED_FILENAME_METRICS = Metrics.operation("FileDAO", "countFilesByStoredFilename");
+    private static final OperationMetrics GET_FILES_BY_STORED_FILENAME_METRICS = Metrics.operation("FileDAO", "getFilesByStoredFilename");
+    private static final OperationMetrics RECORD_ACCESSES_METRICS = Metrics.operation("FileDAO", "recordAccesses");
+    private static final OperationMetrics GET_COLD_CANDIDATES_METRICS = Metrics.operation("FileDAO", "getColdCandidates");
+    private static final OperationMetrics SET_STORAGE_TIER_METRICS = Metrics.operation("FileDAO", "setStorageTier");
+    private static final OperationMetrics GET_TIER_USAGE_METRICS = Metrics.operation("FileDAO", "getTierUsage");
+
+    // Shared by all JdbcFileDAO instances on the shared pool: (fileId, userId) -> metadata, or NOT_FOUND for a cached miss
+    private static final int CACHE_MAX_ENTRIES = Integer.getInteger("digitallocker.cache.fileMetadata.maxEntries", 10_000);
+    private static final long CACHE_TTL_MS = Long.getLong("digitallocker.cache.fileMetadata.ttlMs", 60_000L);
+    private static final LruCache<Long, FileMetadata> METADATA_CACHE = new LruCache<>(CACHE_MAX_ENTRIES, CACHE_TTL_MS);
+    private static final FileMetadata NOT_FOUND = new FileMetadata(-1, -1, null, null, null);
+    private static final int BATCH_SIZE = 500; // Rows per executeBatch round trip
+    private static final int MAX_IN_LIST = 1000; // Ids per "id IN (...)" statement
+    private static final String FILE_COLUMNS = "id, user_id, original_filename, stored_filename, upload_date, codec, size_bytes, encrypted, "
+            + "storage_tier, last_accessed_at";
+    private static final String VERSION_COLUMNS = "file_id, version, stored_filename, codec, size_bytes, encrypted, created_at";
+
+    private final ConnectionPool pool;
+    private final LruCache<Long, FileMetadata> metadataCache;
+
+    /**
+     * Creates a DAO on the shared connection pool behind {@link DBConnection}.
+     */
+    public JdbcFileDAO() {
+        this.pool = null;
+        this.metadataCache = METADATA_CACHE;
+    }
+
+    /**
+     * Creates a DAO on a pool of its own, e.g. one on an embedded database.
+     * It keeps its own metadata cache, since its file IDs are not those of the shared database.
+     * @param pool The pool to borrow connections from.
+     */
+    public JdbcFileDAO(ConnectionPool pool) {
+        this.pool = pool;
+        this.metadataCache = new LruCache<>(CACHE_MAX_ENTRIES, CACHE_TTL_MS);
+    }
+
+    /**
+     * Adds new file metadata to the database, and its size to the owner's usage in the same transaction.
+     * @param fileMetadata The FileMetadata object to add.
+     * @return The ID of the newly added file metadata, or -1 if insertion fails.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public int addFileMetadata(FileMetadata fileMetadata) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            String sql = "INSERT INTO files (user_id, original_filename, stored_filename, codec, size_bytes, encrypted) "
+                    + "VALUES (?, ?, ?, ?, ?, ?)";
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            int fileId = -1;
+
+            try {
+                conn = getConnection();
+                conn.setAutoCommit(false);
+                pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+                pstmt.setInt(1, fileMetadata.getUserId());
+                pstmt.setString(2, fileMetadata.getOriginalFilename());
+                pstmt.setString(3, fileMetadata.getStoredFilename());
+                pstmt.setString(4, fileMetadata.getCodec());
+                setSizeBytes(pstmt, 5, fileMetadata.getSizeBytes());
+                pstmt.setBoolean(6, fileMetadata.isEncrypted());
+
+                int affectedRows = pstmt.executeUpdate();
+                if (affectedRows > 0) {
+                    rs = pstmt.getGeneratedKeys();
+                    if (rs.next()) {
+                        fileId = rs.getInt(1);
+                    }
+                }
+                if (fileId != -1) {
+                    addUsage(conn, fileMetadata.getUserId(), Math.max(0, fileMetadata.getSizeBytes()));
+                }
+                conn.commit();
+                if (fileId != -1) {
+                    // Drop any cached "not found" for the new key
+                    metadataCache.invalidate(cacheKey(fileId, fileMetadata.getUserId()));
+                }
+            } catch (SQLException e) {
+                if (conn != null) {
+                    conn.rollback();
+                }
+                throw e;
+            } finally {
+                DBConnection.close(conn, pstmt, rs);
+            }
+            return fileId;
+        } catch (SQLException e) {
+            ADD_FILE_METADATA_METRICS.recordError();
+            throw e;
+        } finally {
+            ADD_FILE_METADATA_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Adds metadata for many files in a single transaction, using JDBC batching.
+     * Either every row is inserted, and counted in its owner's usage, or none is.
+     * @param files The FileMetadata objects to add.
+     * @return The generated IDs, in the same order as the input list.
+     * @throws SQLException If a database access error occurs; the transaction is rolled back.
+     */
+    @Override
+    public int[] addFileMetadataBatch(List<FileMetadata> files) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            String sql = "INSERT INTO files (user_id, original_filename, stored_filename, codec, size_bytes, encrypted) "
+                    + "VALUES (?, ?, ?, ?, ?, ?)";
+            int[] fileIds = new int[files.size()];
+            if (files.isEmpty()) {
+                return fileIds;
+            }
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+
+            try {
+                conn = getConnection();
+                conn.setAutoCommit(false);
+                pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+
+                int next = 0;
+                for (int i = 0; i < files.size(); i++) {
+                    FileMetadata fileMetadata = files.get(i);
+                    pstmt.setInt(1, fileMetadata.getUserId());
+                    pstmt.setString(2, fileMetadata.getOriginalFilename());
+                    pstmt.setString(3, fileMetadata.getStoredFilename());
+                    pstmt.setString(4, fileMetadata.getCodec());
+                    setSizeBytes(pstmt, 5, fileMetadata.getSizeBytes());
+                    pstmt.setBoolean(6, fileMetadata.isEncrypted());
+                    pstmt.addBatch();
+
+                    if ((i + 1) % BATCH_SIZE == 0 || i == files.size() - 1) {
+                        pstmt.executeBatch();
+                        rs = pstmt.getGeneratedKeys();
+                        while (rs.next()) {
+                            fileIds[next++] = rs.getInt(1);
+                        }
+                        rs.close();
+                        rs = null;
+                    }
+                }
+                if (next != files.size()) {
+                    throw new SQLException("Expected " + files.size() + " generated keys but got " + next + ".");
+                }
+                Map<Integer, Long> addedBytes = new HashMap<>();
+                for (FileMetadata fileMetadata : files) {
+                    addedBytes.merge(fileMetadata.getUserId(), Math.max(0, fileMetadata.getSizeBytes()), Long::sum);
+                }
+                for (Map.Entry<Integer, Long> user : addedBytes.entrySet()) {
+                    addUsage(conn, user.getKey(), user.getValue());
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                if (conn != null) {
+                    conn.rollback();
+                }
+                throw e;
+            } finally {
+                DBConnection.close(conn, pstmt, rs);
+            }
+
+            for (int i = 0; i < files.size(); i++) {
+                metadataCache.invalidate(cacheKey(fileIds[i], files.get(i).getUserId()));
+            }
+            return fileIds;
+        } catch (SQLException e) {
+            ADD_FILE_METADATA_BATCH_METRICS.recordError();
+            throw e;
+        } finally {
+            ADD_FILE_METADATA_BATCH_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Retrieves all file metadata for a specific user, oldest first.
+     * For large lockers prefer {@link #getFilesByUserIdAfter(int, Timestamp, int, int)}.
+     * @param userId The ID of the user.
+     * @return A list of FileMetadata objects belonging to the user.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public List<FileMetadata> getFilesByUserId(int userId) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            List<FileMetadata> files = new ArrayList<>();
+            String sql = "SELECT " + FILE_COLUMNS + " FROM files WHERE user_id = ? AND deleted_at IS NULL "
+                    + "ORDER BY upload_date, id";
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+
+            try {
+                conn = getConnection();
+                pstmt = conn.prepareStatement(sql);
+                pstmt.setInt(1, userId);
+
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    files.add(mapFile(rs));
+                }
+            } finally {
+                DBConnection.close(conn, pstmt, rs);
+            }
+            return files;
+        } catch (SQLException e) {
+            GET_FILES_BY_USER_ID_METRICS.recordError();
+            throw e;
+        } finally {
+            GET_FILES_BY_USER_ID_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Retrieves one page of a user's files, ordered by (upload_date, id).
+     * Pages are addressed by the key of the last row of the previous page rather than by an offset,
+     * so every page is a bounded range scan of idx_files_user_upload no matter how deep it is.
+     * @param userId The ID of the user.
+     * @param afterUploadDate The upload date of the last row already seen, or null for the first page.
+     * @param afterId The ID of the last row already seen (ignored for the first page).
+     * @param limit The maximum number of rows to return.
+     * @return A list of at most limit FileMetadata objects following the given key.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public List<FileMetadata> getFilesByUserIdAfter(int userId, Timestamp afterUploadDate, int afterId, int limit)
+            throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            List<FileMetadata> files = new ArrayList<>();
+            String sql = afterUploadDate == null
+                    ? "SELECT " + FILE_COLUMNS + " FROM files WHERE user_id = ? AND deleted_at IS NULL "
+                            + "ORDER BY upload_date, id LIMIT ?"
+                    : "SELECT " + FILE_COLUMNS + " FROM files WHERE user_id = ? AND deleted_at IS NULL "
+                            + "AND (upload_date > ? OR (upload_date = ? AND id > ?)) ORDER BY upload_date, id LIMIT ?";
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+
+            try {
+                conn = getConnection();
+                pstmt = conn.prepareStatement(sql);
+                int i = 1;
+                pstmt.setInt(i++, userId);
+                if (afterUploadDate != null) {
+                    pstmt.setTimestamp(i++, afterUploadDate);
+                    pstmt.setTimestamp(i++, afterUploadDate);
+                    pstmt.setInt(i++, afterId);
+                }
+                pstmt.setInt(i, limit);
+
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    files.add(mapFile(rs));
+                }
+            } finally {
+                DBConnection.close(conn, pstmt, rs);
+            }
+            return files;
+        } catch (SQLException e) {
+            GET_FILES_BY_USER_ID_AFTER_METRICS.recordError();
+            throw e;
+        } finally {
+            GET_FILES_BY_USER_ID_AFTER_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Counts the files belonging to a user.
+     * @param userId The ID of the user.
+     * @return The number of files the user has.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public int countFilesByUserId(int userId) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            String sql = "SELECT COUNT(*) FROM files WHERE user_id = ? AND deleted_at IS NULL";
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            int count = 0;
+
+            try {
+                conn = getConnection();
+                pstmt = conn.prepareStatement(sql);
+                pstmt.setInt(1, userId);
+                rs = pstmt.executeQuery();
+                if (rs.next()) {
+                    count = rs.getInt(1);
+                }
+            } finally {
+                DBConnection.close(conn, pstmt, rs);
+            }
+            return count;
+        } catch (SQLException e) {
+            COUNT_FILES_BY_USER_ID_METRICS.recordError();
+            throw e;
+        } finally {
+            COUNT_FILES_BY_USER_ID_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Retrieves file metadata by its ID and user ID.
+     * This is crucial for access control. Results, including misses, are cached per (fileId, userId)
+     * pair, so a cached entry can only ever be returned to the user it was looked up for.
+     * @param fileId The ID of the file.
+     * @param userId The ID of the user who owns the file.
+     * @return The FileMetadata object if found and owned by the user, null otherwise.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public FileMetadata getFileByIdAndUserId(int fileId, int userId) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            Long key = cacheKey(fileId, userId);
+            FileMetadata cached = metadataCache.get(key);
+            if (cached != null) {
+                return cached == NOT_FOUND ? null : cached;
+            }
+            long stamp = metadataCache.stamp();
+            FileMetadata fileMetadata = loadFileByIdAndUserId(fileId, userId);
+            metadataCache.putIfNotInvalidated(key, fileMetadata == null ? NOT_FOUND : fileMetadata, stamp);
+            return fileMetadata;
+        } catch (SQLException e) {
+            GET_FILE_BY_ID_AND_USER_ID_METRICS.recordError();
+            throw e;
+        } finally {
+            GET_FILE_BY_ID_AND_USER_ID_METRICS.record(startNanos);
+        }
+    }
+
+    private FileMetadata loadFileByIdAndUserId(int fileId, int userId) throws SQLException {
+        String sql = "SELECT " + FILE_COLUMNS + " FROM files WHERE id = ? AND user_id = ? AND deleted_at IS NULL";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        FileMetadata fileMetadata = null;
+
+        try {
+            conn = getConnection();
+            pstmt = conn.prepareStatement(sql);
+            pstmt.setInt(1, fileId);
+            pstmt.setInt(2, userId);
+
+            rs = pstmt.executeQuery();
+            if (rs.next()) {
+                fileMetadata = mapFile(rs);
+            }
+        } finally {
+            DBConnection.close(conn, pstmt, rs);
+        }
+        return fileMetadata;
+    }
+
+    /**
+     * Deletes file metadata from the database.
+     * @param fileId The ID of the file metadata to delete.
+     * @param userId The ID of the user who owns the file (for access control).
+     * @return true if the file metadata was deleted, false otherwise.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public boolean deleteFileMetadata(int fileId, int userId) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            String sql = "DELETE FROM files WHERE id = ? AND user_id = ?";
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+            boolean deleted = false;
+
+            try {
+                conn = getConnection();
+                conn.setAutoCommit(false);
+                releaseUsage(conn, userId, List.of(fileId)); // A tombstoned row was already subtracted
+                pstmt = conn.prepareStatement(sql);
+                pstmt.setInt(1, fileId);
+                pstmt.setInt(2, userId);
+
+                int affectedRows = pstmt.executeUpdate();
+                if (affectedRows > 0) {
+                    deleted = true;
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                if (conn != null) {
+                    conn.rollback();
+                }
+                throw e;
+            } finally {
+                metadataCache.invalidate(cacheKey(fileId, userId));
+                DBConnection.close(conn, pstmt, null);
+            }
+            return deleted;
+        } catch (SQLException e) {
+            DELETE_FILE_METADATA_METRICS.recordError();
+            throw e;
+        } finally {
+            DELETE_FILE_METADATA_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Marks files as deleted without touching their stored content.
+     * Tombstoned rows disappear from every user-facing query at once; their content is reclaimed
+     * later by the background sweeper. All ids are tombstoned in one transaction, which also takes
+     * their sizes off the owner's usage.
+     * @param userId The ID of the user who owns the files (for access control).
+     * @param fileIds The IDs of the files to delete. IDs not owned by the user are ignored.
+     * @return The number of files that were tombstoned.
+     * @throws SQLException If a database access error occurs; no file is tombstoned in that case.
+     */
+    @Override
+    public int tombstoneFiles(int userId, Collection<Integer> fileIds) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            if (fileIds.isEmpty()) {
+                return 0;
+            }
+            List<Integer> ids = new ArrayList<>(fileIds);
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+            int tombstoned = 0;
+
+            try {
+                conn = getConnection();
+                conn.setAutoCommit(false);
+                for (int from = 0; from < ids.size(); from += MAX_IN_LIST) {
+                    List<Integer> chunk = ids.subList(from, Math.min(ids.size(), from + MAX_IN_LIST));
+                    releaseUsage(conn, userId, chunk);
+                    String sql = "UPDATE files SET deleted_at = CURRENT_TIMESTAMP WHERE user_id = ? AND deleted_at IS NULL "
+                            + "AND id IN (" + placeholders(chunk.size()) + ")";
+                    pstmt = conn.prepareStatement(sql);
+                    pstmt.setInt(1, userId);
+                    for (int i = 0; i < chunk.size(); i++) {
+                        pstmt.setInt(i + 2, chunk.get(i));
+                    }
+                    tombstoned += pstmt.executeUpdate();
+                    pstmt.close();
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                if (conn != null) {
+                    conn.rollback();
+                }
+                throw e;
+            } finally {
+                for (int fileId : ids) {
+                    metadataCache.invalidate(cacheKey(fileId, userId));
+                }
+                DBConnection.close(conn, pstmt, null);
+            }
+            return tombstoned;
+        } catch (SQLException e) {
+            TOMBSTONE_FILES_METRICS.recordError();
+            throw e;
+        } finally {
+            TOMBSTONE_FILES_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Retrieves tombstoned files awaiting reclamation, in ID order.
+     * @param afterId Only rows with a larger ID are returned; pass 0 to start from the beginning.
+     * @param limit The maximum number of rows to return.
+     * @return A list of tombstoned FileMetadata objects.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public List<FileMetadata> getTombstonedFiles(int afterId, int limit) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            List<FileMetadata> files = new ArrayList<>();
+            String sql = "SELECT " + FILE_COLUMNS + " FROM files WHERE deleted_at IS NOT NULL AND id > ? ORDER BY id LIMIT ?";
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+
+            try {
+                conn = getConnection();
+                pstmt = conn.prepareStatement(sql);
+                pstmt.setInt(1, afterId);
+                pstmt.setInt(2, limit);
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    files.add(mapFile(rs));
+                }
+            } finally {
+                DBConnection.close(conn, pstmt, rs);
+            }
+            return files;
+        } catch (SQLException e) {
+            GET_TOMBSTONED_FILES_METRICS.recordError();
+            throw e;
+        } finally {
+            GET_TOMBSTONED_FILES_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Permanently removes a tombstoned file's row. Rows that are not tombstoned are never touched.
+     * @param fileId The ID of the tombstoned file.
+     * @return true if the row was removed by this call, false if it was already gone.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public boolean purgeFileMetadata(int fileId) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            String sql = "DELETE FROM files WHERE id = ? AND deleted_at IS NOT NULL";
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+
+            try {
+                conn = getConnection();
+                pstmt = conn.prepareStatement(sql);
+                pstmt.setInt(1, fileId);
+                return pstmt.executeUpdate() > 0;
+            } finally {
+                DBConnection.close(conn, pstmt, null);
+            }
+        } catch (SQLException e) {
+            PURGE_FILE_METADATA_METRICS.recordError();
+            throw e;
+        } finally {
+            PURGE_FILE_METADATA_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Counts tombstoned files still waiting for the sweeper.
+     * @return The number of tombstoned rows.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public int countTombstonedFiles() throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            String sql = "SELECT COUNT(*) FROM files WHERE deleted_at IS NOT NULL";
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+
+            try {
+                conn = getConnection();
+                pstmt = conn.prepareStatement(sql);
+                rs = pstmt.executeQuery();
+                return rs.next() ? rs.getInt(1) : 0;
+            } finally {
+                DBConnection.close(conn, pstmt, rs);
+            }
+        } catch (SQLException e) {
+            COUNT_TOMBSTONED_FILES_METRICS.recordError();
+            throw e;
+        } finally {
+            COUNT_TOMBSTONED_FILES_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Retrieves the live file a user has under a name, through idx_files_user_name.
+     * @param userId The ID of the user.
+     * @param originalFilename The file's name.
+     * @return The FileMetadata of the most recently added such file, or null if there is none.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public FileMetadata getLiveFileByName(int userId, String originalFilename) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            String sql = "SELECT " + FILE_COLUMNS + " FROM files WHERE user_id = ? AND original_filename = ? "
+                    + "AND deleted_at IS NULL ORDER BY id DESC LIMIT 1";
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+
+            try {
+                conn = getConnection();
+                pstmt = conn.prepareStatement(sql);
+                pstmt.setInt(1, userId);
+                pstmt.setString(2, originalFilename);
+                rs = pstmt.executeQuery();
+                return rs.next() ? mapFile(rs) : null;
+            } finally {
+                DBConnection.close(conn, pstmt, rs);
+            }
+        } catch (SQLException e) {
+            GET_LIVE_FILE_BY_NAME_METRICS.recordError();
+            throw e;
+        } finally {
+            GET_LIVE_FILE_BY_NAME_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Makes new content the latest version of a live file in one transaction, back on the hot tier as
+     * its content was just written there. The files row is read with a locking read first, so concurrent
+     * new versions of the same file are numbered one after the other and the second one sees that the
+     * content it replaces has changed.
+     * <p>
+     * upload_date is set to now on purpose: it is when the file's current content was uploaded, so an
+     * edited file moves to the end of the user's list, which is in upload order, and of its keyset pages.
+     * A page walk under way meanwhile then sees the file again on its last page, as it would see a new
+     * upload. Earlier versions keep their own dates in file_versions.
+     * @param current The file as the caller last read it.
+     * @param previous The current content as it is to be kept.
+     * @param next The new content.
+     * @return The number of the new version, or -1 if the file was deleted or changed meanwhile.
+     * @throws SQLException If a database access error occurs; the transaction is rolled back.
+     */
+    @Override
+    public int addFileVersion(FileMetadata current, FileVersion previous, FileMetadata next) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            int version = -1;
+
+            try {
+                conn = getConnection();
+                conn.setAutoCommit(false);
+                pstmt = conn.prepareStatement("SELECT stored_filename, size_bytes FROM files "
+                        + "WHERE id = ? AND user_id = ? AND deleted_at IS NULL FOR UPDATE");
+                pstmt.setInt(1, current.getId());
+                pstmt.setInt(2, current.getUserId());
+                rs = pstmt.executeQuery();
+                if (!rs.next() || !rs.getString(1).equals(current.getStoredFilename())) {
+                    conn.rollback();
+                    return -1;
+                }
+                long currentSize = Math.max(0, rs.getLong(2));
+                rs.close();
+                pstmt.close();
+
+                pstmt = conn.prepareStatement("SELECT COALESCE(MAX(version), 0) FROM file_versions WHERE file_id = ?");
+                pstmt.setInt(1, current.getId());
+                rs = pstmt.executeQuery();
+                rs.next();
+                int previousVersion = rs.getInt(1) + 1;
+                rs.close();
+                pstmt.close();
+
+                pstmt = conn.prepareStatement("INSERT INTO file_versions (" + VERSION_COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?, ?)");
+                pstmt.setInt(1, current.getId());
+                pstmt.setInt(2, previousVersion);
+                pstmt.setString(3, previous.getStoredFilename());
+                pstmt.setString(4, previous.getCodec());
+                setSizeBytes(pstmt, 5, previous.getSizeBytes());
+                pstmt.setBoolean(6, previous.isEncrypted());
+                pstmt.setTimestamp(7, previous.getCreatedAt());
+                pstmt.executeUpdate();
+                pstmt.close();
+
+                pstmt = conn.prepareStatement("UPDATE files SET stored_filename = ?, codec = ?, size_bytes = ?, "
+                        + "encrypted = ?, upload_date = CURRENT_TIMESTAMP, storage_tier = 'hot' WHERE id = ?");
+                pstmt.setString(1, next.getStoredFilename());
+                pstmt.setString(2, next.getCodec());
+                setSizeBytes(pstmt, 3, next.getSizeBytes());
+                pstmt.setBoolean(4, next.isEncrypted());
+                pstmt.setInt(5, current.getId());
+                pstmt.executeUpdate();
+
+                // The replaced content stays as the version just inserted, so it keeps counting
+                addUsage(conn, current.getUserId(),
+                        Math.max(0, next.getSizeBytes()) - currentSize + Math.max(0, previous.getSizeBytes()));
+                conn.commit();
+                version = previousVersion + 1;
+            } catch (SQLException e) {
+                if (conn != null) {
+                    conn.rollback();
+                }
+                throw e;
+            } finally {
+                metadataCache.invalidate(cacheKey(current.getId(), current.getUserId()));
+                DBConnection.close(conn, pstmt, rs);
+            }
+            return version;
+        } catch (SQLException e) {
+            ADD_FILE_VERSION_METRICS.recordError();
+            throw e;
+        } finally {
+            ADD_FILE_VERSION_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Retrieves the earlier versions of a file, newest first.
+     * @param fileId The ID of the file.
+     * @return A list of FileVersion objects; empty if the file has no earlier versions.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public List<FileVersion> getFileVersions(int fileId) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            List<FileVersion> versions = new ArrayList<>();
+            String sql = "SELECT " + VERSION_COLUMNS + " FROM file_versions WHERE file_id = ? ORDER BY version DESC";
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+
+            try {
+                conn = getConnection();
+                pstmt = conn.prepareStatement(sql);
+                pstmt.setInt(1, fileId);
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    versions.add(mapVersion(rs));
+                }
+            } finally {
+                DBConnection.close(conn, pstmt, rs);
+            }
+            return versions;
+        } catch (SQLException e) {
+            GET_FILE_VERSIONS_METRICS.recordError();
+            throw e;
+        } finally {
+            GET_FILE_VERSIONS_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Retrieves one earlier version of a file.
+     * @param fileId The ID of the file.
+     * @param version The version number.
+     * @return The FileVersion, or null if there is no such earlier version.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public FileVersion getFileVersion(int fileId, int version) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            String sql = "SELECT " + VERSION_COLUMNS + " FROM file_versions WHERE file_id = ? AND version = ?";
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+
+            try {
+                conn = getConnection();
+                pstmt = conn.prepareStatement(sql);
+                pstmt.setInt(1, fileId);
+                pstmt.setInt(2, version);
+                rs = pstmt.executeQuery();
+                return rs.next() ? mapVersion(rs) : null;
+            } finally {
+                DBConnection.close(conn, pstmt, rs);
+            }
+        } catch (SQLException e) {
+            GET_FILE_VERSION_METRICS.recordError();
+            throw e;
+        } finally {
+            GET_FILE_VERSION_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Deletes all but the newest earlier versions of a file, one row at a time, so that a version
+     * deleted by a concurrent call is not returned twice. If the file is live, the sizes of the
+     * versions deleted come off its owner's usage in the same transaction; a tombstoned file's
+     * versions were already taken off when it was tombstoned.
+     * @param fileId The ID of the file.
+     * @param keep The number of earlier versions to keep.
+     * @return The versions deleted by this call.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public List<FileVersion> deleteFileVersions(int fileId, int keep) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            List<FileVersion> versions = getFileVersions(fileId);
+            List<FileVersion> deleted = new ArrayList<>();
+            if (versions.size() <= keep) {
+                return deleted;
+            }
+            String sql = "DELETE FROM file_versions WHERE file_id = ? AND version = ?";
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+
+            try {
+                conn = getConnection();
+                conn.setAutoCommit(false);
+                // Locks the row, so a concurrent tombstone either counts these versions or runs after them
+                pstmt = conn.prepareStatement("SELECT user_id FROM files WHERE id = ? AND deleted_at IS NULL FOR UPDATE");
+                pstmt.setInt(1, fileId);
+                rs = pstmt.executeQuery();
+                int liveOwner = rs.next() ? rs.getInt(1) : -1;
+                rs.close();
+                pstmt.close();
+
+                pstmt = conn.prepareStatement(sql);
+                long releasedBytes = 0;
+                for (FileVersion version : versions.subList(keep, versions.size())) {
+                    pstmt.setInt(1, fileId);
+                    pstmt.setInt(2, version.getVersion());
+                    if (pstmt.executeUpdate() > 0) {
+                        deleted.add(version);
+                        releasedBytes += Math.max(0, version.getSizeBytes());
+                    }
+                }
+                if (liveOwner != -1) {
+                    addUsage(conn, liveOwner, -releasedBytes);
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                if (conn != null) {
+                    conn.rollback();
+                }
+                throw e;
+            } finally {
+                DBConnection.close(conn, pstmt, rs);
+            }
+            return deleted;
+        } catch (SQLException e) {
+            DELETE_FILE_VERSIONS_METRICS.recordError();
+            throw e;
+        } finally {
+            DELETE_FILE_VERSIONS_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Retrieves one page of the distinct stored filenames referenced by any row or earlier version, in
+     * ascending order. Each page is a range scan of idx_files_stored_filename and one of
+     * idx_file_versions_stored_filename, each starting after the previous page's last name, merged here.
+     * Names are lowercase hex digests or UUIDs, for which the column's collation sorts like String.compareTo.
+     * @param afterName Only names sorting after this one are returned; pass "" to start from the beginning.
+     * @param limit The maximum number of names to return.
+     * @return The names, in ascending order.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public List<String> getStoredFilenamesAfter(String afterName, int limit) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            Connection conn = null;
+            try {
+                conn = getConnection();
+                List<String> fileNames = storedFilenamesAfter(conn, "files", afterName, limit);
+                List<String> versionNames = storedFilenamesAfter(conn, "file_versions", afterName, limit);
+                // The first limit names of the union are among the first limit names of each side
+                List<String> names = new ArrayList<>(limit);
+                int f = 0;
+                int v = 0;
+                while (names.size() < limit && (f < fileNames.size() || v < versionNames.size())) {
+                    int cmp = f == fileNames.size() ? 1 : v == versionNames.size() ? -1
+                            : fileNames.get(f).compareTo(versionNames.get(v));
+                    names.add(cmp <= 0 ? fileNames.get(f) : versionNames.get(v));
+                    if (cmp <= 0) {
+                        f++;
+                    }
+                    if (cmp >= 0) {
+                        v++;
+                    }
+                }
+                return names;
+            } finally {
+                DBConnection.close(conn, null, null);
+            }
+        } catch (SQLException e) {
+            GET_STORED_FILENAMES_AFTER_METRICS.recordError();
+            throw e;
+        } finally {
+            GET_STORED_FILENAMES_AFTER_METRICS.record(startNanos);
+        }
+    }
+
+    private static List<String> storedFilenamesAfter(Connection conn, String table, String afterName, int limit)
+            throws SQLException {
+        List<String> names = new ArrayList<>();
+        String sql = "SELECT DISTINCT stored_filename FROM " + table + " WHERE stored_filename > ? "
+                + "ORDER BY stored_filename LIMIT ?";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, afterName);
+            pstmt.setInt(2, limit);
+            pstmt.setFetchSize(limit);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    names.add(rs.getString(1));
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Counts the rows, live or tombstoned, and the earlier versions that refer to a stored file.
+     * @param storedFilename The stored filename.
+     * @return The number of rows; 0 if nothing refers to the file.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public int countFilesByStoredFilename(String storedFilename) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            String sql = "SELECT (SELECT COUNT(*) FROM files WHERE stored_filename = ?) "
+                    + "+ (SELECT COUNT(*) FROM file_versions WHERE stored_filename = ?)";
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+
+            try {
+                conn = getConnection();
+                pstmt = conn.prepareStatement(sql);
+                pstmt.setString(1, storedFilename);
+                pstmt.setString(2, storedFilename);
+                rs = pstmt.executeQuery();
+                return rs.next() ? rs.getInt(1) : 0;
+            } finally {
+                DBConnection.close(conn, pstmt, rs);
+            }
+        } catch (SQLException e) {
+            COUNT_FILES_BY_STORED_FILENAME_METRICS.recordError();
+            throw e;
+        } finally {
+            COUNT_FILES_BY_STORED_FILENAME_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Retrieves the live files whose content is the given stored file, of any user.
+     * @param storedFilename The stored filename.
+     * @return A list of FileMetadata objects, in ID order.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public List<FileMetadata> getFilesByStoredFilename(String storedFilename) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            List<FileMetadata> files = new ArrayList<>();
+            String sql = "SELECT " + FILE_COLUMNS + " FROM files WHERE stored_filename = ? AND deleted_at IS NULL ORDER BY id";
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+
+            try {
+                conn = getConnection();
+                pstmt = conn.prepareStatement(sql);
+                pstmt.setString(1, storedFilename);
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    files.add(mapFile(rs));
+                }
+            } finally {
+                DBConnection.close(conn, pstmt, rs);
+            }
+            return files;
+        } catch (SQLException e) {
+            GET_FILES_BY_STORED_FILENAME_METRICS.recordError();
+            throw e;
+        } finally {
+            GET_FILES_BY_STORED_FILENAME_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Records when files were last retrieved, in one transaction using JDBC batching. A row's time only
+     * moves forward. Cached metadata is left alone: a last access time up to the cache TTL old is fine
+     * for tiering, and dropping entries on every flush would empty the cache of exactly the files in use.
+     * @param lastAccessMillis The time of the latest retrieval of each file, by file ID.
+     * @return The number of rows updated.
+     * @throws SQLException If a database access error occurs; the transaction is rolled back.
+     */
+    @Override
+    public int recordAccesses(Map<Integer, Long> lastAccessMillis) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            if (lastAccessMillis.isEmpty()) {
+                return 0;
+            }
+            String sql = "UPDATE files SET last_accessed_at = ? WHERE id = ? "
+                    + "AND (last_accessed_at IS NULL OR last_accessed_at < ?)";
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+            int updated = 0;
+
+            try {
+                conn = getConnection();
+                conn.setAutoCommit(false);
+                pstmt = conn.prepareStatement(sql);
+                int pending = 0;
+                for (Map.Entry<Integer, Long> access : lastAccessMillis.entrySet()) {
+                    Timestamp accessedAt = new Timestamp(access.getValue());
+                    pstmt.setTimestamp(1, accessedAt);
+                    pstmt.setInt(2, access.getKey());
+                    pstmt.setTimestamp(3, accessedAt);
+                    pstmt.addBatch();
+                    if (++pending == BATCH_SIZE) {
+                        updated += sum(pstmt.executeBatch());
+                        pending = 0;
+                    }
+                }
+                if (pending > 0) {
+                    updated += sum(pstmt.executeBatch());
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                if (conn != null) {
+                    conn.rollback();
+                }
+                throw e;
+            } finally {
+                DBConnection.close(conn, pstmt, null);
+            }
+            return updated;
+        } catch (SQLException e) {
+            RECORD_ACCESSES_METRICS.recordError();
+            throw e;
+        } finally {
+            RECORD_ACCESSES_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Retrieves live hot files neither uploaded nor retrieved since a cutoff, in ID order, leaving out
+     * those whose content another live file has used since. Walks idx_files_tier.
+     * @param usedBefore The cutoff.
+     * @param afterId Only rows with a larger ID are returned; pass 0 to start from the beginning.
+     * @param limit The maximum number of rows to return.
+     * @return A list of FileMetadata objects.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public List<FileMetadata> getColdCandidates(Timestamp usedBefore, int afterId, int limit) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            List<FileMetadata> files = new ArrayList<>();
+            String sql = "SELECT " + FILE_COLUMNS + " FROM files f WHERE f.storage_tier = 'hot' AND f.deleted_at IS NULL "
+                    + "AND f.id > ? AND f.upload_date < ? AND (f.last_accessed_at IS NULL OR f.last_accessed_at < ?) "
+                    + "AND NOT EXISTS (SELECT 1 FROM files g WHERE g.stored_filename = f.stored_filename "
+                    + "AND g.deleted_at IS NULL AND (g.upload_date >= ? OR g.last_accessed_at >= ?)) "
+                    + "ORDER BY f.id LIMIT ?";
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+
+            try {
+                conn = getConnection();
+                pstmt = conn.prepareStatement(sql);
+                pstmt.setInt(1, afterId);
+                for (int i = 2; i <= 5; i++) {
+                    pstmt.setTimestamp(i, usedBefore);
+                }
+                pstmt.setInt(6, limit);
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    files.add(mapFile(rs));
+                }
+            } finally {
+                DBConnection.close(conn, pstmt, rs);
+            }
+            return files;
+        } catch (SQLException e) {
+            GET_COLD_CANDIDATES_METRICS.recordError();
+            throw e;
+        } finally {
+            GET_COLD_CANDIDATES_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Records which tier holds stored content, on every row that refers to it, in one transaction.
+     * The affected rows are looked up first so that only their cache entries are dropped.
+     * @param storedFilenames The stored filenames of the content moved.
+     * @param tier FileMetadata.TIER_HOT or FileMetadata.TIER_COLD.
+     * @return The number of rows updated.
+     * @throws SQLException If a database access error occurs; the transaction is rolled back.
+     */
+    @Override
+    public int setStorageTier(Collection<String> storedFilenames, String tier) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            if (storedFilenames.isEmpty()) {
+                return 0;
+            }
+            List<String> names = new ArrayList<>(storedFilenames);
+            List<Long> cacheKeys = new ArrayList<>();
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            int updated = 0;
+
+            try {
+                conn = getConnection();
+                conn.setAutoCommit(false);
+                for (int from = 0; from < names.size(); from += MAX_IN_LIST) {
+                    List<String> chunk = names.subList(from, Math.min(names.size(), from + MAX_IN_LIST));
+                    pstmt = conn.prepareStatement("SELECT id, user_id FROM files WHERE storage_tier <> ? "
+                            + "AND stored_filename IN (" + placeholders(chunk.size()) + ")");
+                    pstmt.setString(1, tier);
+                    for (int i = 0; i < chunk.size(); i++) {
+                        pstmt.setString(i + 2, chunk.get(i));
+                    }
+                    rs = pstmt.executeQuery();
+                    while (rs.next()) {
+                        cacheKeys.add(cacheKey(rs.getInt(1), rs.getInt(2)));
+                    }
+                    rs.close();
+                    rs = null;
+                    pstmt.close();
+
+                    pstmt = conn.prepareStatement("UPDATE files SET storage_tier = ? WHERE storage_tier <> ? "
+                            + "AND stored_filename IN (" + placeholders(chunk.size()) + ")");
+                    pstmt.setString(1, tier);
+                    pstmt.setString(2, tier);
+                    for (int i = 0; i < chunk.size(); i++) {
+                        pstmt.setString(i + 3, chunk.get(i));
+                    }
+                    updated += pstmt.executeUpdate();
+                    pstmt.close();
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                if (conn != null) {
+                    conn.rollback();
+                }
+                throw e;
+            } finally {
+                for (Long key : cacheKeys) {
+                    metadataCache.invalidate(key);
+                }
+                DBConnection.close(conn, pstmt, rs);
+            }
+            return updated;
+        } catch (SQLException e) {
+            SET_STORAGE_TIER_METRICS.recordError();
+            throw e;
+        } finally {
+            SET_STORAGE_TIER_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Counts the live files and their original bytes per storage tier.
+     * @return One TierUsage per tier that holds any live file, in tier order.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public List<TierUsage> getTierUsage() throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            List<TierUsage> usage = new ArrayList<>();
+            String sql = "SELECT storage_tier, COUNT(*), COALESCE(SUM(size_bytes), 0) FROM files "
+                    + "WHERE deleted_at IS NULL GROUP BY storage_tier ORDER BY storage_tier";
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+
+            try {
+                conn = getConnection();
+                pstmt = conn.prepareStatement(sql);
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    usage.add(new TierUsage(rs.getString(1), rs.getLong(2), rs.getLong(3)));
+                }
+            } finally {
+                DBConnection.close(conn, pstmt, rs);
+            }
+            return usage;
+        } catch (SQLException e) {
+            GET_TIER_USAGE_METRICS.recordError();
+            throw e;
+        } finally {
+            GET_TIER_USAGE_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Gets the hit, miss and eviction counters of the metadata cache in front of getFileByIdAndUserId.
+     * @return The current CacheStats.
+     */
+    public static CacheStats getMetadataCacheStats() {
+        return METADATA_CACHE.getStats();
+    }
+
+    private Connection getConnection() throws SQLException {
+        return pool != null ? pool.borrow() : DBConnection.getConnection();
+    }
+
+    private static FileMetadata mapFile(ResultSet rs) throws SQLException {
+        FileMetadata fileMetadata = new FileMetadata(
+            rs.getInt("id"),
+            rs.getInt("user_id"),
+            rs.getString("original_filename"),
+            rs.getString("stored_filename"),
+            rs.getTimestamp("upload_date")
+        );
+        fileMetadata.setCodec(rs.getString("codec"));
+        long sizeBytes = rs.getLong("size_bytes");
+        fileMetadata.setSizeBytes(rs.wasNull() ? -1 : sizeBytes);
+        fileMetadata.setEncrypted(rs.getBoolean("encrypted"));
+        fileMetadata.setStorageTier(rs.getString("storage_tier"));
+        fileMetadata.setLastAccessedAt(rs.getTimestamp("last_accessed_at"));
+        return fileMetadata;
+    }
+
+    private static FileVersion mapVersion(ResultSet rs) throws SQLException {
+        long sizeBytes = rs.getLong("size_bytes");
+        if (rs.wasNull()) {
+            sizeBytes = -1;
+        }
+        return new FileVersion(rs.getInt("file_id"), rs.getInt("version"), rs.getString("stored_filename"),
+                rs.getString("codec"), sizeBytes, rs.getBoolean("encrypted"), rs.getTimestamp("created_at"), false);
+    }
+
+    /**
+     * Adds bytes to a user's usage counter, inside the caller's transaction.
+     */
+    private static void addUsage(Connection conn, int userId, long bytes) throws SQLException {
+        if (bytes == 0) {
+            return;
+        }
+        try (PreparedStatement pstmt = conn.prepareStatement("UPDATE users SET used_bytes = used_bytes + ? WHERE id = ?")) {
+            pstmt.setLong(1, bytes);
+            pstmt.setInt(2, userId);
+            pstmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Takes the sizes of those of a user's files that are still live, and of their earlier versions,
+     * off the user's usage counter, inside the caller's transaction. Must run before the rows are
+     * tombstoned or deleted; the subqueries' locking reads make a concurrent delete of the same files
+     * wait and then count nothing.
+     */
+    private static void releaseUsage(Connection conn, int userId, List<Integer> fileIds) throws SQLException {
+        String in = placeholders(fileIds.size());
+        String sql = "UPDATE users SET used_bytes = used_bytes - (SELECT COALESCE(SUM(size_bytes), 0) FROM files "
+                + "WHERE user_id = ? AND deleted_at IS NULL AND id IN (" + in + ")) "
+                + "- (SELECT COALESCE(SUM(v.size_bytes), 0) FROM file_versions v JOIN files f ON f.id = v.file_id "
+                + "WHERE f.user_id = ? AND f.deleted_at IS NULL AND f.id IN (" + in + ")) WHERE id = ?";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            int index = 1;
+            for (int pass = 0; pass < 2; pass++) {
+                pstmt.setInt(index++, userId);
+                for (int fileId : fileIds) {
+                    pstmt.setInt(index++, fileId);
+                }
+            }
+            pstmt.setInt(index, userId);
+            pstmt.executeUpdate();
+        }
+    }
+
+    private static void setSizeBytes(PreparedStatement pstmt, int index, long sizeBytes) throws SQLException {
+        if (sizeBytes < 0) {
+            pstmt.setNull(index, Types.BIGINT);
+        } else {
+            pstmt.setLong(index, sizeBytes);
+        }
+    }
+
+    private static int sum(int[] updateCounts) {
+        int total = 0;
+        for (int count : updateCounts) {
+            if (count > 0) {
+                total += count;
+            }
+        }
+        return total;
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            sb.append(i == 0 ? "?" : ",?");
+        }
+        return sb.toString();
+    }
+
+    private static Long cacheKey(int fileId, int userId) {
+        return ((long) fileId << 32) | (userId & 0xFFFFFFFFL);
+    }
+}
+
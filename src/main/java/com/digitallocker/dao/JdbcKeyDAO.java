@@ -0,0 +1,63 @@
+package com.digitallocker.dao;
+
+import com.digitallocker.util.DBConnection;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * {@link KeyDAO} backed by the MySQL user_keys table, through the shared connection pool.
+ */
+public class JdbcKeyDAO implements KeyDAO {
+
+    /**
+     * Gets a user's wrapped data key.
+     * @param userId The ID of the user.
+     * @return The wrapped key, or null if the user has none yet.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public byte[] getWrappedKey(int userId) throws SQLException {
+        String sql = "SELECT wrapped_key FROM user_keys WHERE user_id = ?";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+
+        try {
+            conn = DBConnection.getConnection();
+            pstmt = conn.prepareStatement(sql);
+            pstmt.setInt(1, userId);
+            rs = pstmt.executeQuery();
+            return rs.next() ? rs.getBytes(1) : null;
+        } finally {
+            DBConnection.close(conn, pstmt, rs);
+        }
+    }
+
+    /**
+     * Stores a user's wrapped data key unless the user already has one.
+     * Two sessions creating a key at the same time cannot both win: callers re-read the key afterwards.
+     * @param userId The ID of the user.
+     * @param wrappedKey The wrapped key.
+     * @return true if this key was stored, false if the user already had a key.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public boolean addWrappedKey(int userId, byte[] wrappedKey) throws SQLException {
+        String sql = "INSERT IGNORE INTO user_keys (user_id, wrapped_key) VALUES (?, ?)";
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+
+        try {
+            conn = DBConnection.getConnection();
+            pstmt = conn.prepareStatement(sql);
+            pstmt.setInt(1, userId);
+            pstmt.setBytes(2, wrappedKey);
+            return pstmt.executeUpdate() > 0;
+        } finally {
+            DBConnection.close(conn, pstmt, null);
+        }
+    }
+}
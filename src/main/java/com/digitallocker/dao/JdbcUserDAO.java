@@ -0,0 +1,251 @@
+package com.digitallocker.dao;
+
+import com.digitallocker.model.StorageUsage;
+import com.digitallocker.model.User;
+import com.digitallocker.util.ConnectionPool;
+import com.digitallocker.util.DBConnection;
+import com.digitallocker.util.Metrics;
+import com.digitallocker.util.OperationMetrics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Statement;
+import java.sql.Types;
+
+/**
+ * {@link UserDAO} backed by the MySQL users table, through the shared connection pool.
+ */
+public class JdbcUserDAO implements UserDAO {
+    // Per-operation call, error and latency metrics, also exposed over JMX (see Metrics)
+    private static final OperationMetrics REGISTER_USER_METRICS = Metrics.operation("UserDAO", "registerUser");
+    private static final OperationMetrics GET_USER_BY_USERNAME_METRICS = Metrics.operation("UserDAO", "getUserByUsername");
+    private static final OperationMetrics UPDATE_PASSWORD_METRICS = Metrics.operation("UserDAO", "updatePassword");
+    private static final OperationMetrics GET_STORAGE_USAGE_METRICS = Metrics.operation("UserDAO", "getStorageUsage");
+    private static final OperationMetrics SET_QUOTA_METRICS = Metrics.operation("UserDAO", "setQuota");
+
+    private final ConnectionPool pool;
+
+    /**
+     * Creates a DAO on the shared connection pool behind {@link DBConnection}.
+     */
+    public JdbcUserDAO() {
+        this.pool = null;
+    }
+
+    /**
+     * Creates a DAO on a pool of its own, e.g. one on an embedded database.
+     * @param pool The pool to borrow connections from.
+     */
+    public JdbcUserDAO(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Registers a new user in the database.
+     * A single INSERT relies on the UNIQUE(username) constraint, so a taken username is detected
+     * atomically, in one round trip, even when two people register the same name at once.
+     * @param user The User object containing the username and the password hash.
+     * @return The ID of the newly registered user, or -1 if the username is taken or registration fails.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public int registerUser(User user) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            String sql = "INSERT INTO users (username, password) VALUES (?, ?)";
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            int userId = -1;
+
+            try {
+                conn = getConnection();
+                pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+                pstmt.setString(1, user.getUsername());
+                pstmt.setString(2, user.getPassword());
+
+                int affectedRows = pstmt.executeUpdate();
+                if (affectedRows > 0) {
+                    rs = pstmt.getGeneratedKeys();
+                    if (rs.next()) {
+                        userId = rs.getInt(1);
+                    }
+                }
+            } catch (SQLException e) {
+                if (!isDuplicateKey(e)) {
+                    throw e;
+                }
+                // Username already taken
+            } finally {
+                DBConnection.close(conn, pstmt, rs);
+            }
+            return userId;
+        } catch (SQLException e) {
+            REGISTER_USER_METRICS.recordError();
+            throw e;
+        } finally {
+            REGISTER_USER_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Looks up a user by username. The caller verifies the password against the returned hash.
+     * @param username The username to look up.
+     * @return The User object, with the stored password hash, or null if there is no such user.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public User getUserByUsername(String username) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            String sql = "SELECT id, username, password FROM users WHERE username = ?";
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            User user = null;
+
+            try {
+                conn = getConnection();
+                pstmt = conn.prepareStatement(sql);
+                pstmt.setString(1, username);
+
+                rs = pstmt.executeQuery();
+                if (rs.next()) {
+                    user = new User(
+                        rs.getInt("id"),
+                        rs.getString("username"),
+                        rs.getString("password")
+                    );
+                }
+            } finally {
+                DBConnection.close(conn, pstmt, rs);
+            }
+            return user;
+        } catch (SQLException e) {
+            GET_USER_BY_USERNAME_METRICS.recordError();
+            throw e;
+        } finally {
+            GET_USER_BY_USERNAME_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Replaces a user's stored password hash, e.g. to upgrade it to the current hashing cost.
+     * @param userId The ID of the user.
+     * @param passwordHash The new password hash.
+     * @return true if the user's hash was updated.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public boolean updatePassword(int userId, String passwordHash) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            String sql = "UPDATE users SET password = ? WHERE id = ?";
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+
+            try {
+                conn = getConnection();
+                pstmt = conn.prepareStatement(sql);
+                pstmt.setString(1, passwordHash);
+                pstmt.setInt(2, userId);
+                return pstmt.executeUpdate() > 0;
+            } finally {
+                DBConnection.close(conn, pstmt, null);
+            }
+        } catch (SQLException e) {
+            UPDATE_PASSWORD_METRICS.recordError();
+            throw e;
+        } finally {
+            UPDATE_PASSWORD_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Reads a user's storage counter: one primary-key lookup, since JdbcFileDAO updates users.used_bytes
+     * in the same transaction as every insert and delete of a live file.
+     * @param userId The ID of the user.
+     * @return The user's usage, or null if there is no such user.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public StorageUsage getStorageUsage(int userId) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            String sql = "SELECT used_bytes, quota_bytes FROM users WHERE id = ?";
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            StorageUsage usage = null;
+
+            try {
+                conn = getConnection();
+                pstmt = conn.prepareStatement(sql);
+                pstmt.setInt(1, userId);
+
+                rs = pstmt.executeQuery();
+                if (rs.next()) {
+                    long usedBytes = rs.getLong("used_bytes");
+                    long quotaBytes = rs.getLong("quota_bytes");
+                    usage = new StorageUsage(userId, usedBytes, rs.wasNull() ? StorageUsage.UNLIMITED : quotaBytes);
+                }
+            } finally {
+                DBConnection.close(conn, pstmt, rs);
+            }
+            return usage;
+        } catch (SQLException e) {
+            GET_STORAGE_USAGE_METRICS.recordError();
+            throw e;
+        } finally {
+            GET_STORAGE_USAGE_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Sets a user's storage quota.
+     * @param userId The ID of the user.
+     * @param quotaBytes The quota in bytes, or StorageUsage.UNLIMITED to store NULL (the default quota).
+     * @return true if the user exists.
+     * @throws SQLException If a database access error occurs.
+     */
+    @Override
+    public boolean setQuota(int userId, long quotaBytes) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            String sql = "UPDATE users SET quota_bytes = ? WHERE id = ?";
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+
+            try {
+                conn = getConnection();
+                pstmt = conn.prepareStatement(sql);
+                if (quotaBytes == StorageUsage.UNLIMITED) {
+                    pstmt.setNull(1, Types.BIGINT);
+                } else {
+                    pstmt.setLong(1, quotaBytes);
+                }
+                pstmt.setInt(2, userId);
+                return pstmt.executeUpdate() > 0;
+            } finally {
+                DBConnection.close(conn, pstmt, null);
+            }
+        } catch (SQLException e) {
+            SET_QUOTA_METRICS.recordError();
+            throw e;
+        } finally {
+            SET_QUOTA_METRICS.record(startNanos);
+        }
+    }
+
+    private Connection getConnection() throws SQLException {
+        return pool != null ? pool.borrow() : DBConnection.getConnection();
+    }
+
+    private static boolean isDuplicateKey(SQLException e) {
+        // Connector/J reports a duplicate key (MySQL error 1062) as SQLIntegrityConstraintViolationException
+        return e instanceof SQLIntegrityConstraintViolationException || e.getErrorCode() == 1062;
+    }
+}
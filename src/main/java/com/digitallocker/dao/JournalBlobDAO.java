@@ -0,0 +1,151 @@
+package com.digitallocker.dao;
+
+import com.digitallocker.dao.MetadataJournal.BlobCheck;
+import com.digitallocker.dao.MetadataJournal.BlobRecord;
+import com.digitallocker.model.BlobIntegrity;
+import com.digitallocker.model.DedupStats;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link BlobDAO} backed by the embedded {@link MetadataJournal}.
+ */
+public class JournalBlobDAO implements BlobDAO {
+    private final MetadataJournal journal;
+
+    public JournalBlobDAO(MetadataJournal journal) {
+        this.journal = journal;
+    }
+
+    @Override
+    public boolean acquireReference(String sha256, long sizeBytes, String codec, long storedBytes, long crc32c)
+            throws SQLException {
+        return journal.write(() -> {
+            BlobRecord blob = journal.getBlob(sha256);
+            if (blob != null) {
+                journal.putBlob(blob.withRefCount(blob.refCount + 1));
+                return false;
+            }
+            journal.putBlob(new BlobRecord(sha256, sizeBytes, codec, storedBytes, 1));
+            journal.putBlobCheck(sha256, new BlobCheck(crc32c, 0, false));
+            return true;
+        });
+    }
+
+    @Override
+    public String getCodec(String sha256) {
+        return journal.read(() -> {
+            BlobRecord blob = journal.getBlob(sha256);
+            return blob != null ? blob.codec : null;
+        });
+    }
+
+    @Override
+    public BlobIntegrity getIntegrity(String sha256) {
+        return journal.read(() -> {
+            BlobRecord blob = journal.getBlob(sha256);
+            return blob != null ? toIntegrity(blob) : null;
+        });
+    }
+
+    @Override
+    public void replaceContent(String sha256, long storedBytes, long crc32c) throws SQLException {
+        journal.write(() -> {
+            BlobRecord blob = journal.getBlob(sha256);
+            if (blob != null) {
+                journal.putBlob(new BlobRecord(sha256, blob.sizeBytes, blob.codec, storedBytes, blob.refCount));
+                journal.putBlobCheck(sha256, new BlobCheck(crc32c, 0, false));
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public List<BlobIntegrity> getBlobsToVerify(String afterSha256, long verifiedBeforeMillis, int limit) {
+        return journal.read(() -> {
+            List<BlobIntegrity> blobs = new ArrayList<>();
+            for (BlobRecord blob : journal.getBlobsByName().tailMap(afterSha256, false).values()) {
+                if (blobs.size() >= limit) {
+                    break;
+                }
+                BlobCheck check = journal.getBlobCheck(blob.sha256);
+                if (check == null || (!check.corrupt && check.verifiedMillis < verifiedBeforeMillis)) {
+                    blobs.add(toIntegrity(blob));
+                }
+            }
+            return blobs;
+        });
+    }
+
+    @Override
+    public boolean recordVerification(String sha256, long crc32c, boolean corrupt) throws SQLException {
+        return journal.write(() -> {
+            if (journal.getBlob(sha256) == null) {
+                return false;
+            }
+            BlobCheck old = journal.getBlobCheck(sha256);
+            long recorded = old != null && old.crc32c != BlobIntegrity.UNKNOWN ? old.crc32c : crc32c;
+            journal.putBlobCheck(sha256, new BlobCheck(recorded, System.currentTimeMillis(), corrupt));
+            return true;
+        });
+    }
+
+    @Override
+    public List<BlobIntegrity> getCorruptBlobs(int limit) {
+        return journal.read(() -> {
+            List<BlobIntegrity> blobs = new ArrayList<>();
+            for (String name : journal.getCorruptBlobNames()) {
+                if (blobs.size() >= limit) {
+                    break;
+                }
+                blobs.add(toIntegrity(journal.getBlob(name)));
+            }
+            return blobs;
+        });
+    }
+
+    @Override
+    public int releaseReference(String sha256) throws SQLException {
+        return journal.write(() -> {
+            BlobRecord blob = journal.getBlob(sha256);
+            if (blob == null) {
+                return -1;
+            }
+            int remaining = Math.max(0, blob.refCount - 1);
+            if (remaining == 0) {
+                journal.removeBlob(sha256);
+            } else {
+                journal.putBlob(blob.withRefCount(remaining));
+            }
+            return remaining;
+        });
+    }
+
+    @Override
+    public DedupStats getDedupStats() {
+        return journal.read(() -> {
+            long blobCount = 0;
+            long referenceCount = 0;
+            long uniqueBytes = 0;
+            long logicalBytes = 0;
+            long diskBytes = 0;
+            for (BlobRecord blob : journal.getBlobs()) {
+                blobCount++;
+                referenceCount += blob.refCount;
+                uniqueBytes += blob.sizeBytes;
+                logicalBytes += blob.sizeBytes * blob.refCount;
+                diskBytes += blob.storedBytes >= 0 ? blob.storedBytes : blob.sizeBytes;
+            }
+            return new DedupStats(blobCount, referenceCount, uniqueBytes, logicalBytes, diskBytes);
+        });
+    }
+
+    private BlobIntegrity toIntegrity(BlobRecord blob) {
+        BlobCheck check = journal.getBlobCheck(blob.sha256);
+        return new BlobIntegrity(blob.sha256, blob.codec, blob.storedBytes,
+                check != null ? check.crc32c : BlobIntegrity.UNKNOWN, check != null ? check.verifiedMillis : 0,
+                check != null && check.corrupt);
+    }
+}
@@ -0,0 +1,582 @@
+package com.digitallocker.dao;
+
+import com.digitallocker.dao.MetadataJournal.FileAccess;
+import com.digitallocker.dao.MetadataJournal.FileRecord;
+import com.digitallocker.dao.MetadataJournal.VersionRecord;
+import com.digitallocker.model.FileMetadata;
+import com.digitallocker.model.FileVersion;
+import com.digitallocker.model.TierUsage;
+import com.digitallocker.util.Metrics;
+import com.digitallocker.util.OperationMetrics;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * {@link FileDAO} backed by the embedded {@link MetadataJournal}.
+ * Lookups and pages are served from the journal's in-memory indexes, so there is no separate cache.
+ */
+public class JournalFileDAO implements FileDAO {
+    // Per-operation call, error and latency metrics, also exposed over JMX (see Metrics)
+    private static final OperationMetrics ADD_FILE_METADATA_METRICS = Metrics.operation("FileDAO", "addFileMetadata");
+    private static final OperationMetrics ADD_FILE_METADATA_BATCH_METRICS = Metrics.operation("FileDAO", "addFileMetadataBatch");
+    private static final OperationMetrics GET_FILES_BY_USER_ID_METRICS = Metrics.operation("FileDAO", "getFilesByUserId");
+    private static final OperationMetrics GET_FILES_BY_USER_ID_AFTER_METRICS = Metrics.operation("FileDAO", "getFilesByUserIdAfter");
+    private static final OperationMetrics COUNT_FILES_BY_USER_ID_METRICS = Metrics.operation("FileDAO", "countFilesByUserId");
+    private static final OperationMetrics GET_FILE_BY_ID_AND_USER_ID_METRICS = Metrics.operation("FileDAO", "getFileByIdAndUserId");
+    private static final OperationMetrics DELETE_FILE_METADATA_METRICS = Metrics.operation("FileDAO", "deleteFileMetadata");
+    private static final OperationMetrics TOMBSTONE_FILES_METRICS = Metrics.operation("FileDAO", "tombstoneFiles");
+    private static final OperationMetrics GET_TOMBSTONED_FILES_METRICS = Metrics.operation("FileDAO", "getTombstonedFiles");
+    private static final OperationMetrics PURGE_FILE_METADATA_METRICS = Metrics.operation("FileDAO", "purgeFileMetadata");
+    private static final OperationMetrics COUNT_TOMBSTONED_FILES_METRICS = Metrics.operation("FileDAO", "countTombstonedFiles");
+    private static final OperationMetrics GET_LIVE_FILE_BY_NAME_METRICS = Metrics.operation("FileDAO", "getLiveFileByName");
+    private static final OperationMetrics ADD_FILE_VERSION_METRICS = Metrics.operation("FileDAO", "addFileVersion");
+    private static final OperationMetrics GET_FILE_VERSIONS_METRICS = Metrics.operation("FileDAO", "getFileVersions");
+    private static final OperationMetrics GET_FILE_VERSION_METRICS = Metrics.operation("FileDAO", "getFileVersion");
+    private static final OperationMetrics DELETE_FILE_VERSIONS_METRICS = Metrics.operation("FileDAO", "deleteFileVersions");
+    private static final OperationMetrics GET_STORED_FILENAMES_AFTER_METRICS = Metrics.operation("FileDAO", "getStoredFilenamesAfter");
+    private static final OperationMetrics COUNT_FILES_BY_STORED_FILENAME_METRICS = Metrics.operation("FileDAO", "countFilesByStoredFilename");
+    private static final OperationMetrics GET_FILES_BY_STORED_FILENAME_METRICS = Metrics.operation("FileDAO", "getFilesByStoredFilename");
+    private static final OperationMetrics RECORD_ACCESSES_METRICS = Metrics.operation("FileDAO", "recordAccesses");
+    private static final OperationMetrics GET_COLD_CANDIDATES_METRICS = Metrics.operation("FileDAO", "getColdCandidates");
+    private static final OperationMetrics SET_STORAGE_TIER_METRICS = Metrics.operation("FileDAO", "setStorageTier");
+    private static final OperationMetrics GET_TIER_USAGE_METRICS = Metrics.operation("FileDAO", "getTierUsage");
+
+    private final MetadataJournal journal;
+
+    public JournalFileDAO(MetadataJournal journal) {
+        this.journal = journal;
+    }
+
+    @Override
+    public int addFileMetadata(FileMetadata fileMetadata) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            return journal.write(() -> {
+                checkUser(fileMetadata.getUserId());
+                FileRecord file = newRecord(journal.nextFileId(), fileMetadata, System.currentTimeMillis());
+                journal.putFile(file);
+                return file.id;
+            });
+        } catch (SQLException e) {
+            ADD_FILE_METADATA_METRICS.recordError();
+            throw e;
+        } finally {
+            ADD_FILE_METADATA_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Adds metadata for many files as a single journal frame, so either every row survives a crash or none does.
+     */
+    @Override
+    public int[] addFileMetadataBatch(List<FileMetadata> files) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            int[] fileIds = new int[files.size()];
+            if (files.isEmpty()) {
+                return fileIds;
+            }
+            return journal.write(() -> {
+                for (FileMetadata fileMetadata : files) {
+                    checkUser(fileMetadata.getUserId());
+                }
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < files.size(); i++) {
+                    FileRecord file = newRecord(journal.nextFileId(), files.get(i), now);
+                    journal.putFile(file);
+                    fileIds[i] = file.id;
+                }
+                return fileIds;
+            });
+        } catch (SQLException e) {
+            ADD_FILE_METADATA_BATCH_METRICS.recordError();
+            throw e;
+        } finally {
+            ADD_FILE_METADATA_BATCH_METRICS.record(startNanos);
+        }
+    }
+
+    @Override
+    public List<FileMetadata> getFilesByUserId(int userId) {
+        long startNanos = System.nanoTime();
+        try {
+            return journal.read(() -> toMetadata(journal.getLiveFiles(userId), Integer.MAX_VALUE));
+        } finally {
+            GET_FILES_BY_USER_ID_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Retrieves one page of a user's files, ordered by (upload date, id): a range of the user's sorted index.
+     */
+    @Override
+    public List<FileMetadata> getFilesByUserIdAfter(int userId, Timestamp afterUploadDate, int afterId, int limit) {
+        long startNanos = System.nanoTime();
+        try {
+            return journal.read(() -> {
+                Collection<FileRecord> userFiles = journal.getLiveFiles(userId);
+                if (afterUploadDate != null) {
+                    FileRecord after = new FileRecord(afterId, userId, null, null, afterUploadDate.getTime(),
+                            null, -1, false, 0);
+                    userFiles = journal.getLiveFiles(userId).tailSet(after, false);
+                }
+                return toMetadata(userFiles, limit);
+            });
+        } finally {
+            GET_FILES_BY_USER_ID_AFTER_METRICS.record(startNanos);
+        }
+    }
+
+    @Override
+    public int countFilesByUserId(int userId) {
+        long startNanos = System.nanoTime();
+        try {
+            return journal.read(() -> journal.getLiveFiles(userId).size());
+        } finally {
+            COUNT_FILES_BY_USER_ID_METRICS.record(startNanos);
+        }
+    }
+
+    @Override
+    public FileMetadata getFileByIdAndUserId(int fileId, int userId) {
+        long startNanos = System.nanoTime();
+        try {
+            return journal.read(() -> {
+                FileRecord file = journal.getFile(fileId);
+                return file != null && file.userId == userId && file.isLive() ? toMetadata(file) : null;
+            });
+        } finally {
+            GET_FILE_BY_ID_AND_USER_ID_METRICS.record(startNanos);
+        }
+    }
+
+    @Override
+    public boolean deleteFileMetadata(int fileId, int userId) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            return journal.write(() -> {
+                FileRecord file = journal.getFile(fileId);
+                if (file == null || file.userId != userId) {
+                    return false;
+                }
+                // Stands in for the file_versions.file_id foreign key's ON DELETE CASCADE
+                for (int version : new ArrayList<>(journal.getVersions(fileId).keySet())) {
+                    journal.removeVersion(fileId, version);
+                }
+                journal.removeFile(fileId);
+                return true;
+            });
+        } catch (SQLException e) {
+            DELETE_FILE_METADATA_METRICS.recordError();
+            throw e;
+        } finally {
+            DELETE_FILE_METADATA_METRICS.record(startNanos);
+        }
+    }
+
+    @Override
+    public int tombstoneFiles(int userId, Collection<Integer> fileIds) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            if (fileIds.isEmpty()) {
+                return 0;
+            }
+            return journal.write(() -> {
+                long now = System.currentTimeMillis();
+                int tombstoned = 0;
+                for (int fileId : new LinkedHashSet<>(fileIds)) {
+                    FileRecord file = journal.getFile(fileId);
+                    if (file != null && file.userId == userId && file.isLive()) {
+                        journal.putFile(file.tombstoned(now));
+                        tombstoned++;
+                    }
+                }
+                return tombstoned;
+            });
+        } catch (SQLException e) {
+            TOMBSTONE_FILES_METRICS.recordError();
+            throw e;
+        } finally {
+            TOMBSTONE_FILES_METRICS.record(startNanos);
+        }
+    }
+
+    @Override
+    public List<FileMetadata> getTombstonedFiles(int afterId, int limit) {
+        long startNanos = System.nanoTime();
+        try {
+            return journal.read(() -> toMetadata(journal.getTombstones().tailMap(afterId, false).values(), limit));
+        } finally {
+            GET_TOMBSTONED_FILES_METRICS.record(startNanos);
+        }
+    }
+
+    @Override
+    public boolean purgeFileMetadata(int fileId) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            return journal.write(() -> {
+                FileRecord file = journal.getFile(fileId);
+                if (file == null || file.isLive()) {
+                    return false;
+                }
+                journal.removeFile(fileId);
+                return true;
+            });
+        } catch (SQLException e) {
+            PURGE_FILE_METADATA_METRICS.recordError();
+            throw e;
+        } finally {
+            PURGE_FILE_METADATA_METRICS.record(startNanos);
+        }
+    }
+
+    @Override
+    public int countTombstonedFiles() {
+        long startNanos = System.nanoTime();
+        try {
+            return journal.read(() -> journal.getTombstones().size());
+        } finally {
+            COUNT_TOMBSTONED_FILES_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Walks the user's live files: there is no index by name, as this runs once per upload.
+     */
+    @Override
+    public FileMetadata getLiveFileByName(int userId, String originalFilename) {
+        long startNanos = System.nanoTime();
+        try {
+            return journal.read(() -> {
+                FileRecord latest = null;
+                for (FileRecord file : journal.getLiveFiles(userId)) {
+                    if (file.originalFilename.equals(originalFilename) && (latest == null || file.id > latest.id)) {
+                        latest = file;
+                    }
+                }
+                return latest != null ? toMetadata(latest) : null;
+            });
+        } finally {
+            GET_LIVE_FILE_BY_NAME_METRICS.record(startNanos);
+        }
+    }
+
+    @Override
+    public int addFileVersion(FileMetadata current, FileVersion previous, FileMetadata next) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            return journal.write(() -> {
+                FileRecord file = journal.getFile(current.getId());
+                if (file == null || file.userId != current.getUserId() || !file.isLive()
+                        || !file.storedFilename.equals(current.getStoredFilename())) {
+                    return -1;
+                }
+                NavigableMap<Integer, VersionRecord> fileVersions = journal.getVersions(file.id);
+                int previousVersion = fileVersions.isEmpty() ? 1 : fileVersions.lastKey() + 1;
+                journal.putVersion(new VersionRecord(file.id, previousVersion, previous.getStoredFilename(),
+                        previous.getCodec(), previous.getSizeBytes(), previous.isEncrypted(),
+                        previous.getCreatedAt().getTime()));
+                journal.putFile(new FileRecord(file.id, file.userId, file.originalFilename, next.getStoredFilename(),
+                        System.currentTimeMillis(), next.getCodec(), next.getSizeBytes(), next.isEncrypted(), 0));
+                FileAccess access = journal.getFileAccess(file.id);
+                if (access != null && access.cold) {
+                    journal.putFileAccess(file.id, new FileAccess(access.lastAccessMillis, false)); // New content is hot
+                }
+                return previousVersion + 1;
+            });
+        } catch (SQLException e) {
+            ADD_FILE_VERSION_METRICS.recordError();
+            throw e;
+        } finally {
+            ADD_FILE_VERSION_METRICS.record(startNanos);
+        }
+    }
+
+    @Override
+    public List<FileVersion> getFileVersions(int fileId) {
+        long startNanos = System.nanoTime();
+        try {
+            return journal.read(() -> {
+                List<FileVersion> versions = new ArrayList<>();
+                for (VersionRecord version : journal.getVersions(fileId).descendingMap().values()) {
+                    versions.add(version.toVersion());
+                }
+                return versions;
+            });
+        } finally {
+            GET_FILE_VERSIONS_METRICS.record(startNanos);
+        }
+    }
+
+    @Override
+    public FileVersion getFileVersion(int fileId, int version) {
+        long startNanos = System.nanoTime();
+        try {
+            return journal.read(() -> {
+                VersionRecord record = journal.getVersions(fileId).get(version);
+                return record != null ? record.toVersion() : null;
+            });
+        } finally {
+            GET_FILE_VERSION_METRICS.record(startNanos);
+        }
+    }
+
+    @Override
+    public List<FileVersion> deleteFileVersions(int fileId, int keep) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            return journal.write(() -> {
+                List<FileVersion> deleted = new ArrayList<>();
+                List<VersionRecord> newestFirst = new ArrayList<>(journal.getVersions(fileId).descendingMap().values());
+                for (VersionRecord version : newestFirst.subList(Math.min(keep, newestFirst.size()), newestFirst.size())) {
+                    journal.removeVersion(fileId, version.version);
+                    deleted.add(version.toVersion());
+                }
+                return deleted;
+            });
+        } catch (SQLException e) {
+            DELETE_FILE_VERSIONS_METRICS.recordError();
+            throw e;
+        } finally {
+            DELETE_FILE_VERSIONS_METRICS.record(startNanos);
+        }
+    }
+
+    @Override
+    public List<String> getStoredFilenamesAfter(String afterName, int limit) {
+        long startNanos = System.nanoTime();
+        try {
+            return journal.read(() -> {
+                List<String> names = new ArrayList<>();
+                for (String name : journal.getRowsByStoredName().tailMap(afterName, false).keySet()) {
+                    if (names.size() >= limit) {
+                        break;
+                    }
+                    names.add(name);
+                }
+                return names;
+            });
+        } finally {
+            GET_STORED_FILENAMES_AFTER_METRICS.record(startNanos);
+        }
+    }
+
+    @Override
+    public int countFilesByStoredFilename(String storedFilename) {
+        long startNanos = System.nanoTime();
+        try {
+            return journal.read(() -> journal.getRowsByStoredName().getOrDefault(storedFilename, 0));
+        } finally {
+            COUNT_FILES_BY_STORED_FILENAME_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Scans every row: this lookup only serves repairs, which are rare, so it has no index of its own.
+     */
+    @Override
+    public List<FileMetadata> getFilesByStoredFilename(String storedFilename) {
+        long startNanos = System.nanoTime();
+        try {
+            return journal.read(() -> {
+                if (!journal.getRowsByStoredName().containsKey(storedFilename)) {
+                    return new ArrayList<FileMetadata>();
+                }
+                List<FileRecord> matches = new ArrayList<>();
+                for (FileRecord file : journal.getFiles()) {
+                    if (file.isLive() && file.storedFilename.equals(storedFilename)) {
+                        matches.add(file);
+                    }
+                }
+                matches.sort(Comparator.comparingInt(f -> f.id));
+                return toMetadata(matches, matches.size());
+            });
+        } finally {
+            GET_FILES_BY_STORED_FILENAME_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Records all access times as one journal frame, one op per file whose time moves forward.
+     */
+    @Override
+    public int recordAccesses(Map<Integer, Long> lastAccessMillis) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            if (lastAccessMillis.isEmpty()) {
+                return 0;
+            }
+            return journal.write(() -> {
+                int updated = 0;
+                for (Map.Entry<Integer, Long> access : lastAccessMillis.entrySet()) {
+                    if (journal.getFile(access.getKey()) == null) {
+                        continue;
+                    }
+                    FileAccess old = journal.getFileAccess(access.getKey());
+                    if (old == null || old.lastAccessMillis < access.getValue()) {
+                        journal.putFileAccess(access.getKey(),
+                                new FileAccess(access.getValue(), old != null && old.cold));
+                        updated++;
+                    }
+                }
+                return updated;
+            });
+        } catch (SQLException e) {
+            RECORD_ACCESSES_METRICS.recordError();
+            throw e;
+        } finally {
+            RECORD_ACCESSES_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Scans every row twice, once for the content used since the cutoff and once for the candidates:
+     * there is no index by access time, as the tiering pass runs about once an hour.
+     */
+    @Override
+    public List<FileMetadata> getColdCandidates(Timestamp usedBefore, int afterId, int limit) {
+        long startNanos = System.nanoTime();
+        try {
+            return journal.read(() -> {
+                long cutoff = usedBefore.getTime();
+                Set<String> recentlyUsed = new HashSet<>();
+                for (FileRecord file : journal.getFiles()) {
+                    if (file.isLive() && lastUsedMillis(file) >= cutoff) {
+                        recentlyUsed.add(file.storedFilename);
+                    }
+                }
+                NavigableMap<Integer, FileRecord> candidates = new TreeMap<>();
+                for (FileRecord file : journal.getFiles()) {
+                    if (file.isLive() && file.id > afterId && !isCold(file.id)
+                            && !recentlyUsed.contains(file.storedFilename)) {
+                        candidates.put(file.id, file);
+                        if (candidates.size() > limit) {
+                            candidates.pollLastEntry();
+                        }
+                    }
+                }
+                return toMetadata(candidates.values(), limit);
+            });
+        } finally {
+            GET_COLD_CANDIDATES_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Scans every row for the given names, and writes all tier changes as one journal frame.
+     */
+    @Override
+    public int setStorageTier(Collection<String> storedFilenames, String tier) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            if (storedFilenames.isEmpty()) {
+                return 0;
+            }
+            Set<String> names = new HashSet<>(storedFilenames);
+            boolean cold = FileMetadata.TIER_COLD.equals(tier);
+            return journal.write(() -> {
+                List<FileRecord> matches = new ArrayList<>();
+                for (FileRecord file : journal.getFiles()) {
+                    if (names.contains(file.storedFilename) && isCold(file.id) != cold) {
+                        matches.add(file);
+                    }
+                }
+                for (FileRecord file : matches) {
+                    FileAccess old = journal.getFileAccess(file.id);
+                    journal.putFileAccess(file.id, new FileAccess(old != null ? old.lastAccessMillis : 0, cold));
+                }
+                return matches.size();
+            });
+        } catch (SQLException e) {
+            SET_STORAGE_TIER_METRICS.recordError();
+            throw e;
+        } finally {
+            SET_STORAGE_TIER_METRICS.record(startNanos);
+        }
+    }
+
+    @Override
+    public List<TierUsage> getTierUsage() {
+        long startNanos = System.nanoTime();
+        try {
+            return journal.read(() -> {
+                long[] counts = new long[2]; // Hot, then cold
+                long[] bytes = new long[2];
+                for (FileRecord file : journal.getFiles()) {
+                    if (file.isLive()) {
+                        int tier = isCold(file.id) ? 1 : 0;
+                        counts[tier]++;
+                        bytes[tier] += Math.max(0, file.sizeBytes);
+                    }
+                }
+                List<TierUsage> usage = new ArrayList<>();
+                if (counts[1] > 0) {
+                    usage.add(new TierUsage(FileMetadata.TIER_COLD, counts[1], bytes[1]));
+                }
+                if (counts[0] > 0) {
+                    usage.add(new TierUsage(FileMetadata.TIER_HOT, counts[0], bytes[0]));
+                }
+                return usage;
+            });
+        } finally {
+            GET_TIER_USAGE_METRICS.record(startNanos);
+        }
+    }
+
+    private boolean isCold(int fileId) {
+        FileAccess access = journal.getFileAccess(fileId);
+        return access != null && access.cold;
+    }
+
+    private long lastUsedMillis(FileRecord file) {
+        FileAccess access = journal.getFileAccess(file.id);
+        return access != null ? Math.max(file.uploadMillis, access.lastAccessMillis) : file.uploadMillis;
+    }
+
+    // Stands in for the files.user_id foreign key
+    private void checkUser(int userId) throws SQLException {
+        if (journal.getUser(userId) == null) {
+            throw new SQLException("Cannot add a file for unknown user " + userId + ".");
+        }
+    }
+
+    private static FileRecord newRecord(int id, FileMetadata fileMetadata, long uploadMillis) {
+        return new FileRecord(id, fileMetadata.getUserId(), fileMetadata.getOriginalFilename(),
+                fileMetadata.getStoredFilename(), uploadMillis, fileMetadata.getCodec(), fileMetadata.getSizeBytes(),
+                fileMetadata.isEncrypted(), 0);
+    }
+
+    private List<FileMetadata> toMetadata(Collection<FileRecord> records, int limit) {
+        List<FileMetadata> files = new ArrayList<>(); // No size(): it is a linear walk for a tree view
+        for (FileRecord file : records) {
+            if (files.size() >= limit) {
+                break;
+            }
+            files.add(toMetadata(file));
+        }
+        return files;
+    }
+
+    // The row plus its last access time and tier, which the journal keeps apart
+    private FileMetadata toMetadata(FileRecord file) {
+        FileMetadata fileMetadata = file.toMetadata();
+        FileAccess access = journal.getFileAccess(file.id);
+        if (access != null) {
+            fileMetadata.setStorageTier(access.cold ? FileMetadata.TIER_COLD : FileMetadata.TIER_HOT);
+            fileMetadata.setLastAccessedAt(access.lastAccessMillis > 0 ? new Timestamp(access.lastAccessMillis) : null);
+        }
+        return fileMetadata;
+    }
+}
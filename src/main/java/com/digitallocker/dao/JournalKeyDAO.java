@@ -0,0 +1,33 @@
+package com.digitallocker.dao;
+
+import java.sql.SQLException;
+
+/**
+ * {@link KeyDAO} backed by the embedded {@link MetadataJournal}.
+ */
+public class JournalKeyDAO implements KeyDAO {
+    private final MetadataJournal journal;
+
+    public JournalKeyDAO(MetadataJournal journal) {
+        this.journal = journal;
+    }
+
+    @Override
+    public byte[] getWrappedKey(int userId) {
+        return journal.read(() -> {
+            byte[] wrappedKey = journal.getKey(userId);
+            return wrappedKey != null ? wrappedKey.clone() : null;
+        });
+    }
+
+    @Override
+    public boolean addWrappedKey(int userId, byte[] wrappedKey) throws SQLException {
+        return journal.write(() -> {
+            if (journal.getKey(userId) != null) {
+                return false;
+            }
+            journal.putKey(userId, wrappedKey);
+            return true;
+        });
+    }
+}
@@ -0,0 +1,114 @@
+package com.digitallocker.dao;
+
+import com.digitallocker.dao.MetadataJournal.UserRecord;
+import com.digitallocker.model.StorageUsage;
+import com.digitallocker.model.User;
+import com.digitallocker.util.Metrics;
+import com.digitallocker.util.OperationMetrics;
+
+import java.sql.SQLException;
+
+/**
+ * {@link UserDAO} backed by the embedded {@link MetadataJournal}.
+ * Usernames are unique regardless of case, as with the default MySQL collation.
+ */
+public class JournalUserDAO implements UserDAO {
+    // Per-operation call, error and latency metrics, also exposed over JMX (see Metrics)
+    private static final OperationMetrics REGISTER_USER_METRICS = Metrics.operation("UserDAO", "registerUser");
+    private static final OperationMetrics GET_USER_BY_USERNAME_METRICS = Metrics.operation("UserDAO", "getUserByUsername");
+    private static final OperationMetrics UPDATE_PASSWORD_METRICS = Metrics.operation("UserDAO", "updatePassword");
+    private static final OperationMetrics GET_STORAGE_USAGE_METRICS = Metrics.operation("UserDAO", "getStorageUsage");
+    private static final OperationMetrics SET_QUOTA_METRICS = Metrics.operation("UserDAO", "setQuota");
+
+    private final MetadataJournal journal;
+
+    public JournalUserDAO(MetadataJournal journal) {
+        this.journal = journal;
+    }
+
+    @Override
+    public int registerUser(User user) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            return journal.write(() -> {
+                if (journal.getUserByName(user.getUsername()) != null) {
+                    return -1; // Username already taken
+                }
+                UserRecord record = new UserRecord(journal.nextUserId(), user.getUsername(), user.getPassword());
+                journal.putUser(record);
+                return record.id;
+            });
+        } catch (SQLException e) {
+            REGISTER_USER_METRICS.recordError();
+            throw e;
+        } finally {
+            REGISTER_USER_METRICS.record(startNanos);
+        }
+    }
+
+    @Override
+    public User getUserByUsername(String username) {
+        long startNanos = System.nanoTime();
+        try {
+            return journal.read(() -> {
+                UserRecord record = journal.getUserByName(username);
+                return record != null ? record.toUser() : null;
+            });
+        } finally {
+            GET_USER_BY_USERNAME_METRICS.record(startNanos);
+        }
+    }
+
+    @Override
+    public boolean updatePassword(int userId, String passwordHash) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            return journal.write(() -> {
+                UserRecord record = journal.getUser(userId);
+                if (record == null) {
+                    return false;
+                }
+                journal.putUser(new UserRecord(userId, record.username, passwordHash));
+                return true;
+            });
+        } catch (SQLException e) {
+            UPDATE_PASSWORD_METRICS.recordError();
+            throw e;
+        } finally {
+            UPDATE_PASSWORD_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Reads a user's usage from the journal's per-user byte counts, which follow every change to a live file.
+     */
+    @Override
+    public StorageUsage getStorageUsage(int userId) {
+        long startNanos = System.nanoTime();
+        try {
+            return journal.read(() -> journal.getUser(userId) == null ? null
+                    : new StorageUsage(userId, journal.getUsedBytes(userId), journal.getQuota(userId)));
+        } finally {
+            GET_STORAGE_USAGE_METRICS.record(startNanos);
+        }
+    }
+
+    @Override
+    public boolean setQuota(int userId, long quotaBytes) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            return journal.write(() -> {
+                if (journal.getUser(userId) == null) {
+                    return false;
+                }
+                journal.putQuota(userId, quotaBytes);
+                return true;
+            });
+        } catch (SQLException e) {
+            SET_QUOTA_METRICS.recordError();
+            throw e;
+        } finally {
+            SET_QUOTA_METRICS.record(startNanos);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.digitallocker.dao;
+
+import java.sql.SQLException;
+
+/**
+ * Data Access Object for the users' wrapped data keys.
+ * Keys are stored only in wrapped (encrypted) form; unwrapping them needs the master key,
+ * which never touches the metadata store.
+ * Implemented over JDBC ({@link JdbcKeyDAO}) and over the embedded journal ({@link JournalKeyDAO});
+ * {@link DAOFactory} picks one at startup.
+ */
+public interface KeyDAO {
+
+    /**
+     * Gets a user's wrapped data key.
+     * @param userId The ID of the user.
+     * @return The wrapped key, or null if the user has none yet.
+     * @throws SQLException If a database access error occurs.
+     */
+    byte[] getWrappedKey(int userId) throws SQLException;
+
+    /**
+     * Stores a user's wrapped data key unless the user already has one.
+     * Two sessions creating a key at the same time cannot both win: callers re-read the key afterwards.
+     * @param userId The ID of the user.
+     * @param wrappedKey The wrapped key.
+     * @return true if this key was stored, false if the user already had a key.
+     * @throws SQLException If a database access error occurs.
+     */
+    boolean addWrappedKey(int userId, byte[] wrappedKey) throws SQLException;
+}
@@ -0,0 +1,1196 @@
+package com.digitallocker.dao;
+
+import com.digitallocker.model.FileMetadata;
+import com.digitallocker.model.FileVersion;
+import com.digitallocker.model.User;
+import com.digitallocker.util.Metrics;
+import com.digitallocker.util.OperationMetrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * An embedded, log-structured metadata store: the alternative to MySQL behind the Journal*DAO classes.
+ * All users, files and their earlier versions, blobs and wrapped keys live in memory, indexed by id, by user and by username.
+ * Every change is appended to a journal as one checksummed frame per call; concurrent writers are made
+ * durable together by a single fsync (group commit). A periodic snapshot of the whole state lets old
+ * journal segments be deleted, so restart time is bounded by the snapshot plus the journal written since.
+ * <p>
+ * On disk the directory holds a LOCK file, at most one snapshot.dat and the journal-NNNNNNNN.log segments
+ * written after it. A torn frame at the end of the newest segment (a crash mid-write) is truncated on
+ * restart; damage anywhere else stops the store from opening rather than silently losing data.
+ */
+public class MetadataJournal implements Closeable {
+    // Per-operation call, error and latency metrics, also exposed over JMX (see Metrics)
+    private static final OperationMetrics GROUP_COMMIT_METRICS = Metrics.operation("MetadataJournal", "groupCommit");
+    private static final OperationMetrics SNAPSHOT_METRICS = Metrics.operation("MetadataJournal", "snapshot");
+
+    private static final byte PUT_USER = 1;
+    private static final byte PUT_FILE = 2;
+    private static final byte REMOVE_FILE = 3;
+    private static final byte PUT_BLOB = 4;
+    private static final byte REMOVE_BLOB = 5;
+    private static final byte PUT_KEY = 6;
+    private static final byte PUT_QUOTA = 7;
+    private static final byte PUT_BLOB_CHECK = 8;
+    private static final byte PUT_VERSION = 9;
+    private static final byte REMOVE_VERSION = 10;
+    private static final byte PUT_FILE_ACCESS = 11;
+    private static final byte END = 0; // Ends the op list of a snapshot
+
+    private static final int SNAPSHOT_MAGIC = 0x444c4d53; // "DLMS"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int FRAME_HEADER_BYTES = 8; // Length and CRC-32 of the ops that follow
+    private static final String SNAPSHOT_FILE = "snapshot.dat";
+    private static final Pattern SEGMENT_NAME = Pattern.compile("journal-(\\d{8})\\.log");
+
+    private static final Comparator<FileRecord> UPLOAD_ORDER =
+            Comparator.<FileRecord>comparingLong(f -> f.uploadMillis).thenComparingInt(f -> f.id);
+
+    private final Path dir;
+    private final boolean fsync;
+    private final long snapshotThresholdBytes;
+    private final long snapshotIntervalMillis;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+
+    // In-memory state, guarded by stateLock
+    private final ReentrantReadWriteLock stateLock = new ReentrantReadWriteLock();
+    private final Map<Integer, UserRecord> users = new HashMap<>();
+    private final Map<String, UserRecord> usersByName = new HashMap<>(); // Case-insensitive, like the MySQL column
+    private final Map<Integer, FileRecord> files = new HashMap<>();
+    private final Map<Integer, NavigableSet<FileRecord>> liveFilesByUser = new HashMap<>();
+    private final NavigableMap<Integer, FileRecord> tombstones = new TreeMap<>();
+    private final NavigableMap<String, BlobRecord> blobs = new TreeMap<>(); // Ordered for the integrity scrubber's pages
+    private final Map<String, BlobCheck> blobChecks = new HashMap<>(); // Checksum and scrub state, kept apart from PUT_BLOB
+    private final Map<Integer, FileAccess> fileAccess = new HashMap<>(); // Last access and tier, kept apart from PUT_FILE
+    private final Map<Integer, NavigableMap<Integer, VersionRecord>> versions = new HashMap<>(); // Earlier versions per file
+    private final Map<Integer, byte[]> keys = new HashMap<>();
+    private final Map<Integer, Long> usedBytes = new HashMap<>(); // Sizes of each user's live files and their versions, derived
+    private final Map<Integer, Long> quotas = new HashMap<>();
+    private final NavigableMap<String, Integer> rowsByStoredName = new TreeMap<>(); // Rows (live or not) and earlier versions per stored file, derived
+    private int lastUserId;
+    private int lastFileId;
+    private ByteArrayOutputStream txBytes; // Ops of the write() in progress
+    private DataOutputStream txOut;
+
+    // Group commit state, guarded by commitMonitor
+    private final Object commitMonitor = new Object();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appendedSeq;
+    private long durableSeq;
+    private IOException failure;
+    private boolean closed;
+    private FileChannel segment;
+    private long segmentNumber;
+    private long bytesSinceSnapshot;
+    private long lastSnapshotMillis = System.currentTimeMillis();
+
+    private final Object snapshotLock = new Object();
+    private final Thread flusher;
+    private final ScheduledExecutorService snapshotScheduler;
+
+    /**
+     * Opens the store in the directory named by digitallocker.metadata.dir (default locker_metadata),
+     * creating it if needed.
+     * @throws IOException If the directory is in use by another process or the journal cannot be read.
+     */
+    public MetadataJournal() throws IOException {
+        this(Paths.get(System.getProperty("digitallocker.metadata.dir", "locker_metadata")),
+                Boolean.parseBoolean(System.getProperty("digitallocker.metadata.fsync", "true")),
+                Long.getLong("digitallocker.metadata.snapshotThresholdBytes", 64L << 20),
+                Long.getLong("digitallocker.metadata.snapshotIntervalMs", 600_000L));
+    }
+
+    /**
+     * @param dir The directory holding the snapshot and the journal.
+     * @param fsync Whether commits wait for the journal to reach the disk. Without it a crash of the
+     *              machine (not just the process) can lose the last commits.
+     * @param snapshotThresholdBytes Journal bytes written since the last snapshot that trigger a new one.
+     * @param snapshotIntervalMillis The longest time between snapshots while there are changes.
+     * @throws IOException If the directory is in use by another process or the journal cannot be read.
+     */
+    public MetadataJournal(Path dir, boolean fsync, long snapshotThresholdBytes, long snapshotIntervalMillis)
+            throws IOException {
+        this.dir = dir;
+        this.fsync = fsync;
+        this.snapshotThresholdBytes = snapshotThresholdBytes;
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+        Files.createDirectories(dir);
+        lockChannel = FileChannel.open(dir.resolve("LOCK"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock acquired;
+        try {
+            acquired = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            acquired = null; // Already open in this JVM
+        }
+        lock = acquired;
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("Metadata directory " + dir.toAbsolutePath() + " is in use by another process.");
+        }
+        try {
+            recover();
+        } catch (IOException | RuntimeException e) {
+            lock.release();
+            lockChannel.close();
+            throw e;
+        }
+
+        flusher = new Thread(this::flushLoop, "journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        snapshotScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "journal-snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        long checkMillis = Math.max(100, Math.min(snapshotIntervalMillis, 5_000));
+        snapshotScheduler.scheduleWithFixedDelay(this::snapshotIfDue, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // ---------------------------------------------------------------- transactions
+
+    /**
+     * Runs a read-only query against the in-memory state. Reads see every committed change and may
+     * also see changes whose commit is still waiting for its fsync.
+     */
+    <T> T read(Supplier<T> query) {
+        stateLock.readLock().lock();
+        try {
+            return query.get();
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Runs a change against the in-memory state and journals it as one atomic frame, then waits until
+     * that frame is durable. Writers arriving while another commit is being flushed share the next fsync.
+     * The change must validate everything before its first put/remove call: a change is never rolled back.
+     * @throws SQLException If the journal cannot be written; the store accepts no more changes after that.
+     */
+    <T> T write(Change<T> change) throws SQLException {
+        long seq;
+        T result;
+        stateLock.writeLock().lock();
+        try {
+            checkWritable();
+            txBytes = new ByteArrayOutputStream();
+            txOut = new DataOutputStream(txBytes);
+            try {
+                result = change.apply();
+                seq = txBytes.size() == 0 ? 0 : append(txBytes.toByteArray());
+            } finally {
+                txBytes = null;
+                txOut = null;
+            }
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        if (seq > 0) {
+            awaitDurable(seq);
+        }
+        return result;
+    }
+
+    /** A change to the store; it may throw to reject the change before it has modified anything. */
+    interface Change<T> {
+        T apply() throws SQLException;
+    }
+
+    private long append(byte[] ops) {
+        CRC32 crc = new CRC32();
+        crc.update(ops, 0, ops.length);
+        synchronized (commitMonitor) {
+            DataOutputStream out = new DataOutputStream(pending);
+            try {
+                out.writeInt(ops.length);
+                out.writeInt((int) crc.getValue());
+                out.write(ops);
+            } catch (IOException e) {
+                throw new IllegalStateException(e); // Cannot happen for an in-memory stream
+            }
+            appendedSeq++;
+            commitMonitor.notifyAll();
+            return appendedSeq;
+        }
+    }
+
+    private void awaitDurable(long seq) throws SQLException {
+        boolean interrupted = false;
+        synchronized (commitMonitor) {
+            while (durableSeq < seq && failure == null) {
+                try {
+                    commitMonitor.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true; // The frame is already queued; its outcome must still be reported
+                }
+            }
+            if (durableSeq < seq) {
+                throw new SQLException("Metadata journal write failed: " + failure.getMessage(), failure);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkWritable() throws SQLException {
+        synchronized (commitMonitor) {
+            if (closed) {
+                throw new SQLException("Metadata journal is closed.");
+            }
+            if (failure != null) {
+                throw new SQLException("Metadata journal is unavailable after a write failure: "
+                        + failure.getMessage(), failure);
+            }
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            byte[] batch;
+            long batchSeq;
+            FileChannel channel;
+            synchronized (commitMonitor) {
+                while (pending.size() == 0 && !closed) {
+                    try {
+                        commitMonitor.wait();
+                    } catch (InterruptedException e) {
+                        // Only close() stops the flusher, after everything queued is written
+                    }
+                }
+                if (pending.size() == 0) {
+                    return;
+                }
+                batch = pending.toByteArray();
+                pending = new ByteArrayOutputStream();
+                batchSeq = appendedSeq;
+                channel = segment;
+            }
+
+            long startNanos = System.nanoTime();
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(batch);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                if (fsync) {
+                    channel.force(false);
+                }
+                GROUP_COMMIT_METRICS.addBytesOut(batch.length);
+                synchronized (commitMonitor) {
+                    durableSeq = batchSeq;
+                    bytesSinceSnapshot += batch.length;
+                    commitMonitor.notifyAll();
+                }
+            } catch (IOException e) {
+                GROUP_COMMIT_METRICS.recordError();
+                System.err.println("Metadata journal write failed: " + e.getMessage());
+                synchronized (commitMonitor) {
+                    failure = e;
+                    commitMonitor.notifyAll();
+                }
+                return;
+            } finally {
+                GROUP_COMMIT_METRICS.record(startNanos);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------- queries, called inside read() or write()
+
+    UserRecord getUser(int userId) {
+        return users.get(userId);
+    }
+
+    UserRecord getUserByName(String username) {
+        return usersByName.get(username.toLowerCase(Locale.ROOT));
+    }
+
+    int nextUserId() {
+        return lastUserId + 1;
+    }
+
+    int nextFileId() {
+        return lastFileId + 1;
+    }
+
+    FileRecord getFile(int fileId) {
+        return files.get(fileId);
+    }
+
+    /** @return The user's live files in (upload date, id) order; empty if the user has none. */
+    NavigableSet<FileRecord> getLiveFiles(int userId) {
+        NavigableSet<FileRecord> userFiles = liveFilesByUser.get(userId);
+        return userFiles != null ? userFiles : new TreeSet<>(UPLOAD_ORDER);
+    }
+
+    /** @return Tombstoned files keyed and ordered by id. */
+    NavigableMap<Integer, FileRecord> getTombstones() {
+        return tombstones;
+    }
+
+    /** @return The number of rows, live or tombstoned, and earlier versions per stored filename, ordered by name. */
+    NavigableMap<String, Integer> getRowsByStoredName() {
+        return rowsByStoredName;
+    }
+
+    /** @return Every files row, in no particular order. */
+    Iterable<FileRecord> getFiles() {
+        return files.values();
+    }
+
+    /** @return The file's earlier versions keyed and ordered by version number; empty if it has none. */
+    NavigableMap<Integer, VersionRecord> getVersions(int fileId) {
+        NavigableMap<Integer, VersionRecord> fileVersions = versions.get(fileId);
+        return fileVersions != null ? fileVersions : new TreeMap<>();
+    }
+
+    BlobRecord getBlob(String sha256) {
+        return blobs.get(sha256);
+    }
+
+    Iterable<BlobRecord> getBlobs() {
+        return blobs.values();
+    }
+
+    /** @return Blobs keyed and ordered by name. */
+    NavigableMap<String, BlobRecord> getBlobsByName() {
+        return blobs;
+    }
+
+    /** @return The blob's checksum and scrub state, or null if none was recorded. */
+    BlobCheck getBlobCheck(String sha256) {
+        return blobChecks.get(sha256);
+    }
+
+    /** @return The names of blobs flagged corrupt, in order. Linear, but only used for an occasional report. */
+    List<String> getCorruptBlobNames() {
+        List<String> names = new ArrayList<>();
+        for (Map.Entry<String, BlobCheck> check : blobChecks.entrySet()) {
+            if (check.getValue().corrupt) {
+                names.add(check.getKey());
+            }
+        }
+        names.sort(null);
+        return names;
+    }
+
+    /** @return The file's last access time and tier, or null if it was never retrieved nor moved. */
+    FileAccess getFileAccess(int fileId) {
+        return fileAccess.get(fileId);
+    }
+
+    byte[] getKey(int userId) {
+        return keys.get(userId);
+    }
+
+    long getUsedBytes(int userId) {
+        return usedBytes.getOrDefault(userId, 0L);
+    }
+
+    /** @return The user's quota, or -1 if none is set. */
+    long getQuota(int userId) {
+        return quotas.getOrDefault(userId, -1L);
+    }
+
+    // ---------------------------------------------------------------- changes, called inside write()
+
+    void putUser(UserRecord user) {
+        log(PUT_USER, out -> writeUser(out, user));
+        applyPutUser(user);
+    }
+
+    void putFile(FileRecord file) {
+        log(PUT_FILE, out -> writeFile(out, file));
+        applyPutFile(file);
+    }
+
+    void removeFile(int fileId) {
+        log(REMOVE_FILE, out -> out.writeInt(fileId));
+        applyRemoveFile(fileId);
+    }
+
+    void putVersion(VersionRecord version) {
+        log(PUT_VERSION, out -> writeVersion(out, version));
+        applyPutVersion(version);
+    }
+
+    void removeVersion(int fileId, int version) {
+        log(REMOVE_VERSION, out -> {
+            out.writeInt(fileId);
+            out.writeInt(version);
+        });
+        applyRemoveVersion(fileId, version);
+    }
+
+    void putBlob(BlobRecord blob) {
+        log(PUT_BLOB, out -> writeBlob(out, blob));
+        applyPutBlob(blob);
+    }
+
+    void removeBlob(String sha256) {
+        log(REMOVE_BLOB, out -> out.writeUTF(sha256));
+        applyRemoveBlob(sha256);
+    }
+
+    void putBlobCheck(String sha256, BlobCheck check) {
+        log(PUT_BLOB_CHECK, out -> writeBlobCheck(out, sha256, check));
+        blobChecks.put(sha256, check);
+    }
+
+    void putFileAccess(int fileId, FileAccess access) {
+        log(PUT_FILE_ACCESS, out -> writeFileAccess(out, fileId, access));
+        fileAccess.put(fileId, access);
+    }
+
+    void putKey(int userId, byte[] wrappedKey) {
+        log(PUT_KEY, out -> writeKey(out, userId, wrappedKey));
+        keys.put(userId, wrappedKey.clone());
+    }
+
+    void putQuota(int userId, long quotaBytes) {
+        log(PUT_QUOTA, out -> writeQuota(out, userId, quotaBytes));
+        applyPutQuota(userId, quotaBytes);
+    }
+
+    private interface OpWriter {
+        void write(DataOutput out) throws IOException;
+    }
+
+    private void log(byte type, OpWriter payload) {
+        if (txOut == null) {
+            throw new IllegalStateException("Changes must be made inside write().");
+        }
+        try {
+            txOut.writeByte(type);
+            payload.write(txOut);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Cannot happen for an in-memory stream
+        }
+    }
+
+    private void applyPutUser(UserRecord user) {
+        UserRecord old = users.put(user.id, user);
+        if (old != null) {
+            usersByName.remove(old.username.toLowerCase(Locale.ROOT));
+        }
+        usersByName.put(user.username.toLowerCase(Locale.ROOT), user);
+        lastUserId = Math.max(lastUserId, user.id);
+    }
+
+    private void applyPutFile(FileRecord file) {
+        unindex(files.put(file.id, file));
+        rowsByStoredName.merge(file.storedFilename, 1, Integer::sum);
+        if (file.isLive()) {
+            liveFilesByUser.computeIfAbsent(file.userId, id -> new TreeSet<>(UPLOAD_ORDER)).add(file);
+            usedBytes.merge(file.userId, Math.max(0, file.sizeBytes) + versionBytes(file.id), Long::sum);
+        } else {
+            tombstones.put(file.id, file);
+        }
+        lastFileId = Math.max(lastFileId, file.id);
+    }
+
+    private void applyRemoveFile(int fileId) {
+        unindex(files.remove(fileId));
+        fileAccess.remove(fileId);
+    }
+
+    private void unindex(FileRecord old) {
+        if (old == null) {
+            return;
+        }
+        rowsByStoredName.computeIfPresent(old.storedFilename, (name, rows) -> rows > 1 ? rows - 1 : null);
+        if (old.isLive()) {
+            NavigableSet<FileRecord> userFiles = liveFilesByUser.get(old.userId);
+            userFiles.remove(old);
+            if (userFiles.isEmpty()) {
+                liveFilesByUser.remove(old.userId);
+                usedBytes.remove(old.userId);
+            } else {
+                usedBytes.merge(old.userId, -Math.max(0, old.sizeBytes) - versionBytes(old.id), Long::sum);
+            }
+        } else {
+            tombstones.remove(old.id);
+        }
+    }
+
+    private void applyPutVersion(VersionRecord version) {
+        VersionRecord old = versions.computeIfAbsent(version.fileId, id -> new TreeMap<>()).put(version.version, version);
+        if (old != null) {
+            rowsByStoredName.computeIfPresent(old.storedFilename, (name, rows) -> rows > 1 ? rows - 1 : null);
+        }
+        rowsByStoredName.merge(version.storedFilename, 1, Integer::sum);
+        addVersionUsage(version.fileId, Math.max(0, version.sizeBytes) - (old == null ? 0 : Math.max(0, old.sizeBytes)));
+    }
+
+    private void applyRemoveVersion(int fileId, int version) {
+        NavigableMap<Integer, VersionRecord> fileVersions = versions.get(fileId);
+        VersionRecord old = fileVersions == null ? null : fileVersions.remove(version);
+        if (old == null) {
+            return;
+        }
+        if (fileVersions.isEmpty()) {
+            versions.remove(fileId);
+        }
+        rowsByStoredName.computeIfPresent(old.storedFilename, (name, rows) -> rows > 1 ? rows - 1 : null);
+        addVersionUsage(fileId, -Math.max(0, old.sizeBytes));
+    }
+
+    /** Earlier versions count towards their owner's usage while the file is live. */
+    private void addVersionUsage(int fileId, long bytes) {
+        FileRecord file = files.get(fileId);
+        if (file != null && file.isLive() && bytes != 0) {
+            usedBytes.merge(file.userId, bytes, Long::sum);
+        }
+    }
+
+    private long versionBytes(int fileId) {
+        NavigableMap<Integer, VersionRecord> fileVersions = versions.get(fileId);
+        long bytes = 0;
+        if (fileVersions != null) {
+            for (VersionRecord version : fileVersions.values()) {
+                bytes += Math.max(0, version.sizeBytes);
+            }
+        }
+        return bytes;
+    }
+
+    private void applyPutQuota(int userId, long quotaBytes) {
+        if (quotaBytes < 0) {
+            quotas.remove(userId);
+        } else {
+            quotas.put(userId, quotaBytes);
+        }
+    }
+
+    private void applyPutBlob(BlobRecord blob) {
+        blobs.put(blob.sha256, blob);
+    }
+
+    private void applyRemoveBlob(String sha256) {
+        blobs.remove(sha256);
+        blobChecks.remove(sha256);
+    }
+
+    private void apply(byte type, DataInput in) throws IOException {
+        switch (type) {
+            case PUT_USER:
+                applyPutUser(readUser(in));
+                break;
+            case PUT_FILE:
+                applyPutFile(readFile(in));
+                break;
+            case REMOVE_FILE:
+                applyRemoveFile(in.readInt());
+                break;
+            case PUT_BLOB:
+                applyPutBlob(readBlob(in));
+                break;
+            case REMOVE_BLOB:
+                applyRemoveBlob(in.readUTF());
+                break;
+            case PUT_KEY:
+                int userId = in.readInt();
+                byte[] wrappedKey = new byte[in.readUnsignedShort()];
+                in.readFully(wrappedKey);
+                keys.put(userId, wrappedKey);
+                break;
+            case PUT_QUOTA:
+                applyPutQuota(in.readInt(), in.readLong());
+                break;
+            case PUT_BLOB_CHECK:
+                blobChecks.put(in.readUTF(), new BlobCheck(in.readLong(), in.readLong(), in.readBoolean()));
+                break;
+            case PUT_VERSION:
+                applyPutVersion(readVersion(in));
+                break;
+            case REMOVE_VERSION:
+                applyRemoveVersion(in.readInt(), in.readInt());
+                break;
+            case PUT_FILE_ACCESS:
+                fileAccess.put(in.readInt(), new FileAccess(in.readLong(), in.readBoolean()));
+                break;
+            default:
+                throw new IOException("Unknown journal op " + type + ".");
+        }
+    }
+
+    // ---------------------------------------------------------------- snapshots
+
+    /**
+     * Writes a snapshot of the whole state and deletes the journal segments it replaces.
+     * Writers are blocked only while the state is copied, not while the snapshot is written.
+     * @throws IOException If the snapshot cannot be written; the journal is left intact in that case.
+     */
+    public void snapshot() throws IOException {
+        synchronized (snapshotLock) {
+            long startNanos = System.nanoTime();
+            try {
+                snapshotLocked();
+            } catch (IOException e) {
+                SNAPSHOT_METRICS.recordError();
+                throw e;
+            } finally {
+                SNAPSHOT_METRICS.record(startNanos);
+            }
+        }
+    }
+
+    private void snapshotLocked() throws IOException {
+        List<UserRecord> userCopy;
+        List<FileRecord> fileCopy;
+        List<BlobRecord> blobCopy;
+        Map<Integer, byte[]> keyCopy;
+        Map<Integer, Long> quotaCopy;
+        Map<String, BlobCheck> checkCopy;
+        Map<Integer, FileAccess> accessCopy;
+        List<VersionRecord> versionCopy;
+        int userIdCopy;
+        int fileIdCopy;
+        long firstSegment;
+
+        stateLock.writeLock().lock();
+        try {
+            synchronized (commitMonitor) {
+                long target = appendedSeq;
+                while (durableSeq < target && failure == null) {
+                    try {
+                        commitMonitor.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for the journal to flush.");
+                    }
+                }
+                if (failure != null) {
+                    throw new IOException("Metadata journal is unavailable: " + failure.getMessage(), failure);
+                }
+            }
+            // Everything so far is on disk and no one can append: start a new segment for what follows
+            firstSegment = segmentNumber + 1;
+            FileChannel next = openSegment(firstSegment);
+            FileChannel previous;
+            synchronized (commitMonitor) {
+                previous = segment;
+                segment = next;
+                segmentNumber = firstSegment;
+                bytesSinceSnapshot = 0;
+                lastSnapshotMillis = System.currentTimeMillis();
+            }
+            previous.close();
+
+            userCopy = new ArrayList<>(users.values());
+            fileCopy = new ArrayList<>(files.values());
+            blobCopy = new ArrayList<>(blobs.values());
+            keyCopy = new HashMap<>(keys);
+            quotaCopy = new HashMap<>(quotas);
+            checkCopy = new HashMap<>(blobChecks);
+            accessCopy = new HashMap<>(fileAccess);
+            versionCopy = new ArrayList<>();
+            for (NavigableMap<Integer, VersionRecord> fileVersions : versions.values()) {
+                versionCopy.addAll(fileVersions.values());
+            }
+            userIdCopy = lastUserId;
+            fileIdCopy = lastFileId;
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+
+        Path tmp = dir.resolve("snapshot.tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(firstSegment);
+            out.writeInt(userIdCopy);
+            out.writeInt(fileIdCopy);
+            for (UserRecord user : userCopy) {
+                out.writeByte(PUT_USER);
+                writeUser(out, user);
+            }
+            for (FileRecord file : fileCopy) {
+                out.writeByte(PUT_FILE);
+                writeFile(out, file);
+            }
+            for (BlobRecord blob : blobCopy) {
+                out.writeByte(PUT_BLOB);
+                writeBlob(out, blob);
+            }
+            for (Map.Entry<Integer, byte[]> key : keyCopy.entrySet()) {
+                out.writeByte(PUT_KEY);
+                writeKey(out, key.getKey(), key.getValue());
+            }
+            for (Map.Entry<Integer, Long> quota : quotaCopy.entrySet()) {
+                out.writeByte(PUT_QUOTA);
+                writeQuota(out, quota.getKey(), quota.getValue());
+            }
+            for (Map.Entry<String, BlobCheck> check : checkCopy.entrySet()) {
+                out.writeByte(PUT_BLOB_CHECK);
+                writeBlobCheck(out, check.getKey(), check.getValue());
+            }
+            for (VersionRecord version : versionCopy) {
+                out.writeByte(PUT_VERSION);
+                writeVersion(out, version);
+            }
+            for (Map.Entry<Integer, FileAccess> access : accessCopy.entrySet()) {
+                out.writeByte(PUT_FILE_ACCESS);
+                writeFileAccess(out, access.getKey(), access.getValue());
+            }
+            out.writeByte(END);
+            out.flush();
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tmp, dir.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+
+        for (Map.Entry<Long, Path> old : listSegments().headMap(firstSegment).entrySet()) {
+            Files.deleteIfExists(old.getValue());
+        }
+    }
+
+    private void snapshotIfDue() {
+        boolean due;
+        synchronized (commitMonitor) {
+            due = !closed && failure == null && bytesSinceSnapshot > 0
+                    && (bytesSinceSnapshot >= snapshotThresholdBytes
+                        || System.currentTimeMillis() - lastSnapshotMillis >= snapshotIntervalMillis);
+        }
+        if (due) {
+            try {
+                snapshot();
+            } catch (IOException e) {
+                System.err.println("Metadata snapshot failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------- recovery
+
+    private void recover() throws IOException {
+        Files.deleteIfExists(dir.resolve("snapshot.tmp"));
+        long firstSegment = 1;
+        Path snapshotFile = dir.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshotFile)) {
+            firstSegment = loadSnapshot(snapshotFile);
+        }
+
+        NavigableMap<Long, Path> segments = listSegments();
+        for (Path stale : segments.headMap(firstSegment).values()) {
+            Files.delete(stale); // Left behind by a crash right after the snapshot was written
+        }
+        NavigableMap<Long, Path> live = segments.tailMap(firstSegment, true);
+        long last = firstSegment - 1;
+        long replayedFrames = 0;
+        for (Map.Entry<Long, Path> entry : live.entrySet()) {
+            replayedFrames += replaySegment(entry.getValue(), entry.getKey() == live.lastKey());
+            last = entry.getKey();
+        }
+        segmentNumber = last + 1;
+        segment = openSegment(segmentNumber);
+        System.out.println("Metadata journal opened: " + users.size() + " users, " + files.size() + " files, "
+                + replayedFrames + " journal frames replayed from " + live.size() + " segment(s).");
+    }
+
+    private long loadSnapshot(Path file) throws IOException {
+        try (InputStream raw = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+            CheckedInputStream checked = new CheckedInputStream(raw, new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Not a metadata snapshot: " + file);
+            }
+            long firstSegment = in.readLong();
+            int userIdCounter = in.readInt();
+            int fileIdCounter = in.readInt();
+            byte type;
+            while ((type = in.readByte()) != END) {
+                apply(type, in);
+            }
+            long expected = checked.getChecksum().getValue();
+            if (new DataInputStream(raw).readLong() != expected) {
+                throw new IOException("Metadata snapshot " + file + " is corrupt (checksum mismatch).");
+            }
+            lastUserId = Math.max(lastUserId, userIdCounter);
+            lastFileId = Math.max(lastFileId, fileIdCounter);
+            return firstSegment;
+        } catch (EOFException e) {
+            throw new IOException("Metadata snapshot " + file + " is truncated.", e);
+        }
+    }
+
+    /** @return The number of frames replayed. */
+    private long replaySegment(Path file, boolean newest) throws IOException {
+        long frames = 0;
+        long validBytes = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+            String damage = null;
+            while (validBytes < size) {
+                if (size - validBytes < FRAME_HEADER_BYTES) {
+                    damage = "torn frame header";
+                    break;
+                }
+                int length = in.readInt();
+                int crc = in.readInt();
+                if (length < 0 || length > size - validBytes - FRAME_HEADER_BYTES) {
+                    damage = "torn frame";
+                    break;
+                }
+                byte[] ops = new byte[length];
+                in.readFully(ops);
+                CRC32 actual = new CRC32();
+                actual.update(ops, 0, length);
+                if ((int) actual.getValue() != crc) {
+                    damage = "checksum mismatch";
+                    break;
+                }
+                DataInputStream opsIn = new DataInputStream(new ByteArrayInputStream(ops));
+                while (opsIn.available() > 0) {
+                    apply(opsIn.readByte(), opsIn);
+                }
+                validBytes += FRAME_HEADER_BYTES + length;
+                frames++;
+            }
+            if (damage != null) {
+                if (!newest) {
+                    throw new IOException("Journal segment " + file + " is corrupt at byte " + validBytes
+                            + " (" + damage + ").");
+                }
+                // Only the frame being written when the process died can be incomplete; it was never acknowledged
+                System.err.println("Truncating journal " + file + " at byte " + validBytes + " (" + damage + ").");
+                channel.truncate(validBytes);
+                channel.force(true);
+            }
+        }
+        return frames;
+    }
+
+    private NavigableMap<Long, Path> listSegments() throws IOException {
+        NavigableMap<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "journal-*.log")) {
+            for (Path path : stream) {
+                Matcher m = SEGMENT_NAME.matcher(path.getFileName().toString());
+                if (m.matches()) {
+                    segments.put(Long.parseLong(m.group(1)), path);
+                }
+            }
+        }
+        return segments;
+    }
+
+    private FileChannel openSegment(long number) throws IOException {
+        FileChannel channel = FileChannel.open(dir.resolve(String.format("journal-%08d.log", number)),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        syncDirectory();
+        return channel;
+    }
+
+    private void syncDirectory() {
+        // Makes new and renamed files survive a power loss; not supported on every platform
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Best effort
+        }
+    }
+
+    /**
+     * Flushes pending commits, writes a final snapshot and releases the directory.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (commitMonitor) {
+            if (closed) {
+                return;
+            }
+        }
+        snapshotScheduler.shutdownNow();
+        IOException snapshotError = null;
+        try {
+            snapshot();
+        } catch (IOException e) {
+            snapshotError = e; // The journal still holds everything; it is replayed on the next start
+        }
+        synchronized (commitMonitor) {
+            closed = true;
+            commitMonitor.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            segment.close();
+        } finally {
+            lock.release();
+            lockChannel.close();
+        }
+        if (snapshotError != null) {
+            throw snapshotError;
+        }
+    }
+
+    // ---------------------------------------------------------------- records
+
+    private static void writeUser(DataOutput out, UserRecord user) throws IOException {
+        out.writeInt(user.id);
+        out.writeUTF(user.username);
+        out.writeUTF(user.passwordHash);
+    }
+
+    private static UserRecord readUser(DataInput in) throws IOException {
+        return new UserRecord(in.readInt(), in.readUTF(), in.readUTF());
+    }
+
+    private static void writeFile(DataOutput out, FileRecord file) throws IOException {
+        out.writeInt(file.id);
+        out.writeInt(file.userId);
+        out.writeUTF(file.originalFilename);
+        out.writeUTF(file.storedFilename);
+        out.writeLong(file.uploadMillis);
+        out.writeUTF(file.codec);
+        out.writeLong(file.sizeBytes);
+        out.writeBoolean(file.encrypted);
+        out.writeLong(file.deletedMillis);
+    }
+
+    private static FileRecord readFile(DataInput in) throws IOException {
+        return new FileRecord(in.readInt(), in.readInt(), in.readUTF(), in.readUTF(), in.readLong(), in.readUTF(),
+                in.readLong(), in.readBoolean(), in.readLong());
+    }
+
+    private static void writeVersion(DataOutput out, VersionRecord version) throws IOException {
+        out.writeInt(version.fileId);
+        out.writeInt(version.version);
+        out.writeUTF(version.storedFilename);
+        out.writeUTF(version.codec);
+        out.writeLong(version.sizeBytes);
+        out.writeBoolean(version.encrypted);
+        out.writeLong(version.createdMillis);
+    }
+
+    private static VersionRecord readVersion(DataInput in) throws IOException {
+        return new VersionRecord(in.readInt(), in.readInt(), in.readUTF(), in.readUTF(), in.readLong(),
+                in.readBoolean(), in.readLong());
+    }
+
+    private static void writeBlob(DataOutput out, BlobRecord blob) throws IOException {
+        out.writeUTF(blob.sha256);
+        out.writeLong(blob.sizeBytes);
+        out.writeUTF(blob.codec);
+        out.writeLong(blob.storedBytes);
+        out.writeInt(blob.refCount);
+    }
+
+    private static BlobRecord readBlob(DataInput in) throws IOException {
+        return new BlobRecord(in.readUTF(), in.readLong(), in.readUTF(), in.readLong(), in.readInt());
+    }
+
+    private static void writeKey(DataOutput out, int userId, byte[] wrappedKey) throws IOException {
+        out.writeInt(userId);
+        out.writeShort(wrappedKey.length);
+        out.write(wrappedKey);
+    }
+
+    private static void writeQuota(DataOutput out, int userId, long quotaBytes) throws IOException {
+        out.writeInt(userId);
+        out.writeLong(quotaBytes);
+    }
+
+    private static void writeBlobCheck(DataOutput out, String sha256, BlobCheck check) throws IOException {
+        out.writeUTF(sha256);
+        out.writeLong(check.crc32c);
+        out.writeLong(check.verifiedMillis);
+        out.writeBoolean(check.corrupt);
+    }
+
+    private static void writeFileAccess(DataOutput out, int fileId, FileAccess access) throws IOException {
+        out.writeInt(fileId);
+        out.writeLong(access.lastAccessMillis);
+        out.writeBoolean(access.cold);
+    }
+
+    /** An immutable users row. */
+    static final class UserRecord {
+        final int id;
+        final String username;
+        final String passwordHash;
+
+        UserRecord(int id, String username, String passwordHash) {
+            this.id = id;
+            this.username = username;
+            this.passwordHash = passwordHash;
+        }
+
+        User toUser() {
+            return new User(id, username, passwordHash);
+        }
+    }
+
+    /** An immutable files row; deletedMillis is 0 for a live file. */
+    static final class FileRecord {
+        final int id;
+        final int userId;
+        final String originalFilename;
+        final String storedFilename;
+        final long uploadMillis;
+        final String codec;
+        final long sizeBytes;
+        final boolean encrypted;
+        final long deletedMillis;
+
+        FileRecord(int id, int userId, String originalFilename, String storedFilename, long uploadMillis,
+                   String codec, long sizeBytes, boolean encrypted, long deletedMillis) {
+            this.id = id;
+            this.userId = userId;
+            this.originalFilename = originalFilename;
+            this.storedFilename = storedFilename;
+            this.uploadMillis = uploadMillis;
+            this.codec = codec;
+            this.sizeBytes = sizeBytes;
+            this.encrypted = encrypted;
+            this.deletedMillis = deletedMillis;
+        }
+
+        boolean isLive() {
+            return deletedMillis == 0;
+        }
+
+        FileRecord tombstoned(long now) {
+            return new FileRecord(id, userId, originalFilename, storedFilename, uploadMillis, codec, sizeBytes,
+                    encrypted, now);
+        }
+
+        FileMetadata toMetadata() {
+            FileMetadata fileMetadata = new FileMetadata(id, userId, originalFilename, storedFilename,
+                    new Timestamp(uploadMillis));
+            fileMetadata.setCodec(codec);
+            fileMetadata.setSizeBytes(sizeBytes);
+            fileMetadata.setEncrypted(encrypted);
+            return fileMetadata;
+        }
+    }
+
+    /** An immutable file_versions row. */
+    static final class VersionRecord {
+        final int fileId;
+        final int version;
+        final String storedFilename;
+        final String codec;
+        final long sizeBytes;
+        final boolean encrypted;
+        final long createdMillis;
+
+        VersionRecord(int fileId, int version, String storedFilename, String codec, long sizeBytes,
+                      boolean encrypted, long createdMillis) {
+            this.fileId = fileId;
+            this.version = version;
+            this.storedFilename = storedFilename;
+            this.codec = codec;
+            this.sizeBytes = sizeBytes;
+            this.encrypted = encrypted;
+            this.createdMillis = createdMillis;
+        }
+
+        FileVersion toVersion() {
+            return new FileVersion(fileId, version, storedFilename, codec, sizeBytes, encrypted,
+                    new Timestamp(createdMillis), false);
+        }
+    }
+
+    /** An immutable blobs row. */
+    static final class BlobRecord {
+        final String sha256;
+        final long sizeBytes;
+        final String codec;
+        final long storedBytes;
+        final int refCount;
+
+        BlobRecord(String sha256, long sizeBytes, String codec, long storedBytes, int refCount) {
+            this.sha256 = sha256;
+            this.sizeBytes = sizeBytes;
+            this.codec = codec;
+            this.storedBytes = storedBytes;
+            this.refCount = refCount;
+        }
+
+        BlobRecord withRefCount(int count) {
+            return new BlobRecord(sha256, sizeBytes, codec, storedBytes, count);
+        }
+    }
+
+    /** An immutable blob checksum and scrub state; crc32c is -1 if unknown, verifiedMillis 0 if never scrubbed. */
+    static final class BlobCheck {
+        final long crc32c;
+        final long verifiedMillis;
+        final boolean corrupt;
+
+        BlobCheck(long crc32c, long verifiedMillis, boolean corrupt) {
+            this.crc32c = crc32c;
+            this.verifiedMillis = verifiedMillis;
+            this.corrupt = corrupt;
+        }
+    }
+
+    /** An immutable last access time and storage tier of a file; lastAccessMillis is 0 if never retrieved. */
+    static final class FileAccess {
+        final long lastAccessMillis;
+        final boolean cold;
+
+        FileAccess(long lastAccessMillis, boolean cold) {
+            this.lastAccessMillis = lastAccessMillis;
+            this.cold = cold;
+        }
+    }
+}
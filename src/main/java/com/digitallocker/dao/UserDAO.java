@@ -1,109 +1,59 @@
 package com.digitallocker.dao;
 
+import com.digitallocker.model.StorageUsage;
 import com.digitallocker.model.User;
-import com.digitallocker.util.DBConnection;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 
 /**
  * Data Access Object for User operations.
+ * Implemented over JDBC ({@link JdbcUserDAO}) and over the embedded journal ({@link JournalUserDAO});
+ * {@link DAOFactory} picks one at startup.
  */
-public class UserDAO {
+public interface UserDAO {
 
     /**
-     * Registers a new user in the database.
-     * @param user The User object containing username and password.
-     * @return The ID of the newly registered user, or -1 if registration fails.
+     * Registers a new user. A taken username is detected atomically, even when two people register
+     * the same name at once.
+     * @param user The User object containing the username and the password hash.
+     * @return The ID of the newly registered user, or -1 if the username is taken or registration fails.
      * @throws SQLException If a database access error occurs.
      */
-    public int registerUser(User user) throws SQLException {
-        String sql = "INSERT INTO users (username, password) VALUES (?, ?)";
-        Connection conn = null;
-        PreparedStatement pstmt = null;
-        ResultSet rs = null;
-        int userId = -1;
-
-        try {
-            conn = DBConnection.getConnection();
-            pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
-            pstmt.setString(1, user.getUsername());
-            pstmt.setString(2, user.getPassword()); // WARNING: In production, store hashed passwords!
-
-            int affectedRows = pstmt.executeUpdate();
-            if (affectedRows > 0) {
-                rs = pstmt.getGeneratedKeys();
-                if (rs.next()) {
-                    userId = rs.getInt(1);
-                }
-            }
-        } finally {
-            DBConnection.close(conn, pstmt, rs);
-        }
-        return userId;
-    }
+    int registerUser(User user) throws SQLException;
 
     /**
-     * Authenticates a user by checking their username and password.
-     * @param username The username to check.
-     * @param password The password to check.
-     * @return The User object if authentication is successful, null otherwise.
+     * Looks up a user by username. The caller verifies the password against the returned hash.
+     * @param username The username to look up.
+     * @return The User object, with the stored password hash, or null if there is no such user.
      * @throws SQLException If a database access error occurs.
      */
-    public User getUserByUsernameAndPassword(String username, String password) throws SQLException {
-        String sql = "SELECT id, username, password FROM users WHERE username = ? AND password = ?"; // WARNING: For hashed passwords, you'd hash the input password and compare.
-        Connection conn = null;
-        PreparedStatement pstmt = null;
-        ResultSet rs = null;
-        User user = null;
-
-        try {
-            conn = DBConnection.getConnection();
-            pstmt = conn.prepareStatement(sql);
-            pstmt.setString(1, username);
-            pstmt.setString(2, password);
+    User getUserByUsername(String username) throws SQLException;
 
-            rs = pstmt.executeQuery();
-            if (rs.next()) {
-                user = new User(
-                    rs.getInt("id"),
-                    rs.getString("username"),
-                    rs.getString("password")
-                );
-            }
-        } finally {
-            DBConnection.close(conn, pstmt, rs);
-        }
-        return user;
-    }
+    /**
+     * Replaces a user's stored password hash, e.g. to upgrade it to the current hashing cost.
+     * @param userId The ID of the user.
+     * @param passwordHash The new password hash.
+     * @return true if the user's hash was updated.
+     * @throws SQLException If a database access error occurs.
+     */
+    boolean updatePassword(int userId, String passwordHash) throws SQLException;
 
     /**
-     * Checks if a username already exists in the database.
-     * @param username The username to check.
-     * @return true if the username exists, false otherwise.
+     * Reads a user's storage counter. It is kept current by every {@link FileDAO} insert and delete,
+     * so this is a single-row lookup, never a sum over the user's files.
+     * @param userId The ID of the user.
+     * @return The user's usage, with {@link StorageUsage#UNLIMITED} as quota if none was set, or null
+     *         if there is no such user.
      * @throws SQLException If a database access error occurs.
      */
-    public boolean doesUsernameExist(String username) throws SQLException {
-        String sql = "SELECT COUNT(*) FROM users WHERE username = ?";
-        Connection conn = null;
-        PreparedStatement pstmt = null;
-        ResultSet rs = null;
-        boolean exists = false;
+    StorageUsage getStorageUsage(int userId) throws SQLException;
 
-        try {
-            conn = DBConnection.getConnection();
-            pstmt = conn.prepareStatement(sql);
-            pstmt.setString(1, username);
-            rs = pstmt.executeQuery();
-            if (rs.next() && rs.getInt(1) > 0) {
-                exists = true;
-            }
-        } finally {
-            DBConnection.close(conn, pstmt, rs);
-        }
-        return exists;
-    }
+    /**
+     * Sets a user's storage quota.
+     * @param userId The ID of the user.
+     * @param quotaBytes The quota in bytes, or {@link StorageUsage#UNLIMITED} to fall back to the default.
+     * @return true if the user exists.
+     * @throws SQLException If a database access error occurs.
+     */
+    boolean setQuota(int userId, long quotaBytes) throws SQLException;
 }
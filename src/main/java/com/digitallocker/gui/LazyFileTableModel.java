@@ -0,0 +1,251 @@
+package com.digitallocker.gui;
+
+import com.digitallocker.model.FileMetadata;
+import com.digitallocker.service.FileLockerService;
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.IntConsumer;
+
+/**
+ * Table model that shows a user's files without loading them all.
+ * Only the row count is fetched up front; rows are fetched a page at a time when the table first
+ * asks for them. Both run on a background thread, so the EDT never waits for the database. A bounded number of pages is kept in memory, so
+ * memory use and time to first paint do not depend on the size of the locker.
+ * With a search query set, the model instead shows the first matches of a filename search.
+ */
+public class LazyFileTableModel extends AbstractTableModel {
+    private static final String[] COLUMN_NAMES = {"ID", "Original Filename", "Upload Date"};
+    private static final String LOADING = "Loading...";
+    private static final int MAX_CACHED_PAGES = 32;
+    private static final int MAX_SEARCH_RESULTS = 1000;
+
+    private final FileLockerService fileLockerService;
+    private final int userId;
+    private final int pageSize;
+    private final ExecutorService loader;
+
+    // Only touched on the EDT
+    private int rowCount;
+    private int generation;
+    private String query = "";
+    private List<FileMetadata> searchResults; // Non-null while a query is set
+    private final Set<Integer> pendingPages = new HashSet<>();
+    private final Map<Integer, List<FileMetadata>> pages = new LinkedHashMap<Integer, List<FileMetadata>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, List<FileMetadata>> eldest) {
+            return size() > MAX_CACHED_PAGES;
+        }
+    };
+
+    // Last row of each page seen so far; the keyset cursor for the following page. Replaced on refresh.
+    private volatile Map<Integer, FileMetadata> pageEnds = new ConcurrentHashMap<>();
+    private volatile int latestGeneration; // Lets the loader skip searches already superseded by more typing
+
+    public LazyFileTableModel(FileLockerService fileLockerService, int userId, int pageSize) {
+        this.fileLockerService = fileLockerService;
+        this.userId = userId;
+        this.pageSize = pageSize;
+        this.loader = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "file-table-loader");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Discards all cached rows and re-counts the user's files on the loader thread. Must be called on the EDT.
+     * @param onCounted Called on the EDT with the number of files once the count is known; may be null.
+     *                  Not called if another refresh starts first.
+     */
+    public void refresh(IntConsumer onCounted) {
+        final int refreshGeneration = ++generation;
+        latestGeneration = refreshGeneration;
+        pages.clear();
+        pendingPages.clear();
+        pageEnds = new ConcurrentHashMap<>();
+        if (!query.isEmpty()) {
+            if (searchResults == null) {
+                // Entering search: show nothing until the first matches arrive rather than paging in all files
+                searchResults = List.of();
+                rowCount = 0;
+                fireTableDataChanged();
+            }
+            search(refreshGeneration, onCounted);
+            return;
+        }
+        searchResults = null;
+        fireTableDataChanged();
+        if (loader.isShutdown()) {
+            return;
+        }
+        loader.execute(() -> {
+            int count = fileLockerService.countUserFiles(userId);
+            SwingUtilities.invokeLater(() -> {
+                if (refreshGeneration != generation) {
+                    return; // A newer refresh is already counting
+                }
+                rowCount = count;
+                fireTableDataChanged();
+                if (onCounted != null) {
+                    onCounted.accept(count);
+                }
+            });
+        });
+    }
+
+    /**
+     * Shows only the files whose name contains the query, or all files again for an empty query.
+     * Must be called on the EDT; the search itself runs on the loader thread.
+     * @param query The text to search for.
+     * @param onCounted Called on the EDT with the number of rows shown; may be null.
+     */
+    public void setQuery(String query, IntConsumer onCounted) {
+        this.query = query.trim();
+        refresh(onCounted);
+    }
+
+    /**
+     * @return The current search query, or an empty string when all files are shown.
+     */
+    public String getQuery() {
+        return query;
+    }
+
+    private void search(int searchGeneration, IntConsumer onCounted) {
+        if (loader.isShutdown()) {
+            return;
+        }
+        final String searchQuery = query;
+        loader.execute(() -> {
+            if (searchGeneration != latestGeneration) {
+                return;
+            }
+            List<FileMetadata> results = fileLockerService.searchFiles(userId, searchQuery, MAX_SEARCH_RESULTS);
+            SwingUtilities.invokeLater(() -> {
+                if (searchGeneration != generation) {
+                    return; // The query changed while this search ran
+                }
+                searchResults = results;
+                rowCount = results.size();
+                fireTableDataChanged();
+                if (onCounted != null) {
+                    onCounted.accept(rowCount);
+                }
+            });
+        });
+    }
+
+    /**
+     * Returns the file shown at a row, if its page has been loaded.
+     * @param row The model row index.
+     * @return The FileMetadata at that row, or null if it is still loading.
+     */
+    public FileMetadata getFileAt(int row) {
+        if (searchResults != null) {
+            return row < searchResults.size() ? searchResults.get(row) : null;
+        }
+        List<FileMetadata> page = pages.get(row / pageSize);
+        if (page == null) {
+            requestPage(row / pageSize);
+            return null;
+        }
+        int index = row % pageSize;
+        return index < page.size() ? page.get(index) : null;
+    }
+
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMN_NAMES.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMN_NAMES[column];
+    }
+
+    @Override
+    public boolean isCellEditable(int row, int column) {
+        return false; // Make table non-editable
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        FileMetadata file = getFileAt(row);
+        if (file == null) {
+            return column == 1 ? LOADING : null;
+        }
+        switch (column) {
+            case 0:
+                return file.getId();
+            case 1:
+                return file.getOriginalFilename();
+            default:
+                return file.getUploadDate();
+        }
+    }
+
+    /**
+     * Stops the background loader. The model shows no further rows afterwards.
+     */
+    public void dispose() {
+        loader.shutdownNow();
+    }
+
+    private void requestPage(int pageIndex) {
+        if (!pendingPages.add(pageIndex) || loader.isShutdown()) {
+            return;
+        }
+        final int requestGeneration = generation;
+        final Map<Integer, FileMetadata> ends = pageEnds;
+        loader.execute(() -> loadPage(pageIndex, ends, requestGeneration));
+    }
+
+    /**
+     * Runs on the loader thread. Keyset pages can only be reached from the page before them, so a jump
+     * far down the table walks forward from the deepest page end already known, remembering each page end.
+     */
+    private void loadPage(int pageIndex, Map<Integer, FileMetadata> ends, int requestGeneration) {
+        int start = pageIndex;
+        while (start > 0 && !ends.containsKey(start - 1)) {
+            start--;
+        }
+        List<FileMetadata> rows = List.of();
+        for (int p = start; p <= pageIndex; p++) {
+            rows = fileLockerService.getUserFilesPage(userId, p == 0 ? null : ends.get(p - 1), pageSize);
+            if (rows.isEmpty()) {
+                break; // Fewer files than counted, e.g. some were deleted meanwhile
+            }
+            ends.put(p, rows.get(rows.size() - 1));
+        }
+        publish(pageIndex, rows, requestGeneration);
+    }
+
+    private void publish(int pageIndex, List<FileMetadata> rows, int requestGeneration) {
+        SwingUtilities.invokeLater(() -> {
+            if (requestGeneration != generation) {
+                return; // A refresh happened while this page was loading
+            }
+            pendingPages.remove(pageIndex);
+            pages.put(pageIndex, rows);
+            int first = pageIndex * pageSize;
+            int last = Math.min(rowCount, first + pageSize) - 1;
+            if (first <= last) {
+                fireTableRowsUpdated(first, last);
+            }
+        });
+    }
+}
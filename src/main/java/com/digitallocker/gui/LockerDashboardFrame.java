@@ -1,31 +1,46 @@
 package com.digitallocker.gui;
 
 import com.digitallocker.model.FileMetadata;
+import com.digitallocker.model.FileVersion;
+import com.digitallocker.model.UploadResult;
 import com.digitallocker.model.User;
 import com.digitallocker.service.FileLockerService;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * GUI Frame for the Digital Locker Dashboard.
- * Allows users to upload, retrieve, and view their files.
+ * Allows users to upload, retrieve, and view their files, and to retrieve earlier versions of a file.
+ * Every service call runs on a background worker, so the window stays responsive; uploads and
+ * retrievals show their own progress bar with a Cancel button and may run side by side.
  */
 public class LockerDashboardFrame extends JFrame {
+    private static final int PAGE_SIZE = 200; // Rows fetched per page as the user scrolls
+
     private User currentUser;
     private FileLockerService fileLockerService;
 
     private JLabel welcomeLabel;
+    private JTextField searchField;
+    private JLabel searchStatusLabel;
     private JTable fileTable;
-    private DefaultTableModel tableModel;
+    private LazyFileTableModel tableModel;
+    private TransfersPanel transfersPanel;
     private JButton uploadButton;
     private JButton retrieveButton;
+    private JButton versionsButton;
     private JButton deleteButton;
     private JButton logoutButton;
 
@@ -50,30 +65,35 @@ public class LockerDashboardFrame extends JFrame {
         welcomeLabel.setFont(new Font("Inter", Font.BOLD, 20));
         welcomeLabel.setForeground(new Color(0, 100, 0)); // DarkGreen
 
-        // Table for displaying files
-        String[] columnNames = {"ID", "Original Filename", "Upload Date"};
-        tableModel = new DefaultTableModel(columnNames, 0) {
-            @Override
-            public boolean isCellEditable(int row, int column) {
-                return false; // Make table non-editable
-            }
-        };
+        // Table for displaying files; rows are paged in lazily as the user scrolls
+        tableModel = new LazyFileTableModel(fileLockerService, currentUser.getId(), PAGE_SIZE);
         fileTable = new JTable(tableModel);
-        fileTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION); // Allow only single row selection
+        fileTable.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION); // Several files can be deleted at once
         fileTable.setFont(new Font("Inter", Font.PLAIN, 12));
         fileTable.setRowHeight(25);
         fileTable.getTableHeader().setFont(new Font("Inter", Font.BOLD, 12));
         fileTable.getTableHeader().setBackground(new Color(200, 230, 200)); // Light green header
 
+        // Search box; the table is filtered as the user types
+        searchField = new JTextField(30);
+        searchField.setFont(new Font("Inter", Font.PLAIN, 14));
+        searchField.setToolTipText("Type part of a filename to filter your files");
+        searchStatusLabel = new JLabel(" ");
+        searchStatusLabel.setFont(new Font("Inter", Font.ITALIC, 12));
+
+        transfersPanel = new TransfersPanel();
+
         // Buttons
         uploadButton = new JButton("Upload File");
         retrieveButton = new JButton("Retrieve File");
+        versionsButton = new JButton("Versions");
         deleteButton = new JButton("Delete File");
         logoutButton = new JButton("Logout");
 
         // Enhance button aesthetics
         customizeButton(uploadButton, new Color(30, 144, 255)); // DodgerBlue
         customizeButton(retrieveButton, new Color(255, 140, 0)); // DarkOrange
+        customizeButton(versionsButton, new Color(46, 139, 87)); // SeaGreen
         customizeButton(deleteButton, new Color(220, 20, 60)); // Crimson
         customizeButton(logoutButton, new Color(105, 105, 105)); // DimGray
     }
@@ -104,36 +124,69 @@ public class LockerDashboardFrame extends JFrame {
         topPanel.add(logoutPanel, BorderLayout.EAST);
         mainPanel.add(topPanel, BorderLayout.NORTH);
 
-        // Center Panel: File Table
+        // Center Panel: Search box above the File Table
+        JPanel searchPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        searchPanel.setBackground(mainPanel.getBackground());
+        searchPanel.add(new JLabel("Search:"));
+        searchPanel.add(searchField);
+        searchPanel.add(searchStatusLabel);
         JScrollPane scrollPane = new JScrollPane(fileTable);
         scrollPane.setBorder(BorderFactory.createLineBorder(new Color(150, 200, 150), 1)); // Light green border
-        mainPanel.add(scrollPane, BorderLayout.CENTER);
+        JPanel centerPanel = new JPanel(new BorderLayout());
+        centerPanel.setBackground(mainPanel.getBackground());
+        centerPanel.add(searchPanel, BorderLayout.NORTH);
+        centerPanel.add(scrollPane, BorderLayout.CENTER);
+        mainPanel.add(centerPanel, BorderLayout.CENTER);
 
         // Bottom Panel: Action Buttons
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 20, 10));
         buttonPanel.setBackground(mainPanel.getBackground());
         buttonPanel.add(uploadButton);
         buttonPanel.add(retrieveButton);
+        buttonPanel.add(versionsButton);
         buttonPanel.add(deleteButton);
-        mainPanel.add(buttonPanel, BorderLayout.SOUTH);
+
+        // Bottom Panel also holds one progress row per running operation
+        JPanel bottomPanel = new JPanel(new BorderLayout());
+        bottomPanel.setBackground(mainPanel.getBackground());
+        bottomPanel.add(buttonPanel, BorderLayout.NORTH);
+        bottomPanel.add(transfersPanel, BorderLayout.CENTER);
+        mainPanel.add(bottomPanel, BorderLayout.SOUTH);
 
         add(mainPanel);
     }
 
     private void addListeners() {
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                searchFiles();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                searchFiles();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                searchFiles();
+            }
+        });
+
         uploadButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
                 JFileChooser fileChooser = new JFileChooser();
-                fileChooser.setDialogTitle("Select File to Upload");
+                fileChooser.setDialogTitle("Select File(s) to Upload");
+                fileChooser.setMultiSelectionEnabled(true);
                 int returnValue = fileChooser.showOpenDialog(LockerDashboardFrame.this);
                 if (returnValue == JFileChooser.APPROVE_OPTION) {
-                    File selectedFile = fileChooser.getSelectedFile();
-                    if (fileLockerService.uploadFile(currentUser.getId(), selectedFile)) {
-                        showMessage("File uploaded successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
-                        loadUserFiles(); // Refresh file list
-                    } else {
-                        showMessage("File upload failed.", "Error", JOptionPane.ERROR_MESSAGE);
+                    File[] selectedFiles = fileChooser.getSelectedFiles();
+                    if (selectedFiles.length == 1) {
+                        uploadFile(selectedFiles[0]);
+                    } else if (selectedFiles.length > 1) {
+                        uploadFiles(Arrays.asList(selectedFiles));
                     }
                 }
             }
@@ -148,44 +201,68 @@ public class LockerDashboardFrame extends JFrame {
                     return;
                 }
 
-                int fileId = (int) tableModel.getValueAt(selectedRow, 0); // Get file ID from table
-
+                FileMetadata selectedFile = tableModel.getFileAt(selectedRow);
+                if (selectedFile == null) {
+                    showMessage("The selected file is still loading. Please try again.", "Warning", JOptionPane.WARNING_MESSAGE);
+                    return;
+                }
                 JFileChooser fileChooser = new JFileChooser();
                 fileChooser.setDialogTitle("Save File As...");
-                fileChooser.setSelectedFile(new File((String) tableModel.getValueAt(selectedRow, 1))); // Suggest original filename
+                fileChooser.setSelectedFile(new File(selectedFile.getOriginalFilename())); // Suggest original filename
                 int returnValue = fileChooser.showSaveDialog(LockerDashboardFrame.this);
 
                 if (returnValue == JFileChooser.APPROVE_OPTION) {
                     File saveLocation = fileChooser.getSelectedFile();
-                    if (fileLockerService.retrieveFile(fileId, currentUser.getId(), Paths.get(saveLocation.getAbsolutePath()))) {
-                        showMessage("File retrieved successfully to: " + saveLocation.getAbsolutePath(), "Success", JOptionPane.INFORMATION_MESSAGE);
-                    } else {
-                        showMessage("File retrieval failed.", "Error", JOptionPane.ERROR_MESSAGE);
-                    }
+                    retrieveFile(selectedFile, Paths.get(saveLocation.getAbsolutePath()));
                 }
             }
         });
 
-        deleteButton.addActionListener(new ActionListener() {
+        versionsButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
                 int selectedRow = fileTable.getSelectedRow();
                 if (selectedRow == -1) {
+                    showMessage("Please select a file to see its versions.", "Warning", JOptionPane.WARNING_MESSAGE);
+                    return;
+                }
+
+                FileMetadata selectedFile = tableModel.getFileAt(fileTable.convertRowIndexToModel(selectedRow));
+                if (selectedFile == null) {
+                    showMessage("The selected file is still loading. Please try again.", "Warning", JOptionPane.WARNING_MESSAGE);
+                    return;
+                }
+                loadVersions(selectedFile);
+            }
+        });
+
+        deleteButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                int[] selectedRows = fileTable.getSelectedRows();
+                if (selectedRows.length == 0) {
                     showMessage("Please select a file to delete.", "Warning", JOptionPane.WARNING_MESSAGE);
                     return;
                 }
 
+                List<Integer> fileIds = new ArrayList<>(selectedRows.length);
+                for (int row : selectedRows) {
+                    FileMetadata selectedFile = tableModel.getFileAt(fileTable.convertRowIndexToModel(row));
+                    if (selectedFile == null) {
+                        showMessage("Some selected files are still loading. Please try again.", "Warning", JOptionPane.WARNING_MESSAGE);
+                        return;
+                    }
+                    fileIds.add(selectedFile.getId());
+                }
+
+                String question = fileIds.size() == 1
+                        ? "Are you sure you want to delete this file?"
+                        : "Are you sure you want to delete these " + fileIds.size() + " files?";
                 int confirm = JOptionPane.showConfirmDialog(LockerDashboardFrame.this,
-                        "Are you sure you want to delete this file?", "Confirm Deletion", JOptionPane.YES_NO_OPTION);
+                        question, "Confirm Deletion", JOptionPane.YES_NO_OPTION);
 
                 if (confirm == JOptionPane.YES_OPTION) {
-                    int fileId = (int) tableModel.getValueAt(selectedRow, 0);
-                    if (fileLockerService.deleteFile(fileId, currentUser.getId())) {
-                        showMessage("File deleted successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
-                        loadUserFiles(); // Refresh file list
-                    } else {
-                        showMessage("File deletion failed.", "Error", JOptionPane.ERROR_MESSAGE);
-                    }
+                    deleteFiles(fileIds);
                 }
             }
         });
@@ -193,11 +270,16 @@ public class LockerDashboardFrame extends JFrame {
         logoutButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
+                String question = transfersPanel.hasRunningRows()
+                        ? "Transfers are still running and will be cancelled. Logout anyway?"
+                        : "Are you sure you want to logout?";
                 int confirm = JOptionPane.showConfirmDialog(LockerDashboardFrame.this,
-                        "Are you sure you want to logout?", "Confirm Logout", JOptionPane.YES_NO_OPTION);
+                        question, "Confirm Logout", JOptionPane.YES_NO_OPTION);
                 if (confirm == JOptionPane.YES_OPTION) {
+                    transfersPanel.cancelAll();
                     SwingUtilities.invokeLater(() -> {
                         new LoginRegisterFrame(); // Go back to login screen
+                        tableModel.dispose();
                         dispose(); // Close dashboard
                     });
                 }
@@ -206,16 +288,283 @@ public class LockerDashboardFrame extends JFrame {
     }
 
     /**
-     * Loads and displays the current user's files in the table.
+     * Uploads one file in the background, with its own progress row.
+     * @param file The file to upload.
+     */
+    private void uploadFile(File file) {
+        new TransferWorker<Boolean>(transfersPanel, "Uploading " + file.getName(), file.length(), true) {
+            @Override
+            protected Boolean doInBackground() {
+                return fileLockerService.uploadFile(currentUser.getId(), file, this);
+            }
+
+            @Override
+            protected void succeeded(Boolean uploaded) {
+                if (uploaded) {
+                    showMessage("File uploaded successfully: " + file.getName(), "Success", JOptionPane.INFORMATION_MESSAGE);
+                    loadUserFiles(); // Refresh file list
+                } else {
+                    showMessage("File upload failed: " + file.getName(), "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+
+            @Override
+            protected void failed(Throwable cause) {
+                showMessage("File upload failed: " + cause.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }.execute();
+    }
+
+    /**
+     * Uploads several files in the background as one batch, with a single progress row for all of them.
+     * @param files The files to upload.
+     */
+    private void uploadFiles(List<File> files) {
+        long totalBytes = 0;
+        for (File file : files) {
+            totalBytes += file.length();
+        }
+        new TransferWorker<List<UploadResult>>(transfersPanel, "Uploading " + files.size() + " files", totalBytes, true) {
+            @Override
+            protected List<UploadResult> doInBackground() {
+                return fileLockerService.uploadFiles(currentUser.getId(), files, this);
+            }
+
+            @Override
+            protected void succeeded(List<UploadResult> results) {
+                showUploadSummary(results);
+                loadUserFiles(); // Refresh file list
+            }
+
+            @Override
+            protected void failed(Throwable cause) {
+                showMessage("Batch upload failed: " + cause.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }.execute();
+    }
+
+    /**
+     * Retrieves a file in the background, with its own progress row.
+     * @param file The file to retrieve.
+     * @param destination Where to save it.
+     */
+    private void retrieveFile(FileMetadata file, Path destination) {
+        long totalBytes = Math.max(0, file.getSizeBytes()); // Unknown for files uploaded before sizes were recorded
+        new TransferWorker<Boolean>(transfersPanel, "Retrieving " + file.getOriginalFilename(), totalBytes, true) {
+            @Override
+            protected Boolean doInBackground() {
+                return fileLockerService.retrieveFile(file.getId(), currentUser.getId(), destination, this);
+            }
+
+            @Override
+            protected void succeeded(Boolean retrieved) {
+                if (retrieved) {
+                    showMessage("File retrieved successfully to: " + destination, "Success", JOptionPane.INFORMATION_MESSAGE);
+                } else {
+                    showMessage("File retrieval failed: " + file.getOriginalFilename(), "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+
+            @Override
+            protected void failed(Throwable cause) {
+                showMessage("File retrieval failed: " + cause.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }.execute();
+    }
+
+    /**
+     * Lists a file's versions in the background, then shows them in a dialog.
+     * @param file The file whose versions to list.
+     */
+    private void loadVersions(FileMetadata file) {
+        new TransferWorker<List<FileVersion>>(transfersPanel, "Listing versions of " + file.getOriginalFilename(), 0, false) {
+            @Override
+            protected List<FileVersion> doInBackground() {
+                return fileLockerService.getFileVersions(file.getId(), currentUser.getId());
+            }
+
+            @Override
+            protected void succeeded(List<FileVersion> versions) {
+                if (versions.isEmpty()) {
+                    showMessage("Could not list the versions of " + file.getOriginalFilename(), "Error", JOptionPane.ERROR_MESSAGE);
+                } else {
+                    showVersions(file, versions);
+                }
+            }
+
+            @Override
+            protected void failed(Throwable cause) {
+                showMessage("Could not list versions: " + cause.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }.execute();
+    }
+
+    /**
+     * Shows a file's versions, newest first, and retrieves the one the user picks.
+     */
+    private void showVersions(FileMetadata file, List<FileVersion> versions) {
+        DefaultTableModel model = new DefaultTableModel(new Object[]{"Version", "Uploaded", "Size (bytes)", ""}, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        for (FileVersion version : versions) {
+            model.addRow(new Object[]{version.getVersion(), version.getCreatedAt(),
+                    version.getSizeBytes() < 0 ? "unknown" : version.getSizeBytes(), version.isCurrent() ? "current" : ""});
+        }
+        JTable versionTable = new JTable(model);
+        versionTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        versionTable.setRowSelectionInterval(0, 0);
+        JScrollPane scrollPane = new JScrollPane(versionTable);
+        scrollPane.setPreferredSize(new Dimension(450, 200));
+
+        Object[] options = {"Retrieve", "Close"};
+        int choice = JOptionPane.showOptionDialog(this, scrollPane, "Versions of " + file.getOriginalFilename(),
+                JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE, null, options, options[0]);
+        int selectedRow = versionTable.getSelectedRow();
+        if (choice != 0 || selectedRow == -1) {
+            return;
+        }
+        FileVersion version = versions.get(versionTable.convertRowIndexToModel(selectedRow));
+
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("Save Version " + version.getVersion() + " As...");
+        fileChooser.setSelectedFile(new File(file.getOriginalFilename()));
+        if (fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+            retrieveFileVersion(file, version, Paths.get(fileChooser.getSelectedFile().getAbsolutePath()));
+        }
+    }
+
+    /**
+     * Retrieves one version of a file in the background, with its own progress row.
+     * @param file The file the version belongs to.
+     * @param version The version to retrieve.
+     * @param destination Where to save it.
+     */
+    private void retrieveFileVersion(FileMetadata file, FileVersion version, Path destination) {
+        long totalBytes = Math.max(0, version.getSizeBytes());
+        String description = "Retrieving version " + version.getVersion() + " of " + file.getOriginalFilename();
+        new TransferWorker<Boolean>(transfersPanel, description, totalBytes, true) {
+            @Override
+            protected Boolean doInBackground() {
+                return fileLockerService.retrieveFileVersion(file.getId(), currentUser.getId(), version.getVersion(),
+                        destination, this);
+            }
+
+            @Override
+            protected void succeeded(Boolean retrieved) {
+                if (retrieved) {
+                    showMessage("Version " + version.getVersion() + " retrieved successfully to: " + destination,
+                            "Success", JOptionPane.INFORMATION_MESSAGE);
+                } else {
+                    showMessage("File retrieval failed: " + file.getOriginalFilename(), "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+
+            @Override
+            protected void failed(Throwable cause) {
+                showMessage("File retrieval failed: " + cause.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }.execute();
+    }
+
+    /**
+     * Deletes files in the background. Deletion is one short transaction, so it cannot be cancelled.
+     * @param fileIds The IDs of the files to delete.
+     */
+    private void deleteFiles(List<Integer> fileIds) {
+        String description = fileIds.size() == 1 ? "Deleting 1 file" : "Deleting " + fileIds.size() + " files";
+        new TransferWorker<Integer>(transfersPanel, description, 0, false) {
+            @Override
+            protected Integer doInBackground() {
+                return fileLockerService.deleteFiles(currentUser.getId(), fileIds);
+            }
+
+            @Override
+            protected void succeeded(Integer deleted) {
+                if (deleted == fileIds.size()) {
+                    showMessage(deleted == 1 ? "File deleted successfully!" : deleted + " files deleted successfully!",
+                            "Success", JOptionPane.INFORMATION_MESSAGE);
+                    loadUserFiles(); // Refresh file list
+                } else if (deleted > 0) {
+                    showMessage(deleted + " of " + fileIds.size() + " files deleted.", "Warning", JOptionPane.WARNING_MESSAGE);
+                    loadUserFiles();
+                } else {
+                    showMessage("File deletion failed.", "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+
+            @Override
+            protected void failed(Throwable cause) {
+                showMessage("File deletion failed: " + cause.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }.execute();
+    }
+
+    /**
+     * Loads and displays the current user's files in the table, or re-runs the search if one is active.
+     * Only the file count is read here, in the background; the rows themselves are fetched page by page as
+     * they scroll into view.
      */
     private void loadUserFiles() {
-        tableModel.setRowCount(0); // Clear existing rows
-        List<FileMetadata> files = fileLockerService.getUserFiles(currentUser.getId());
-        for (FileMetadata file : files) {
-            tableModel.addRow(new Object[]{file.getId(), file.getOriginalFilename(), file.getUploadDate()});
+        if (!tableModel.getQuery().isEmpty()) {
+            tableModel.refresh(this::showSearchStatus);
+            return;
         }
-        if (files.isEmpty()) {
-            showMessage("No files found in your locker. Upload one!", "Info", JOptionPane.INFORMATION_MESSAGE);
+        tableModel.refresh(fileCount -> {
+            if (fileCount == 0) {
+                showMessage("No files found in your locker. Upload one!", "Info", JOptionPane.INFORMATION_MESSAGE);
+            }
+        });
+    }
+
+    /**
+     * Filters the table to the files whose name contains the search box's text, or shows every file
+     * again once the box is cleared. The first search builds the user's index and may take a moment;
+     * after that each keystroke is answered from memory.
+     */
+    private void searchFiles() {
+        String query = searchField.getText().trim();
+        if (query.equals(tableModel.getQuery())) {
+            return;
+        }
+        if (query.isEmpty()) {
+            searchStatusLabel.setText(" ");
+            tableModel.setQuery(query, null);
+            return;
+        }
+        searchStatusLabel.setText("Searching...");
+        tableModel.setQuery(query, this::showSearchStatus);
+    }
+
+    private void showSearchStatus(int matches) {
+        searchStatusLabel.setText(matches == 0 ? "No matching files" : matches == 1 ? "1 match" : matches + " matches");
+    }
+
+    /**
+     * Reports the outcome of a multi-file upload, listing the first few failures.
+     * @param results The per-file results returned by the service.
+     */
+    private void showUploadSummary(List<UploadResult> results) {
+        StringBuilder failures = new StringBuilder();
+        int failed = 0;
+        for (UploadResult result : results) {
+            if (!result.isSuccess()) {
+                if (++failed <= 10) {
+                    failures.append("\n  ").append(result.getSourceFile().getName()).append(": ").append(result.getErrorMessage());
+                }
+            }
+        }
+        if (failed == 0) {
+            showMessage(results.size() + " files uploaded successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
+        } else {
+            if (failed > 10) {
+                failures.append("\n  ... and ").append(failed - 10).append(" more");
+            }
+            showMessage((results.size() - failed) + " of " + results.size() + " files uploaded. Failed:" + failures,
+                    failed == results.size() ? "Error" : "Warning",
+                    failed == results.size() ? JOptionPane.ERROR_MESSAGE : JOptionPane.WARNING_MESSAGE);
         }
     }
 
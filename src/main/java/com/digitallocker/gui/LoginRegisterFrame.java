@@ -7,10 +7,14 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * GUI Frame for user login and registration.
  * Provides a responsive and aesthetically pleasing interface.
+ * Hashing and database work run on the AuthService pools; the buttons are disabled until the result
+ * comes back to the EDT, so the window keeps painting while a password is verified.
  */
 public class LoginRegisterFrame extends JFrame {
     private JTextField usernameField;
@@ -137,21 +141,22 @@ public class LoginRegisterFrame extends JFrame {
             public void actionPerformed(ActionEvent e) {
                 String username = usernameField.getText();
                 String password = new String(passwordField.getPassword());
-                User user = authService.login(username, password);
-                if (user != null) {
-                    messageLabel.setText("Login successful!");
-                    messageLabel.setForeground(new Color(34, 139, 34)); // ForestGreen
-                    JOptionPane.showMessageDialog(LoginRegisterFrame.this, "Login Successful!", "Success", JOptionPane.INFORMATION_MESSAGE);
-                    // Open Locker Dashboard
-                    SwingUtilities.invokeLater(() -> {
+                setBusy("Logging in...");
+                authService.loginAsync(username, password).whenComplete((user, error) -> SwingUtilities.invokeLater(() -> {
+                    setBusy(null);
+                    if (error != null) {
+                        showFailure("Login failed: " + describe(error));
+                    } else if (user != null) {
+                        messageLabel.setText("Login successful!");
+                        messageLabel.setForeground(new Color(34, 139, 34)); // ForestGreen
+                        JOptionPane.showMessageDialog(LoginRegisterFrame.this, "Login Successful!", "Success", JOptionPane.INFORMATION_MESSAGE);
+                        // Open Locker Dashboard
                         new LockerDashboardFrame(user);
                         dispose(); // Close login frame
-                    });
-                } else {
-                    messageLabel.setText("Login failed: Invalid credentials.");
-                    messageLabel.setForeground(Color.RED);
-                    JOptionPane.showMessageDialog(LoginRegisterFrame.this, "Login Failed: Invalid credentials.", "Error", JOptionPane.ERROR_MESSAGE);
-                }
+                    } else {
+                        showFailure("Login failed: Invalid credentials.");
+                    }
+                }));
             }
         });
 
@@ -168,22 +173,58 @@ public class LoginRegisterFrame extends JFrame {
                     return;
                 }
 
-                User newUser = authService.register(username, password);
-                if (newUser != null) {
-                    messageLabel.setText("Registration successful! Please login.");
-                    messageLabel.setForeground(new Color(34, 139, 34)); // ForestGreen
-                    JOptionPane.showMessageDialog(LoginRegisterFrame.this, "Registration Successful! Please login.", "Success", JOptionPane.INFORMATION_MESSAGE);
-                    usernameField.setText("");
-                    passwordField.setText("");
-                } else {
-                    messageLabel.setText("Registration failed: Username might exist.");
-                    messageLabel.setForeground(Color.RED);
-                    JOptionPane.showMessageDialog(LoginRegisterFrame.this, "Registration Failed: Username might exist or an error occurred.", "Error", JOptionPane.ERROR_MESSAGE);
-                }
+                setBusy("Registering...");
+                authService.registerAsync(username, password).whenComplete((newUser, error) -> SwingUtilities.invokeLater(() -> {
+                    setBusy(null);
+                    if (error != null) {
+                        showFailure("Registration failed: " + describe(error));
+                    } else if (newUser != null) {
+                        messageLabel.setText("Registration successful! Please login.");
+                        messageLabel.setForeground(new Color(34, 139, 34)); // ForestGreen
+                        JOptionPane.showMessageDialog(LoginRegisterFrame.this, "Registration Successful! Please login.", "Success", JOptionPane.INFORMATION_MESSAGE);
+                        usernameField.setText("");
+                        passwordField.setText("");
+                    } else {
+                        showFailure("Registration failed: Username already exists.");
+                    }
+                }));
             }
         });
     }
 
+    /**
+     * Disables input while a request is pending and shows its status.
+     * @param status The status to show, or null once the request has completed.
+     */
+    private void setBusy(String status) {
+        boolean busy = status != null;
+        loginButton.setEnabled(!busy);
+        registerButton.setEnabled(!busy);
+        usernameField.setEnabled(!busy);
+        passwordField.setEnabled(!busy);
+        setCursor(busy ? Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR) : Cursor.getDefaultCursor());
+        if (busy) {
+            messageLabel.setText(status);
+            messageLabel.setForeground(Color.BLUE);
+        }
+    }
+
+    private void showFailure(String message) {
+        messageLabel.setText(message);
+        messageLabel.setForeground(Color.RED);
+        JOptionPane.showMessageDialog(this, message, "Error", JOptionPane.ERROR_MESSAGE);
+    }
+
+    private static String describe(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        if (error instanceof RejectedExecutionException) {
+            return "The server is busy, please try again.";
+        }
+        return "An error occurred.";
+    }
+
     // Basic responsiveness: Components will resize with the frame due to GridBagLayout's fill property.
     // Aesthetics: Use of colors, fonts, borders for a cleaner look.
     // Accessibility: Standard Swing components are generally accessible. Labels are associated with fields.
@@ -0,0 +1,74 @@
+package com.digitallocker.gui;
+
+import com.digitallocker.util.TransferListener;
+
+import javax.swing.*;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs one service call off the EDT and shows it as a row in a {@link TransfersPanel}.
+ * The worker is itself the call's TransferListener: bytes reported from any thread are summed and
+ * shown on the row, and the row's Cancel button cancels the worker, which the service sees through
+ * isCancelled() and the interrupt. Exactly one of succeeded, failed or cancelled runs on the EDT afterwards.
+ * @param <T> The result of the service call.
+ */
+public abstract class TransferWorker<T> extends SwingWorker<T, Long> implements TransferListener {
+    private final AtomicLong transferred = new AtomicLong();
+    private final TransfersPanel.Row row;
+
+    /**
+     * Must be created on the EDT; the row appears at once and the call starts with execute().
+     * @param panel The panel to show progress in.
+     * @param description What the operation does.
+     * @param totalBytes The number of bytes expected, or 0 if unknown.
+     * @param cancellable Whether the row offers a Cancel button.
+     */
+    protected TransferWorker(TransfersPanel panel, String description, long totalBytes, boolean cancellable) {
+        this.row = panel.addRow(description, totalBytes, cancellable ? () -> cancel(true) : null);
+    }
+
+    @Override
+    public final void bytesTransferred(long count) {
+        publish(transferred.addAndGet(count));
+    }
+
+    @Override
+    protected final void process(List<Long> chunks) {
+        row.setTransferred(chunks.get(chunks.size() - 1));
+    }
+
+    @Override
+    protected final void done() {
+        row.finish();
+        if (isCancelled()) {
+            cancelled();
+            return;
+        }
+        try {
+            succeeded(get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.err.println("Background operation failed: " + e.getCause());
+            failed(e.getCause());
+        }
+    }
+
+    /**
+     * Called on the EDT with the call's result.
+     */
+    protected abstract void succeeded(T result);
+
+    /**
+     * Called on the EDT if the call threw.
+     */
+    protected abstract void failed(Throwable cause);
+
+    /**
+     * Called on the EDT if the user cancelled. The service may still be cleaning up partial output.
+     */
+    protected void cancelled() {
+    }
+}
@@ -0,0 +1,136 @@
+package com.digitallocker.gui;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A stack of progress rows, one per running background operation, each with its own Cancel button.
+ * The panel hides itself while nothing is running. Must only be used on the EDT.
+ */
+public class TransfersPanel extends JPanel {
+    private static final int PROGRESS_SCALE = 1000;
+
+    private final List<Row> rows = new ArrayList<>();
+
+    public TransfersPanel() {
+        setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
+        setOpaque(false);
+        setVisible(false);
+    }
+
+    /**
+     * Adds a row for a new operation.
+     * @param description What the operation does, e.g. "Uploading report.pdf".
+     * @param totalBytes The number of bytes expected, or 0 or less if unknown (the bar is then indeterminate).
+     * @param onCancel Called when the user presses Cancel; null if the operation cannot be cancelled.
+     * @return The new row.
+     */
+    public Row addRow(String description, long totalBytes, Runnable onCancel) {
+        Row row = new Row(description, totalBytes, onCancel);
+        rows.add(row);
+        add(row);
+        setVisible(true);
+        revalidate();
+        return row;
+    }
+
+    /**
+     * @return true if at least one operation is still running.
+     */
+    public boolean hasRunningRows() {
+        return !rows.isEmpty();
+    }
+
+    /**
+     * Cancels every cancellable operation still running.
+     */
+    public void cancelAll() {
+        for (Row row : new ArrayList<>(rows)) {
+            row.cancel();
+        }
+    }
+
+    private void removeRow(Row row) {
+        if (rows.remove(row)) {
+            remove(row);
+            setVisible(!rows.isEmpty());
+            revalidate();
+            repaint();
+        }
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        String units = "KMGTPE";
+        int unit = (63 - Long.numberOfLeadingZeros(bytes)) / 10;
+        return String.format("%.1f %sB", bytes / (double) (1L << (unit * 10)), units.charAt(unit - 1));
+    }
+
+    /**
+     * One operation's label, progress bar and Cancel button.
+     */
+    public class Row extends JPanel {
+        private final long totalBytes;
+        private final JProgressBar progressBar;
+        private final JButton cancelButton;
+        private final Runnable onCancel;
+
+        private Row(String description, long totalBytes, Runnable onCancel) {
+            super(new BorderLayout(10, 0));
+            this.totalBytes = totalBytes;
+            this.onCancel = onCancel;
+            setOpaque(false);
+            setBorder(BorderFactory.createEmptyBorder(2, 0, 2, 0));
+
+            JLabel label = new JLabel(description);
+            label.setFont(new Font("Inter", Font.PLAIN, 12));
+            label.setPreferredSize(new Dimension(220, label.getPreferredSize().height));
+
+            progressBar = new JProgressBar(0, PROGRESS_SCALE);
+            progressBar.setStringPainted(true);
+            progressBar.setIndeterminate(totalBytes <= 0);
+            progressBar.setString(totalBytes > 0 ? "0 B of " + formatBytes(totalBytes) : "Working...");
+
+            cancelButton = new JButton("Cancel");
+            cancelButton.setFocusPainted(false);
+            cancelButton.setEnabled(onCancel != null);
+            cancelButton.addActionListener(e -> cancel());
+
+            add(label, BorderLayout.WEST);
+            add(progressBar, BorderLayout.CENTER);
+            add(cancelButton, BorderLayout.EAST);
+            setMaximumSize(new Dimension(Integer.MAX_VALUE, getPreferredSize().height));
+        }
+
+        /**
+         * @param bytes The number of bytes moved so far.
+         */
+        public void setTransferred(long bytes) {
+            if (totalBytes > 0) {
+                progressBar.setValue((int) Math.min(PROGRESS_SCALE, bytes * PROGRESS_SCALE / totalBytes));
+                progressBar.setString(formatBytes(bytes) + " of " + formatBytes(totalBytes));
+            } else {
+                progressBar.setString(formatBytes(bytes));
+            }
+        }
+
+        /**
+         * Removes the row from the panel once its operation has finished.
+         */
+        public void finish() {
+            removeRow(this);
+        }
+
+        private void cancel() {
+            if (onCancel != null && cancelButton.isEnabled()) {
+                cancelButton.setEnabled(false);
+                progressBar.setString("Cancelling...");
+                onCancel.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,718 @@
+package com.digitallocker.http;
+
+import com.digitallocker.model.FileMetadata;
+import com.digitallocker.model.StorageUsage;
+import com.digitallocker.model.UploadSession;
+import com.digitallocker.model.User;
+import com.digitallocker.service.AuthService;
+import com.digitallocker.service.FileLockerService;
+import com.digitallocker.util.Metrics;
+import com.digitallocker.util.OperationMetrics;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Headless access to the locker over HTTP, for clients that are not at a desktop running the Swing UI.
+ * Built on the JDK's embedded server. Each request runs on a virtual thread of its own where the
+ * runtime has them (Java 21 and later), so thousands of slow transfers cost thousands of cheap virtual
+ * threads rather than as many platform threads; older runtimes fall back to a fixed pool of platform
+ * threads. Transfers are streamed: an upload is staged chunk by chunk through an upload session and a
+ * download is written from the blob store straight to the socket, so neither is held in memory.
+ * <p>
+ * Every endpoint but register and login needs an "Authorization: Bearer &lt;token&gt;" header:
+ * <pre>
+ * POST   /api/register      form: username, password   201 {"id":..,"username":..}
+ * POST   /api/login         form: username, password   200 {"token":..,"userId":..}
+ * POST   /api/logout                                   204
+ * GET    /api/files         [?cursor=c&amp;limit=n]       200 {"files":[{"id":..,"name":..,"size":..,"uploaded":..},..],"next":..}
+ * GET    /api/files?q=name  [&amp;limit=n]               200 {"files":[..],"next":null}
+ * PUT    /api/files?name=n  body: the file's bytes     201 {"id":..}, or 413 if over the storage quota
+ * GET    /api/files/{id}    [Range: bytes=a-b]         200 or 206, the file's bytes
+ * DELETE /api/files/{id}                              204
+ * </pre>
+ * The file list comes a page at a time, in upload order: "next" is the cursor of the following page, or
+ * null on the last one.
+ * <p>
+ * There is no TLS: keep the default localhost binding, or put a TLS-terminating proxy in front.
+ */
+public class LockerHttpServer {
+    // Per-operation call, error and latency metrics, also exposed over JMX (see Metrics)
+    private static final OperationMetrics REGISTER_METRICS = Metrics.operation("LockerHttpServer", "register");
+    private static final OperationMetrics LOGIN_METRICS = Metrics.operation("LockerHttpServer", "login");
+    private static final OperationMetrics LOGOUT_METRICS = Metrics.operation("LockerHttpServer", "logout");
+    private static final OperationMetrics LIST_METRICS = Metrics.operation("LockerHttpServer", "list");
+    private static final OperationMetrics UPLOAD_METRICS = Metrics.operation("LockerHttpServer", "upload");
+    private static final OperationMetrics DOWNLOAD_METRICS = Metrics.operation("LockerHttpServer", "download");
+    private static final OperationMetrics DELETE_METRICS = Metrics.operation("LockerHttpServer", "delete");
+
+    private static final String FILES_PATH = "/api/files";
+    private static final int BACKLOG = Integer.getInteger("digitallocker.http.backlog", 1024);
+    private static final int FALLBACK_THREADS = Integer.getInteger("digitallocker.http.threads", 200);
+    private static final long SESSION_TTL_MS = Long.getLong("digitallocker.http.sessionTtlMs", 3_600_000L);
+    private static final int UPLOAD_CHUNK_SIZE = Integer.getInteger("digitallocker.http.uploadChunkSize", 8 * 1024 * 1024);
+    private static final int MAX_FORM_BYTES = 16 * 1024;
+    private static final int DEFAULT_LIST_LIMIT = 100;
+    private static final int MAX_LIST_LIMIT = 1000;
+    private static final int MAX_FILENAME_LENGTH = 255;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    private final AuthService authService;
+    private final FileLockerService fileLockerService;
+    private final SessionTokens tokens;
+
+    /**
+     * Binds the server; it accepts requests once started.
+     * @param address The address and port to listen on; port 0 picks a free one.
+     * @param authService Registers users and checks their passwords.
+     * @param fileLockerService Serves the files.
+     * @throws IOException If the address cannot be bound.
+     */
+    public LockerHttpServer(InetSocketAddress address, AuthService authService, FileLockerService fileLockerService)
+            throws IOException {
+        this.authService = authService;
+        this.fileLockerService = fileLockerService;
+        this.tokens = new SessionTokens(SESSION_TTL_MS);
+        ExecutorService virtual = newVirtualThreadExecutor();
+        this.virtualThreads = virtual != null;
+        this.executor = virtual != null ? virtual : Executors.newFixedThreadPool(FALLBACK_THREADS, r -> {
+            Thread t = new Thread(r, "http-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        this.server = HttpServer.create(address, BACKLOG);
+        server.setExecutor(executor);
+        server.createContext("/api/register", exchange -> handle(exchange, REGISTER_METRICS, this::register));
+        server.createContext("/api/login", exchange -> handle(exchange, LOGIN_METRICS, this::login));
+        server.createContext("/api/logout", exchange -> handle(exchange, LOGOUT_METRICS, this::logout));
+        server.createContext(FILES_PATH, this::routeFiles);
+    }
+
+    /**
+     * Starts accepting requests.
+     */
+    public void start() {
+        server.start();
+        System.out.println("HTTP API listening on " + server.getAddress() + (virtualThreads
+                ? ", one virtual thread per request" : ", " + FALLBACK_THREADS + " worker threads"));
+    }
+
+    /**
+     * Stops accepting requests and waits up to delaySeconds for those in progress to finish.
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+    }
+
+    /**
+     * @return The port the server listens on.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return true if requests run on virtual threads, false if on the fallback pool.
+     */
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * @return The number of session tokens held.
+     */
+    public int getSessionCount() {
+        return tokens.size();
+    }
+
+    /**
+     * Looks up Executors.newVirtualThreadPerTaskExecutor() by reflection, as the build targets Java 11.
+     * @return The executor, or null on runtimes without virtual threads.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /** One endpoint's handling of a request. */
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+
+    /**
+     * Runs a handler with metrics, answering 500 if it fails before it has responded.
+     */
+    private static void handle(HttpExchange exchange, OperationMetrics metrics, Handler handler) {
+        long startNanos = System.nanoTime();
+        try {
+            handler.handle(exchange);
+            if (exchange.getResponseCode() >= 500) {
+                metrics.recordError();
+            }
+        } catch (IOException | RuntimeException e) {
+            // Mostly clients that went away mid-transfer, which leave nothing to answer
+            metrics.recordError();
+            System.err.println("HTTP " + exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath()
+                    + " failed: " + e);
+            if (exchange.getResponseCode() == -1) {
+                try {
+                    sendJson(exchange, 500, error("Internal error"));
+                } catch (IOException ignored) {
+                    // The connection is gone
+                }
+            }
+        } finally {
+            exchange.close();
+            metrics.record(startNanos);
+        }
+    }
+
+    /**
+     * Dispatches /api/files and /api/files/{id} by method.
+     */
+    private void routeFiles(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String method = exchange.getRequestMethod();
+        if (path.equals(FILES_PATH) || path.equals(FILES_PATH + "/")) {
+            if ("GET".equals(method)) {
+                handle(exchange, LIST_METRICS, this::list);
+            } else if ("PUT".equals(method) || "POST".equals(method)) {
+                handle(exchange, UPLOAD_METRICS, this::upload);
+            } else {
+                reject(exchange, 405, "Use GET to list files or PUT to upload one");
+            }
+            return;
+        }
+        int fileId;
+        try {
+            fileId = Integer.parseInt(path.substring(FILES_PATH.length() + 1));
+        } catch (NumberFormatException e) {
+            reject(exchange, 404, "No such file");
+            return;
+        }
+        if ("GET".equals(method)) {
+            handle(exchange, DOWNLOAD_METRICS, e -> download(e, fileId));
+        } else if ("DELETE".equals(method)) {
+            handle(exchange, DELETE_METRICS, e -> delete(e, fileId));
+        } else {
+            reject(exchange, 405, "Use GET to download a file or DELETE to delete it");
+        }
+    }
+
+    private void register(HttpExchange exchange) throws IOException {
+        if (!requirePost(exchange)) {
+            return;
+        }
+        Map<String, String> form = readForm(exchange);
+        String username = form.get("username");
+        String password = form.get("password");
+        if (username == null || username.isBlank() || password == null || password.isEmpty()) {
+            sendJson(exchange, 400, error("username and password are required"));
+            return;
+        }
+        User user;
+        try {
+            user = authService.registerAsync(username, password).join();
+        } catch (CompletionException e) {
+            System.err.println("Error during registration: " + e.getCause());
+            sendJson(exchange, 503, error("Registration is unavailable, try again later"));
+            return;
+        }
+        if (user == null) {
+            sendJson(exchange, 409, error("Username already exists"));
+            return;
+        }
+        sendJson(exchange, 201, "{\"id\":" + user.getId() + ",\"username\":" + jsonString(user.getUsername()) + "}");
+    }
+
+    private void login(HttpExchange exchange) throws IOException {
+        if (!requirePost(exchange)) {
+            return;
+        }
+        Map<String, String> form = readForm(exchange);
+        String username = form.get("username");
+        String password = form.get("password");
+        if (username == null || password == null) {
+            sendJson(exchange, 400, error("username and password are required"));
+            return;
+        }
+        User user;
+        try {
+            user = authService.loginAsync(username, password).join();
+        } catch (CompletionException e) {
+            System.err.println("Error during login: " + e.getCause());
+            sendJson(exchange, 503, error("Login is unavailable, try again later"));
+            return;
+        }
+        if (user == null) {
+            sendJson(exchange, 401, error("Invalid username or password"));
+            return;
+        }
+        sendJson(exchange, 200, "{\"token\":" + jsonString(tokens.issue(user.getId())) + ",\"userId\":" + user.getId() + "}");
+    }
+
+    private void logout(HttpExchange exchange) throws IOException {
+        if (!requirePost(exchange)) {
+            return;
+        }
+        String token = bearerToken(exchange);
+        if (token == null || !tokens.revoke(token)) {
+            sendJson(exchange, 401, error("Missing or expired token"));
+            return;
+        }
+        sendEmpty(exchange, 204);
+    }
+
+    private void list(HttpExchange exchange) throws IOException {
+        int userId = authenticate(exchange);
+        if (userId == -1) {
+            return;
+        }
+        Map<String, String> query = parsePairs(exchange.getRequestURI().getRawQuery());
+        String q = query.get("q");
+        int limit = DEFAULT_LIST_LIMIT;
+        try {
+            limit = Integer.parseInt(query.getOrDefault("limit", Integer.toString(DEFAULT_LIST_LIMIT)));
+        } catch (NumberFormatException e) {
+            // Keep the default
+        }
+        limit = Math.max(1, Math.min(MAX_LIST_LIMIT, limit));
+        List<FileMetadata> files;
+        String next = null;
+        if (q == null || q.isEmpty()) {
+            FileMetadata after = null;
+            String cursor = query.get("cursor");
+            if (cursor != null && !cursor.isEmpty()) {
+                after = parseCursor(cursor);
+                if (after == null) {
+                    sendJson(exchange, 400, error("Invalid cursor"));
+                    return;
+                }
+            }
+            // One more than asked for tells whether another page follows
+            files = fileLockerService.getUserFilesPage(userId, after, limit + 1);
+            if (files.size() > limit) {
+                files = files.subList(0, limit);
+                next = cursorOf(files.get(limit - 1));
+            }
+        } else {
+            files = fileLockerService.searchFiles(userId, q, limit);
+        }
+        StringBuilder json = new StringBuilder("{\"files\":[");
+        boolean first = true;
+        for (FileMetadata file : files) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append("{\"id\":").append(file.getId())
+                    .append(",\"name\":").append(jsonString(file.getOriginalFilename()))
+                    .append(",\"size\":").append(file.getSizeBytes())
+                    .append(",\"uploaded\":").append(file.getUploadDate() == null ? "null"
+                            : jsonString(file.getUploadDate().toInstant().toString()))
+                    .append('}');
+        }
+        json.append("],\"next\":").append(next == null ? "null" : jsonString(next)).append('}');
+        sendJson(exchange, 200, json.toString());
+    }
+
+    /**
+     * @return The list position after a file, as its upload time and ID, for the next page to start from.
+     */
+    private static String cursorOf(FileMetadata file) {
+        Timestamp uploaded = file.getUploadDate();
+        return uploaded.getTime() + "." + uploaded.getNanos() + "." + file.getId();
+    }
+
+    /**
+     * @return A stand-in for the file a cursor was made from, holding its upload date and ID, or null if
+     *         the cursor is malformed.
+     */
+    private static FileMetadata parseCursor(String cursor) {
+        String[] parts = cursor.split("\\.");
+        if (parts.length != 3) {
+            return null;
+        }
+        try {
+            Timestamp uploaded = new Timestamp(Long.parseLong(parts[0]));
+            uploaded.setNanos(Integer.parseInt(parts[1]));
+            return new FileMetadata(Integer.parseInt(parts[2]), 0, null, null, uploaded);
+        } catch (IllegalArgumentException e) {
+            return null; // NumberFormatException, or nanos out of range
+        }
+    }
+
+    /**
+     * Streams the request body into an upload session, one session chunk at a time, and commits it.
+     */
+    private void upload(HttpExchange exchange) throws IOException {
+        int userId = authenticate(exchange);
+        if (userId == -1) {
+            return;
+        }
+        String name = parsePairs(exchange.getRequestURI().getRawQuery()).get("name");
+        if (!isValidFilename(name)) {
+            sendJson(exchange, 400, error("A file name without path separators is required: ?name=..."));
+            return;
+        }
+        long declared = contentLength(exchange);
+        if (declared > 0) {
+            // Refused before a byte is read; the quota is still enforced as the body streams in
+            if (exceedsQuota(userId, declared)) {
+                sendJson(exchange, 413, error("The file would exceed your storage quota"));
+                return;
+            }
+        }
+
+        UploadSession session = fileLockerService.openUploadSession(userId, name, UPLOAD_CHUNK_SIZE);
+        if (session == null) {
+            sendJson(exchange, 500, error("Could not start the upload"));
+            return;
+        }
+        String sessionId = session.getSessionId();
+        InputStream body = exchange.getRequestBody();
+        long received = 0; // Bytes of the body read so far, including a chunk that was rejected
+        int fileId = -1;
+        try {
+            for (int chunk = 0; session != null && !session.isFinalChunkReceived(); chunk++) {
+                BoundedInputStream chunkData = new BoundedInputStream(body, UPLOAD_CHUNK_SIZE);
+                session = fileLockerService.appendChunk(sessionId, userId, chunk, chunkData);
+                received += chunkData.getBytesRead();
+            }
+            if (session != null) {
+                fileId = fileLockerService.commitUploadSession(sessionId, userId);
+            }
+        } finally {
+            if (fileId == -1) {
+                fileLockerService.abortUploadSession(sessionId, userId);
+            }
+        }
+        if (fileId == -1) {
+            // Both calls only report failure, so a quota rejection shows as more received than the quota has room for
+            if (exceedsQuota(userId, received)) {
+                sendJson(exchange, 413, error("The file would exceed your storage quota"));
+            } else {
+                sendJson(exchange, 500, error("The upload could not be saved"));
+            }
+            return;
+        }
+        UPLOAD_METRICS.addBytesIn(session.getCommittedBytes());
+        sendJson(exchange, 201, "{\"id\":" + fileId + "}");
+    }
+
+    /**
+     * @return true if a user's quota has no room for the given number of bytes.
+     */
+    private boolean exceedsQuota(int userId, long bytes) {
+        StorageUsage usage = fileLockerService.getStorageUsage(userId);
+        return usage != null && !usage.isUnlimited() && bytes > usage.getRemainingBytes();
+    }
+
+    /**
+     * Streams a file, or the single byte range asked for, straight from the blob store to the socket.
+     */
+    private void download(HttpExchange exchange, int fileId) throws IOException {
+        int userId = authenticate(exchange);
+        if (userId == -1) {
+            return;
+        }
+        FileMetadata file = fileLockerService.getFile(fileId, userId);
+        if (file == null) {
+            sendJson(exchange, 404, error("No such file"));
+            return;
+        }
+        long size = file.getSizeBytes(); // -1 for files uploaded before sizes were recorded
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", "application/octet-stream");
+        headers.set("Content-Disposition", "attachment; filename=\""
+                + file.getOriginalFilename().replace("\"", "").replace("\\", "") + "\"");
+        long offset = 0;
+        long length = Long.MAX_VALUE;
+        int status = 200;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (size >= 0) {
+            headers.set("Accept-Ranges", "bytes");
+            length = size;
+            long[] bounds = range == null ? null : parseRange(range, size);
+            if (bounds != null && bounds.length == 0) {
+                headers.set("Content-Range", "bytes */" + size);
+                sendEmpty(exchange, 416);
+                return;
+            }
+            if (bounds != null) {
+                offset = bounds[0];
+                length = bounds[1] - bounds[0] + 1;
+                status = 206;
+                headers.set("Content-Range", "bytes " + bounds[0] + "-" + bounds[1] + "/" + size);
+            }
+        }
+        if (length == 0) {
+            sendEmpty(exchange, status);
+            return;
+        }
+        // A fixed length when the size is known, so a short read below shows as a broken response
+        exchange.sendResponseHeaders(status, size >= 0 ? length : 0);
+        long written = fileLockerService.retrieveFileRange(fileId, userId, offset, length,
+                Channels.newChannel(exchange.getResponseBody()));
+        if (written == -1 || (size >= 0 && written < length)) {
+            throw new IOException("Stored file " + fileId + " could not be read; response cut short");
+        }
+        DOWNLOAD_METRICS.addBytesOut(written);
+    }
+
+    private void delete(HttpExchange exchange, int fileId) throws IOException {
+        int userId = authenticate(exchange);
+        if (userId == -1) {
+            return;
+        }
+        if (!fileLockerService.deleteFile(fileId, userId)) {
+            sendJson(exchange, 404, error("No such file"));
+            return;
+        }
+        sendEmpty(exchange, 204);
+    }
+
+    /**
+     * @return The ID of the user the request's bearer token belongs to, or -1 after answering 401.
+     */
+    private int authenticate(HttpExchange exchange) throws IOException {
+        String token = bearerToken(exchange);
+        int userId = token == null ? -1 : tokens.userIdFor(token);
+        if (userId == -1) {
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+            sendJson(exchange, 401, error("Missing or expired token"));
+        }
+        return userId;
+    }
+
+    private static String bearerToken(HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        if (header == null || !header.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            return null;
+        }
+        return header.substring(7).trim();
+    }
+
+    private static boolean requirePost(HttpExchange exchange) throws IOException {
+        if ("POST".equals(exchange.getRequestMethod())) {
+            return true;
+        }
+        sendJson(exchange, 405, error("Use POST"));
+        return false;
+    }
+
+    /**
+     * Answers a request no endpoint takes, outside any endpoint's metrics.
+     */
+    private static void reject(HttpExchange exchange, int status, String message) throws IOException {
+        try {
+            sendJson(exchange, status, error(message));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static Map<String, String> readForm(HttpExchange exchange) throws IOException {
+        byte[] body = exchange.getRequestBody().readNBytes(MAX_FORM_BYTES);
+        return parsePairs(new String(body, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Parses a query string or an application/x-www-form-urlencoded body. The first value of a name wins.
+     */
+    private static Map<String, String> parsePairs(String raw) {
+        Map<String, String> pairs = new HashMap<>();
+        if (raw == null || raw.isEmpty()) {
+            return pairs;
+        }
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(eq == -1 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            String value = eq == -1 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            pairs.putIfAbsent(name, value);
+        }
+        return pairs;
+    }
+
+    private static long contentLength(HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst("Content-Length");
+        try {
+            return header == null ? -1 : Long.parseLong(header.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parses a single-range Range header ("bytes=a-b", "bytes=a-" or "bytes=-n").
+     * @return The first and last byte, an empty array if the range is unsatisfiable, or null to send the
+     *         whole file (no usable range, or several ranges).
+     */
+    static long[] parseRange(String header, long size) {
+        if (!header.startsWith("bytes=") || header.indexOf(',') != -1) {
+            return null;
+        }
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash == -1) {
+            return null;
+        }
+        try {
+            long first;
+            long last;
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix == 0) {
+                    return new long[0];
+                }
+                first = Math.max(0, size - suffix);
+                last = size - 1;
+            } else {
+                first = Long.parseLong(spec.substring(0, dash));
+                if (first >= size) {
+                    return new long[0];
+                }
+                last = dash == spec.length() - 1 ? size - 1 : Math.min(size - 1, Long.parseLong(spec.substring(dash + 1)));
+                if (last < first) {
+                    return null;
+                }
+            }
+            return new long[]{first, last};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static boolean isValidFilename(String name) {
+        if (name == null || name.isBlank() || name.length() > MAX_FILENAME_LENGTH
+                || name.equals(".") || name.equals("..")) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '/' || c == '\\' || Character.isISOControl(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Answers with headers only. The request body is read to its end first: the JDK server completes a
+     * body-less response at once, and if the body has not been read by then it closes the connection
+     * rather than keep it alive, failing the client's next request on it.
+     */
+    private static void sendEmpty(HttpExchange exchange, int status) throws IOException {
+        exchange.getRequestBody().close(); // Drains what is left of the body
+        exchange.sendResponseHeaders(status, -1);
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String error(String message) {
+        return "{\"error\":" + jsonString(message) + "}";
+    }
+
+    private static String jsonString(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Hands out at most limit bytes of the request body, then reports the end of the stream, so that
+     * each upload session chunk takes exactly one chunk's worth. Closing it leaves the body open.
+     */
+    private static final class BoundedInputStream extends FilterInputStream {
+        private final long limit;
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+            this.remaining = limit;
+        }
+
+        long getBytesRead() {
+            return limit - remaining;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b != -1) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
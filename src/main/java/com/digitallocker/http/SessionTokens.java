@@ -0,0 +1,99 @@
+package com.digitallocker.http;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bearer tokens for the HTTP API. A token is 256 random bits handed out at login and maps to the
+ * user it was issued to. Tokens live in memory only, so a restart logs every client out, and expire
+ * after a period without use; expired tokens are swept out as new ones are issued.
+ */
+public class SessionTokens {
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final int TOKEN_BYTES = 32;
+
+    private final long ttlMillis;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweepMillis = new AtomicLong(System.currentTimeMillis());
+
+    /**
+     * @param ttlMillis How long a token stays valid after it was last used.
+     */
+    public SessionTokens(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Issues a new token.
+     * @param userId The ID of the user who logged in.
+     * @return The token, URL-safe and without padding.
+     */
+    public String issue(int userId) {
+        sweepIfDue();
+        byte[] bytes = new byte[TOKEN_BYTES];
+        RANDOM.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(token, new Session(userId, System.currentTimeMillis()));
+        return token;
+    }
+
+    /**
+     * Looks up the user a token was issued to, and extends its life.
+     * @param token The token presented by the client.
+     * @return The user's ID, or -1 if the token is unknown or expired.
+     */
+    public int userIdFor(String token) {
+        Session session = sessions.get(token);
+        if (session == null) {
+            return -1;
+        }
+        long now = System.currentTimeMillis();
+        if (now - session.lastUsedMillis > ttlMillis) {
+            sessions.remove(token, session);
+            return -1;
+        }
+        session.lastUsedMillis = now;
+        return session.userId;
+    }
+
+    /**
+     * Ends a session.
+     * @param token The token to revoke.
+     * @return true if the token was valid.
+     */
+    public boolean revoke(String token) {
+        return sessions.remove(token) != null;
+    }
+
+    /**
+     * @return The number of tokens held, including expired ones not swept yet.
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Drops expired tokens, at most once every tenth of the time to live.
+     */
+    private void sweepIfDue() {
+        long now = System.currentTimeMillis();
+        long last = lastSweepMillis.get();
+        if (now - last < ttlMillis / 10 || !lastSweepMillis.compareAndSet(last, now)) {
+            return;
+        }
+        sessions.values().removeIf(session -> now - session.lastUsedMillis > ttlMillis);
+    }
+
+    private static final class Session {
+        final int userId;
+        volatile long lastUsedMillis;
+
+        Session(int userId, long lastUsedMillis) {
+            this.userId = userId;
+            this.lastUsedMillis = lastUsedMillis;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.digitallocker.model;
+
+/**
+ * What is known about the bytes of one blob on disk: their size and CRC-32C as recorded when the
+ * blob was written, and the outcome of the last integrity scrub.
+ */
+public class BlobIntegrity {
+    /** The value of storedBytes and crc32c when they were not recorded (blobs stored before checksums were kept). */
+    public static final long UNKNOWN = -1;
+
+    private String sha256;
+    private String codec;
+    private long storedBytes;
+    private long crc32c;
+    private long verifiedMillis; // 0 if never scrubbed
+    private boolean corrupt;
+
+    public BlobIntegrity(String sha256, String codec, long storedBytes, long crc32c, long verifiedMillis,
+                         boolean corrupt) {
+        this.sha256 = sha256;
+        this.codec = codec;
+        this.storedBytes = storedBytes;
+        this.crc32c = crc32c;
+        this.verifiedMillis = verifiedMillis;
+        this.corrupt = corrupt;
+    }
+
+    // Getters
+    public String getSha256() {
+        return sha256;
+    }
+
+    public String getCodec() {
+        return codec;
+    }
+
+    public long getStoredBytes() {
+        return storedBytes;
+    }
+
+    public long getCrc32c() {
+        return crc32c;
+    }
+
+    public long getVerifiedMillis() {
+        return verifiedMillis;
+    }
+
+    public boolean isCorrupt() {
+        return corrupt;
+    }
+
+    /**
+     * Tells whether bytes read back from disk are what was written.
+     * @param actualBytes The number of bytes on disk.
+     * @param actualCrc32c Their CRC-32C.
+     * @return false if a recorded size or checksum disagrees.
+     */
+    public boolean matches(long actualBytes, long actualCrc32c) {
+        return (storedBytes == UNKNOWN || storedBytes == actualBytes)
+                && (crc32c == UNKNOWN || crc32c == actualCrc32c);
+    }
+
+    @Override
+    public String toString() {
+        return "BlobIntegrity{" + sha256 + ", storedBytes=" + storedBytes + ", crc32c=" + crc32c
+                + (corrupt ? ", CORRUPT" : "") + "}";
+    }
+}
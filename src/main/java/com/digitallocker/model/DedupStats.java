@@ -0,0 +1,68 @@
+package com.digitallocker.model;
+
+/**
+ * Aggregate deduplication figures for the blob store.
+ * Logical bytes count every file reference; unique bytes count each stored blob once;
+ * disk bytes are the unique bytes after compression.
+ */
+public class DedupStats {
+    private long blobCount;
+    private long referenceCount;
+    private long uniqueBytes;
+    private long logicalBytes;
+    private long diskBytes;
+
+    public DedupStats(long blobCount, long referenceCount, long uniqueBytes, long logicalBytes, long diskBytes) {
+        this.blobCount = blobCount;
+        this.referenceCount = referenceCount;
+        this.uniqueBytes = uniqueBytes;
+        this.logicalBytes = logicalBytes;
+        this.diskBytes = diskBytes;
+    }
+
+    // Getters
+    public long getBlobCount() {
+        return blobCount;
+    }
+
+    public long getReferenceCount() {
+        return referenceCount;
+    }
+
+    public long getUniqueBytes() {
+        return uniqueBytes;
+    }
+
+    public long getLogicalBytes() {
+        return logicalBytes;
+    }
+
+    public long getDiskBytes() {
+        return diskBytes;
+    }
+
+    /**
+     * @return The number of bytes that did not have to be written to disk thanks to deduplication.
+     */
+    public long getBytesSaved() {
+        return logicalBytes - uniqueBytes;
+    }
+
+    /**
+     * @return The number of bytes compression saved on the stored blobs.
+     */
+    public long getBytesCompressed() {
+        return uniqueBytes - diskBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "DedupStats{blobs=" + blobCount
+                + ", references=" + referenceCount
+                + ", uniqueBytes=" + uniqueBytes
+                + ", logicalBytes=" + logicalBytes
+                + ", bytesSaved=" + getBytesSaved()
+                + ", diskBytes=" + diskBytes
+                + "}";
+    }
+}
@@ -6,11 +6,21 @@ import java.sql.Timestamp;
  * Represents metadata for a file stored in the digital locker.
  */
 public class FileMetadata {
+    /** Content kept in the locker directory. */
+    public static final String TIER_HOT = "hot";
+    /** Content moved to the compressed cold root after going unread for a while. */
+    public static final String TIER_COLD = "cold";
+
     private int id;
     private int userId;
     private String originalFilename;
     private String storedFilename; // The actual filename on disk (e.g., a UUID)
     private Timestamp uploadDate;
+    private String codec = "none"; // Compression codec the stored content is encoded with
+    private long sizeBytes = -1; // Original (uncompressed) size; -1 if unknown (files uploaded before it was recorded)
+    private boolean encrypted; // Whether the stored content is encrypted with the owner's data key
+    private String storageTier = TIER_HOT; // Which storage tier holds the content
+    private Timestamp lastAccessedAt; // Last retrieval as last recorded; null if never retrieved
 
     public FileMetadata(int id, int userId, String originalFilename, String storedFilename, Timestamp uploadDate) {
         this.id = id;
@@ -26,6 +36,14 @@ public class FileMetadata {
         this.storedFilename = storedFilename;
     }
 
+    public FileMetadata(int userId, String originalFilename, String storedFilename, String codec, long sizeBytes,
+                        boolean encrypted) {
+        this(userId, originalFilename, storedFilename);
+        this.codec = codec;
+        this.sizeBytes = sizeBytes;
+        this.encrypted = encrypted;
+    }
+
     // Getters
     public int getId() {
         return id;
@@ -47,6 +65,26 @@ public class FileMetadata {
         return uploadDate;
     }
 
+    public String getCodec() {
+        return codec;
+    }
+
+    public long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public boolean isEncrypted() {
+        return encrypted;
+    }
+
+    public String getStorageTier() {
+        return storageTier;
+    }
+
+    public Timestamp getLastAccessedAt() {
+        return lastAccessedAt;
+    }
+
     // Setters
     public void setId(int id) {
         this.id = id;
@@ -67,5 +105,25 @@ public class FileMetadata {
     public void setUploadDate(Timestamp uploadDate) {
         this.uploadDate = uploadDate;
     }
+
+    public void setCodec(String codec) {
+        this.codec = codec;
+    }
+
+    public void setSizeBytes(long sizeBytes) {
+        this.sizeBytes = sizeBytes;
+    }
+
+    public void setEncrypted(boolean encrypted) {
+        this.encrypted = encrypted;
+    }
+
+    public void setStorageTier(String storageTier) {
+        this.storageTier = storageTier;
+    }
+
+    public void setLastAccessedAt(Timestamp lastAccessedAt) {
+        this.lastAccessedAt = lastAccessedAt;
+    }
 }
 
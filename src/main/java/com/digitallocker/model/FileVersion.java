@@ -0,0 +1,89 @@
+package com.digitallocker.model;
+
+import java.sql.Timestamp;
+
+/**
+ * One version of a file in the locker. The files row always holds the latest version; earlier ones
+ * are kept in the file_versions table, each with its own stored content.
+ */
+public class FileVersion {
+    private int fileId;
+    private int version; // 1 for the first upload, counting up
+    private String storedFilename;
+    private String codec;
+    private long sizeBytes; // -1 if unknown
+    private boolean encrypted;
+    private Timestamp createdAt; // When this version was uploaded
+    private boolean current; // Whether this is the version the files row holds
+
+    public FileVersion(int fileId, int version, String storedFilename, String codec, long sizeBytes,
+                       boolean encrypted, Timestamp createdAt, boolean current) {
+        this.fileId = fileId;
+        this.version = version;
+        this.storedFilename = storedFilename;
+        this.codec = codec;
+        this.sizeBytes = sizeBytes;
+        this.encrypted = encrypted;
+        this.createdAt = createdAt;
+        this.current = current;
+    }
+
+    // Getters
+    public int getFileId() {
+        return fileId;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public String getStoredFilename() {
+        return storedFilename;
+    }
+
+    public String getCodec() {
+        return codec;
+    }
+
+    public long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public boolean isEncrypted() {
+        return encrypted;
+    }
+
+    public Timestamp getCreatedAt() {
+        return createdAt;
+    }
+
+    public boolean isCurrent() {
+        return current;
+    }
+
+    /**
+     * Describes this version's content as metadata of the file it belongs to, for reading it back.
+     * @param file The file this version belongs to.
+     * @return A FileMetadata with the file's ID, owner and name and this version's content.
+     */
+    public FileMetadata toMetadata(FileMetadata file) {
+        FileMetadata metadata = new FileMetadata(file.getId(), file.getUserId(), file.getOriginalFilename(),
+                storedFilename, createdAt);
+        metadata.setCodec(codec);
+        metadata.setSizeBytes(sizeBytes);
+        metadata.setEncrypted(encrypted);
+        return metadata;
+    }
+
+    @Override
+    public String toString() {
+        return "FileVersion{" +
+               "fileId=" + fileId +
+               ", version=" + version +
+               ", storedFilename='" + storedFilename + '\'' +
+               ", sizeBytes=" + sizeBytes +
+               ", createdAt=" + createdAt +
+               (current ? ", current" : "") +
+               '}';
+    }
+}
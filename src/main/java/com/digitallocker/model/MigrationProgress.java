@@ -0,0 +1,57 @@
+package com.digitallocker.model;
+
+/**
+ * Progress of the migration of stored files from the flat layout to the sharded layout.
+ */
+public class MigrationProgress {
+    private long totalFlatFiles; // Flat files found when the migration started
+    private long migrated;
+    private long failed;
+    private boolean running;
+    private boolean complete;
+
+    public MigrationProgress(long totalFlatFiles, long migrated, long failed, boolean running, boolean complete) {
+        this.totalFlatFiles = totalFlatFiles;
+        this.migrated = migrated;
+        this.failed = failed;
+        this.running = running;
+        this.complete = complete;
+    }
+
+    // Getters
+    public long getTotalFlatFiles() {
+        return totalFlatFiles;
+    }
+
+    public long getMigrated() {
+        return migrated;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return The share of flat files handled so far, between 0 and 100.
+     */
+    public double getPercentComplete() {
+        if (totalFlatFiles == 0) {
+            return complete ? 100.0 : 0.0;
+        }
+        return Math.min(100.0, 100.0 * (migrated + failed) / totalFlatFiles);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MigrationProgress{migrated=%d, failed=%d, total=%d, %.1f%%, running=%b, complete=%b}",
+                migrated, failed, totalFlatFiles, getPercentComplete(), running, complete);
+    }
+}
@@ -0,0 +1,130 @@
+package com.digitallocker.model;
+
+import java.util.List;
+
+/**
+ * Outcome of comparing the stored files on disk with the files table (see OrphanReconciler).
+ * Orphan blobs are files on disk that no row refers to; missing blobs are stored filenames that
+ * live rows refer to but that are not on disk.
+ */
+public class ReconcileReport {
+    private boolean repair; // Whether problems were fixed or only reported
+    private long blobsScanned;
+    private long storedNamesScanned; // Distinct stored filenames in the files table
+    private long orphanBlobs;
+    private long orphanBytes;
+    private long recentBlobsSkipped; // Unreferenced but too new to tell from an upload in progress
+    private long missingBlobs;
+    private long rowsWithMissingBlob;
+    private long strayFiles; // Files in a shard directory their name does not belong in
+    private long blobsDeleted;
+    private long rowsDeleted;
+    private long failed;
+    private List<String> orphanSamples;
+    private List<String> missingSamples;
+    private long elapsedMillis;
+
+    public ReconcileReport(boolean repair, long blobsScanned, long storedNamesScanned, long orphanBlobs,
+                           long orphanBytes, long recentBlobsSkipped, long missingBlobs, long rowsWithMissingBlob,
+                           long strayFiles, long blobsDeleted, long rowsDeleted, long failed,
+                           List<String> orphanSamples, List<String> missingSamples, long elapsedMillis) {
+        this.repair = repair;
+        this.blobsScanned = blobsScanned;
+        this.storedNamesScanned = storedNamesScanned;
+        this.orphanBlobs = orphanBlobs;
+        this.orphanBytes = orphanBytes;
+        this.recentBlobsSkipped = recentBlobsSkipped;
+        this.missingBlobs = missingBlobs;
+        this.rowsWithMissingBlob = rowsWithMissingBlob;
+        this.strayFiles = strayFiles;
+        this.blobsDeleted = blobsDeleted;
+        this.rowsDeleted = rowsDeleted;
+        this.failed = failed;
+        this.orphanSamples = orphanSamples;
+        this.missingSamples = missingSamples;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    // Getters
+    public boolean isRepair() {
+        return repair;
+    }
+
+    public long getBlobsScanned() {
+        return blobsScanned;
+    }
+
+    public long getStoredNamesScanned() {
+        return storedNamesScanned;
+    }
+
+    public long getOrphanBlobs() {
+        return orphanBlobs;
+    }
+
+    public long getOrphanBytes() {
+        return orphanBytes;
+    }
+
+    public long getRecentBlobsSkipped() {
+        return recentBlobsSkipped;
+    }
+
+    public long getMissingBlobs() {
+        return missingBlobs;
+    }
+
+    public long getRowsWithMissingBlob() {
+        return rowsWithMissingBlob;
+    }
+
+    public long getStrayFiles() {
+        return strayFiles;
+    }
+
+    public long getBlobsDeleted() {
+        return blobsDeleted;
+    }
+
+    public long getRowsDeleted() {
+        return rowsDeleted;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return The first few orphan blob names found, for a closer look.
+     */
+    public List<String> getOrphanSamples() {
+        return orphanSamples;
+    }
+
+    /**
+     * @return The first few missing blob names found, for a closer look.
+     */
+    public List<String> getMissingSamples() {
+        return missingSamples;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * @return true if neither side had anything the other lacked.
+     */
+    public boolean isConsistent() {
+        return orphanBlobs == 0 && missingBlobs == 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ReconcileReport{repair=%b, blobs=%d, storedNames=%d, orphanBlobs=%d (%d bytes), "
+                        + "recentSkipped=%d, missingBlobs=%d (%d rows), stray=%d, blobsDeleted=%d, rowsDeleted=%d, "
+                        + "failed=%d, %d ms}",
+                repair, blobsScanned, storedNamesScanned, orphanBlobs, orphanBytes, recentBlobsSkipped, missingBlobs,
+                rowsWithMissingBlob, strayFiles, blobsDeleted, rowsDeleted, failed, elapsedMillis);
+    }
+}
@@ -0,0 +1,28 @@
+package com.digitallocker.model;
+
+/**
+ * A file found by a content search, with its relevance score (higher is better).
+ */
+public class SearchHit {
+    private FileMetadata file;
+    private double score;
+
+    public SearchHit(FileMetadata file, double score) {
+        this.file = file;
+        this.score = score;
+    }
+
+    // Getters
+    public FileMetadata getFile() {
+        return file;
+    }
+
+    public double getScore() {
+        return score;
+    }
+
+    @Override
+    public String toString() {
+        return "SearchHit{file=" + file.getOriginalFilename() + ", score=" + String.format("%.3f", score) + "}";
+    }
+}
@@ -0,0 +1,50 @@
+package com.digitallocker.model;
+
+/**
+ * How much of their storage quota a user has used. Sizes are original, uncompressed bytes.
+ */
+public class StorageUsage {
+    public static final long UNLIMITED = -1;
+
+    private int userId;
+    private long usedBytes;
+    private long quotaBytes; // UNLIMITED, or the quota in bytes
+
+    public StorageUsage(int userId, long usedBytes, long quotaBytes) {
+        this.userId = userId;
+        this.usedBytes = usedBytes;
+        this.quotaBytes = quotaBytes;
+    }
+
+    // Getters
+    public int getUserId() {
+        return userId;
+    }
+
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public long getQuotaBytes() {
+        return quotaBytes;
+    }
+
+    public boolean isUnlimited() {
+        return quotaBytes == UNLIMITED;
+    }
+
+    /**
+     * @return The number of bytes the user may still upload, or Long.MAX_VALUE without a quota.
+     */
+    public long getRemainingBytes() {
+        return isUnlimited() ? Long.MAX_VALUE : Math.max(0, quotaBytes - usedBytes);
+    }
+
+    @Override
+    public String toString() {
+        return "StorageUsage{userId=" + userId
+                + ", usedBytes=" + usedBytes
+                + ", quotaBytes=" + (isUnlimited() ? "unlimited" : Long.toString(quotaBytes))
+                + "}";
+    }
+}
@@ -0,0 +1,35 @@
+package com.digitallocker.model;
+
+/**
+ * How many live files, and how many bytes of them, one storage tier holds.
+ * Sizes are original, uncompressed bytes.
+ */
+public class TierUsage {
+    private String tier;
+    private long fileCount;
+    private long totalBytes;
+
+    public TierUsage(String tier, long fileCount, long totalBytes) {
+        this.tier = tier;
+        this.fileCount = fileCount;
+        this.totalBytes = totalBytes;
+    }
+
+    // Getters
+    public String getTier() {
+        return tier;
+    }
+
+    public long getFileCount() {
+        return fileCount;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "TierUsage{tier=" + tier + ", fileCount=" + fileCount + ", totalBytes=" + totalBytes + "}";
+    }
+}
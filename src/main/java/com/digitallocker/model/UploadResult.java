@@ -0,0 +1,43 @@
+package com.digitallocker.model;
+
+import java.io.File;
+
+/**
+ * The outcome of uploading one file as part of a batch.
+ */
+public class UploadResult {
+    private File sourceFile;
+    private int fileId; // -1 if the upload failed
+    private String errorMessage;
+
+    public UploadResult(File sourceFile, int fileId, String errorMessage) {
+        this.sourceFile = sourceFile;
+        this.fileId = fileId;
+        this.errorMessage = errorMessage;
+    }
+
+    public static UploadResult success(File sourceFile, int fileId) {
+        return new UploadResult(sourceFile, fileId, null);
+    }
+
+    public static UploadResult failure(File sourceFile, String errorMessage) {
+        return new UploadResult(sourceFile, -1, errorMessage);
+    }
+
+    // Getters
+    public File getSourceFile() {
+        return sourceFile;
+    }
+
+    public int getFileId() {
+        return fileId;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public boolean isSuccess() {
+        return fileId != -1;
+    }
+}
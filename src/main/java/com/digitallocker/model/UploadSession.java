@@ -0,0 +1,72 @@
+package com.digitallocker.model;
+
+/**
+ * Represents an in-progress chunked upload.
+ * Only chunks that have been durably written are counted, so a session read back
+ * after a crash tells the client exactly where to resume.
+ */
+public class UploadSession {
+    private String sessionId;
+    private int userId;
+    private String originalFilename;
+    private int chunkSize;
+    private int committedChunks; // Number of chunks durably written to staging
+    private long committedBytes;
+    private boolean finalChunkReceived; // Set once a chunk shorter than chunkSize has been appended
+
+    public UploadSession(String sessionId, int userId, String originalFilename, int chunkSize,
+                         int committedChunks, long committedBytes, boolean finalChunkReceived) {
+        this.sessionId = sessionId;
+        this.userId = userId;
+        this.originalFilename = originalFilename;
+        this.chunkSize = chunkSize;
+        this.committedChunks = committedChunks;
+        this.committedBytes = committedBytes;
+        this.finalChunkReceived = finalChunkReceived;
+    }
+
+    // Getters
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public int getUserId() {
+        return userId;
+    }
+
+    public String getOriginalFilename() {
+        return originalFilename;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return The number of durable chunks, which is also the index of the next chunk to send.
+     */
+    public int getCommittedChunks() {
+        return committedChunks;
+    }
+
+    public long getCommittedBytes() {
+        return committedBytes;
+    }
+
+    public boolean isFinalChunkReceived() {
+        return finalChunkReceived;
+    }
+
+    // Setters
+    public void setCommittedChunks(int committedChunks) {
+        this.committedChunks = committedChunks;
+    }
+
+    public void setCommittedBytes(long committedBytes) {
+        this.committedBytes = committedBytes;
+    }
+
+    public void setFinalChunkReceived(boolean finalChunkReceived) {
+        this.finalChunkReceived = finalChunkReceived;
+    }
+}
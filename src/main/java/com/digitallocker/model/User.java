@@ -6,7 +6,7 @@ package com.digitallocker.model;
 public class User {
     private int id;
     private String username;
-    private String password; // Stored as plain text for simplicity in this example, but should be hashed in production.
+    private String password; // The stored PBKDF2 hash (see PasswordHasher); null once the user is authenticated
 
     public User(int id, String username, String password) {
         this.id = id;
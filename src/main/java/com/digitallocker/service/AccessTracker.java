@@ -0,0 +1,95 @@
+package com.digitallocker.service;
+
+import com.digitallocker.dao.FileDAO;
+import com.digitallocker.util.Metrics;
+import com.digitallocker.util.OperationMetrics;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records when files were last retrieved, off the retrieval path. A retrieval only puts the time in
+ * a map, where repeated reads of a file collapse into one entry; a background thread writes the map
+ * to the files table in one batch every flush interval. Times not yet flushed are lost on a crash,
+ * which at worst lets a file be demoted to the cold tier a little early.
+ */
+class AccessTracker {
+    // Per-operation call, error and latency metrics, also exposed over JMX (see Metrics)
+    private static final OperationMetrics FLUSH_METRICS = Metrics.operation("AccessTracker", "flush");
+
+    private final FileDAO fileDAO;
+    private final ScheduledExecutorService scheduler;
+    private final Map<Integer, Long> pending = new ConcurrentHashMap<>(); // File ID -> latest retrieval
+    private final AtomicLong accessesFlushed = new AtomicLong();
+
+    /**
+     * @param fileDAO The DAO the access times are written to.
+     * @param flushIntervalMillis The pause between flushes.
+     */
+    AccessTracker(FileDAO fileDAO, long flushIntervalMillis) {
+        this.fileDAO = fileDAO;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "access-tracker");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Notes that a file was just retrieved. Returns at once.
+     */
+    void recordAccess(int fileId) {
+        pending.put(fileId, System.currentTimeMillis());
+    }
+
+    /**
+     * Writes the times noted since the last flush. On failure they are kept for the next one, unless
+     * a later retrieval of the same file has replaced them meanwhile.
+     */
+    void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        Map<Integer, Long> batch = new HashMap<>();
+        for (Iterator<Map.Entry<Integer, Long>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Integer, Long> access = it.next();
+            batch.put(access.getKey(), access.getValue());
+            it.remove();
+        }
+        long startNanos = System.nanoTime();
+        try {
+            fileDAO.recordAccesses(batch);
+            accessesFlushed.addAndGet(batch.size());
+        } catch (SQLException e) {
+            FLUSH_METRICS.recordError();
+            for (Map.Entry<Integer, Long> access : batch.entrySet()) {
+                pending.merge(access.getKey(), access.getValue(), Math::max);
+            }
+            System.err.println("Database error recording file accesses: " + e.getMessage());
+        } finally {
+            FLUSH_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * @return The number of retrieved files whose access time is not written yet.
+     */
+    int getPendingAccesses() {
+        return pending.size();
+    }
+
+    /**
+     * @return The number of access times written since startup.
+     */
+    long getAccessesFlushed() {
+        return accessesFlushed.get();
+    }
+}
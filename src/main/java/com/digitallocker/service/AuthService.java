@@ -1,62 +1,204 @@
 package com.digitallocker.service;
 
+import com.digitallocker.dao.DAOFactory;
 import com.digitallocker.dao.UserDAO;
 import com.digitallocker.model.User;
+import com.digitallocker.util.HashingExecutor;
+import com.digitallocker.util.HashingStats;
+import com.digitallocker.util.Metrics;
+import com.digitallocker.util.OperationMetrics;
+import com.digitallocker.util.PasswordHasher;
 
 import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Service layer for user authentication and registration.
+ * Passwords are stored as PBKDF2 hashes. Hashing runs on a dedicated, bounded pool and database
+ * calls on a separate small pool, so the asynchronous API never blocks its caller and a slow
+ * database never holds a hashing thread.
  */
 public class AuthService {
+    // Per-operation call, error and latency metrics, also exposed over JMX (see Metrics).
+    // Latency covers queueing, hashing and the database, up to the completion of the returned future.
+    private static final OperationMetrics REGISTER_METRICS = Metrics.operation("AuthService", "register");
+    private static final OperationMetrics LOGIN_METRICS = Metrics.operation("AuthService", "login");
+
+    private static final int HASH_ITERATIONS = Integer.getInteger("digitallocker.auth.pbkdf2.iterations",
+            PasswordHasher.DEFAULT_ITERATIONS);
+    private static final int HASH_THREADS = Integer.getInteger("digitallocker.auth.hashThreads",
+            Runtime.getRuntime().availableProcessors());
+    private static final int HASH_QUEUE_CAPACITY = Integer.getInteger("digitallocker.auth.hashQueueCapacity", 256);
+    private static final int DB_THREADS = Integer.getInteger("digitallocker.auth.dbThreads", 4);
+
+    // Shared by all service instances, so the whole process never runs more hashes than there are cores
+    private static final HashingExecutor HASH_EXECUTOR = new HashingExecutor(HASH_THREADS, HASH_QUEUE_CAPACITY);
+    private static final ExecutorService DB_EXECUTOR = Executors.newFixedThreadPool(DB_THREADS, r -> {
+        Thread t = new Thread(r, "auth-db");
+        t.setDaemon(true);
+        return t;
+    });
+
     private UserDAO userDAO;
+    private final PasswordHasher passwordHasher;
+    private volatile String unknownUserHash; // Verified against when the username does not exist
 
     public AuthService() {
-        this.userDAO = new UserDAO();
+        this(DAOFactory.getUserDAO(), new PasswordHasher(HASH_ITERATIONS));
+    }
+
+    public AuthService(UserDAO userDAO, PasswordHasher passwordHasher) {
+        this.userDAO = userDAO;
+        this.passwordHasher = passwordHasher;
     }
 
     /**
-     * Registers a new user.
+     * Registers a new user, blocking until done.
      * @param username The desired username.
      * @param password The desired password.
      * @return The registered User object if successful, null if username already exists or an error occurs.
      */
     public User register(String username, String password) {
         try {
-            if (userDAO.doesUsernameExist(username)) {
-                System.out.println("Registration failed: Username already exists.");
-                return null;
-            }
-            User newUser = new User(username, password);
-            int userId = userDAO.registerUser(newUser);
-            if (userId != -1) {
-                newUser.setId(userId);
-                return newUser;
-            }
-        } catch (SQLException e) {
-            System.err.println("Database error during registration: " + e.getMessage());
+            return registerAsync(username, password).join();
+        } catch (CompletionException e) {
+            System.err.println("Error during registration: " + describe(e.getCause()));
+            return null;
         }
-        return null;
     }
 
     /**
-     * Authenticates a user.
+     * Registers a new user asynchronously: the password is hashed on the hashing pool, then the user
+     * is inserted with a single INSERT that relies on the unique username.
+     * @param username The desired username.
+     * @param password The desired password.
+     * @return A future of the registered User, or of null if the username already exists. It completes
+     *         exceptionally if the hashing pool is saturated or the database fails.
+     */
+    public CompletableFuture<User> registerAsync(String username, String password) {
+        long startNanos = System.nanoTime();
+        char[] passwordChars = password.toCharArray();
+        return timed(REGISTER_METRICS, startNanos, HASH_EXECUTOR.submit(() -> passwordHasher.hash(passwordChars))
+                .thenApplyAsync(hash -> {
+                    try {
+                        int userId = userDAO.registerUser(new User(username, hash));
+                        if (userId == -1) {
+                            System.out.println("Registration failed: Username already exists.");
+                            return null;
+                        }
+                        return new User(userId, username, null);
+                    } catch (SQLException e) {
+                        throw new CompletionException(e);
+                    }
+                }, DB_EXECUTOR));
+    }
+
+    /**
+     * Authenticates a user, blocking until done.
      * @param username The username.
      * @param password The password.
      * @return The authenticated User object if successful, null otherwise.
      */
     public User login(String username, String password) {
         try {
-            User user = userDAO.getUserByUsernameAndPassword(username, password);
-            if (user != null) {
-                System.out.println("Login successful for user: " + username);
-                return user;
-            } else {
+            return loginAsync(username, password).join();
+        } catch (CompletionException e) {
+            System.err.println("Error during login: " + describe(e.getCause()));
+            return null;
+        }
+    }
+
+    /**
+     * Authenticates a user asynchronously: the user is looked up on the database pool and the password
+     * verified on the hashing pool. Unknown usernames cost a full verification too, so response time
+     * does not reveal whether a username exists. Passwords stored in plain text or at an outdated cost
+     * are re-hashed in the background after a successful login.
+     * @param username The username.
+     * @param password The password.
+     * @return A future of the authenticated User (without its password hash), or of null if the
+     *         credentials are wrong. It completes exceptionally if the hashing pool is saturated or the
+     *         database fails.
+     */
+    public CompletableFuture<User> loginAsync(String username, String password) {
+        long startNanos = System.nanoTime();
+        char[] passwordChars = password.toCharArray();
+        return timed(LOGIN_METRICS, startNanos, CompletableFuture.supplyAsync(() -> {
+            try {
+                return userDAO.getUserByUsername(username);
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        }, DB_EXECUTOR).thenCompose(user -> HASH_EXECUTOR.submit(() -> {
+            String stored = user != null ? user.getPassword() : getUnknownUserHash();
+            boolean matches = passwordHasher.verify(passwordChars, stored);
+            if (user == null || !matches) {
                 System.out.println("Login failed: Invalid username or password.");
+                return null;
+            }
+            if (passwordHasher.needsRehash(stored)) {
+                upgradeHash(user.getId(), passwordChars);
+            }
+            System.out.println("Login successful for user: " + username);
+            return new User(user.getId(), user.getUsername(), null);
+        })));
+    }
+
+    /**
+     * Gets the password hashing pool's queue depth, counters and latencies.
+     * @return The current HashingStats.
+     */
+    public static HashingStats getHashingStats() {
+        return HASH_EXECUTOR.getStats();
+    }
+
+    /**
+     * Records the latency of a future when it completes; failures (a saturated pool, a database error)
+     * count as errors, while wrong credentials or a taken username do not.
+     */
+    private static <T> CompletableFuture<T> timed(OperationMetrics metrics, long startNanos, CompletableFuture<T> future) {
+        return future.whenComplete((result, error) -> {
+            if (error != null) {
+                metrics.recordError();
             }
-        } catch (SQLException e) {
-            System.err.println("Database error during login: " + e.getMessage());
+            metrics.record(startNanos);
+        });
+    }
+
+    private void upgradeHash(int userId, char[] password) {
+        HASH_EXECUTOR.submit(() -> passwordHasher.hash(password))
+                .thenAcceptAsync(hash -> {
+                    try {
+                        userDAO.updatePassword(userId, hash);
+                    } catch (SQLException e) {
+                        System.err.println("Database error upgrading password hash: " + e.getMessage());
+                    }
+                }, DB_EXECUTOR)
+                .exceptionally(e -> {
+                    System.err.println("Could not upgrade password hash: " + describe(e));
+                    return null;
+                });
+    }
+
+    private String getUnknownUserHash() {
+        String hash = unknownUserHash;
+        if (hash == null) {
+            hash = passwordHasher.hash(new char[0]);
+            unknownUserHash = hash;
+        }
+        return hash;
+    }
+
+    private static String describe(Throwable e) {
+        if (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
+        }
+        if (e instanceof RejectedExecutionException) {
+            return "Too many logins at once, please try again.";
         }
-        return null;
+        return e.getMessage();
     }
 }
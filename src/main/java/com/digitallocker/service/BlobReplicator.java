@@ -0,0 +1,565 @@
+package com.digitallocker.service;
+
+import com.digitallocker.dao.BlobDAO;
+import com.digitallocker.model.BlobIntegrity;
+import com.digitallocker.util.Metrics;
+import com.digitallocker.util.OperationMetrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
+
+/**
+ * Asynchronous replication of the blob store to a second root, a local directory standing in for a
+ * remote node. The blob store logs every blob it writes or deletes in a durable {@link ReplicationLog},
+ * which costs an upload one small append and never waits on the replica. A background thread drains the
+ * log in batches, collapsing repeated changes to a blob into the last one, and applies each batch with
+ * parallel copies. A batch that fails, say because the replica is unreachable, is retried with backoff
+ * while the log keeps growing, so the replica catches up once it is back. A catch-up scan at startup
+ * also copies every blob the replica lacks, covering blobs stored before replication was turned on or
+ * lost from the log in a crash.
+ * <p>
+ * Copies are checked against the checksum recorded for the blob, so a corrupt primary copy is never
+ * replicated. In the other direction, a blob missing from the primary root or found corrupt there is
+ * restored from its replica (see {@link BlobStore#repairFromReplica}). Replicas are laid out like the
+ * primary store, by name; blobs stored before deduplication are replicated but not restored.
+ */
+public class BlobReplicator implements BlobReplicatorMBean {
+    // Per-operation call, error and latency metrics, also exposed over JMX (see Metrics)
+    private static final OperationMetrics REPLICATE_BATCH_METRICS = Metrics.operation("BlobReplicator", "replicateBatch");
+    private static final OperationMetrics CATCH_UP_METRICS = Metrics.operation("BlobReplicator", "catchUp");
+    private static final OperationMetrics RESTORE_METRICS = Metrics.operation("BlobReplicator", "restore");
+
+    private static final String LOG_DIR = ".replication"; // In the primary root, which the store's scans skip
+    private static final String TMP_DIR = ".tmp";
+    private static final long IDLE_POLL_MS = 1_000L; // Appends wake the worker; this only bounds a missed wake-up
+    private static final long MAX_RETRY_DELAY_MS = 5 * 60_000L;
+    private static final int REPAIR_BATCH_SIZE = 100;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final BlobStore primary;
+    private final Path replicaRoot;
+    private final Path replicaTmp;
+    private final BlobDAO blobDAO;
+    private final ReplicationLog log;
+    private final int batchSize;
+    private final long retryDelayMillis;
+    private final ExecutorService copyPool;
+    private volatile Thread worker;
+    private volatile boolean catchUpRequested;
+
+    private final AtomicLong blobsReplicated = new AtomicLong();
+    private final AtomicLong bytesReplicated = new AtomicLong();
+    private final AtomicLong deletesReplicated = new AtomicLong();
+    private final AtomicLong blobsSkipped = new AtomicLong();
+    private final AtomicLong batchFailures = new AtomicLong();
+    private final AtomicLong restores = new AtomicLong();
+    private final AtomicLong catchUpsRun = new AtomicLong();
+
+    /**
+     * Opens the replication log in the primary root. Nothing is copied until {@link #start} is called,
+     * but changes are logged from now on.
+     * @param primary The store being replicated.
+     * @param replicaRoot The directory the replica is kept in.
+     * @param blobDAO The DAO holding the blobs' recorded checksums.
+     * @param threads The number of copies run in parallel.
+     * @param batchSize The maximum number of log entries applied per batch.
+     * @param retryDelayMillis The pause before a failed batch is first retried; it doubles on each failure.
+     * @param fsync Whether every log append is forced to disk.
+     * @throws IOException If the replication log cannot be opened.
+     */
+    public BlobReplicator(BlobStore primary, Path replicaRoot, BlobDAO blobDAO, int threads, int batchSize,
+                          long retryDelayMillis, boolean fsync) throws IOException {
+        this.primary = primary;
+        this.replicaRoot = replicaRoot;
+        this.replicaTmp = replicaRoot.resolve(TMP_DIR);
+        this.blobDAO = blobDAO;
+        this.log = new ReplicationLog(primary.getRoot().resolve(LOG_DIR), fsync);
+        this.batchSize = batchSize;
+        this.retryDelayMillis = retryDelayMillis;
+        this.copyPool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "replication-worker");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Starts replicating in the background and registers the replicator's counters over JMX.
+     * @param catchUp Whether to scan the primary root for blobs the replica lacks first.
+     */
+    public synchronized void start(boolean catchUp) {
+        if (worker != null) {
+            return;
+        }
+        catchUpRequested = catchUp;
+        Thread t = new Thread(this::run, "blob-replicator");
+        t.setDaemon(true);
+        worker = t;
+        t.start();
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("com.digitallocker:type=BlobReplicator");
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            System.err.println("Could not register blob replicator MBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops the background replication. Changes are still logged, and applied once it is started again.
+     */
+    public synchronized void stop() {
+        Thread t = worker;
+        if (t != null) {
+            worker = null; // It finishes the batch it is applying, then exits
+            LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     * Logs that a blob was written to the primary root. Returns at once.
+     */
+    void blobStored(String name) {
+        append(ReplicationLog.STORED, name);
+    }
+
+    /**
+     * Logs that a blob was deleted from the primary root. Returns at once.
+     */
+    void blobDeleted(String name) {
+        append(ReplicationLog.DELETED, name);
+    }
+
+    private void append(char op, String name) {
+        try {
+            log.append(op, name);
+        } catch (IOException e) {
+            // A missed write is found by the catch-up scan; a missed delete leaves a stale replica behind
+            System.err.println("Could not log " + name + " for replication: " + e.getMessage());
+            catchUpRequested = true;
+        }
+        Thread t = worker;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     * Applies the log batch by batch until stopped. The worker is never interrupted: an interrupt in the
+     * middle of a read would close the log's channel, so stop() unparks it and it notices on its own.
+     */
+    private void run() {
+        long retryDelay = retryDelayMillis;
+        boolean failing = false;
+        while (worker == Thread.currentThread()) {
+            try {
+                if (catchUpRequested) {
+                    catchUpRequested = false;
+                    catchUp();
+                    repairCorrupt();
+                }
+                List<ReplicationLog.Entry> batch = log.readPending(batchSize);
+                if (batch.isEmpty()) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(IDLE_POLL_MS));
+                    continue;
+                }
+                if (replicate(batch)) {
+                    log.checkpoint(batch.get(batch.size() - 1).endOffset, batch.size());
+                    if (failing) {
+                        // The replica is back: blobs flagged corrupt meanwhile can be restored now
+                        System.out.println("Replica reachable again; " + log.getPending() + " changes still to apply.");
+                        failing = false;
+                        repairCorrupt();
+                    }
+                    retryDelay = retryDelayMillis;
+                } else {
+                    failing = true;
+                    backOff(retryDelay);
+                    retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MS);
+                }
+            } catch (IOException e) {
+                System.err.println("Replication log error: " + e.getMessage());
+                backOff(retryDelay);
+            }
+        }
+    }
+
+    /**
+     * Waits out a retry delay. New log entries unpark the worker, which must not cut the wait short, or
+     * every upload during an outage would trigger another failed attempt; only stop() does.
+     */
+    private void backOff(long delayMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        long remaining;
+        while (worker == Thread.currentThread() && (remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, remaining);
+        }
+    }
+
+    /**
+     * Applies one batch of log entries, the last change to each blob only, with parallel copies.
+     * @return true if every change was applied (or had nothing to apply), false if any must be retried.
+     */
+    private boolean replicate(List<ReplicationLog.Entry> batch) {
+        long startNanos = System.nanoTime();
+        Map<String, Character> latest = new LinkedHashMap<>();
+        for (ReplicationLog.Entry entry : batch) {
+            if (entry.name != null) {
+                latest.put(entry.name, entry.op);
+            }
+        }
+        List<Future<?>> changes = new ArrayList<>(latest.size());
+        try {
+            for (Map.Entry<String, Character> change : latest.entrySet()) {
+                String name = change.getKey();
+                changes.add(change.getValue() == ReplicationLog.STORED
+                        ? copyPool.submit(() -> {
+                            copy(name);
+                            return null;
+                        })
+                        : copyPool.submit(() -> {
+                            delete(name);
+                            return null;
+                        }));
+            }
+            String firstError = null;
+            int failed = 0;
+            for (Future<?> change : changes) {
+                try {
+                    change.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                } catch (ExecutionException e) {
+                    failed++;
+                    if (firstError == null) {
+                        firstError = String.valueOf(e.getCause());
+                    }
+                }
+            }
+            if (failed > 0) {
+                REPLICATE_BATCH_METRICS.recordError();
+                batchFailures.incrementAndGet();
+                System.err.println("Replication of " + failed + " of " + changes.size()
+                        + " changes failed, retrying later: " + firstError);
+                return false;
+            }
+            return true;
+        } finally {
+            for (Future<?> change : changes) {
+                change.cancel(true); // Only those still running, if the wait was interrupted
+            }
+            REPLICATE_BATCH_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Copies a blob to the replica, unless the replica already has it.
+     * @throws IOException If the replica cannot be written; the change is retried.
+     * @throws SQLException If the blob's checksum cannot be read; the change is retried.
+     */
+    private void copy(String name) throws IOException, SQLException {
+        Path target = BlobStore.shardedPath(replicaRoot, name);
+        FileChannel channel = openPrimary(name);
+        if (channel == null) {
+            return; // Deleted since; the deletion follows in the log
+        }
+        Path tmp = null;
+        try (InputStream source = Channels.newInputStream(channel)) {
+            if (Files.exists(target) && Files.size(target) == channel.size()) {
+                return; // Names are content digests: a copy of the right size is this content
+            }
+            BlobIntegrity integrity = blobDAO.getIntegrity(name);
+            Files.createDirectories(replicaTmp);
+            tmp = Files.createTempFile(replicaTmp, "replica-", ".part");
+            Checksum crc = new CRC32C();
+            long copied;
+            try (OutputStream out = new CheckedOutputStream(Files.newOutputStream(tmp), crc)) {
+                copied = transfer(source, out);
+            }
+            if (integrity != null && !integrity.matches(copied, crc.getValue())) {
+                blobsSkipped.incrementAndGet();
+                System.err.println("Not replicating " + name + ": the primary copy does not match its checksum.");
+                return;
+            }
+            Files.createDirectories(target.getParent());
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            tmp = null;
+            blobsReplicated.incrementAndGet();
+            bytesReplicated.addAndGet(copied);
+            REPLICATE_BATCH_METRICS.addBytesOut(copied);
+        } catch (UnreadableSourceException e) {
+            // Retrying would not help; the scrubber flags the blob, and a later write of it is logged again
+            blobsSkipped.incrementAndGet();
+            System.err.println("Not replicating " + name + ": the primary copy cannot be read: " + e.getMessage());
+        } finally {
+            if (tmp != null) {
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+
+    /**
+     * Opens a blob in the primary root, looking it up again if the shard migrator moved it meanwhile.
+     * @return The open channel, or null if the blob is gone.
+     */
+    private FileChannel openPrimary(String name) throws IOException {
+        try {
+            return FileChannel.open(primary.resolve(name), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            try {
+                return FileChannel.open(primary.resolve(name), StandardOpenOption.READ);
+            } catch (NoSuchFileException gone) {
+                return null;
+            }
+        }
+    }
+
+    private void delete(String name) throws IOException {
+        if (Files.deleteIfExists(BlobStore.shardedPath(replicaRoot, name))) {
+            deletesReplicated.incrementAndGet();
+        }
+    }
+
+    /**
+     * Copies a stream, telling a failure to read the primary copy from a failure to write the replica.
+     */
+    private static long transfer(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        long total = 0;
+        while (true) {
+            int read;
+            try {
+                read = in.read(buffer);
+            } catch (IOException e) {
+                throw new UnreadableSourceException(e);
+            }
+            if (read == -1) {
+                return total;
+            }
+            out.write(buffer, 0, read);
+            total += read;
+        }
+    }
+
+    /**
+     * Logs every blob in the primary root that the replica lacks, or holds at a different size, for the
+     * normal batches to copy. Deletions that never made it into the log are not found this way; their
+     * replicas stay behind, which costs space but loses nothing.
+     * @return The number of blobs logged for copying.
+     * @throws IOException If the primary root cannot be listed.
+     */
+    public int catchUp() throws IOException {
+        long startNanos = System.nanoTime();
+        int logged = 0;
+        try {
+            Path root = primary.getRoot();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(root)) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    if (name.charAt(0) == '.') {
+                        continue; // The store's own working directories
+                    }
+                    if (Files.isDirectory(entry)) {
+                        logged += catchUpShard(entry);
+                    } else if (BlobStore.isShardable(name) && needsCopy(entry, name)) {
+                        log.append(ReplicationLog.STORED, name); // Not migrated to the sharded layout yet
+                        logged++;
+                    }
+                }
+            }
+            catchUpsRun.incrementAndGet();
+            if (logged > 0) {
+                System.out.println("Replication catch-up: " + logged + " stored files to copy to the replica.");
+            }
+            return logged;
+        } catch (IOException e) {
+            CATCH_UP_METRICS.recordError();
+            throw e;
+        } finally {
+            CATCH_UP_METRICS.record(startNanos);
+        }
+    }
+
+    private int catchUpShard(Path shardDir) throws IOException {
+        int logged = 0;
+        try (DirectoryStream<Path> leaves = Files.newDirectoryStream(shardDir, Files::isDirectory)) {
+            for (Path leaf : leaves) {
+                try (DirectoryStream<Path> blobs = Files.newDirectoryStream(leaf, Files::isRegularFile)) {
+                    for (Path blob : blobs) {
+                        String name = blob.getFileName().toString();
+                        if (needsCopy(blob, name)) {
+                            log.append(ReplicationLog.STORED, name);
+                            logged++;
+                        }
+                    }
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return logged; // Emptied and removed meanwhile
+        }
+        return logged;
+    }
+
+    private boolean needsCopy(Path blob, String name) throws IOException {
+        Path replica = BlobStore.shardedPath(replicaRoot, name);
+        try {
+            return !Files.exists(replica) || Files.size(replica) != Files.size(blob);
+        } catch (NoSuchFileException e) {
+            return false; // Deleted meanwhile
+        }
+    }
+
+    /**
+     * Restores blobs flagged corrupt from their replicas, for those flagged while the replica was
+     * unreachable; blobs flagged later are restored as they are found.
+     */
+    private void repairCorrupt() {
+        try {
+            int repaired = 0;
+            for (BlobIntegrity blob : blobDAO.getCorruptBlobs(REPAIR_BATCH_SIZE)) {
+                if (primary.repairFromReplica(blob.getSha256())) {
+                    repaired++;
+                }
+            }
+            if (repaired > 0) {
+                System.out.println("Restored " + repaired + " corrupt stored files from the replica.");
+            }
+        } catch (SQLException e) {
+            System.err.println("Database error listing corrupt stored files: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Copies a blob's replica into dir, checked against the size and checksum recorded for the blob.
+     * Called by the blob store under the blob's lock.
+     * @param name The blob's stored name.
+     * @param integrity What was recorded when the blob was written.
+     * @param dir A directory on the primary root's file system, for the copy to be moved into place from.
+     * @param crc Receives the checksum of the copy.
+     * @return The copy, or null if the replica has no copy that matches the record.
+     * @throws IOException If the replica cannot be read.
+     */
+    Path fetch(String name, BlobIntegrity integrity, Path dir, Checksum crc) throws IOException {
+        long startNanos = System.nanoTime();
+        Path copy = null;
+        try {
+            InputStream in;
+            try {
+                in = Files.newInputStream(BlobStore.shardedPath(replicaRoot, name));
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+            copy = Files.createTempFile(dir, "restore-", ".part");
+            long copied;
+            try (InputStream source = in;
+                 OutputStream out = new CheckedOutputStream(Files.newOutputStream(copy), crc)) {
+                copied = source.transferTo(out);
+            }
+            if (!integrity.matches(copied, crc.getValue())) {
+                System.err.println("The replica of " + name + " does not match its checksum either.");
+                return null;
+            }
+            restores.incrementAndGet();
+            RESTORE_METRICS.addBytesIn(copied);
+            Path restored = copy;
+            copy = null;
+            return restored;
+        } catch (IOException e) {
+            RESTORE_METRICS.recordError();
+            throw e;
+        } finally {
+            if (copy != null) {
+                Files.deleteIfExists(copy);
+            }
+            RESTORE_METRICS.record(startNanos);
+        }
+    }
+
+    @Override
+    public long getBacklog() {
+        return log.getPending();
+    }
+
+    @Override
+    public long getLagMillis() {
+        return log.getLagMillis();
+    }
+
+    @Override
+    public long getLogSizeBytes() {
+        return log.getSizeBytes();
+    }
+
+    @Override
+    public long getBlobsReplicated() {
+        return blobsReplicated.get();
+    }
+
+    @Override
+    public long getBytesReplicated() {
+        return bytesReplicated.get();
+    }
+
+    @Override
+    public long getDeletesReplicated() {
+        return deletesReplicated.get();
+    }
+
+    @Override
+    public long getBlobsSkipped() {
+        return blobsSkipped.get();
+    }
+
+    @Override
+    public long getBatchFailures() {
+        return batchFailures.get();
+    }
+
+    @Override
+    public long getRestores() {
+        return restores.get();
+    }
+
+    @Override
+    public long getCatchUpsRun() {
+        return catchUpsRun.get();
+    }
+
+    /** A read of the primary copy failed, as opposed to a write of the replica. */
+    private static final class UnreadableSourceException extends IOException {
+        UnreadableSourceException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.digitallocker.service;
+
+/**
+ * JMX view of the blob replicator.
+ */
+public interface BlobReplicatorMBean {
+    long getBacklog();
+
+    long getLagMillis();
+
+    long getLogSizeBytes();
+
+    long getBlobsReplicated();
+
+    long getBytesReplicated();
+
+    long getDeletesReplicated();
+
+    long getBlobsSkipped();
+
+    long getBatchFailures();
+
+    long getRestores();
+
+    long getCatchUpsRun();
+}
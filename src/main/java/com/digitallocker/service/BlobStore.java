@@ -0,0 +1,1384 @@
+package com.digitallocker.service;
+
+import com.digitallocker.dao.BlobDAO;
+import com.digitallocker.model.BlobIntegrity;
+import com.digitallocker.model.DedupStats;
+import com.digitallocker.util.CompressionCodec;
+import com.digitallocker.util.Chunker;
+import com.digitallocker.util.CompressionCodecs;
+import com.digitallocker.util.FrameCipher;
+import com.digitallocker.util.RateLimiter;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * Content-addressed storage for the bytes behind the files table.
+ * Each distinct content is stored once, named by its SHA-256 digest (keyed, for encrypted blobs), and reference counted
+ * in the blobs table so that identical uploads share a single copy on disk. Blobs are spread
+ * over a two-level directory fan-out so that no single directory grows to millions of entries.
+ * Content that compresses well is stored compressed; the codec is recorded alongside each blob.
+ * Content can be encrypted at rest with its owner's data key, as AES-GCM frames (see {@link FrameCipher}).
+ * Files kept in several versions are stored as content-defined chunks (see {@link Chunker}), each a blob of its
+ * own, so versions share the chunks an edit did not touch; the content's blob is then a manifest listing them.
+ * Blobs written and deleted can be replicated to a second root (see {@link BlobReplicator}), from which a
+ * blob missing or corrupt here is restored. Blobs of files nobody uses can be moved to a compressed
+ * cold root (see {@link StorageTiering}), from which they are promoted back when read.
+ */
+public class BlobStore {
+    private static final String TMP_DIR = ".tmp"; // Incoming data is written here before being moved into place
+    private static final int SHARD_PREFIX_LENGTH = 4; // Two directory levels of two characters each
+    private static final int SAMPLE_SIZE = 16 * 1024; // Bytes compressed to decide whether compression pays off
+    private static final int MIN_COMPRESSIBLE_SIZE = 512; // Smaller files are stored as they are
+    private static final double MAX_SAMPLE_RATIO = Double.parseDouble(
+            System.getProperty("digitallocker.compression.maxSampleRatio", "0.9"));
+    private static final int LOCK_STRIPES = 64;
+    private static final int CRYPTO_THREADS = Integer.getInteger("digitallocker.encryption.threads",
+            Runtime.getRuntime().availableProcessors());
+
+    // Shared by all stores: frames of every upload and download are sealed and opened on one bounded pool
+    private static final FrameCipher FRAME_CIPHER = new FrameCipher(
+            Executors.newFixedThreadPool(CRYPTO_THREADS, r -> {
+                Thread t = new Thread(r, "crypto-worker");
+                t.setDaemon(true);
+                return t;
+            }),
+            CRYPTO_THREADS * 2,
+            Integer.getInteger("digitallocker.encryption.frameSize", FrameCipher.DEFAULT_FRAME_SIZE));
+    private static final Object[] LOCKS = new Object[LOCK_STRIPES];
+
+    /** The codec recorded for chunked content: the blob is a manifest of the chunks, read back as their concatenation. */
+    public static final String CHUNKED = "chunked";
+    // Chunks are named by a digest cut to 62 characters plus this suffix, which sets them apart from whole files
+    static final String CHUNK_SUFFIX = ".c";
+    private static final int CHUNK_NAME_LENGTH = 62;
+    private static final int DEFAULT_CHUNK_SIZE = Integer.getInteger("digitallocker.versions.chunkSize", 64 * 1024);
+    private static final int MANIFEST_MAGIC = 0x444C4D31; // "DLM1"
+    // Manifests are named by an HMAC under this fixed key, so no uploaded content can take a manifest's name
+    private static final SecretKey MANIFEST_NAME_KEY = new SecretKeySpec(
+            "digitallocker-chunk-manifest".getBytes(StandardCharsets.US_ASCII), "HmacSHA256");
+    // Manifests are written as they are; this codec only carries their name through commit()
+    private static final CompressionCodec MANIFEST = new CompressionCodec() {
+        @Override
+        public String getName() {
+            return CHUNKED;
+        }
+
+        @Override
+        public OutputStream compress(OutputStream out) {
+            return out;
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) {
+            return in;
+        }
+    };
+
+    // Process-wide counters, complementing the persistent figures from BlobDAO.getDedupStats()
+    private static final AtomicLong DEDUP_HITS = new AtomicLong();
+    private static final AtomicLong BYTES_DEDUPLICATED = new AtomicLong();
+
+    static {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            LOCKS[i] = new Object();
+        }
+    }
+
+    /**
+     * @return The cipher blobs are encrypted with, for other data kept under the same per-user keys.
+     */
+    static FrameCipher frameCipher() {
+        return FRAME_CIPHER;
+    }
+
+    private final Path root;
+    private final Path tmpDir;
+    private final BlobDAO blobDAO;
+    private final CompressionCodec codec;
+    private final int chunkSize;
+    private volatile BlobReplicator replicator;
+    private volatile StorageTiering tiering;
+
+    public BlobStore(Path root, BlobDAO blobDAO) {
+        this(root, blobDAO, CompressionCodecs.getDefault());
+    }
+
+    public BlobStore(Path root, BlobDAO blobDAO, CompressionCodec codec) {
+        this(root, blobDAO, codec, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param root The locker directory.
+     * @param blobDAO The DAO keeping the blobs' reference counts.
+     * @param codec The codec compressible content is stored with, or CompressionCodecs.NONE to store everything as is.
+     * @param chunkSize The average chunk size of content stored with {@link #storeChunked}.
+     */
+    public BlobStore(Path root, BlobDAO blobDAO, CompressionCodec codec, int chunkSize) {
+        this.root = root;
+        this.tmpDir = root.resolve(TMP_DIR);
+        this.blobDAO = blobDAO;
+        this.codec = codec;
+        this.chunkSize = chunkSize;
+        // Ensure the locker directory exists
+        if (!Files.exists(tmpDir)) {
+            try {
+                Files.createDirectories(tmpDir);
+                System.out.println("Created locker directory: " + root);
+            } catch (IOException e) {
+                System.err.println("Failed to create locker directory: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Replicates the blobs this store writes and deletes from now on, and restores lost or corrupt
+     * ones from the replica.
+     * @param replicator The replicator, or null to stop logging changes.
+     */
+    public void setReplicator(BlobReplicator replicator) {
+        this.replicator = replicator;
+    }
+
+    /**
+     * Promotes cold blobs back into this store when they are read, and lets the tiering pass demote blobs.
+     * @param tiering The tiering, or null if there is no cold tier.
+     */
+    public void setTiering(StorageTiering tiering) {
+        this.tiering = tiering;
+    }
+
+    /**
+     * Streams content into the store without encryption.
+     * @see #store(InputStream, SecretKey)
+     */
+    public StoredBlob store(InputStream in) throws IOException, SQLException {
+        return store(in, null);
+    }
+
+    /**
+     * Streams content into the store. The SHA-256 digest of the original bytes is computed while they
+     * are compressed, encrypted and written; if a blob with the same name already exists the new copy
+     * is discarded and a reference is added instead.
+     * @param in The content to store. It is read to the end but not closed.
+     * @param key The owner's data key to encrypt with, or null to store the content unencrypted.
+     * @return The StoredBlob describing where the content lives.
+     * @throws IOException If the content cannot be written.
+     * @throws SQLException If the blob reference cannot be recorded.
+     */
+    public StoredBlob store(InputStream in, SecretKey key) throws IOException, SQLException {
+        Path tempFile = Files.createTempFile(tmpDir, "upload-", ".part");
+        try {
+            byte[] sample = in.readNBytes(SAMPLE_SIZE);
+            CompressionCodec chosen = chooseCodec(sample, sample.length);
+            MessageDigest digest = newDigest();
+            Checksum crc = new CRC32C();
+            long size;
+            try (OutputStream out = encode(new CheckedOutputStream(Files.newOutputStream(tempFile), crc), chosen, key)) {
+                size = new DigestInputStream(new SequenceInputStream(new ByteArrayInputStream(sample), in), digest)
+                        .transferTo(out);
+            }
+            return commit(tempFile, blobName(digest.digest(), key), size, chosen, key, crc.getValue());
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Streams content into the store as content-defined chunks, for a file kept in several versions.
+     * Each chunk is deduplicated, compressed and encrypted like any other blob, so a new version only
+     * writes the chunks its edits changed. The chunks are listed in a manifest blob, which holds one
+     * reference to each and is what the files row points to; its codec is {@link #CHUNKED}.
+     * @param in The content to store. It is read to the end but not closed.
+     * @param key The owner's data key to encrypt the chunks with, or null to store them unencrypted.
+     * @return The StoredBlob of the manifest, with the size of the whole content.
+     * @throws IOException If the content cannot be written.
+     * @throws SQLException If a blob reference cannot be recorded.
+     */
+    public StoredBlob storeChunked(InputStream in, SecretKey key) throws IOException, SQLException {
+        Chunker chunker = new Chunker(in, chunkSize);
+        byte[] chunk = new byte[chunker.getMaxSize()];
+        List<ChunkRef> chunks = new ArrayList<>();
+        boolean referenced = false; // Whether a manifest now holds the references taken on the chunks
+        try {
+            long size = 0;
+            int length;
+            while ((length = chunker.nextChunk(chunk)) != -1) {
+                chunks.add(storeChunk(chunk, length, key));
+                size += length;
+            }
+            ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+            writeManifest(new DataOutputStream(manifest), chunks);
+            byte[] bytes = manifest.toByteArray();
+            Checksum crc = new CRC32C();
+            crc.update(bytes, 0, bytes.length);
+            Path tempFile = Files.createTempFile(tmpDir, "manifest-", ".part");
+            StoredBlob blob;
+            try {
+                Files.write(tempFile, bytes);
+                blob = commit(tempFile, manifestName(bytes), size, MANIFEST, key, crc.getValue());
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+            // A manifest recorded before, even one just healed, already holds references to the same chunks
+            referenced = blob.isCreated();
+            return blob;
+        } finally {
+            if (!referenced) {
+                releaseChunks(chunks);
+            }
+        }
+    }
+
+    /**
+     * Stores one chunk. A chunk that is already stored intact only gains a reference; nothing is
+     * encoded or written, which is what makes storing a lightly edited version cheap.
+     */
+    private ChunkRef storeChunk(byte[] data, int length, SecretKey key) throws IOException, SQLException {
+        MessageDigest digest = newDigest();
+        digest.update(data, 0, length);
+        String name = blobName(digest.digest(), key).substring(0, CHUNK_NAME_LENGTH) + CHUNK_SUFFIX;
+        synchronized (lockFor(name)) {
+            BlobIntegrity existing = blobDAO.getIntegrity(name);
+            if (existing != null && !existing.isCorrupt() && Files.exists(resolve(name))) {
+                blobDAO.acquireReference(name, length, existing.getCodec(), existing.getStoredBytes(),
+                        existing.getCrc32c());
+                DEDUP_HITS.incrementAndGet();
+                BYTES_DEDUPLICATED.addAndGet(length);
+                return new ChunkRef(name, length, existing.getCodec());
+            }
+        }
+        CompressionCodec chosen = chooseCodec(data, Math.min(length, SAMPLE_SIZE));
+        Path tempFile = Files.createTempFile(tmpDir, "chunk-", ".part");
+        try {
+            Checksum crc = new CRC32C();
+            try (OutputStream out = encode(new CheckedOutputStream(Files.newOutputStream(tempFile), crc), chosen, key)) {
+                out.write(data, 0, length);
+            }
+            StoredBlob blob = commit(tempFile, name, length, chosen, key, crc.getValue());
+            return new ChunkRef(name, length, blob.getCodec());
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Tells whether a codec recorded with a file is that of chunked content, which is read back through
+     * its manifest rather than decoded as one blob.
+     */
+    public static boolean isChunked(String codec) {
+        return CHUNKED.equals(codec);
+    }
+
+    /**
+     * Moves a fully written file into the store, hashing it first. Content that is compressed or
+     * encrypted is rewritten; otherwise the file is moved into place as it is.
+     * The source file is consumed: it is either moved into place or deleted.
+     * @param file A file on the same file system as the store (e.g. in the staging area).
+     * @param key The owner's data key to encrypt with, or null to store the content unencrypted.
+     * @return The StoredBlob describing where the content lives.
+     * @throws IOException If the file cannot be read or moved into place.
+     * @throws SQLException If the blob reference cannot be recorded.
+     */
+    StoredBlob storeFile(Path file, SecretKey key) throws IOException, SQLException {
+        CompressionCodec chosen;
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] sample = in.readNBytes(SAMPLE_SIZE);
+            chosen = chooseCodec(sample, sample.length);
+        }
+        if (chosen != CompressionCodecs.NONE || key != null) {
+            try (InputStream in = Files.newInputStream(file)) {
+                StoredBlob blob = store(in, key);
+                Files.delete(file);
+                return blob;
+            }
+        }
+
+        MessageDigest digest = newDigest();
+        Checksum crc = new CRC32C(); // Stored as is, so the bytes on disk are the bytes hashed
+        long size = 0;
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                crc.update(buffer, 0, read);
+                size += read;
+            }
+        }
+        return commit(file, toHex(digest.digest()), size, CompressionCodecs.NONE, null, crc.getValue());
+    }
+
+    /**
+     * Moves an already written file into the store under the given name.
+     * The source file is consumed: it is either moved into place or deleted.
+     * @param tempFile A file on the same file system as the store holding the content, encoded with codec.
+     * @param name The blob's name: the hex SHA-256 digest of the original content, keyed if encrypted.
+     * @param size The size of the original content in bytes.
+     * @param codec The codec tempFile is compressed with.
+     * @param key The key tempFile is encrypted with, or null.
+     * @param crc32c The CRC-32C of tempFile's bytes.
+     * @return The StoredBlob describing where the content lives.
+     * @throws IOException If the file cannot be moved into place.
+     * @throws SQLException If the blob reference cannot be recorded.
+     */
+    StoredBlob commit(Path tempFile, String name, long size, CompressionCodec codec, SecretKey key, long crc32c)
+            throws IOException, SQLException {
+        String storedCodec;
+        synchronized (lockFor(name)) {
+            boolean created = blobDAO.acquireReference(name, size, codec.getName(), Files.size(tempFile), crc32c);
+            try {
+                BlobIntegrity existing = created ? null : blobDAO.getIntegrity(name);
+                storedCodec = created ? codec.getName() : existing.getCodec();
+                Path current = resolve(name);
+                if (created || !Files.exists(current) || existing.isCorrupt()) {
+                    // First copy of this content (or a lost or corrupt one being healed): move it into place,
+                    // encoded the way the blobs row says it is
+                    Path source = tempFile;
+                    long sourceCrc32c = crc32c;
+                    if (!codec.getName().equals(storedCodec)) {
+                        Checksum crc = new CRC32C();
+                        source = recode(tempFile, codec, CompressionCodecs.forName(storedCodec), key, crc);
+                        sourceCrc32c = crc.getValue();
+                        Files.delete(tempFile);
+                    }
+                    Path target = shardedPath(name);
+                    Files.createDirectories(target.getParent());
+                    long storedBytes = Files.size(source);
+                    Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    if (!created) {
+                        if (!current.equals(target)) {
+                            Files.deleteIfExists(current); // A damaged flat copy
+                        }
+                        blobDAO.replaceContent(name, storedBytes, sourceCrc32c);
+                        discardColdCopy(name); // Content uploaded again is hot
+                    }
+                    logStored(name);
+                    return new StoredBlob(name, size, storedCodec, key != null, false, created);
+                }
+                // A reused blob counts as new, so the orphan reconciler leaves it alone until its row is saved
+                Files.setLastModifiedTime(current, FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (IOException | RuntimeException e) {
+                blobDAO.releaseReference(name);
+                throw e;
+            }
+        }
+        Files.deleteIfExists(tempFile);
+        DEDUP_HITS.incrementAndGet();
+        BYTES_DEDUPLICATED.addAndGet(size);
+        return new StoredBlob(name, size, storedCodec, key != null, true, false);
+    }
+
+    /**
+     * Opens a stored blob as a stream of its original bytes, decrypting and decompressing it if needed.
+     * @param storedName The stored filename recorded in the files table.
+     * @param codec The codec name recorded with the file.
+     * @param key The owner's data key if the file is encrypted, otherwise null.
+     * @return An InputStream of the original content.
+     * @throws IOException If the blob does not exist or cannot be opened.
+     */
+    public InputStream openStream(String storedName, String codec, SecretKey key) throws IOException {
+        if (isChunked(codec)) {
+            return new ChunkedInputStream(readManifest(storedName, null), key, 0, false);
+        }
+        return decode(Channels.newInputStream(openChannel(storedName)), CompressionCodecs.forName(codec), key);
+    }
+
+    /**
+     * Opens a stored blob like {@link #openStream}, checking the bytes read from disk against the size
+     * and CRC-32C recorded when the blob was written. A mismatch surfaces as a CorruptBlobException when
+     * the stream is closed, after the last byte has been handed out; a stream closed well before the
+     * end is not checked. Blobs without a recorded checksum are opened unchecked. Chunked content is
+     * checked chunk by chunk, and a chunk found corrupt is flagged as the stream moves past it.
+     * @param storedName The stored filename recorded in the files table.
+     * @param codec The codec name recorded with the file.
+     * @param key The owner's data key if the file is encrypted, otherwise null.
+     * @return An InputStream of the original content.
+     * @throws IOException If the blob does not exist or cannot be opened.
+     * @throws SQLException If the recorded checksum cannot be read.
+     */
+    public InputStream openVerifiedStream(String storedName, String codec, SecretKey key)
+            throws IOException, SQLException {
+        BlobIntegrity integrity = blobDAO.getIntegrity(storedName);
+        if (isChunked(codec)) {
+            return new ChunkedInputStream(readManifest(storedName, integrity), key, 0, true);
+        }
+        if (integrity == null || integrity.getCrc32c() == BlobIntegrity.UNKNOWN) {
+            return openStream(storedName, codec, key);
+        }
+        InputStream raw = new VerifyingInputStream(Channels.newInputStream(openChannel(storedName)), integrity);
+        return decode(raw, CompressionCodecs.forName(codec), key);
+    }
+
+    /**
+     * Re-reads a blob under its lock, so that no upload is healing it meanwhile, and flags it corrupt
+     * if its bytes on disk disagree with what was recorded. Used to confirm a mismatch seen without the lock.
+     * @param storedName The stored filename.
+     * @return true if the blob is corrupt (or missing from disk) and is now flagged.
+     * @throws IOException If the blob cannot be read.
+     * @throws SQLException If the recorded checksum cannot be read or the flag cannot be set.
+     */
+    boolean confirmCorrupt(String storedName) throws IOException, SQLException {
+        synchronized (lockFor(storedName)) {
+            BlobIntegrity integrity = blobDAO.getIntegrity(storedName);
+            if (integrity == null) {
+                return false; // Released meanwhile
+            }
+            boolean corrupt;
+            try (InputStream in = openStoredBytes(storedName)) {
+                Checksum crc = new CRC32C();
+                long bytes = checksum(in, crc, null);
+                corrupt = !integrity.matches(bytes, crc.getValue());
+            } catch (NoSuchFileException | ZipException | EOFException e) {
+                corrupt = true; // Missing, or a cold copy that no longer inflates
+            }
+            if (corrupt) {
+                blobDAO.recordVerification(storedName, BlobIntegrity.UNKNOWN, true);
+            }
+            return corrupt;
+        }
+    }
+
+    /**
+     * Reads a stream to the end, feeding its bytes to a checksum.
+     * @param limiter Throttles the read in bytes per second, or null to read at full speed.
+     * @return The number of bytes read.
+     */
+    static long checksum(InputStream in, Checksum crc, RateLimiter limiter) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            if (limiter != null) {
+                try {
+                    limiter.acquire(read);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Checksum interrupted");
+                }
+            }
+            crc.update(buffer, 0, read);
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Opens part of an encrypted, uncompressed blob. Only the frames covering the range are read and decrypted.
+     * @param storedName The stored filename recorded in the files table.
+     * @param key The owner's data key.
+     * @param offset The position of the first byte wanted.
+     * @param length The number of bytes wanted.
+     * @return An InputStream starting at offset; callers should stop reading after length bytes.
+     * @throws IOException If the blob does not exist or cannot be decrypted.
+     */
+    public InputStream openEncryptedRange(String storedName, SecretKey key, long offset, long length)
+            throws IOException {
+        FileChannel channel = openChannel(storedName);
+        try {
+            return FRAME_CIPHER.decryptRange(channel, key, offset, length);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens chunked content from an offset on. Chunks wholly before the offset are not read at all.
+     * @param storedName The stored filename of the manifest.
+     * @param key The owner's data key if the file is encrypted, otherwise null.
+     * @param offset The position of the first byte wanted.
+     * @return An InputStream starting at offset.
+     * @throws IOException If the manifest does not exist or cannot be read.
+     */
+    public InputStream openChunkedRange(String storedName, SecretKey key, long offset) throws IOException {
+        return new ChunkedInputStream(readManifest(storedName, null), key, offset, false);
+    }
+
+    /**
+     * Drops one reference to a stored blob, deleting it from disk when the last reference goes.
+     * Files stored before deduplication are not reference counted and are deleted immediately.
+     * When the last reference to a chunk manifest goes, its chunks are released in turn.
+     * @param storedName The stored filename recorded in the files table.
+     * @return true if the content was removed from disk, false if other references keep it alive.
+     * @throws IOException If the blob cannot be deleted from disk.
+     * @throws SQLException If the blob reference cannot be updated.
+     */
+    public boolean release(String storedName) throws IOException, SQLException {
+        List<ChunkRef> chunks;
+        boolean deleted;
+        synchronized (lockFor(storedName)) {
+            // Read while the manifest is certainly still on disk; it is small
+            chunks = isChunked(blobDAO.getCodec(storedName)) ? readManifestIfPresent(storedName) : null;
+            int remaining = blobDAO.releaseReference(storedName);
+            if (remaining > 0) {
+                return false;
+            }
+            deleted = Files.deleteIfExists(resolve(storedName));
+            deleted |= discardCold(storedName);
+            logDeleted(storedName);
+        }
+        if (chunks != null) {
+            releaseChunks(chunks); // Outside the manifest's lock: chunks hash to other stripes
+        }
+        return deleted;
+    }
+
+    /**
+     * Drops one reference to each chunk, deleting those no longer used. Failures are reported and
+     * leave the chunk behind for the orphan reconciler; they do not stop the others being released.
+     */
+    private void releaseChunks(List<ChunkRef> chunks) {
+        for (ChunkRef chunk : chunks) {
+            try {
+                synchronized (lockFor(chunk.name)) {
+                    if (blobDAO.releaseReference(chunk.name) == 0) {
+                        Files.deleteIfExists(resolve(chunk.name));
+                        discardCold(chunk.name);
+                        logDeleted(chunk.name);
+                    }
+                }
+            } catch (IOException | SQLException e) {
+                System.err.println("Could not release chunk " + chunk.name + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Deletes a blob that no files row refers to, such as one left behind by a crash between storing
+     * content and saving its row, together with its blobs row. Everything is checked again under the
+     * blob's lock, where {@link #commit} takes references: the blob must not have been written or
+     * reused within minAgeMillis, and unreferenced must still hold.
+     * @param storedName The stored filename.
+     * @param minAgeMillis How long ago the blob must last have been written or reused.
+     * @param unreferenced Tells whether any files row refers to the blob now.
+     * @return true if the blob was deleted.
+     * @throws IOException If the blob cannot be deleted from disk.
+     * @throws SQLException If the check or the blob reference update fails.
+     */
+    boolean deleteOrphan(String storedName, long minAgeMillis, OrphanCheck unreferenced)
+            throws IOException, SQLException {
+        List<ChunkRef> chunks;
+        boolean deleted;
+        synchronized (lockFor(storedName)) {
+            Path file = resolve(storedName);
+            long modified = lastModifiedMillis(storedName);
+            if (modified < 0 || modified > System.currentTimeMillis() - minAgeMillis || !unreferenced.test()) {
+                return false;
+            }
+            // An orphaned manifest still holds references to its chunks
+            chunks = isChunked(blobDAO.getCodec(storedName)) ? readManifestIfPresent(storedName) : null;
+            while (blobDAO.releaseReference(storedName) > 0) {
+                // Drop every leaked reference; releaseReference removes the row once none are left
+            }
+            deleted = Files.deleteIfExists(file);
+            deleted |= discardCold(storedName);
+            logDeleted(storedName);
+        }
+        if (chunks != null) {
+            releaseChunks(chunks);
+        }
+        return deleted;
+    }
+
+    /** Re-checks, under a blob's lock, that nothing refers to it. */
+    interface OrphanCheck {
+        boolean test() throws SQLException;
+    }
+
+    /**
+     * Resolves a stored filename to its location on disk.
+     * New blobs live in a two-level fan-out (ab/cd/abcd...) derived from the name; files written before
+     * the sharded layout may still sit directly in the locker directory until they are migrated,
+     * so both places are checked.
+     * @param storedName The stored filename recorded in the files table.
+     * @return The Path of the stored content, or where it would be written if it does not exist yet.
+     */
+    public Path resolve(String storedName) {
+        Path sharded = shardedPath(storedName);
+        if (Files.exists(sharded)) {
+            return sharded;
+        }
+        Path flat = root.resolve(storedName);
+        return Files.exists(flat) ? flat : sharded;
+    }
+
+    /**
+     * Opens a stored blob for reading. If the blob is moved to the sharded layout between resolving
+     * and opening it, the lookup is retried, so readers never notice an online migration. A blob in the
+     * cold tier is promoted back first; one that is missing from disk is restored from the replica, if
+     * there is one.
+     * @param storedName The stored filename recorded in the files table.
+     * @return An open read-only FileChannel.
+     * @throws IOException If the blob does not exist or cannot be opened.
+     */
+    public FileChannel openChannel(String storedName) throws IOException {
+        try {
+            return FileChannel.open(resolve(storedName), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            try {
+                return FileChannel.open(resolve(storedName), StandardOpenOption.READ);
+            } catch (NoSuchFileException missing) {
+                if (!promote(storedName) && !repairFromReplica(storedName)) {
+                    throw missing;
+                }
+                return FileChannel.open(resolve(storedName), StandardOpenOption.READ);
+            }
+        }
+    }
+
+    /**
+     * Replaces a blob that is missing from disk or corrupt with its replica, if the replica matches the
+     * size and checksum recorded when the blob was written. Blobs without a blobs row (released, or
+     * stored before deduplication) are left alone, so a deleted blob is never brought back.
+     * @param storedName The stored filename.
+     * @return true if the blob was restored.
+     */
+    boolean repairFromReplica(String storedName) {
+        BlobReplicator replica = replicator;
+        if (replica == null) {
+            return false;
+        }
+        synchronized (lockFor(storedName)) {
+            try {
+                BlobIntegrity integrity = blobDAO.getIntegrity(storedName);
+                if (integrity == null) {
+                    return false;
+                }
+                Checksum crc = new CRC32C();
+                Path copy = replica.fetch(storedName, integrity, tmpDir, crc);
+                if (copy == null) {
+                    return false;
+                }
+                Path current = resolve(storedName);
+                Path target = shardedPath(storedName);
+                Files.createDirectories(target.getParent());
+                long storedBytes = Files.size(copy);
+                Files.move(copy, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                if (!current.equals(target)) {
+                    Files.deleteIfExists(current); // A damaged flat copy
+                }
+                blobDAO.replaceContent(storedName, storedBytes, crc.getValue());
+                discardColdCopy(storedName); // A corrupt cold copy
+                System.out.println("Restored stored file " + storedName + " from the replica.");
+                return true;
+            } catch (IOException | SQLException e) {
+                System.err.println("Could not restore stored file " + storedName + " from the replica: " + e.getMessage());
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Brings a blob back from the cold tier, checked against the size and checksum recorded when it
+     * was written. Blobs without a blobs row are never brought back, like with the replica.
+     * @param storedName The stored filename.
+     * @return true if the blob is in the hot tier now, whether promoted by this call or another.
+     */
+    boolean promote(String storedName) {
+        StorageTiering cold = tiering;
+        if (cold == null) {
+            return false;
+        }
+        long startNanos = System.nanoTime();
+        synchronized (lockFor(storedName)) {
+            try {
+                if (Files.exists(resolve(storedName))) {
+                    return true; // Another reader promoted it first
+                }
+                BlobIntegrity integrity = blobDAO.getIntegrity(storedName);
+                if (integrity == null) {
+                    return false;
+                }
+                Checksum crc = new CRC32C();
+                Path copy = cold.fetchCold(storedName, integrity, tmpDir, crc);
+                if (copy == null) {
+                    return false;
+                }
+                Path target = shardedPath(storedName);
+                Files.createDirectories(target.getParent());
+                long storedBytes = Files.size(copy);
+                // The new file's modification time is now, so the next tiering pass leaves it alone
+                Files.move(copy, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                cold.discardCold(storedName);
+                logStored(storedName);
+                cold.promoted(storedName, storedBytes, startNanos);
+                return true;
+            } catch (IOException | SQLException e) {
+                cold.promotionFailed(storedName, e, startNanos);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Moves a blob to the cold tier. Its bytes are compressed into the cold tier's staging area without
+     * the lock, so readers are not held up; everything is then checked again under the blob's lock: the
+     * blob must be unchanged and not flagged corrupt, and not have been written, reused or promoted
+     * within minAgeMillis. Blobs without a recorded checksum are left hot until the scrubber records one.
+     * @param storedName The stored filename.
+     * @param minAgeMillis How long ago the blob must last have been written, reused or promoted.
+     * @param limiter Throttles the read in bytes per second.
+     * @return true if the blob is in the cold tier now, whether moved by this call or before.
+     * @throws IOException If the blob cannot be read or the cold copy written.
+     * @throws SQLException If the recorded checksum cannot be read.
+     */
+    boolean demote(String storedName, long minAgeMillis, RateLimiter limiter) throws IOException, SQLException {
+        StorageTiering cold = tiering;
+        if (cold == null) {
+            return false;
+        }
+        BlobIntegrity integrity = blobDAO.getIntegrity(storedName);
+        if (integrity == null || integrity.isCorrupt() || integrity.getCrc32c() == BlobIntegrity.UNKNOWN) {
+            return false;
+        }
+        long modified = hotModifiedMillis(storedName);
+        if (modified < 0) {
+            return cold.isCold(storedName);
+        }
+        if (modified > System.currentTimeMillis() - minAgeMillis) {
+            return false;
+        }
+        Path staged;
+        try (InputStream in = Files.newInputStream(resolve(storedName))) {
+            staged = cold.stageCold(in, integrity, limiter);
+        } catch (NoSuchFileException e) {
+            return cold.isCold(storedName); // Released, or moved by another pass, meanwhile
+        }
+        if (staged == null) {
+            return false; // Does not match its checksum: the scrubber deals with it
+        }
+        try {
+            synchronized (lockFor(storedName)) {
+                BlobIntegrity current = blobDAO.getIntegrity(storedName);
+                Path file = resolve(storedName);
+                modified = hotModifiedMillis(storedName);
+                if (current == null || current.isCorrupt()
+                        || !current.matches(integrity.getStoredBytes(), integrity.getCrc32c())
+                        || modified < 0 || modified > System.currentTimeMillis() - minAgeMillis) {
+                    return false;
+                }
+                cold.commitCold(storedName, staged, integrity.getStoredBytes());
+                staged = null;
+                Files.delete(file);
+                return true;
+            }
+        } finally {
+            if (staged != null) {
+                Files.deleteIfExists(staged);
+            }
+        }
+    }
+
+    /**
+     * Lists the chunks of chunked content, reading its manifest from whichever tier holds it.
+     * @param storedName The stored filename of the manifest.
+     * @return The chunks' stored filenames, in content order.
+     * @throws IOException If the manifest does not exist or cannot be read.
+     */
+    List<String> chunkNames(String storedName) throws IOException {
+        List<String> names = new ArrayList<>();
+        for (ChunkRef chunk : parseManifest(storedName, openStoredBytes(storedName))) {
+            names.add(chunk.name);
+        }
+        return names;
+    }
+
+    /**
+     * Tells whether a blob is on disk in either tier.
+     */
+    boolean isStored(String storedName) {
+        if (Files.exists(resolve(storedName))) {
+            return true;
+        }
+        StorageTiering cold = tiering;
+        return cold != null && cold.isCold(storedName);
+    }
+
+    /**
+     * Opens a blob's bytes as stored in the hot tier, from whichever tier holds it, without promoting it.
+     * Used to check a blob without making it hot.
+     * @throws NoSuchFileException If the blob is in neither tier.
+     */
+    InputStream openStoredBytes(String storedName) throws IOException {
+        try {
+            return Files.newInputStream(resolve(storedName));
+        } catch (NoSuchFileException e) {
+            StorageTiering cold = tiering;
+            if (cold == null) {
+                throw e;
+            }
+            try {
+                return cold.openCold(storedName);
+            } catch (NoSuchFileException notCold) {
+                return Files.newInputStream(resolve(storedName)); // Promoted meanwhile
+            }
+        }
+    }
+
+    /** @return When the blob's hot copy was last written, reused or promoted, or -1 if it has none. */
+    private long hotModifiedMillis(String storedName) throws IOException {
+        try {
+            return Files.getLastModifiedTime(resolve(storedName)).toMillis();
+        } catch (NoSuchFileException e) {
+            return -1;
+        }
+    }
+
+    /** @return When the blob was last written, reused, promoted or demoted, or -1 if it is in neither tier. */
+    private long lastModifiedMillis(String storedName) throws IOException {
+        long modified = hotModifiedMillis(storedName);
+        StorageTiering cold = tiering;
+        return modified >= 0 || cold == null ? modified : cold.coldModifiedMillis(storedName);
+    }
+
+    private boolean discardCold(String storedName) throws IOException {
+        StorageTiering cold = tiering;
+        return cold != null && cold.discardCold(storedName);
+    }
+
+    /** Drops the cold copy a new hot copy supersedes, and has the blob's rows recorded as hot again. */
+    private void discardColdCopy(String storedName) throws IOException {
+        StorageTiering cold = tiering;
+        if (cold != null && cold.discardCold(storedName)) {
+            cold.markHot(storedName);
+        }
+    }
+
+    /**
+     * Moves a blob stored in the flat legacy layout to its sharded location.
+     * @param flatFile A file directly inside the locker directory.
+     * @return true if the file was moved (or was a duplicate of an already sharded copy), false if it is gone.
+     * @throws IOException If the file cannot be moved.
+     */
+    boolean moveToShardedLayout(Path flatFile) throws IOException {
+        String storedName = flatFile.getFileName().toString();
+        synchronized (lockFor(storedName)) {
+            if (!Files.exists(flatFile)) {
+                return false; // Deleted (or already migrated) meanwhile
+            }
+            Path target = shardedPath(storedName);
+            if (Files.exists(target)) {
+                Files.delete(flatFile); // Same name means same content; the sharded copy wins
+                return true;
+            }
+            Files.createDirectories(target.getParent());
+            Files.move(flatFile, target, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        }
+    }
+
+    /**
+     * @return The locker directory this store writes to.
+     */
+    Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Tells whether a stored name can live in the sharded layout; names that are too short, or that
+     * start with a dot like the store's own working directories, are not blobs.
+     */
+    static boolean isShardable(String storedName) {
+        return storedName.length() >= SHARD_PREFIX_LENGTH && storedName.charAt(0) != '.';
+    }
+
+    private Path shardedPath(String storedName) {
+        return shardedPath(root, storedName);
+    }
+
+    /**
+     * @return Where a blob lives in the sharded layout under the given root.
+     */
+    static Path shardedPath(Path root, String storedName) {
+        if (!isShardable(storedName)) {
+            return root.resolve(storedName);
+        }
+        return root.resolve(storedName.substring(0, 2)).resolve(storedName.substring(2, 4)).resolve(storedName);
+    }
+
+    private void logStored(String storedName) {
+        BlobReplicator replica = replicator;
+        if (replica != null) {
+            replica.blobStored(storedName);
+        }
+    }
+
+    private void logDeleted(String storedName) {
+        BlobReplicator replica = replicator;
+        if (replica != null) {
+            replica.blobDeleted(storedName);
+        }
+    }
+
+    /**
+     * Picks the codec for new content from a sample of its first bytes. The sample is compressed with
+     * fast deflate; data that is already compressed (JPEG, ZIP, MP4, ...) barely shrinks and is stored
+     * as it is, so it costs no CPU on the way in or out.
+     */
+    CompressionCodec chooseCodec(byte[] sample, int length) {
+        if (codec == CompressionCodecs.NONE || length < MIN_COMPRESSIBLE_SIZE) {
+            return CompressionCodecs.NONE;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] out = new byte[length];
+            long limit = (long) (length * MAX_SAMPLE_RATIO);
+            while (!deflater.finished() && deflater.getBytesWritten() <= limit) {
+                deflater.deflate(out);
+            }
+            return deflater.getBytesWritten() <= limit ? codec : CompressionCodecs.NONE;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Builds the write pipeline: plaintext is compressed first, then encrypted.
+     */
+    private static OutputStream encode(OutputStream raw, CompressionCodec codec, SecretKey key) throws IOException {
+        return codec.compress(key == null ? raw : FRAME_CIPHER.encrypt(raw, key));
+    }
+
+    private static InputStream decode(InputStream raw, CompressionCodec codec, SecretKey key) throws IOException {
+        return codec.decompress(key == null ? raw : FRAME_CIPHER.decrypt(raw, key));
+    }
+
+    private Path recode(Path file, CompressionCodec from, CompressionCodec to, SecretKey key, Checksum crc)
+            throws IOException {
+        Path recoded = Files.createTempFile(tmpDir, "recode-", ".part");
+        try (InputStream in = decode(Files.newInputStream(file), from, key);
+             OutputStream out = encode(new CheckedOutputStream(Files.newOutputStream(recoded), crc), to, key)) {
+            in.transferTo(out);
+        } catch (IOException e) {
+            Files.deleteIfExists(recoded);
+            throw e;
+        }
+        return recoded;
+    }
+
+    /**
+     * Names a blob after its content. Encrypted blobs are named by an HMAC of the digest under the
+     * owner's key, so equal content is deduplicated within one user's locker only, and the names on
+     * disk reveal nothing about the content to anyone without the key.
+     */
+    private static String blobName(byte[] sha256, SecretKey key) {
+        if (key == null) {
+            return toHex(sha256);
+        }
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return toHex(mac.doFinal(sha256));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e); // Mandatory on every Java platform
+        }
+    }
+
+    /**
+     * Names a manifest after its bytes, with an HMAC under a key of its own: a manifest's name can never
+     * be that of uploaded content, so no upload can be deduplicated against someone's manifest.
+     */
+    private static String manifestName(byte[] manifest) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(MANIFEST_NAME_KEY);
+            return toHex(mac.doFinal(manifest));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e); // Mandatory on every Java platform
+        }
+    }
+
+    private static void writeManifest(DataOutputStream out, List<ChunkRef> chunks) throws IOException {
+        out.writeInt(MANIFEST_MAGIC);
+        out.writeInt(chunks.size());
+        for (ChunkRef chunk : chunks) {
+            out.writeUTF(chunk.name);
+            out.writeInt(chunk.length);
+            out.writeUTF(chunk.codec);
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads the chunk list of a manifest, checking its bytes against integrity if it is given.
+     */
+    private List<ChunkRef> readManifest(String storedName, BlobIntegrity integrity) throws IOException {
+        InputStream raw = Channels.newInputStream(openChannel(storedName));
+        if (integrity != null && integrity.getCrc32c() != BlobIntegrity.UNKNOWN) {
+            raw = new VerifyingInputStream(raw, integrity);
+        }
+        return parseManifest(storedName, raw);
+    }
+
+    private static List<ChunkRef> parseManifest(String storedName, InputStream raw) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(raw))) {
+            if (in.readInt() != MANIFEST_MAGIC) {
+                throw new IOException("Stored file " + storedName + " is not a chunk manifest");
+            }
+            int count = in.readInt();
+            List<ChunkRef> chunks = new ArrayList<>(Math.min(count, 1024));
+            for (int i = 0; i < count; i++) {
+                chunks.add(new ChunkRef(in.readUTF(), in.readInt(), in.readUTF()));
+            }
+            return chunks;
+        } catch (EOFException e) {
+            throw new IOException("Chunk manifest " + storedName + " is truncated", e);
+        }
+    }
+
+    /**
+     * Reads a manifest that is about to be released, from whichever tier holds it. One lost from disk
+     * cannot be read; its chunks are left for the orphan reconciler rather than blocking the release for good.
+     */
+    private List<ChunkRef> readManifestIfPresent(String storedName) throws IOException {
+        try {
+            return parseManifest(storedName, openStoredBytes(storedName));
+        } catch (NoSuchFileException e) {
+            System.err.println("Chunk manifest " + storedName + " is missing from disk; its chunks are not released.");
+            return null;
+        }
+    }
+
+    /**
+     * Gets the persistent deduplication figures for the whole store.
+     * @return The DedupStats.
+     * @throws SQLException If a database access error occurs.
+     */
+    public DedupStats getDedupStats() throws SQLException {
+        return blobDAO.getDedupStats();
+    }
+
+    /**
+     * @return The number of uploads since startup that were satisfied by an existing blob.
+     */
+    public static long getDedupHits() {
+        return DEDUP_HITS.get();
+    }
+
+    /**
+     * @return The number of bytes since startup that were not written because the content was already stored.
+     */
+    public static long getBytesDeduplicated() {
+        return BYTES_DEDUPLICATED.get();
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e); // Mandatory on every Java platform
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+            hex[i * 2 + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+        }
+        return new String(hex);
+    }
+
+    private static Object lockFor(String storedName) {
+        return LOCKS[(storedName.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    /**
+     * Thrown when a blob's bytes on disk are not the bytes that were written.
+     */
+    public static class CorruptBlobException extends IOException {
+        private final String storedName;
+
+        public CorruptBlobException(String storedName, String message) {
+            super(message);
+            this.storedName = storedName;
+        }
+
+        public String getStoredName() {
+            return storedName;
+        }
+    }
+
+    /**
+     * Checksums raw blob bytes as they are read and compares them with the recorded values on close.
+     * Decoders may stop short of the raw end (a deflate trailer, say), so the last bytes are drained on
+     * close; a reader that gave up long before the end is not made to read the rest.
+     */
+    private static final class VerifyingInputStream extends FilterInputStream {
+        private static final long MAX_DRAIN_BYTES = 64 * 1024;
+
+        private final BlobIntegrity integrity;
+        private final Checksum crc = new CRC32C();
+        private long bytesRead;
+
+        VerifyingInputStream(InputStream in, BlobIntegrity integrity) {
+            super(in);
+            this.integrity = integrity;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                crc.update(b);
+                bytesRead++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = in.read(buffer, offset, length);
+            if (read > 0) {
+                crc.update(buffer, offset, read);
+                bytesRead += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Every byte has to pass through the checksum, so skipped bytes are read
+            byte[] buffer = new byte[(int) Math.min(Math.max(n, 0), 8192)];
+            long skipped = 0;
+            int read;
+            while (skipped < n && (read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped))) > 0) {
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                long expected = integrity.getStoredBytes();
+                if (expected == BlobIntegrity.UNKNOWN || expected - bytesRead <= MAX_DRAIN_BYTES) {
+                    bytesRead += checksum(in, crc, null);
+                    if (!integrity.matches(bytesRead, crc.getValue())) {
+                        throw new CorruptBlobException(integrity.getSha256(), "checksum failed, "
+                                + bytesRead + " bytes on disk, CRC-32C "
+                                + Long.toHexString(crc.getValue()) + ", expected " + Long.toHexString(integrity.getCrc32c()));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * One entry of a chunk manifest.
+     */
+    private static final class ChunkRef {
+        private final String name;
+        private final int length; // Bytes of original content
+        private final String codec;
+
+        ChunkRef(String name, int length, String codec) {
+            this.name = name;
+            this.length = length;
+            this.codec = codec;
+        }
+    }
+
+    /**
+     * Reads chunked content as the concatenation of its chunks, opening each only when it is reached.
+     * In verify mode each chunk is checked as it is read, and one that fails to decode is re-read under
+     * its lock and flagged if it is corrupt, as a caller would for a whole blob.
+     */
+    private final class ChunkedInputStream extends InputStream {
+        private final List<ChunkRef> chunks;
+        private final SecretKey key;
+        private final boolean verify;
+        private int next; // Index of the next chunk to open
+        private long skip; // Bytes to skip at the start of the next chunk
+        private ChunkRef chunk;
+        private InputStream current;
+
+        ChunkedInputStream(List<ChunkRef> chunks, SecretKey key, long offset, boolean verify) {
+            this.chunks = chunks;
+            this.key = key;
+            this.verify = verify;
+            while (next < chunks.size() && offset >= chunks.get(next).length) {
+                offset -= chunks.get(next).length;
+                next++;
+            }
+            this.skip = offset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            while (true) {
+                if (current == null && !openNext()) {
+                    return -1;
+                }
+                int read;
+                try {
+                    read = current.read(buffer, offset, length);
+                } catch (IOException e) {
+                    throw failed(e);
+                }
+                if (read != -1) {
+                    return read;
+                }
+                InputStream finished = current;
+                current = null;
+                try {
+                    finished.close(); // Checks the chunk's checksum in verify mode
+                } catch (IOException e) {
+                    throw failed(e);
+                }
+            }
+        }
+
+        private boolean openNext() throws IOException {
+            if (next == chunks.size()) {
+                return false;
+            }
+            chunk = chunks.get(next++);
+            try {
+                current = verify ? openVerifiedStream(chunk.name, chunk.codec, key)
+                        : openStream(chunk.name, chunk.codec, key);
+                while (skip > 0) {
+                    long skipped = current.skip(skip);
+                    if (skipped <= 0) {
+                        if (current.read() == -1) {
+                            break;
+                        }
+                        skipped = 1;
+                    }
+                    skip -= skipped;
+                }
+            } catch (SQLException e) {
+                throw new IOException("Could not read the checksum of chunk " + chunk.name + ": " + e.getMessage(), e);
+            } catch (IOException e) {
+                throw failed(e);
+            }
+            return true;
+        }
+
+        private IOException failed(IOException e) {
+            if (!verify || e instanceof CorruptBlobException || e instanceof InterruptedIOException
+                    || e instanceof ClosedByInterruptException) {
+                return e;
+            }
+            try {
+                if (confirmCorrupt(chunk.name)) {
+                    return new CorruptBlobException(chunk.name, "chunk unreadable: " + e.getMessage());
+                }
+            } catch (IOException | SQLException confirmFailure) {
+                e.addSuppressed(confirmFailure);
+            }
+            return e;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current != null) {
+                InputStream open = current;
+                current = null;
+                open.close();
+            }
+        }
+    }
+
+    /**
+     * The result of storing content: the blob's name and whether an existing copy was reused.
+     */
+    public static class StoredBlob {
+        private final String name;
+        private final long sizeBytes;
+        private final String codec;
+        private final boolean encrypted;
+        private final boolean deduplicated;
+        private final boolean created;
+
+        StoredBlob(String name, long sizeBytes, String codec, boolean encrypted, boolean deduplicated,
+                   boolean created) {
+            this.name = name;
+            this.sizeBytes = sizeBytes;
+            this.codec = codec;
+            this.encrypted = encrypted;
+            this.deduplicated = deduplicated;
+            this.created = created;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSizeBytes() {
+            return sizeBytes;
+        }
+
+        public String getCodec() {
+            return codec;
+        }
+
+        public boolean isEncrypted() {
+            return encrypted;
+        }
+
+        public boolean isDeduplicated() {
+            return deduplicated;
+        }
+
+        /**
+         * @return true if this store created the blob, false if it took a further reference to one already
+         *         recorded: a deduplicated copy, or one whose lost or corrupt file it healed.
+         */
+        public boolean isCreated() {
+            return created;
+        }
+    }
+}
@@ -0,0 +1,769 @@
+package com.digitallocker.service;
+
+import com.digitallocker.util.FrameCipher;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * One user's inverted index over file contents, kept on disk as immutable segments.
+ * Each indexing batch becomes a new segment; deletions are appended to a log and filtered out at
+ * search time until a merge rewrites the segments without them. A file indexed again replaces its
+ * earlier entry: only the newest segment holding a file counts for it, and a deletion applies to the
+ * segments that existed when it was made, so a file can be indexed again after it was deleted.
+ * Within a segment, terms are front-coded and each posting list is a run of varint-encoded
+ * (file ID delta, term frequency) pairs.
+ * Searches rank files with BM25 over the terms of the query.
+ * <p>
+ * Terms and postings reveal much of a file's text, so when the owner's data key is given, segments and
+ * the deletion log are written encrypted with it, the same way the files themselves are (see
+ * {@link FrameCipher}). The price is that opening the index decrypts every segment, and that the index
+ * cannot be opened without the key. Plaintext left from before encryption was turned on is still read,
+ * and {@link #encryptPlaintext()} rewrites it.
+ * <p>
+ * The index is derived data: a damaged segment is skipped (and reported) rather than failing the search.
+ */
+public class ContentIndex {
+    private static final int SEGMENT_MAGIC = 0x444c4349; // "DLCI"
+    private static final int SEGMENT_VERSION = 1;
+    private static final Pattern SEGMENT_NAME = Pattern.compile("seg-(\\d{8})\\.idx");
+    private static final String DELETED_FILE = "deleted.log";
+    private static final String SEALED_DELETED_FILE = "deleted.enc"; // Length-prefixed encrypted records
+    private static final int DELETION_BYTES = 12; // File ID, then the last segment the deletion applies to
+    private static final int MIN_TOKEN_LENGTH = 2;
+    private static final int MAX_TOKEN_LENGTH = 40;
+
+    // BM25 parameters
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private final Path dir;
+    private final SecretKey key;
+    private final FrameCipher cipher;
+    private volatile State state; // Replaced, never modified, so searches need no lock
+    private long nextSegment;
+    private boolean plaintextOnDisk; // Something was written before encryption was turned on
+
+    /** A document to index: a file's term frequencies. */
+    public static final class Document {
+        final int fileId;
+        final Map<String, Integer> termFrequencies;
+        final int length;
+
+        /**
+         * @param fileId The ID of the file.
+         * @param text The file's text.
+         */
+        public Document(int fileId, CharSequence text) {
+            this.fileId = fileId;
+            this.termFrequencies = new HashMap<>();
+            int tokens = 0;
+            for (String token : tokenize(text)) {
+                termFrequencies.merge(token, 1, Integer::sum);
+                tokens++;
+            }
+            this.length = tokens;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+
+    /** A ranked search result. */
+    public static final class Hit {
+        private final int fileId;
+        private final double score;
+
+        Hit(int fileId, double score) {
+            this.fileId = fileId;
+            this.score = score;
+        }
+
+        public int getFileId() {
+            return fileId;
+        }
+
+        public double getScore() {
+            return score;
+        }
+    }
+
+    private ContentIndex(Path dir, SecretKey key, FrameCipher cipher) {
+        this.dir = dir;
+        this.key = key;
+        this.cipher = cipher;
+    }
+
+    /**
+     * Opens a user's index that is kept in plaintext.
+     * @param dir The user's index directory.
+     * @return The opened index.
+     * @throws IOException If the directory cannot be read.
+     */
+    public static ContentIndex open(Path dir) throws IOException {
+        return open(dir, null, null);
+    }
+
+    /**
+     * Opens a user's index, creating its directory if needed. Segments superseded by a merge that
+     * completed just before a crash are deleted here.
+     * @param dir The user's index directory.
+     * @param key The owner's data key, which segments and deletions are encrypted with; null for plaintext.
+     * @param cipher Encrypts and decrypts with the key; ignored if key is null.
+     * @return The opened index.
+     * @throws IOException If the directory cannot be read.
+     */
+    public static ContentIndex open(Path dir, SecretKey key, FrameCipher cipher) throws IOException {
+        ContentIndex index = new ContentIndex(dir, key, cipher);
+        Files.createDirectories(dir);
+        TreeMap<Long, Path> files = listSegments(dir);
+        List<Segment> segments = new ArrayList<>();
+        long mergedThrough = 0;
+        for (Map.Entry<Long, Path> entry : files.descendingMap().entrySet()) {
+            if (entry.getKey() <= mergedThrough) {
+                Files.deleteIfExists(entry.getValue()); // Already folded into a newer merged segment
+                continue;
+            }
+            try {
+                Segment segment = Segment.read(entry.getKey(), index.readSegmentFile(entry.getValue()));
+                segments.add(segment);
+                mergedThrough = Math.max(mergedThrough, segment.mergedThrough);
+            } catch (IOException e) {
+                System.err.println("Skipping damaged content index segment " + entry.getValue() + ": " + e.getMessage());
+            }
+        }
+        Collections.reverse(segments);
+        index.nextSegment = files.isEmpty() ? 1 : files.lastKey() + 1;
+        index.state = State.of(segments, index.readDeleted());
+        return index;
+    }
+
+    /**
+     * Writes a batch of documents as a new segment.
+     * @param documents The documents, at most one per file. Files already indexed are replaced.
+     * @throws IOException If the segment cannot be written.
+     */
+    public synchronized void addSegment(List<Document> documents) throws IOException {
+        if (documents.isEmpty()) {
+            return;
+        }
+        List<Document> sorted = new ArrayList<>(documents);
+        sorted.sort((a, b) -> Integer.compare(a.fileId, b.fileId));
+        int[] fileIds = new int[sorted.size()];
+        int[] lengths = new int[sorted.size()];
+        TreeMap<String, List<int[]>> postings = new TreeMap<>();
+        for (int i = 0; i < sorted.size(); i++) {
+            Document document = sorted.get(i);
+            fileIds[i] = document.fileId;
+            lengths[i] = document.length;
+            for (Map.Entry<String, Integer> term : document.termFrequencies.entrySet()) {
+                postings.computeIfAbsent(term.getKey(), t -> new ArrayList<>())
+                        .add(new int[]{document.fileId, term.getValue()});
+            }
+        }
+        Segment segment = writeSegment(nextSegment++, 0, fileIds, lengths, postings);
+        State current = state;
+        List<Segment> segments = new ArrayList<>(current.segments);
+        segments.add(segment);
+        // Files indexed before are superseded by the new segment; nothing is logged, as open() sees the same
+        Map<Integer, Long> deadThrough = new HashMap<>(current.deadThrough);
+        int live = current.liveDocuments + fileIds.length;
+        for (int fileId : fileIds) {
+            if (current.liveSegment(fileId) != null) {
+                deadThrough.put(fileId, segment.number - 1);
+                live--;
+            }
+        }
+        state = new State(segments, deadThrough, live);
+    }
+
+    /**
+     * Marks files as deleted; they stop matching at once and are dropped by the next merge. The deletion
+     * covers the segments written so far, so a file indexed again afterwards matches again.
+     * @param fileIds The IDs of the deleted files.
+     * @throws IOException If the deletion log cannot be written.
+     */
+    public synchronized void delete(Collection<Integer> fileIds) throws IOException {
+        State current = state;
+        // Only files this index holds are logged, so the log stays no longer than the index
+        long through = nextSegment - 1;
+        List<Integer> indexed = new ArrayList<>();
+        for (int fileId : new HashSet<>(fileIds)) {
+            if (current.liveSegment(fileId) != null) {
+                indexed.add(fileId);
+            }
+        }
+        if (indexed.isEmpty()) {
+            return;
+        }
+        ByteBuffer records = ByteBuffer.allocate(DELETION_BYTES * indexed.size());
+        for (int fileId : indexed) {
+            records.putInt(fileId).putLong(through);
+        }
+        ByteBuffer buffer;
+        if (key == null) {
+            buffer = records;
+        } else {
+            byte[] sealed = seal(records.array());
+            buffer = ByteBuffer.allocate(4 + sealed.length).putInt(sealed.length).put(sealed);
+        }
+        buffer.flip();
+        Path log = dir.resolve(key == null ? DELETED_FILE : SEALED_DELETED_FILE);
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Map<Integer, Long> deadThrough = new HashMap<>(current.deadThrough);
+        for (int fileId : indexed) {
+            deadThrough.put(fileId, through);
+        }
+        state = new State(current.segments, deadThrough, current.liveDocuments - indexed.size());
+    }
+
+    /**
+     * Merges all segments into one, without deleted files, once there are more than maxSegments of them.
+     * @param maxSegments The number of segments tolerated before merging.
+     * @return true if a merge was done.
+     * @throws IOException If the merged segment cannot be written; the old segments stay in use.
+     */
+    public synchronized boolean mergeIfNeeded(int maxSegments) throws IOException {
+        State current = state;
+        if (current.segments.size() <= maxSegments) {
+            return false;
+        }
+        merge(current);
+        return true;
+    }
+
+    /**
+     * Rewrites the index under the key if part of it is still in plaintext on disk, from before
+     * encryption was turned on.
+     * @return true if anything was rewritten.
+     * @throws IOException If the rewritten segment cannot be written; the plaintext stays in use.
+     */
+    public synchronized boolean encryptPlaintext() throws IOException {
+        if (!plaintextOnDisk) {
+            return false;
+        }
+        merge(state);
+        return true;
+    }
+
+    private void merge(State current) throws IOException {
+        List<Integer> fileIds = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        TreeMap<String, List<int[]>> postings = new TreeMap<>();
+        long mergedThrough = 0;
+        for (Segment segment : current.segments) {
+            mergedThrough = Math.max(mergedThrough, segment.number);
+            for (int i = 0; i < segment.fileIds.length; i++) {
+                if (current.isLive(segment.fileIds[i], segment.number)) {
+                    fileIds.add(segment.fileIds[i]);
+                    lengths.add(segment.lengths[i]);
+                }
+            }
+            for (Map.Entry<String, long[]> term : segment.terms.entrySet()) {
+                List<int[]> merged = postings.computeIfAbsent(term.getKey(), t -> new ArrayList<>());
+                segment.forEachPosting(term.getValue(), (fileId, tf) -> {
+                    if (current.isLive(fileId, segment.number)) {
+                        merged.add(new int[]{fileId, tf});
+                    }
+                });
+                if (merged.isEmpty()) {
+                    postings.remove(term.getKey());
+                }
+            }
+        }
+        // Segments are not ordered by file ID among themselves, so sort the merged runs
+        Integer[] order = new Integer[fileIds.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(fileIds.get(a), fileIds.get(b)));
+        int[] sortedIds = new int[order.length];
+        int[] sortedLengths = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedIds[i] = fileIds.get(order[i]);
+            sortedLengths[i] = lengths.get(order[i]);
+        }
+        for (List<int[]> list : postings.values()) {
+            list.sort((a, b) -> Integer.compare(a[0], b[0]));
+        }
+
+        Segment merged = writeSegment(nextSegment++, mergedThrough, sortedIds, sortedLengths, postings);
+        // Every deletion is now applied, so the log starts over
+        Files.deleteIfExists(dir.resolve(DELETED_FILE));
+        Files.deleteIfExists(dir.resolve(SEALED_DELETED_FILE));
+        state = new State(List.of(merged), Map.of(), sortedIds.length);
+        for (Segment segment : current.segments) {
+            Files.deleteIfExists(segmentPath(segment.number));
+        }
+        plaintextOnDisk = false;
+    }
+
+    /**
+     * Ranks files by how well they match the query's terms (any term may match).
+     * @param query The words to look for.
+     * @param limit The maximum number of hits to return.
+     * @return The best hits, highest score first.
+     */
+    public List<Hit> search(String query, int limit) {
+        State current = state;
+        Set<String> terms = new HashSet<>(tokenize(query));
+        if (terms.isEmpty() || limit <= 0) {
+            return List.of();
+        }
+        long totalLength = 0;
+        for (Segment segment : current.segments) {
+            totalLength += segment.totalLength;
+        }
+        long documents = Math.max(1, current.liveDocuments);
+        double averageLength = Math.max(1.0, (double) totalLength / documents);
+
+        // Document frequencies span all segments, so scores do not depend on how the index is split
+        Map<String, Long> documentFrequency = new HashMap<>();
+        for (String term : terms) {
+            long df = 0;
+            for (Segment segment : current.segments) {
+                long[] entry = segment.terms.get(term);
+                if (entry != null) {
+                    df += (int) entry[2];
+                }
+            }
+            if (df > 0) {
+                documentFrequency.put(term, df);
+            }
+        }
+
+        Map<Integer, Double> scores = new HashMap<>();
+        for (Map.Entry<String, Long> term : documentFrequency.entrySet()) {
+            long df = term.getValue();
+            double idf = Math.log(1 + (documents - df + 0.5) / (df + 0.5));
+            for (Segment segment : current.segments) {
+                long[] entry = segment.terms.get(term.getKey());
+                if (entry == null) {
+                    continue;
+                }
+                segment.forEachPosting(entry, (fileId, tf) -> {
+                    if (!current.isLive(fileId, segment.number)) {
+                        return;
+                    }
+                    double norm = K1 * (1 - B + B * segment.lengthOf(fileId) / averageLength);
+                    scores.merge(fileId, idf * tf * (K1 + 1) / (tf + norm), Double::sum);
+                });
+            }
+        }
+
+        List<Hit> hits = new ArrayList<>(scores.size());
+        for (Map.Entry<Integer, Double> score : scores.entrySet()) {
+            hits.add(new Hit(score.getKey(), score.getValue()));
+        }
+        hits.sort((a, b) -> a.score != b.score ? Double.compare(b.score, a.score) : Integer.compare(a.fileId, b.fileId));
+        return hits.size() > limit ? new ArrayList<>(hits.subList(0, limit)) : hits;
+    }
+
+    /**
+     * @return The number of segments on disk.
+     */
+    public int getSegmentCount() {
+        return state.segments.size();
+    }
+
+    /**
+     * @return The number of files indexed and not deleted.
+     */
+    public int getDocumentCount() {
+        return state.liveDocuments;
+    }
+
+    /**
+     * Splits text into lower-case words of letters and digits, as both indexing and queries see them.
+     * @param text The text.
+     * @return The words, in order, with repeats.
+     */
+    static List<String> tokenize(CharSequence text) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (token.length() < MAX_TOKEN_LENGTH) {
+                    token.append(c);
+                }
+            } else if (token.length() > 0) {
+                if (token.length() >= MIN_TOKEN_LENGTH) {
+                    tokens.add(token.toString().toLowerCase(Locale.ROOT));
+                }
+                token.setLength(0);
+            }
+        }
+        return tokens;
+    }
+
+    private Segment writeSegment(long number, long mergedThrough, int[] fileIds, int[] lengths,
+                                 TreeMap<String, List<int[]>> postings) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(SEGMENT_MAGIC);
+        out.writeInt(SEGMENT_VERSION);
+        out.writeLong(mergedThrough);
+        writeVarInt(out, fileIds.length);
+        int previousId = 0;
+        for (int i = 0; i < fileIds.length; i++) {
+            writeVarInt(out, fileIds[i] - previousId);
+            writeVarInt(out, lengths[i]);
+            previousId = fileIds[i];
+        }
+        writeVarInt(out, postings.size());
+        byte[] previousTerm = new byte[0];
+        ByteArrayOutputStream postingBytes = new ByteArrayOutputStream();
+        DataOutputStream postingOut = new DataOutputStream(postingBytes);
+        for (Map.Entry<String, List<int[]>> term : postings.entrySet()) {
+            byte[] termBytes = term.getKey().getBytes(StandardCharsets.UTF_8);
+            int shared = 0;
+            while (shared < Math.min(previousTerm.length, termBytes.length) && previousTerm[shared] == termBytes[shared]) {
+                shared++;
+            }
+            writeVarInt(out, shared);
+            writeVarInt(out, termBytes.length - shared);
+            out.write(termBytes, shared, termBytes.length - shared);
+            previousTerm = termBytes;
+
+            postingBytes.reset();
+            int previousFile = 0;
+            for (int[] posting : term.getValue()) {
+                writeVarInt(postingOut, posting[0] - previousFile);
+                writeVarInt(postingOut, posting[1]);
+                previousFile = posting[0];
+            }
+            writeVarInt(out, term.getValue().size());
+            writeVarInt(out, postingBytes.size());
+            postingBytes.writeTo(out);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeLong(crc.getValue());
+        byte[] data = bytes.toByteArray();
+
+        Path tmp = dir.resolve("segment.tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(key == null ? data : seal(data));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, segmentPath(number), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return Segment.read(number, data);
+    }
+
+    private Path segmentPath(long number) {
+        return dir.resolve(String.format("seg-%08d.idx", number));
+    }
+
+    private static TreeMap<Long, Path> listSegments(Path dir) throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "seg-*.idx")) {
+            for (Path path : stream) {
+                Matcher m = SEGMENT_NAME.matcher(path.getFileName().toString());
+                if (m.matches()) {
+                    segments.put(Long.parseLong(m.group(1)), path);
+                }
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * @return A segment file's plaintext bytes. Plaintext segments start with the segment magic, which an
+     *         encrypted one never does.
+     */
+    private byte[] readSegmentFile(Path file) throws IOException {
+        byte[] data = Files.readAllBytes(file);
+        if (data.length >= 4 && ByteBuffer.wrap(data).getInt(0) == SEGMENT_MAGIC) {
+            plaintextOnDisk |= key != null;
+            return data;
+        }
+        if (key == null) {
+            throw new IOException("segment is encrypted and no key was given");
+        }
+        return unseal(data);
+    }
+
+    /**
+     * @return For each deleted file, the last segment its deletion applies to.
+     */
+    private Map<Integer, Long> readDeleted() throws IOException {
+        Map<Integer, Long> deleted = new HashMap<>();
+        Path file = dir.resolve(DELETED_FILE);
+        if (Files.exists(file)) {
+            plaintextOnDisk |= key != null;
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+            while (buffer.remaining() >= DELETION_BYTES) { // A torn last entry is ignored; the file is deleted again on its next delete
+                deleted.merge(buffer.getInt(), buffer.getLong(), Math::max);
+            }
+        }
+        Path sealedFile = dir.resolve(SEALED_DELETED_FILE);
+        if (Files.exists(sealedFile)) {
+            if (key == null) {
+                // Without the key the encrypted segments these deletions apply to are skipped as well
+                System.err.println("Ignoring encrypted content index deletions in " + dir + ": no key was given");
+            } else {
+                readSealedDeleted(sealedFile, deleted);
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Reads the encrypted deletion log. A torn or unreadable record ends it and is cut off, so that
+     * records appended later can still be read.
+     */
+    private void readSealedDeleted(Path file, Map<Integer, Long> deleted) throws IOException {
+        byte[] data = Files.readAllBytes(file);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int valid = 0;
+        while (buffer.remaining() >= 4) {
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                break;
+            }
+            byte[] record = new byte[length];
+            buffer.get(record);
+            ByteBuffer ids;
+            try {
+                ids = ByteBuffer.wrap(unseal(record));
+            } catch (IOException e) {
+                break;
+            }
+            while (ids.remaining() >= DELETION_BYTES) {
+                deleted.merge(ids.getInt(), ids.getLong(), Math::max);
+            }
+            valid = buffer.position();
+        }
+        if (valid < data.length) {
+            System.err.println("Truncating damaged content index deletion log " + file + " at byte " + valid);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+    }
+
+    private byte[] seal(byte[] plain) throws IOException {
+        ByteArrayOutputStream sealed = new ByteArrayOutputStream(plain.length + 64);
+        try (OutputStream out = cipher.encrypt(sealed, key)) {
+            out.write(plain);
+        }
+        return sealed.toByteArray();
+    }
+
+    private byte[] unseal(byte[] sealed) throws IOException {
+        try (InputStream in = cipher.decrypt(new ByteArrayInputStream(sealed), key)) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * The segments in use, oldest first, and which of their entries are dead. A file's entry in a segment is
+     * dead once the file is deleted or indexed again in a newer segment, so each file has at most one live entry.
+     */
+    private static final class State {
+        final List<Segment> segments;
+        final Map<Integer, Long> deadThrough; // file ID -> the last segment whose entry for it is dead
+        final int liveDocuments;
+
+        State(List<Segment> segments, Map<Integer, Long> deadThrough, int liveDocuments) {
+            this.segments = segments;
+            this.deadThrough = deadThrough;
+            this.liveDocuments = liveDocuments;
+        }
+
+        /**
+         * Works out the dead entries of segments read from disk: those deleted, and those superseded.
+         * @param deleted For each deleted file, the last segment its deletion applies to.
+         */
+        static State of(List<Segment> segments, Map<Integer, Long> deleted) {
+            Map<Integer, Long> deadThrough = new HashMap<>(deleted);
+            Map<Integer, Long> newest = new HashMap<>();
+            for (Segment segment : segments) {
+                for (int fileId : segment.fileIds) {
+                    Long previous = newest.put(fileId, segment.number);
+                    if (previous != null) {
+                        deadThrough.merge(fileId, previous, Math::max);
+                    }
+                }
+            }
+            int live = 0;
+            for (Map.Entry<Integer, Long> file : newest.entrySet()) {
+                Long dead = deadThrough.get(file.getKey());
+                if (dead == null || dead < file.getValue()) {
+                    live++;
+                }
+            }
+            deadThrough.keySet().retainAll(newest.keySet()); // Deletions of files no segment holds any more
+            return new State(segments, deadThrough, live);
+        }
+
+        boolean isLive(int fileId, long segment) {
+            Long dead = deadThrough.get(fileId);
+            return dead == null || dead < segment;
+        }
+
+        /**
+         * @return The segment holding the file's live entry, or null if it has none.
+         */
+        Segment liveSegment(int fileId) {
+            for (int i = segments.size() - 1; i >= 0; i--) {
+                Segment segment = segments.get(i);
+                if (Arrays.binarySearch(segment.fileIds, fileId) >= 0) {
+                    return isLive(fileId, segment.number) ? segment : null;
+                }
+            }
+            return null;
+        }
+    }
+
+    private interface PostingConsumer {
+        void accept(int fileId, int termFrequency);
+    }
+
+    /** An immutable segment, held in memory as its encoded bytes plus a term dictionary. */
+    private static final class Segment {
+        final long number;
+        final long mergedThrough;
+        final int[] fileIds;
+        final int[] lengths;
+        final long totalLength;
+        final byte[] data;
+        final Map<String, long[]> terms; // term -> {postings offset, postings length, document frequency}
+
+        private Segment(long number, long mergedThrough, int[] fileIds, int[] lengths, byte[] data,
+                        Map<String, long[]> terms) {
+            this.number = number;
+            this.mergedThrough = mergedThrough;
+            this.fileIds = fileIds;
+            this.lengths = lengths;
+            long total = 0;
+            for (int length : lengths) {
+                total += length;
+            }
+            this.totalLength = total;
+            this.data = data;
+            this.terms = terms;
+        }
+
+        static Segment read(long number, byte[] data) throws IOException {
+            try {
+                return decode(number, data);
+            } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+                throw new IOException("malformed segment", e);
+            }
+        }
+
+        private static Segment decode(long number, byte[] data) throws IOException {
+            if (data.length < 24) {
+                throw new IOException("truncated");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length - 8);
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            if (buffer.getLong(data.length - 8) != crc.getValue()) {
+                throw new IOException("checksum mismatch");
+            }
+            if (buffer.getInt() != SEGMENT_MAGIC || buffer.getInt() != SEGMENT_VERSION) {
+                throw new IOException("not a content index segment");
+            }
+            long mergedThrough = buffer.getLong();
+            int documents = readVarInt(buffer);
+            int[] fileIds = new int[documents];
+            int[] lengths = new int[documents];
+            int previousId = 0;
+            for (int i = 0; i < documents; i++) {
+                previousId += readVarInt(buffer);
+                fileIds[i] = previousId;
+                lengths[i] = readVarInt(buffer);
+            }
+            int termCount = readVarInt(buffer);
+            Map<String, long[]> terms = new HashMap<>(termCount * 4 / 3 + 1);
+            byte[] term = new byte[0];
+            for (int i = 0; i < termCount; i++) {
+                int shared = readVarInt(buffer);
+                int suffix = readVarInt(buffer);
+                byte[] next = Arrays.copyOf(term, shared + suffix);
+                buffer.get(next, shared, suffix);
+                term = next;
+                int df = readVarInt(buffer);
+                int length = readVarInt(buffer);
+                terms.put(new String(term, StandardCharsets.UTF_8), new long[]{buffer.position(), length, df});
+                buffer.position(buffer.position() + length);
+            }
+            return new Segment(number, mergedThrough, fileIds, lengths, data, terms);
+        }
+
+        void forEachPosting(long[] entry, PostingConsumer consumer) {
+            ByteBuffer buffer = ByteBuffer.wrap(data, (int) entry[0], (int) entry[1]);
+            int fileId = 0;
+            while (buffer.hasRemaining()) {
+                fileId += readVarInt(buffer);
+                consumer.accept(fileId, readVarInt(buffer));
+            }
+        }
+
+        int lengthOf(int fileId) {
+            int index = Arrays.binarySearch(fileIds, fileId);
+            return index >= 0 ? lengths[index] : 0;
+        }
+
+        private static int readVarInt(ByteBuffer buffer) {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get();
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+}
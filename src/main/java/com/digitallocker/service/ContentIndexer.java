@@ -0,0 +1,363 @@
+package com.digitallocker.service;
+
+import com.digitallocker.util.Metrics;
+import com.digitallocker.util.OperationMetrics;
+
+import javax.crypto.SecretKey;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background indexing of file contents into per-user {@link ContentIndex}es.
+ * Uploads and deletes only queue a task, which never blocks: when the queue is full the task is
+ * dropped and counted, and that file is simply not found by content. A single thread drains the
+ * queue in batches, reads the text of plain-text-like files and writes one segment per user per
+ * batch, merging a user's segments once there are too many. When a key source is given, each user's
+ * index is encrypted with that user's data key (see {@link ContentIndex}).
+ * <p>
+ * Files queued but not yet indexed when the process exits are not indexed later.
+ */
+public class ContentIndexer implements ContentIndexerMBean {
+    // Per-operation call, error and latency metrics, also exposed over JMX (see Metrics)
+    private static final OperationMetrics INDEX_BATCH_METRICS = Metrics.operation("ContentIndexer", "indexBatch");
+    private static final OperationMetrics MERGE_METRICS = Metrics.operation("ContentIndexer", "merge");
+
+    private static final int MAX_BATCH_SIZE = 1000;
+    private static final int SNIFF_BYTES = 8 * 1024;
+
+    private final Path dir;
+    private final int maxSegments;
+    private final int maxTextBytes;
+    private final BlockingQueue<Task> queue;
+    private final Map<Integer, ContentIndex> indexes;
+    private final KeySource keys;
+    private Thread worker;
+
+    private final AtomicLong documentsIndexed = new AtomicLong();
+    private final AtomicLong documentsSkipped = new AtomicLong();
+    private final AtomicLong documentsFailed = new AtomicLong();
+    private final AtomicLong tasksDropped = new AtomicLong();
+    private final AtomicLong bytesIndexed = new AtomicLong();
+    private final AtomicLong segmentsWritten = new AtomicLong();
+    private final AtomicLong merges = new AtomicLong();
+
+    /** Opens a stored file's decoded content; called on the indexing thread, never on the uploader's. */
+    public interface ContentSource {
+        InputStream open() throws IOException;
+    }
+
+    /** Gives the data key a user's index is encrypted with. */
+    public interface KeySource {
+        SecretKey keyFor(int userId) throws IOException;
+    }
+
+    /**
+     * @param dir The directory holding one index directory per user.
+     * @param queueCapacity The maximum number of queued tasks.
+     * @param maxSegments The number of segments a user's index may have before they are merged.
+     * @param maxTextBytes The maximum number of bytes of a file that are indexed.
+     * @param maxOpenIndexes The maximum number of user indexes kept in memory.
+     * @param keys Gives each user's data key, or null to keep the indexes in plaintext.
+     */
+    public ContentIndexer(Path dir, int queueCapacity, int maxSegments, int maxTextBytes, int maxOpenIndexes,
+                          KeySource keys) {
+        this.dir = dir;
+        this.keys = keys;
+        this.maxSegments = maxSegments;
+        this.maxTextBytes = maxTextBytes;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.indexes = new LinkedHashMap<Integer, ContentIndex>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, ContentIndex> eldest) {
+                return size() > maxOpenIndexes; // Indexes hold no open files, so eviction just frees memory
+            }
+        };
+    }
+
+    /**
+     * Starts the indexing thread and registers the indexer's counters over JMX.
+     */
+    public synchronized void start() {
+        if (worker != null) {
+            return;
+        }
+        worker = new Thread(this::run, "content-indexer");
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.start();
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("com.digitallocker:type=ContentIndexer");
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            System.err.println("Could not register content indexer MBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops the indexing thread. Queued tasks are left unprocessed.
+     */
+    public synchronized void stop() {
+        if (worker != null) {
+            worker.interrupt();
+            worker = null;
+        }
+    }
+
+    /**
+     * Queues a newly stored file, or a file's new content, for indexing. Returns at once.
+     * @param userId The ID of the file's owner.
+     * @param fileId The ID of the file.
+     * @param source Opens the file's content.
+     */
+    public void fileAdded(int userId, int fileId, ContentSource source) {
+        offer(new Task(userId, List.of(fileId), source));
+    }
+
+    /**
+     * Queues deleted files for removal from their owner's index. Returns at once.
+     * @param userId The ID of the user who owned the files.
+     * @param fileIds The IDs of the deleted files.
+     */
+    public void filesRemoved(int userId, Collection<Integer> fileIds) {
+        offer(new Task(userId, new ArrayList<>(fileIds), null));
+    }
+
+    /**
+     * Ranks a user's indexed files against a query.
+     * @param userId The ID of the user.
+     * @param query The words to look for.
+     * @param limit The maximum number of hits to return.
+     * @return The best hits, highest score first; empty if nothing of the user's is indexed.
+     * @throws IOException If the user's index cannot be opened.
+     */
+    public List<ContentIndex.Hit> search(int userId, String query, int limit) throws IOException {
+        ContentIndex index = indexFor(userId, false);
+        return index == null ? List.of() : index.search(query, limit);
+    }
+
+    private void offer(Task task) {
+        if (!queue.offer(task)) {
+            tasksDropped.incrementAndGet();
+        }
+    }
+
+    private void run() {
+        List<Task> batch = new ArrayList<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+            try {
+                indexBatch(batch);
+            } catch (RuntimeException e) {
+                System.err.println("Content indexer error: " + e.getMessage());
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Applies a batch user by user. A file added and deleted within the batch is never read, and one
+     * added more than once is read only for the last time.
+     */
+    private void indexBatch(List<Task> batch) {
+        long startNanos = System.nanoTime();
+        try {
+            Map<Integer, Map<Integer, ContentSource>> added = new LinkedHashMap<>();
+            Map<Integer, Set<Integer>> removed = new LinkedHashMap<>();
+            for (Task task : batch) {
+                Map<Integer, ContentSource> userAdded = added.computeIfAbsent(task.userId, u -> new LinkedHashMap<>());
+                if (task.source != null) {
+                    userAdded.put(task.fileIds.get(0), task.source);
+                } else {
+                    userAdded.keySet().removeAll(task.fileIds);
+                    removed.computeIfAbsent(task.userId, u -> new LinkedHashSet<>()).addAll(task.fileIds);
+                }
+            }
+            for (Map.Entry<Integer, Map<Integer, ContentSource>> user : added.entrySet()) {
+                Set<Integer> userRemoved = removed.getOrDefault(user.getKey(), Set.of());
+                try {
+                    indexUser(user.getKey(), user.getValue(), userRemoved);
+                } catch (IOException e) {
+                    INDEX_BATCH_METRICS.recordError();
+                    documentsFailed.addAndGet(user.getValue().size());
+                    System.err.println("Error updating content index of user " + user.getKey() + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            INDEX_BATCH_METRICS.record(startNanos);
+        }
+    }
+
+    private void indexUser(int userId, Map<Integer, ContentSource> added, Set<Integer> removed) throws IOException {
+        List<ContentIndex.Document> documents = new ArrayList<>();
+        for (Map.Entry<Integer, ContentSource> file : added.entrySet()) {
+            try {
+                String text = readText(file.getValue());
+                if (text == null) {
+                    documentsSkipped.incrementAndGet();
+                } else {
+                    documents.add(new ContentIndex.Document(file.getKey(), text));
+                }
+            } catch (IOException e) {
+                documentsFailed.incrementAndGet();
+                System.err.println("Could not read file " + file.getKey() + " for indexing: " + e.getMessage());
+            }
+        }
+        if (documents.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        ContentIndex index = indexFor(userId, true);
+        // Deletions first: a file deleted and then added again within the batch must stay indexed
+        index.delete(removed);
+        if (!documents.isEmpty()) {
+            index.addSegment(documents);
+            segmentsWritten.incrementAndGet();
+            documentsIndexed.addAndGet(documents.size());
+        }
+
+        long startNanos = System.nanoTime();
+        try {
+            if (index.mergeIfNeeded(maxSegments)) {
+                merges.incrementAndGet();
+                segmentsWritten.incrementAndGet();
+            }
+        } catch (IOException e) {
+            MERGE_METRICS.recordError();
+            System.err.println("Error merging content index of user " + userId + ": " + e.getMessage());
+        } finally {
+            MERGE_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Reads a file as UTF-8 text, up to maxTextBytes. Malformed sequences become replacement characters.
+     * @return The text, or null if the start of the file looks binary.
+     */
+    private String readText(ContentSource source) throws IOException {
+        try (InputStream in = source.open()) {
+            byte[] head = in.readNBytes(Math.min(SNIFF_BYTES, maxTextBytes));
+            if (!looksLikeText(head)) {
+                return null;
+            }
+            byte[] rest = in.readNBytes(maxTextBytes - head.length);
+            byte[] bytes = new byte[head.length + rest.length];
+            System.arraycopy(head, 0, bytes, 0, head.length);
+            System.arraycopy(rest, 0, bytes, head.length, rest.length);
+            bytesIndexed.addAndGet(bytes.length);
+            INDEX_BATCH_METRICS.addBytesIn(bytes.length);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /** Text has no NUL bytes and few control characters other than whitespace. */
+    private static boolean looksLikeText(byte[] head) {
+        int control = 0;
+        for (byte b : head) {
+            if (b == 0) {
+                return false;
+            }
+            if (b < 0x20 && b != '\t' && b != '\n' && b != '\r' && b != '\f' && b != 0x1b) {
+                control++;
+            }
+        }
+        return control * 10 <= head.length;
+    }
+
+    private ContentIndex indexFor(int userId, boolean create) throws IOException {
+        synchronized (indexes) {
+            ContentIndex index = indexes.get(userId);
+            if (index == null) {
+                Path userDir = dir.resolve(Integer.toString(userId));
+                if (!create && !Files.isDirectory(userDir)) {
+                    return null;
+                }
+                // Opening reads the user's segments; fine under the lock, as it happens once per eviction
+                SecretKey key = keys == null ? null : keys.keyFor(userId);
+                index = ContentIndex.open(userDir, key, BlobStore.frameCipher());
+                if (index.encryptPlaintext()) {
+                    merges.incrementAndGet();
+                    segmentsWritten.incrementAndGet();
+                }
+                indexes.put(userId, index);
+            }
+            return index;
+        }
+    }
+
+    @Override
+    public int getBacklog() {
+        return queue.size();
+    }
+
+    @Override
+    public long getDocumentsIndexed() {
+        return documentsIndexed.get();
+    }
+
+    @Override
+    public long getDocumentsSkipped() {
+        return documentsSkipped.get();
+    }
+
+    @Override
+    public long getDocumentsFailed() {
+        return documentsFailed.get();
+    }
+
+    @Override
+    public long getTasksDropped() {
+        return tasksDropped.get();
+    }
+
+    @Override
+    public long getBytesIndexed() {
+        return bytesIndexed.get();
+    }
+
+    @Override
+    public long getSegmentsWritten() {
+        return segmentsWritten.get();
+    }
+
+    @Override
+    public long getMerges() {
+        return merges.get();
+    }
+
+    /** An added file (with its source) or a group of deleted files (without one). */
+    private static final class Task {
+        final int userId;
+        final List<Integer> fileIds;
+        final ContentSource source;
+
+        Task(int userId, List<Integer> fileIds, ContentSource source) {
+            this.userId = userId;
+            this.fileIds = fileIds;
+            this.source = source;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.digitallocker.service;
+
+/**
+ * JMX view of the background content indexer.
+ */
+public interface ContentIndexerMBean {
+    int getBacklog();
+
+    long getDocumentsIndexed();
+
+    long getDocumentsSkipped();
+
+    long getDocumentsFailed();
+
+    long getTasksDropped();
+
+    long getBytesIndexed();
+
+    long getSegmentsWritten();
+
+    long getMerges();
+}
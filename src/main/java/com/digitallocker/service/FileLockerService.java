@@ -1,83 +1,938 @@
 package com.digitallocker.service;
 
+import com.digitallocker.dao.DAOFactory;
 import com.digitallocker.dao.FileDAO;
+import com.digitallocker.dao.JdbcFileDAO;
+import com.digitallocker.model.BlobIntegrity;
+import com.digitallocker.model.DedupStats;
 import com.digitallocker.model.FileMetadata;
+import com.digitallocker.model.FileVersion;
+import com.digitallocker.model.ReconcileReport;
+import com.digitallocker.model.SearchHit;
+import com.digitallocker.model.StorageUsage;
+import com.digitallocker.model.UploadResult;
+import com.digitallocker.model.UploadSession;
+import com.digitallocker.util.CacheStats;
+import com.digitallocker.util.CompressionCodecs;
+import com.digitallocker.util.Metrics;
+import com.digitallocker.util.OperationMetrics;
+import com.digitallocker.util.ProgressInputStream;
+import com.digitallocker.util.TransferListener;
 
+import javax.crypto.SecretKey;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
-import java.util.UUID;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 
 /**
  * Service layer for file storage and retrieval operations.
  */
 public class FileLockerService {
-    private static final String LOCKER_DIR = "locker_files"; // Directory to store actual files
+    // Per-operation call, error and latency metrics, also exposed over JMX (see Metrics)
+    private static final OperationMetrics UPLOAD_FILE_METRICS = Metrics.operation("FileLockerService", "uploadFile");
+    private static final OperationMetrics UPLOAD_FILES_METRICS = Metrics.operation("FileLockerService", "uploadFiles");
+    private static final OperationMetrics OPEN_UPLOAD_SESSION_METRICS = Metrics.operation("FileLockerService", "openUploadSession");
+    private static final OperationMetrics APPEND_CHUNK_METRICS = Metrics.operation("FileLockerService", "appendChunk");
+    private static final OperationMetrics RESUME_UPLOAD_SESSION_METRICS = Metrics.operation("FileLockerService", "resumeUploadSession");
+    private static final OperationMetrics GET_PENDING_UPLOAD_SESSIONS_METRICS = Metrics.operation("FileLockerService", "getPendingUploadSessions");
+    private static final OperationMetrics COMMIT_UPLOAD_SESSION_METRICS = Metrics.operation("FileLockerService", "commitUploadSession");
+    private static final OperationMetrics ABORT_UPLOAD_SESSION_METRICS = Metrics.operation("FileLockerService", "abortUploadSession");
+    private static final OperationMetrics RETRIEVE_FILE_METRICS = Metrics.operation("FileLockerService", "retrieveFile");
+    private static final OperationMetrics RETRIEVE_FILE_RANGE_METRICS = Metrics.operation("FileLockerService", "retrieveFileRange");
+    private static final OperationMetrics DELETE_FILE_METRICS = Metrics.operation("FileLockerService", "deleteFile");
+    private static final OperationMetrics DELETE_FILES_METRICS = Metrics.operation("FileLockerService", "deleteFiles");
+    private static final OperationMetrics GET_FILE_METRICS = Metrics.operation("FileLockerService", "getFile");
+    private static final OperationMetrics GET_USER_FILES_METRICS = Metrics.operation("FileLockerService", "getUserFiles");
+    private static final OperationMetrics GET_USER_FILES_PAGE_METRICS = Metrics.operation("FileLockerService", "getUserFilesPage");
+    private static final OperationMetrics COUNT_USER_FILES_METRICS = Metrics.operation("FileLockerService", "countUserFiles");
+    private static final OperationMetrics GET_DEDUP_STATS_METRICS = Metrics.operation("FileLockerService", "getDedupStats");
+    private static final OperationMetrics SEARCH_FILES_METRICS = Metrics.operation("FileLockerService", "searchFiles");
+    private static final OperationMetrics SEARCH_CONTENT_METRICS = Metrics.operation("FileLockerService", "searchContent");
+    private static final OperationMetrics GET_STORAGE_USAGE_METRICS = Metrics.operation("FileLockerService", "getStorageUsage");
+    private static final OperationMetrics RECONCILE_STORAGE_METRICS = Metrics.operation("FileLockerService", "reconcileStorage");
+    private static final OperationMetrics GET_CORRUPT_FILES_METRICS = Metrics.operation("FileLockerService", "getCorruptFiles");
+    private static final OperationMetrics GET_FILE_VERSIONS_METRICS = Metrics.operation("FileLockerService", "getFileVersions");
+    private static final OperationMetrics RETRIEVE_FILE_VERSION_METRICS = Metrics.operation("FileLockerService", "retrieveFileVersion");
+
+    private static final String LOCKER_DIR = System.getProperty("digitallocker.storage.dir",
+            "locker_files"); // Directory to store actual files
+    private static final long TRANSFER_BLOCK_SIZE = 8L * 1024 * 1024; // Progress granularity of zero-copy transfers
+    private static final int DEFAULT_CHUNK_SIZE = Integer.getInteger("digitallocker.upload.chunkSize", 8 * 1024 * 1024);
+    private static final long UPLOAD_SESSION_TTL_MS = Long.getLong("digitallocker.upload.sessionTtlMs",
+            7L * 24 * 60 * 60 * 1000); // Sessions idle this long are discarded
+    private static final long UPLOAD_SESSION_SWEEP_INTERVAL_MS = Long.getLong(
+            "digitallocker.upload.sessionSweepIntervalMs", 3_600_000L);
+    private static UploadSessionManager uploadSessionManager;
+    private static final int UPLOAD_PARALLELISM = Integer.getInteger("digitallocker.upload.parallelism",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final boolean VERIFY_ON_RETRIEVE = Boolean.parseBoolean(
+            System.getProperty("digitallocker.retrieve.verifyChecksum", "false"));
+
+    private static final double SWEEPER_FILES_PER_SECOND = Double.parseDouble(
+            System.getProperty("digitallocker.sweeper.filesPerSecond", "200"));
+    private static final long SWEEPER_INTERVAL_MS = Long.getLong("digitallocker.sweeper.intervalMs", 10_000L);
+    private static TombstoneSweeper sweeper;
+
+    // Moving files written before the sharded layout, a batch at a time
+    private static final int MIGRATION_BATCH_SIZE = Integer.getInteger("digitallocker.migration.batchSize", 100);
+    private static final long MIGRATION_PAUSE_MS = Long.getLong("digitallocker.migration.pauseMs", 200L);
+    private static final boolean MIGRATION_ON_STARTUP = Boolean.parseBoolean(
+            System.getProperty("digitallocker.migration.onStartup", "true"));
+    private static ShardMigrator shardMigrator;
+
+    // Re-reading stored files in the background to catch bit rot, at a bounded rate
+    private static final boolean SCRUB_ENABLED = Boolean.parseBoolean(
+            System.getProperty("digitallocker.scrub.enabled", "true"));
+    private static final double SCRUB_MB_PER_SECOND = Double.parseDouble(
+            System.getProperty("digitallocker.scrub.mbPerSecond", "10"));
+    private static final long SCRUB_INTERVAL_MS = Long.getLong("digitallocker.scrub.intervalMs", 60_000L);
+    private static final long SCRUB_REVERIFY_AFTER_MS = Long.getLong("digitallocker.scrub.reverifyAfterMs",
+            30L * 24 * 60 * 60 * 1000);
+    private static IntegrityScrubber scrubber;
+
+    // Asynchronous replication of stored files to a second root; off unless a directory is given
+    private static final String REPLICATION_DIR = System.getProperty("digitallocker.replication.dir");
+    private static final int REPLICATION_THREADS = Integer.getInteger("digitallocker.replication.threads", 4);
+    private static final int REPLICATION_BATCH_SIZE = Integer.getInteger("digitallocker.replication.batchSize", 256);
+    private static final long REPLICATION_RETRY_MS = Long.getLong("digitallocker.replication.retryMs", 5_000L);
+    private static final boolean REPLICATION_FSYNC = Boolean.parseBoolean(
+            System.getProperty("digitallocker.replication.fsync", "false"));
+    private static final boolean REPLICATION_CATCH_UP_ON_STARTUP = Boolean.parseBoolean(
+            System.getProperty("digitallocker.replication.catchUpOnStartup", "true"));
+    private static BlobReplicator replicator;
+
+    // Hot/cold storage tiering by access recency; off unless a cold directory is given
+    private static final String TIERING_COLD_DIR = System.getProperty("digitallocker.tiering.coldDir");
+    private static final long TIERING_COLD_AFTER_MS = Long.getLong("digitallocker.tiering.coldAfterMs",
+            30L * 24 * 60 * 60 * 1000);
+    private static final long TIERING_INTERVAL_MS = Long.getLong("digitallocker.tiering.intervalMs", 3_600_000L);
+    private static final double TIERING_MB_PER_SECOND = Double.parseDouble(
+            System.getProperty("digitallocker.tiering.mbPerSecond", "20"));
+    private static final int TIERING_COMPRESSION_LEVEL = Integer.getInteger("digitallocker.tiering.compressionLevel",
+            Deflater.BEST_COMPRESSION);
+    private static StorageTiering tiering;
+
+    // Last-access times, recorded in batches whether or not tiering is on
+    private static final long ACCESS_FLUSH_INTERVAL_MS = Long.getLong("digitallocker.access.flushIntervalMs", 10_000L);
+    private static AccessTracker accessTracker;
+
+    // In-memory filename search, kept current by uploads and deletes
+    private static final int SEARCH_MAX_INDEXED_USERS = Integer.getInteger("digitallocker.search.maxIndexedUsers", 64);
+    private static FilenameSearch filenameSearch;
+
+    // Full-text indexing of file contents, off the upload path
+    private static final boolean CONTENT_INDEX_ENABLED = Boolean.parseBoolean(
+            System.getProperty("digitallocker.contentIndex.enabled", "true"));
+    private static final String CONTENT_INDEX_DIR = System.getProperty("digitallocker.contentIndex.dir", "locker_index");
+    private static final int CONTENT_INDEX_QUEUE_CAPACITY = Integer.getInteger("digitallocker.contentIndex.queueCapacity", 100_000);
+    private static final int CONTENT_INDEX_MAX_SEGMENTS = Integer.getInteger("digitallocker.contentIndex.maxSegments", 8);
+    private static final int CONTENT_INDEX_MAX_TEXT_BYTES = Integer.getInteger("digitallocker.contentIndex.maxTextBytes", 4 * 1024 * 1024);
+    private static final int CONTENT_INDEX_MAX_OPEN_USERS = Integer.getInteger("digitallocker.contentIndex.maxOpenUsers", 64);
+    private static ContentIndexer contentIndexer;
+
+    // Encryption at rest with per-user data keys, wrapped by a local master key
+    private static final boolean ENCRYPTION_ENABLED = Boolean.parseBoolean(
+            System.getProperty("digitallocker.encryption.enabled", "true"));
+    private static final String MASTER_KEY_FILE = System.getProperty("digitallocker.encryption.masterKeyFile",
+            "locker_master.key");
+    private static final int KEY_CACHE_MAX_ENTRIES = Integer.getInteger("digitallocker.cache.dataKeys.maxEntries", 10_000);
+    private static final long KEY_CACHE_TTL_MS = Long.getLong("digitallocker.cache.dataKeys.ttlMs", 600_000L);
+    private static KeyManager keyManager;
+
+    // Storage quotas, checked against cached per-user usage counters
+    private static final long DEFAULT_QUOTA_BYTES = Long.getLong("digitallocker.quota.defaultBytes", StorageUsage.UNLIMITED);
+    private static final int QUOTA_CACHE_MAX_ENTRIES = Integer.getInteger("digitallocker.cache.quota.maxEntries", 10_000);
+    private static final long QUOTA_CACHE_TTL_MS = Long.getLong("digitallocker.cache.quota.ttlMs", 60_000L);
+    private static QuotaManager quotaManager;
+
+    // Comparing the locker directory with the files table, on demand
+    private static final int RECONCILE_THREADS = Integer.getInteger("digitallocker.reconcile.threads",
+            Runtime.getRuntime().availableProcessors());
+    private static final int RECONCILE_PAGE_SIZE = Integer.getInteger("digitallocker.reconcile.pageSize", 10_000);
+    private static final long RECONCILE_GRACE_MS = Long.getLong("digitallocker.reconcile.graceMs", 3_600_000L);
+
+    // File versions: uploading under a name the user already has adds a version to that file
+    private static final boolean VERSIONS_ENABLED = Boolean.parseBoolean(
+            System.getProperty("digitallocker.versions.enabled", "true"));
+    private static final int MAX_VERSIONS = Math.max(2, Integer.getInteger("digitallocker.versions.max", 10));
+
+    // Shared by all service instances so that concurrent batch uploads cannot oversubscribe the disk
+    private static final ExecutorService UPLOAD_EXECUTOR = Executors.newFixedThreadPool(UPLOAD_PARALLELISM, r -> {
+        Thread t = new Thread(r, "upload-worker");
+        t.setDaemon(true);
+        return t;
+    });
     private FileDAO fileDAO;
+    private BlobStore blobStore;
+    private UploadSessionManager uploadSessions;
 
     public FileLockerService() {
-        this.fileDAO = new FileDAO();
-        // Ensure the locker directory exists
-        Path path = Paths.get(LOCKER_DIR);
-        if (!Files.exists(path)) {
+        this(DAOFactory.getFileDAO(), new BlobStore(Paths.get(LOCKER_DIR), DAOFactory.getBlobDAO()));
+    }
+
+    /**
+     * Creates a service on the given metadata and blob store, e.g. ones a test makes fail on cue.
+     * The process-wide background services are started on the first instance's stores.
+     */
+    FileLockerService(FileDAO fileDAO, BlobStore blobStore) {
+        this.fileDAO = fileDAO;
+        this.blobStore = blobStore;
+        this.uploadSessions = startUploadSessions();
+        blobStore.setReplicator(startReplicator(blobStore));
+        blobStore.setTiering(startTiering(fileDAO, blobStore));
+        startAccessTracker(fileDAO);
+        initKeyManager();
+        startSweeper(fileDAO, blobStore);
+        startShardMigrator(blobStore);
+        startScrubber(blobStore);
+        startFilenameSearch(fileDAO);
+        startContentIndexer();
+        initQuotaManager();
+    }
+
+    /**
+     * Creates the process-wide upload session manager, so every service instance shares its locks and
+     * one thread sweeps abandoned sessions.
+     */
+    private static synchronized UploadSessionManager startUploadSessions() {
+        if (uploadSessionManager == null) {
+            uploadSessionManager = new UploadSessionManager(Paths.get(LOCKER_DIR), UPLOAD_SESSION_TTL_MS,
+                    UPLOAD_SESSION_SWEEP_INTERVAL_MS);
+        }
+        return uploadSessionManager;
+    }
+
+    /**
+     * Creates the process-wide quota manager, so every service instance shares one set of reservations.
+     */
+    private static synchronized void initQuotaManager() {
+        if (quotaManager == null) {
+            quotaManager = new QuotaManager(DAOFactory.getUserDAO(), DEFAULT_QUOTA_BYTES, QUOTA_CACHE_MAX_ENTRIES,
+                    QUOTA_CACHE_TTL_MS);
+        }
+    }
+
+    /**
+     * Creates the process-wide filename search. User indexes are built on demand.
+     */
+    private static synchronized void startFilenameSearch(FileDAO fileDAO) {
+        if (filenameSearch == null) {
+            filenameSearch = new FilenameSearch(fileDAO, SEARCH_MAX_INDEXED_USERS);
+        }
+    }
+
+    /**
+     * Starts the process-wide content indexer, unless content indexing is disabled. With encryption
+     * enabled, each user's index is encrypted with their data key, since it holds their files' words.
+     */
+    private static synchronized void startContentIndexer() {
+        if (contentIndexer == null && CONTENT_INDEX_ENABLED) {
+            ContentIndexer.KeySource keys = !ENCRYPTION_ENABLED ? null : userId -> {
+                try {
+                    return requireKeyManager().getDataKey(userId);
+                } catch (SQLException e) {
+                    throw new IOException("Could not load the data key: " + e.getMessage(), e);
+                }
+            };
+            contentIndexer = new ContentIndexer(Paths.get(CONTENT_INDEX_DIR), CONTENT_INDEX_QUEUE_CAPACITY,
+                    CONTENT_INDEX_MAX_SEGMENTS, CONTENT_INDEX_MAX_TEXT_BYTES, CONTENT_INDEX_MAX_OPEN_USERS, keys);
+            contentIndexer.start();
+        }
+    }
+
+    /**
+     * @return The background content indexer, or null if content indexing is disabled.
+     */
+    public static synchronized ContentIndexer getContentIndexer() {
+        return contentIndexer;
+    }
+
+    /**
+     * Starts the process-wide sweeper that reclaims deleted files, if it is not running yet.
+     */
+    private static synchronized void startSweeper(FileDAO fileDAO, BlobStore blobStore) {
+        if (sweeper == null) {
+            sweeper = new TombstoneSweeper(fileDAO, blobStore, SWEEPER_FILES_PER_SECOND, SWEEPER_INTERVAL_MS);
+            sweeper.start();
+        }
+    }
+
+    /**
+     * @return The background sweeper that reclaims deleted files.
+     */
+    public static synchronized TombstoneSweeper getSweeper() {
+        return sweeper;
+    }
+
+    /**
+     * Starts the process-wide integrity scrubber, unless scrubbing is disabled.
+     */
+    private static synchronized void startScrubber(BlobStore blobStore) {
+        if (scrubber == null && SCRUB_ENABLED) {
+            scrubber = new IntegrityScrubber(DAOFactory.getBlobDAO(), blobStore, SCRUB_MB_PER_SECOND * 1024 * 1024,
+                    SCRUB_INTERVAL_MS, SCRUB_REVERIFY_AFTER_MS);
+            scrubber.start();
+        }
+    }
+
+    /**
+     * @return The background integrity scrubber, or null if scrubbing is disabled.
+     */
+    public static synchronized IntegrityScrubber getScrubber() {
+        return scrubber;
+    }
+
+    /**
+     * Starts the process-wide replicator, if a replica directory is configured.
+     * @return The replicator, or null if replication is off or could not be started.
+     */
+    private static synchronized BlobReplicator startReplicator(BlobStore blobStore) {
+        if (replicator == null && REPLICATION_DIR != null && !REPLICATION_DIR.isEmpty()) {
             try {
-                Files.createDirectories(path);
-                System.out.println("Created locker directory: " + LOCKER_DIR);
+                replicator = new BlobReplicator(blobStore, Paths.get(REPLICATION_DIR), DAOFactory.getBlobDAO(),
+                        REPLICATION_THREADS, REPLICATION_BATCH_SIZE, REPLICATION_RETRY_MS, REPLICATION_FSYNC);
+                replicator.start(REPLICATION_CATCH_UP_ON_STARTUP);
             } catch (IOException e) {
-                System.err.println("Failed to create locker directory: " + e.getMessage());
+                System.err.println("Replication is off: could not open the replication log: " + e.getMessage());
             }
         }
+        return replicator;
+    }
+
+    /**
+     * @return The background replicator, or null if replication is off.
+     */
+    public static synchronized BlobReplicator getReplicator() {
+        return replicator;
+    }
+
+    /**
+     * Starts the process-wide storage tiering, if a cold directory is configured.
+     * @return The tiering, or null if tiering is off or could not be started.
+     */
+    private static synchronized StorageTiering startTiering(FileDAO fileDAO, BlobStore blobStore) {
+        if (tiering == null && TIERING_COLD_DIR != null && !TIERING_COLD_DIR.isEmpty()) {
+            try {
+                tiering = new StorageTiering(fileDAO, blobStore, Paths.get(TIERING_COLD_DIR),
+                        TIERING_MB_PER_SECOND * 1024 * 1024, TIERING_INTERVAL_MS, TIERING_COLD_AFTER_MS,
+                        TIERING_COMPRESSION_LEVEL);
+                tiering.start();
+            } catch (IOException e) {
+                System.err.println("Storage tiering is off: could not create the cold directory: " + e.getMessage());
+            }
+        }
+        return tiering;
+    }
+
+    /**
+     * @return The storage tiering, or null if tiering is off.
+     */
+    public static synchronized StorageTiering getTiering() {
+        return tiering;
+    }
+
+    /**
+     * Starts the process-wide tracker of last-access times, if it is not running yet.
+     */
+    private static synchronized void startAccessTracker(FileDAO fileDAO) {
+        if (accessTracker == null) {
+            accessTracker = new AccessTracker(fileDAO, ACCESS_FLUSH_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Creates the process-wide shard migrator and, unless disabled, starts moving legacy flat files
+     * into the sharded layout in the background.
+     */
+    private static synchronized void startShardMigrator(BlobStore blobStore) {
+        if (shardMigrator == null) {
+            shardMigrator = new ShardMigrator(blobStore, MIGRATION_BATCH_SIZE, MIGRATION_PAUSE_MS);
+            if (MIGRATION_ON_STARTUP) {
+                shardMigrator.start();
+            }
+        }
+    }
+
+    /**
+     * @return The migrator that moves legacy flat files into the sharded layout; use it to start,
+     *         stop or follow the migration.
+     */
+    public static synchronized ShardMigrator getShardMigrator() {
+        return shardMigrator;
     }
 
     /**
      * Uploads a file to the locker system.
-     * Stores the file on disk and its metadata in the database.
+     * Stores the file's content in the deduplicating blob store, compressed if it compresses well and
+     * encrypted with the user's data key, and its metadata in the database. If the user already has a
+     * file of the same name, the upload becomes that file's new version (see {@link #getFileVersions}).
      * @param userId The ID of the user uploading the file.
      * @param sourceFile The File object representing the file to upload.
      * @return true if the file was uploaded successfully, false otherwise.
      */
     public boolean uploadFile(int userId, File sourceFile) {
-        if (!sourceFile.exists() || !sourceFile.isFile()) {
-            System.err.println("Source file does not exist or is not a file.");
-            return false;
+        return uploadFile(userId, sourceFile, TransferListener.NONE);
+    }
+
+    /**
+     * Uploads a file to the locker system, reporting the bytes read from it as they are stored.
+     * @param userId The ID of the user uploading the file.
+     * @param sourceFile The File object representing the file to upload.
+     * @param listener Receives progress; once it cancels, the upload stops and nothing is saved.
+     * @return true if the file was uploaded successfully, false otherwise (including when cancelled).
+     */
+    public boolean uploadFile(int userId, File sourceFile, TransferListener listener) {
+        long startNanos = System.nanoTime();
+        try {
+            if (!sourceFile.exists() || !sourceFile.isFile()) {
+                System.err.println("Source file does not exist or is not a file.");
+                return false;
+            }
+
+            String originalFilename = sourceFile.getName();
+            BlobStore.StoredBlob blob = null;
+            QuotaManager.Reservation reservation = null;
+
+            try {
+                // Checked against the cached usage before a single byte is copied
+                reservation = quotaManager.reserve(userId, sourceFile.length());
+                if (reservation == null) {
+                    System.err.println("Upload rejected: " + originalFilename + " would exceed the storage quota.");
+                    return false;
+                }
+                FileMetadata current = VERSIONS_ENABLED ? fileDAO.getLiveFileByName(userId, originalFilename) : null;
+
+                // Stream the file into the blob store; identical content is stored only once, and a new
+                // version is stored as chunks so that it shares the unchanged ones with the versions before it
+                try (InputStream in = new ProgressInputStream(Files.newInputStream(sourceFile.toPath()), listener)) {
+                    blob = current != null ? blobStore.storeChunked(in, dataKeyFor(userId))
+                            : blobStore.store(in, dataKeyFor(userId));
+                }
+                ProgressInputStream.checkCancelled(listener); // Last chance before the file becomes visible
+
+                if (current != null) {
+                    int version = saveVersion(current, blob);
+                    if (version != -1) {
+                        reservation.commit(blob.getSizeBytes()); // The replaced content still counts, as a version
+                        System.out.println("File uploaded as version " + version + " of " + originalFilename);
+                        UPLOAD_FILE_METRICS.addBytesIn(blob.getSizeBytes());
+                        return true;
+                    }
+                    // The file was deleted or replaced meanwhile: the upload is saved as a file of its own
+                }
+
+                // Save file metadata to the database
+                FileMetadata metadata = new FileMetadata(userId, originalFilename, blob.getName(),
+                        blob.getCodec(), blob.getSizeBytes(), blob.isEncrypted());
+                int fileId = fileDAO.addFileMetadata(metadata);
+                if (fileId != -1) {
+                    reservation.commit(blob.getSizeBytes());
+                    indexAdded(metadata, fileId);
+                    System.out.println("File uploaded and metadata saved: " + originalFilename
+                            + (blob.isDeduplicated() ? " (deduplicated)" : ""));
+                    UPLOAD_FILE_METRICS.addBytesIn(blob.getSizeBytes());
+                    return true;
+                } else {
+                    // If metadata saving fails, drop the blob reference to prevent orphaned files
+                    UPLOAD_FILE_METRICS.recordError();
+                    releaseQuietly(blob.getName());
+                    System.err.println("Failed to save file metadata for: " + originalFilename);
+                    return false;
+                }
+            } catch (InterruptedIOException e) {
+                if (blob != null) {
+                    releaseQuietly(blob.getName());
+                }
+                System.out.println("Upload cancelled: " + originalFilename);
+                return false;
+            } catch (IOException e) {
+                UPLOAD_FILE_METRICS.recordError();
+                System.err.println("Error copying file: " + e.getMessage());
+                if (blob != null) {
+                    releaseQuietly(blob.getName()); // Stored before the failure, e.g. while saving a version
+                }
+                return false;
+            } catch (SQLException e) {
+                UPLOAD_FILE_METRICS.recordError();
+                System.err.println("Database error during file upload: " + e.getMessage());
+                if (blob != null) {
+                    releaseQuietly(blob.getName()); // Clean up blob reference if DB fails
+                }
+                return false;
+            } finally {
+                if (reservation != null) {
+                    reservation.release(); // No-op once committed
+                }
+            }
+        } finally {
+            UPLOAD_FILE_METRICS.record(startNanos);
         }
+    }
 
-        String originalFilename = sourceFile.getName();
-        String storedFilename = UUID.randomUUID().toString(); // Generate a unique filename for storage
-        Path destinationPath = Paths.get(LOCKER_DIR, storedFilename);
+    /**
+     * Uploads many files at once. File contents are copied in parallel on a bounded pool, then all
+     * metadata rows are inserted in one batched transaction. Each file gets its own result, so one
+     * unreadable file does not fail the rest of the batch. Files sharing a name are saved as successive
+     * versions of one file, in iteration order, as if uploaded one after another.
+     * @param userId The ID of the user uploading the files.
+     * @param sourceFiles The files to upload.
+     * @return One UploadResult per input file, in iteration order.
+     */
+    public List<UploadResult> uploadFiles(int userId, Collection<File> sourceFiles) {
+        return uploadFiles(userId, sourceFiles, TransferListener.NONE);
+    }
 
+    /**
+     * Uploads many files at once, reporting the bytes read from all of them to one listener.
+     * @param userId The ID of the user uploading the files.
+     * @param sourceFiles The files to upload.
+     * @param listener Receives progress from the parallel copies, possibly concurrently; once it cancels,
+     *                 the copies in flight stop and no file of the batch is saved.
+     * @return One UploadResult per input file, in iteration order.
+     */
+    public List<UploadResult> uploadFiles(int userId, Collection<File> sourceFiles, TransferListener listener) {
+        long startNanos = System.nanoTime();
         try {
-            // Copy file to the locker directory
-            Files.copy(sourceFile.toPath(), destinationPath, StandardCopyOption.REPLACE_EXISTING);
+            List<File> files = new ArrayList<>(sourceFiles);
+            UploadResult[] results = new UploadResult[files.size()];
 
-            // Save file metadata to the database
-            FileMetadata metadata = new FileMetadata(userId, originalFilename, storedFilename);
-            int fileId = fileDAO.addFileMetadata(metadata);
-            if (fileId != -1) {
-                System.out.println("File uploaded and metadata saved: " + originalFilename);
-                return true;
-            } else {
-                // If metadata saving fails, delete the copied file to prevent orphaned files
-                Files.deleteIfExists(destinationPath);
-                System.err.println("Failed to save file metadata for: " + originalFilename);
-                return false;
+            SecretKey key;
+            try {
+                key = dataKeyFor(userId);
+            } catch (IOException | SQLException e) {
+                UPLOAD_FILES_METRICS.recordError();
+                System.err.println("Error loading data key for batch upload: " + e.getMessage());
+                for (int i = 0; i < files.size(); i++) {
+                    results[i] = UploadResult.failure(files.get(i), "Encryption key unavailable: " + e.getMessage());
+                }
+                return Arrays.asList(results);
             }
-        } catch (IOException e) {
-            System.err.println("Error copying file: " + e.getMessage());
-            return false;
+
+            // The whole batch must fit in the quota, checked before any copy starts
+            long batchBytes = 0;
+            for (File sourceFile : files) {
+                if (sourceFile.isFile()) {
+                    batchBytes += sourceFile.length();
+                }
+            }
+            QuotaManager.Reservation reservation;
+            try {
+                reservation = quotaManager.reserve(userId, batchBytes);
+            } catch (SQLException e) {
+                UPLOAD_FILES_METRICS.recordError();
+                System.err.println("Database error checking the storage quota: " + e.getMessage());
+                for (int i = 0; i < files.size(); i++) {
+                    results[i] = UploadResult.failure(files.get(i), "Database error: " + e.getMessage());
+                }
+                return Arrays.asList(results);
+            }
+            if (reservation == null) {
+                System.err.println("Batch upload rejected: " + batchBytes + " bytes would exceed the storage quota.");
+                for (int i = 0; i < files.size(); i++) {
+                    results[i] = UploadResult.failure(files.get(i), "Storage quota exceeded.");
+                }
+                return Arrays.asList(results);
+            }
+            try {
+                return copyAndSaveBatch(userId, files, results, key, reservation, listener);
+            } finally {
+                reservation.release(); // No-op once committed
+            }
+        } finally {
+            UPLOAD_FILES_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * The copy and metadata phases of {@link #uploadFiles}, run once the batch's reservation is held.
+     */
+    private List<UploadResult> copyAndSaveBatch(int userId, List<File> files, UploadResult[] results, SecretKey key,
+                                                QuotaManager.Reservation reservation, TransferListener listener) {
+        // Copy phase: stream every readable file into the blob store in parallel. Files the user already
+        // has under the same name become new versions, stored as chunks, and so do files named like an
+        // earlier file of the batch: they are saved as versions of it, in batch order
+        List<Future<BlobStore.StoredBlob>> copies = new ArrayList<>(files.size());
+        FileMetadata[] currents = new FileMetadata[files.size()];
+        boolean[] repeated = new boolean[files.size()];
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < files.size(); i++) {
+            File sourceFile = files.get(i);
+            if (!sourceFile.exists() || !sourceFile.isFile()) {
+                copies.add(null);
+                continue;
+            }
+            repeated[i] = VERSIONS_ENABLED && !names.add(sourceFile.getName());
+            try {
+                currents[i] = VERSIONS_ENABLED && !repeated[i]
+                        ? fileDAO.getLiveFileByName(userId, sourceFile.getName()) : null;
+            } catch (SQLException e) {
+                System.err.println("Database error looking up " + sourceFile.getName() + ": " + e.getMessage());
+                results[i] = UploadResult.failure(sourceFile, "Database error: " + e.getMessage());
+                copies.add(null);
+                continue;
+            }
+            boolean versioned = currents[i] != null || repeated[i];
+            copies.add(UPLOAD_EXECUTOR.submit(() -> {
+                try (InputStream in = new ProgressInputStream(Files.newInputStream(sourceFile.toPath()), listener)) {
+                    return versioned ? blobStore.storeChunked(in, key) : blobStore.store(in, key);
+                }
+            }));
+        }
+
+        List<FileMetadata> rows = new ArrayList<>();
+        List<Integer> rowIndexes = new ArrayList<>();
+        List<BlobStore.StoredBlob> versionBlobs = new ArrayList<>();
+        List<Integer> versionIndexes = new ArrayList<>();
+        boolean interrupted = false;
+        for (int i = 0; i < files.size(); i++) {
+            File sourceFile = files.get(i);
+            Future<BlobStore.StoredBlob> copy = copies.get(i);
+            if (copy == null) {
+                if (results[i] == null) {
+                    results[i] = UploadResult.failure(sourceFile, "Source file does not exist or is not a file.");
+                }
+                continue;
+            }
+            if (interrupted) {
+                copy.cancel(true);
+            }
+            try {
+                BlobStore.StoredBlob blob = copy.get();
+                if (interrupted) {
+                    releaseQuietly(blob.getName());
+                    results[i] = UploadResult.failure(sourceFile, "Upload was interrupted.");
+                    continue;
+                }
+                if (currents[i] != null || repeated[i]) {
+                    versionBlobs.add(blob);
+                    versionIndexes.add(i);
+                    continue;
+                }
+                rows.add(new FileMetadata(userId, sourceFile.getName(), blob.getName(),
+                        blob.getCodec(), blob.getSizeBytes(), blob.isEncrypted()));
+                rowIndexes.add(i);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                System.err.println("Error copying file " + sourceFile.getName() + ": " + cause.getMessage());
+                results[i] = UploadResult.failure(sourceFile, cause.getMessage());
+            } catch (InterruptedException | CancellationException e) {
+                interrupted = true;
+                results[i] = UploadResult.failure(sourceFile, "Upload was interrupted.");
+            }
+        }
+        if (interrupted || listener.isCancelled()) {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            for (FileMetadata row : rows) {
+                releaseQuietly(row.getStoredFilename());
+            }
+            for (BlobStore.StoredBlob blob : versionBlobs) {
+                releaseQuietly(blob.getName());
+            }
+            rowIndexes.addAll(versionIndexes);
+            for (int index : rowIndexes) {
+                results[index] = UploadResult.failure(files.get(index),
+                        interrupted ? "Upload was interrupted." : "Upload was cancelled.");
+            }
+            return Arrays.asList(results);
+        }
+
+        // Metadata phase: one transaction for the new files, then each new version on its own, in batch order
+        long savedBytes = 0;
+        try {
+            int[] fileIds = rows.isEmpty() ? new int[0] : fileDAO.addFileMetadataBatch(rows);
+            for (FileMetadata row : rows) {
+                savedBytes += row.getSizeBytes();
+            }
+            for (int r = 0; r < fileIds.length; r++) {
+                int index = rowIndexes.get(r);
+                results[index] = UploadResult.success(files.get(index), fileIds[r]);
+                indexAdded(rows.get(r), fileIds[r]);
+                UPLOAD_FILES_METRICS.addBytesIn(rows.get(r).getSizeBytes());
+            }
+            System.out.println("Batch upload saved " + fileIds.length + " of " + files.size() + " files.");
         } catch (SQLException e) {
-            System.err.println("Database error during file upload: " + e.getMessage());
+            UPLOAD_FILES_METRICS.recordError();
+            System.err.println("Database error during batch upload: " + e.getMessage());
+            for (int r = 0; r < rows.size(); r++) {
+                releaseQuietly(rows.get(r).getStoredFilename()); // Clean up blob references if DB fails
+                int index = rowIndexes.get(r);
+                results[index] = UploadResult.failure(files.get(index), "Database error: " + e.getMessage());
+            }
+        }
+        for (int v = 0; v < versionBlobs.size(); v++) {
+            int index = versionIndexes.get(v);
+            BlobStore.StoredBlob blob = versionBlobs.get(v);
+            String name = files.get(index).getName();
             try {
-                Files.deleteIfExists(destinationPath); // Clean up file if DB fails
-            } catch (IOException ioException) {
-                System.err.println("Error cleaning up file after DB error: " + ioException.getMessage());
+                // A repeated name replaces whatever the earlier files of the batch left under it
+                FileMetadata current = repeated[index] ? fileDAO.getLiveFileByName(userId, name) : currents[index];
+                int fileId = current != null && saveVersion(current, blob) != -1 ? current.getId() : -1;
+                if (fileId != -1) {
+                    savedBytes += blob.getSizeBytes(); // The replaced content still counts, as a version
+                } else {
+                    // The file was deleted or replaced meanwhile, or the earlier file of that name was not
+                    // saved: the upload is saved as a file of its own
+                    FileMetadata row = new FileMetadata(userId, name, blob.getName(),
+                            blob.getCodec(), blob.getSizeBytes(), blob.isEncrypted());
+                    fileId = fileDAO.addFileMetadata(row);
+                    if (fileId == -1) {
+                        throw new SQLException("Failed to save file metadata for: " + name);
+                    }
+                    savedBytes += blob.getSizeBytes();
+                    indexAdded(row, fileId);
+                }
+                results[index] = UploadResult.success(files.get(index), fileId);
+                UPLOAD_FILES_METRICS.addBytesIn(blob.getSizeBytes());
+            } catch (IOException | SQLException e) {
+                UPLOAD_FILES_METRICS.recordError();
+                System.err.println("Error saving new version of " + name + ": " + e.getMessage());
+                releaseQuietly(blob.getName());
+                results[index] = UploadResult.failure(files.get(index), e.getMessage());
             }
-            return false;
+        }
+        reservation.commit(savedBytes);
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Opens a chunked upload session using the default chunk size.
+     * @param userId The ID of the user uploading the file.
+     * @param originalFilename The name the file should have in the locker.
+     * @return The new UploadSession, or null if it could not be created.
+     */
+    public UploadSession openUploadSession(int userId, String originalFilename) {
+        return openUploadSession(userId, originalFilename, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Opens a chunked upload session. Chunks are staged on disk and only become a locker file on commit.
+     * @param userId The ID of the user uploading the file.
+     * @param originalFilename The name the file should have in the locker.
+     * @param chunkSize The size of every chunk except the last, in bytes.
+     * @return The new UploadSession, or null if it could not be created.
+     */
+    public UploadSession openUploadSession(int userId, String originalFilename, int chunkSize) {
+        long startNanos = System.nanoTime();
+        try {
+            try {
+                return uploadSessions.open(userId, originalFilename, chunkSize);
+            } catch (IOException | IllegalArgumentException e) {
+                OPEN_UPLOAD_SESSION_METRICS.recordError();
+                System.err.println("Error opening upload session: " + e.getMessage());
+                return null;
+            }
+        } finally {
+            OPEN_UPLOAD_SESSION_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Appends the next chunk to an upload session. The chunk is durable once this method returns.
+     * Every chunk but the last must be exactly the session's chunk size.
+     * @param sessionId The ID of the upload session.
+     * @param userId The ID of the user who owns the session.
+     * @param chunkIndex The zero-based index of the chunk; must be the session's next chunk (or an already written one).
+     * @param chunkData The chunk's bytes. The stream is read but not closed.
+     * @return The updated UploadSession, or null if the chunk was rejected or could not be written.
+     */
+    public UploadSession appendChunk(String sessionId, int userId, int chunkIndex, InputStream chunkData) {
+        long startNanos = System.nanoTime();
+        try {
+            try {
+                // Staged bytes are not usage yet, but a session that cannot fit in the quota stops taking chunks
+                long maxBytes = quotaManager.getRemainingBytes(userId);
+                return uploadSessions.appendChunk(sessionId, userId, chunkIndex, chunkData, maxBytes);
+            } catch (SQLException e) {
+                APPEND_CHUNK_METRICS.recordError();
+                System.err.println("Database error checking the storage quota: " + e.getMessage());
+                return null;
+            } catch (IOException | IllegalArgumentException e) {
+                APPEND_CHUNK_METRICS.recordError();
+                System.err.println("Error appending chunk " + chunkIndex + " to upload session: " + e.getMessage());
+                return null;
+            }
+        } finally {
+            APPEND_CHUNK_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Reloads an upload session, e.g. after a crash, discarding any partially written chunk.
+     * The client should continue with chunk {@link UploadSession#getCommittedChunks()}.
+     * @param sessionId The ID of the upload session.
+     * @param userId The ID of the user who owns the session.
+     * @return The UploadSession at its last durable chunk, or null if it does not exist.
+     */
+    public UploadSession resumeUploadSession(String sessionId, int userId) {
+        long startNanos = System.nanoTime();
+        try {
+            try {
+                return uploadSessions.resume(sessionId, userId);
+            } catch (IOException | IllegalArgumentException e) {
+                RESUME_UPLOAD_SESSION_METRICS.recordError();
+                System.err.println("Error resuming upload session: " + e.getMessage());
+                return null;
+            }
+        } finally {
+            RESUME_UPLOAD_SESSION_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Lists a user's upload sessions that have been neither committed nor aborted.
+     * @param userId The ID of the user.
+     * @return A list of pending UploadSession objects.
+     */
+    public List<UploadSession> getPendingUploadSessions(int userId) {
+        long startNanos = System.nanoTime();
+        try {
+            try {
+                return uploadSessions.listSessions(userId);
+            } catch (IOException e) {
+                GET_PENDING_UPLOAD_SESSIONS_METRICS.recordError();
+                System.err.println("Error listing upload sessions: " + e.getMessage());
+                return List.of();
+            }
+        } finally {
+            GET_PENDING_UPLOAD_SESSIONS_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Commits an upload session: the staged data is atomically moved into the locker and its metadata saved.
+     * @param sessionId The ID of the upload session.
+     * @param userId The ID of the user who owns the session.
+     * @return The ID of the new file, or -1 if the commit failed. If the staged data could not be
+     *         moved into the locker the session is left intact for a retry.
+     */
+    public int commitUploadSession(String sessionId, int userId) {
+        long startNanos = System.nanoTime();
+        try {
+            BlobStore.StoredBlob blob = null;
+            QuotaManager.Reservation reservation = null;
+            try {
+                UploadSession session;
+                FileMetadata current;
+                synchronized (uploadSessions.lockFor(sessionId)) {
+                    session = uploadSessions.resume(sessionId, userId);
+                    reservation = quotaManager.reserve(userId, session.getCommittedBytes());
+                    if (reservation == null) {
+                        System.err.println("Upload session rejected: " + session.getOriginalFilename()
+                                + " would exceed the storage quota.");
+                        return -1; // The session stays, so it can be committed once space is freed
+                    }
+                    current = VERSIONS_ENABLED
+                            ? fileDAO.getLiveFileByName(userId, session.getOriginalFilename()) : null;
+                    if (current != null) {
+                        try (InputStream in = Files.newInputStream(uploadSessions.dataFile(sessionId))) {
+                            blob = blobStore.storeChunked(in, dataKeyFor(userId));
+                        }
+                    } else {
+                        blob = blobStore.storeFile(uploadSessions.dataFile(sessionId), dataKeyFor(userId));
+                    }
+                }
+                // The staged data now belongs to the blob store, so the session is finished either way
+                uploadSessions.discard(sessionId);
+
+                if (current != null) {
+                    int version = saveVersion(current, blob);
+                    if (version != -1) {
+                        reservation.commit(blob.getSizeBytes()); // The replaced content still counts, as a version
+                        COMMIT_UPLOAD_SESSION_METRICS.addBytesIn(blob.getSizeBytes());
+                        System.out.println("Upload session committed as version " + version + " of "
+                                + session.getOriginalFilename());
+                        return current.getId();
+                    }
+                    // The file was deleted or replaced meanwhile: the upload is saved as a file of its own
+                }
+
+                FileMetadata metadata = new FileMetadata(userId, session.getOriginalFilename(), blob.getName(),
+                        blob.getCodec(), blob.getSizeBytes(), blob.isEncrypted());
+                int fileId = fileDAO.addFileMetadata(metadata);
+                if (fileId == -1) {
+                    COMMIT_UPLOAD_SESSION_METRICS.recordError();
+                    releaseQuietly(blob.getName());
+                    System.err.println("Failed to save file metadata for: " + session.getOriginalFilename());
+                    return -1;
+                }
+                reservation.commit(blob.getSizeBytes());
+                indexAdded(metadata, fileId);
+                COMMIT_UPLOAD_SESSION_METRICS.addBytesIn(blob.getSizeBytes());
+                System.out.println("Upload session committed: " + session.getOriginalFilename()
+                        + " (" + session.getCommittedBytes() + " bytes)");
+                return fileId;
+            } catch (IOException | IllegalArgumentException e) {
+                COMMIT_UPLOAD_SESSION_METRICS.recordError();
+                System.err.println("Error committing upload session: " + e.getMessage());
+                if (blob != null) {
+                    releaseQuietly(blob.getName());
+                }
+                return -1;
+            } catch (SQLException e) {
+                COMMIT_UPLOAD_SESSION_METRICS.recordError();
+                System.err.println("Database error committing upload session: " + e.getMessage());
+                if (blob != null) {
+                    releaseQuietly(blob.getName());
+                }
+                return -1;
+            } finally {
+                if (reservation != null) {
+                    reservation.release(); // No-op once committed
+                }
+            }
+        } finally {
+            COMMIT_UPLOAD_SESSION_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Aborts an upload session and discards its staged data.
+     * @param sessionId The ID of the upload session.
+     * @param userId The ID of the user who owns the session.
+     * @return true if the session was discarded, false otherwise.
+     */
+    public boolean abortUploadSession(String sessionId, int userId) {
+        long startNanos = System.nanoTime();
+        try {
+            try {
+                uploadSessions.resume(sessionId, userId); // Ownership check
+                uploadSessions.discard(sessionId);
+                return true;
+            } catch (IOException | IllegalArgumentException e) {
+                ABORT_UPLOAD_SESSION_METRICS.recordError();
+                System.err.println("Error aborting upload session: " + e.getMessage());
+                return false;
+            }
+        } finally {
+            ABORT_UPLOAD_SESSION_METRICS.record(startNanos);
         }
     }
 
@@ -90,71 +945,494 @@ public class FileLockerService {
      * @return true if the file was retrieved successfully, false otherwise.
      */
     public boolean retrieveFile(int fileId, int userId, Path destinationPath) {
+        return retrieveFile(fileId, userId, destinationPath, TransferListener.NONE);
+    }
+
+    /**
+     * Retrieves a file from the locker system, reporting the bytes written to the destination.
+     * With digitallocker.retrieve.verifyChecksum set, the stored bytes are checked against the checksum
+     * recorded at upload as they stream; a corrupt file is flagged and no copy is left at the destination.
+     * Streamed and ranged retrievals are checked too; see {@link #retrieveFileRange}.
+     * @param fileId The ID of the file to retrieve.
+     * @param userId The ID of the user requesting the file (for access control).
+     * @param destinationPath The Path where the file should be saved on the user's system.
+     * @param listener Receives progress; once it cancels, the copy stops and the partial file is deleted.
+     * @return true if the file was retrieved successfully, false otherwise (including when cancelled).
+     */
+    public boolean retrieveFile(int fileId, int userId, Path destinationPath, TransferListener listener) {
+        long startNanos = System.nanoTime();
         try {
-            FileMetadata metadata = fileDAO.getFileByIdAndUserId(fileId, userId);
-            if (metadata == null) {
-                System.err.println("File not found or not owned by user.");
+            try {
+                FileMetadata metadata = fileDAO.getFileByIdAndUserId(fileId, userId);
+                if (metadata == null) {
+                    System.err.println("File not found or not owned by user.");
+                    return false;
+                }
+                if (!copyToPath(metadata, destinationPath, listener, RETRIEVE_FILE_METRICS)) {
+                    return false;
+                }
+                accessTracker.recordAccess(fileId);
+                System.out.println("File retrieved successfully: " + metadata.getOriginalFilename());
+                return true;
+            } catch (SQLException e) {
+                RETRIEVE_FILE_METRICS.recordError();
+                System.err.println("Database error during file retrieval: " + e.getMessage());
+                return false;
+            } catch (IOException e) {
+                RETRIEVE_FILE_METRICS.recordError();
+                System.err.println("Error copying file during retrieval: " + e.getMessage());
                 return false;
             }
+        } finally {
+            RETRIEVE_FILE_METRICS.record(startNanos);
+        }
+    }
 
-            Path sourcePath = Paths.get(LOCKER_DIR, metadata.getStoredFilename());
-            if (!Files.exists(sourcePath)) {
-                System.err.println("Stored file not found on disk: " + metadata.getStoredFilename());
+    /**
+     * Gets every kept version of a file: the current one first, then the earlier ones, newest first.
+     * @param fileId The ID of the file.
+     * @param userId The ID of the user requesting the versions (for access control).
+     * @return A list of FileVersion objects; empty if the file is not found or not owned by the user.
+     */
+    public List<FileVersion> getFileVersions(int fileId, int userId) {
+        long startNanos = System.nanoTime();
+        try {
+            try {
+                FileMetadata file = fileDAO.getFileByIdAndUserId(fileId, userId);
+                if (file == null) {
+                    System.err.println("File not found or not owned by user.");
+                    return List.of();
+                }
+                List<FileVersion> earlier = fileDAO.getFileVersions(fileId);
+                List<FileVersion> versions = new ArrayList<>(earlier.size() + 1);
+                versions.add(currentVersion(file, earlier));
+                versions.addAll(earlier);
+                return versions;
+            } catch (SQLException e) {
+                GET_FILE_VERSIONS_METRICS.recordError();
+                System.err.println("Database error getting file versions: " + e.getMessage());
+                return List.of();
+            }
+        } finally {
+            GET_FILE_VERSIONS_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Retrieves one version of a file, current or earlier, like {@link #retrieveFile(int, int, Path, TransferListener)}.
+     * @param fileId The ID of the file to retrieve.
+     * @param userId The ID of the user requesting the file (for access control).
+     * @param version The version number, as listed by {@link #getFileVersions}.
+     * @param destinationPath The Path where the version should be saved on the user's system.
+     * @param listener Receives progress; once it cancels, the copy stops and the partial file is deleted.
+     * @return true if the version was retrieved successfully, false otherwise (including when cancelled).
+     */
+    public boolean retrieveFileVersion(int fileId, int userId, int version, Path destinationPath,
+                                       TransferListener listener) {
+        long startNanos = System.nanoTime();
+        try {
+            try {
+                FileMetadata file = fileDAO.getFileByIdAndUserId(fileId, userId);
+                if (file == null) {
+                    System.err.println("File not found or not owned by user.");
+                    return false;
+                }
+                FileVersion earlier = fileDAO.getFileVersion(fileId, version);
+                FileMetadata metadata;
+                if (earlier != null) {
+                    metadata = earlier.toMetadata(file);
+                } else if (currentVersion(file, fileDAO.getFileVersions(fileId)).getVersion() == version) {
+                    metadata = file;
+                } else {
+                    System.err.println("Version " + version + " of " + file.getOriginalFilename() + " is not kept.");
+                    return false;
+                }
+                if (!copyToPath(metadata, destinationPath, listener, RETRIEVE_FILE_VERSION_METRICS)) {
+                    return false;
+                }
+                accessTracker.recordAccess(fileId);
+                System.out.println("Version " + version + " of " + file.getOriginalFilename() + " retrieved successfully.");
+                return true;
+            } catch (SQLException e) {
+                RETRIEVE_FILE_VERSION_METRICS.recordError();
+                System.err.println("Database error during file retrieval: " + e.getMessage());
+                return false;
+            } catch (IOException e) {
+                RETRIEVE_FILE_VERSION_METRICS.recordError();
+                System.err.println("Error copying file during retrieval: " + e.getMessage());
                 return false;
             }
+        } finally {
+            RETRIEVE_FILE_VERSION_METRICS.record(startNanos);
+        }
+    }
 
-            // Ensure the destination directory exists
-            if (destinationPath.getParent() != null) {
-                Files.createDirectories(destinationPath.getParent());
+    /**
+     * Describes the content a files row holds as the file's latest version, numbered one past the newest earlier one.
+     */
+    private static FileVersion currentVersion(FileMetadata file, List<FileVersion> earlier) {
+        int version = earlier.isEmpty() ? 1 : earlier.get(0).getVersion() + 1;
+        return new FileVersion(file.getId(), version, file.getStoredFilename(), file.getCodec(),
+                file.getSizeBytes(), file.isEncrypted(), file.getUploadDate(), true);
+    }
+
+    /**
+     * Makes stored content the new version of an existing file. A file whose content is still one whole
+     * blob has it re-stored as chunks first, so that the version kept shares chunks with the new one.
+     * Versions beyond digitallocker.versions.max are dropped, oldest first, and their content released.
+     * Every version kept counts towards the owner's quota, so the caller reserves the new content's full size.
+     * The file is queued for content indexing again, and its new text replaces the old in the index.
+     * @param current The file as last read.
+     * @param blob The new content, as stored by {@link BlobStore#storeChunked}.
+     * @return The number of the new version, or -1 if the file was deleted or replaced meanwhile.
+     */
+    private int saveVersion(FileMetadata current, BlobStore.StoredBlob blob) throws IOException, SQLException {
+        BlobStore.StoredBlob rechunked = null;
+        if (!BlobStore.isChunked(current.getCodec())) {
+            // Read verified, so that damaged content is never re-stored as chunks with fresh checksums
+            try (InputStream in = blobStore.openVerifiedStream(current.getStoredFilename(), current.getCodec(),
+                    keyFor(current))) {
+                rechunked = blobStore.storeChunked(in, keyFor(current));
+            } catch (IOException e) {
+                if (rechunked != null) {
+                    releaseQuietly(rechunked.getName()); // The checksum failed as the stream was closed
+                    rechunked = null;
+                }
+                if (e instanceof InterruptedIOException || e instanceof ClosedByInterruptException) {
+                    throw e;
+                }
+                // Kept as it is then; only its sharing with the new version is lost
+                System.err.println("Could not re-store " + current.getStoredFilename() + " as chunks: " + e.getMessage());
+            }
+        }
+        FileVersion previous = rechunked == null
+                ? new FileVersion(current.getId(), 0, current.getStoredFilename(), current.getCodec(),
+                        current.getSizeBytes(), current.isEncrypted(), current.getUploadDate(), false)
+                : new FileVersion(current.getId(), 0, rechunked.getName(), rechunked.getCodec(),
+                        rechunked.getSizeBytes(), rechunked.isEncrypted(), current.getUploadDate(), false);
+        FileMetadata next = new FileMetadata(current.getUserId(), current.getOriginalFilename(), blob.getName(),
+                blob.getCodec(), blob.getSizeBytes(), blob.isEncrypted());
+        int version;
+        try {
+            version = fileDAO.addFileVersion(current, previous, next);
+        } catch (SQLException e) {
+            if (rechunked != null) {
+                releaseQuietly(rechunked.getName());
+            }
+            throw e;
+        }
+        if (version == -1) {
+            if (rechunked != null) {
+                releaseQuietly(rechunked.getName());
             }
+            return -1;
+        }
+        if (rechunked != null) {
+            releaseQuietly(current.getStoredFilename()); // The version kept refers to the chunks instead
+        }
 
-            // Copy file to the destination
-            Files.copy(sourcePath, destinationPath, StandardCopyOption.REPLACE_EXISTING);
-            System.out.println("File retrieved successfully: " + metadata.getOriginalFilename());
-            return true;
+        try {
+            List<FileVersion> pruned = fileDAO.deleteFileVersions(current.getId(), MAX_VERSIONS - 1);
+            for (FileVersion old : pruned) {
+                releaseQuietly(old.getStoredFilename());
+            }
+            if (!pruned.isEmpty()) {
+                quotaManager.filesRemoved(current.getUserId()); // Their sizes came off the usage counter
+            }
         } catch (SQLException e) {
-            System.err.println("Database error during file retrieval: " + e.getMessage());
+            System.err.println("Database error pruning versions of " + current.getOriginalFilename() + ": " + e.getMessage());
+        }
+        next.setUploadDate(new Timestamp(System.currentTimeMillis()));
+        filenameSearch.filesRemoved(current.getUserId(), List.of(current.getId()));
+        indexAdded(next, current.getId());
+        return version;
+    }
+
+    /**
+     * Copies stored content to a path, as {@link #retrieveFile(int, int, Path, TransferListener)} describes.
+     * Content found corrupt is restored from the replica, if there is one, and copied again.
+     * @param metadata The content to copy: a file's current version, or an earlier one.
+     * @param metrics The operation to count errors and bytes against.
+     * @return true if the content was copied, false if it is missing, corrupt, or the copy was cancelled.
+     */
+    private boolean copyToPath(FileMetadata metadata, Path destinationPath, TransferListener listener,
+                               OperationMetrics metrics) throws IOException, SQLException {
+        return copyToPath(metadata, destinationPath, listener, metrics, true);
+    }
+
+    private boolean copyToPath(FileMetadata metadata, Path destinationPath, TransferListener listener,
+                               OperationMetrics metrics, boolean repairIfCorrupt) throws IOException, SQLException {
+        // Ensure the destination directory exists
+        if (destinationPath.getParent() != null) {
+            Files.createDirectories(destinationPath.getParent());
+        }
+
+        // Copy file to the destination
+        try {
+            if (VERIFY_ON_RETRIEVE) {
+                // Every byte read from disk goes through the checksum, so there is no zero-copy path
+                try (InputStream in = new ProgressInputStream(blobStore.openVerifiedStream(
+                        metadata.getStoredFilename(), metadata.getCodec(), keyFor(metadata)), listener)) {
+                    metrics.addBytesOut(Files.copy(in, destinationPath, StandardCopyOption.REPLACE_EXISTING));
+                } catch (IOException e) {
+                    throw corruptionOf(metadata, e);
+                }
+            } else if (isStoredAsIs(metadata)) {
+                try (FileChannel source = blobStore.openChannel(metadata.getStoredFilename());
+                     FileChannel destination = FileChannel.open(destinationPath, StandardOpenOption.WRITE,
+                             StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    metrics.addBytesOut(transferFully(source, 0, source.size(), destination, listener));
+                }
+            } else {
+                try (InputStream in = new ProgressInputStream(blobStore.openStream(metadata.getStoredFilename(),
+                        metadata.getCodec(), keyFor(metadata)), listener)) {
+                    metrics.addBytesOut(Files.copy(in, destinationPath, StandardCopyOption.REPLACE_EXISTING));
+                }
+            }
+        } catch (InterruptedIOException | ClosedByInterruptException e) {
+            Files.deleteIfExists(destinationPath); // Do not leave a truncated copy behind
+            System.out.println("Retrieval cancelled: " + metadata.getOriginalFilename());
             return false;
-        } catch (IOException e) {
-            System.err.println("Error copying file during retrieval: " + e.getMessage());
+        } catch (NoSuchFileException e) {
+            metrics.recordError();
+            System.err.println("Stored file not found on disk: " + metadata.getStoredFilename());
+            return false;
+        } catch (BlobStore.CorruptBlobException e) {
+            Files.deleteIfExists(destinationPath); // Never hand out a corrupt copy
+            if (repairCorrupt(e, repairIfCorrupt)) {
+                return copyToPath(metadata, destinationPath, listener, metrics, false);
+            }
+            metrics.recordError();
             return false;
         }
+        return true;
+    }
+
+    /**
+     * Tells whether a failed read of stored content was caused by damaged bytes. A decoder may trip over
+     * them (an encrypted frame failing authentication, say) before the checksum is compared, so for any
+     * other I/O error the stored file is checked under its lock.
+     * @param metadata The content that was being read.
+     * @param e The error the read failed with.
+     * @return A CorruptBlobException if the stored file is corrupt, otherwise e itself.
+     */
+    private IOException corruptionOf(FileMetadata metadata, IOException e) throws IOException, SQLException {
+        if (e instanceof BlobStore.CorruptBlobException || e instanceof InterruptedIOException
+                || e instanceof ClosedByInterruptException || e instanceof NoSuchFileException) {
+            return e;
+        }
+        if (blobStore.confirmCorrupt(metadata.getStoredFilename())) {
+            return new BlobStore.CorruptBlobException(metadata.getStoredFilename(), e.getMessage());
+        }
+        return e;
+    }
+
+    /**
+     * Flags stored content found corrupt, and restores it from the replica if there is one.
+     * @param e The corruption found.
+     * @param repair Whether to try the replica; false when reading again after a repair.
+     * @return true if the content was restored and can be read again.
+     */
+    private boolean repairCorrupt(BlobStore.CorruptBlobException e, boolean repair) throws IOException, SQLException {
+        System.err.println("Stored file " + e.getStoredName() + " is corrupt: " + e.getMessage());
+        blobStore.confirmCorrupt(e.getStoredName());
+        return repair && blobStore.repairFromReplica(e.getStoredName());
+    }
+
+    /**
+     * Streams a whole stored file to a channel. Uncompressed files are copied with FileChannel.transferTo,
+     * so for sockets and files the kernel moves the bytes without passing them through the heap.
+     * @param fileId The ID of the file to retrieve.
+     * @param userId The ID of the user requesting the file (for access control).
+     * @param target The channel to write the file's bytes to. It is not closed.
+     * @return The number of bytes written, or -1 if the file could not be retrieved.
+     */
+    public long retrieveFile(int fileId, int userId, WritableByteChannel target) {
+        return retrieveFileRange(fileId, userId, 0, Long.MAX_VALUE, target);
+    }
+
+    /**
+     * Streams part of a stored file to a channel. Uncompressed files are read from offset directly;
+     * compressed ones are decompressed up to offset, without writing those bytes.
+     * A range extending past the end of the file is truncated to the file's length.
+     * With digitallocker.retrieve.verifyChecksum set, the stored bytes are checked as they stream, as for
+     * {@link #retrieveFile(int, int, Path, TransferListener)}; since the checksum covers the whole stored
+     * file, it is then read from its start to its end whatever the range. Content found corrupt is flagged
+     * and restored from the replica, if there is one. Bytes already written cannot be taken back, so the
+     * range is sent again from the restored copy only if none of it had been written; otherwise -1 is
+     * returned and the next retrieval reads the restored copy.
+     * @param fileId The ID of the file to retrieve.
+     * @param userId The ID of the user requesting the file (for access control).
+     * @param offset The position of the first byte to send.
+     * @param length The maximum number of bytes to send.
+     * @param target The channel to write the bytes to. It is not closed.
+     * @return The number of bytes written, or -1 if the file could not be retrieved.
+     */
+    public long retrieveFileRange(int fileId, int userId, long offset, long length, WritableByteChannel target) {
+        long startNanos = System.nanoTime();
+        try {
+            if (offset < 0 || length < 0) {
+                System.err.println("Invalid byte range: offset=" + offset + ", length=" + length);
+                return -1;
+            }
+            try {
+                FileMetadata metadata = fileDAO.getFileByIdAndUserId(fileId, userId);
+                if (metadata == null) {
+                    System.err.println("File not found or not owned by user.");
+                    return -1;
+                }
+                long written = copyToChannel(metadata, offset, length, target, true);
+                if (written != -1) {
+                    accessTracker.recordAccess(fileId);
+                }
+                return written;
+            } catch (SQLException e) {
+                RETRIEVE_FILE_RANGE_METRICS.recordError();
+                System.err.println("Database error during file retrieval: " + e.getMessage());
+                return -1;
+            } catch (IOException e) {
+                RETRIEVE_FILE_RANGE_METRICS.recordError();
+                System.err.println("Error streaming file during retrieval: " + e.getMessage());
+                return -1;
+            }
+        } finally {
+            RETRIEVE_FILE_RANGE_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Writes a range of stored content to a channel, as {@link #retrieveFileRange} describes.
+     * @return The number of bytes written, or -1 if the content is missing or corrupt.
+     */
+    private long copyToChannel(FileMetadata metadata, long offset, long length, WritableByteChannel target,
+                               boolean repairIfCorrupt) throws IOException, SQLException {
+        CountingChannel counted = new CountingChannel(target);
+        try {
+            long written;
+            if (VERIFY_ON_RETRIEVE) {
+                // Every byte read from disk goes through the checksum, so there is no zero-copy path
+                try (InputStream in = blobStore.openVerifiedStream(metadata.getStoredFilename(),
+                        metadata.getCodec(), keyFor(metadata))) {
+                    written = copyRange(in, offset, length, counted);
+                    if (!BlobStore.isChunked(metadata.getCodec())) {
+                        in.transferTo(OutputStream.nullOutputStream()); // Compared with the checksum at the end
+                    }
+                } catch (IOException e) {
+                    // A client that went away is no reason to check the stored file
+                    throw counted.hasFailed() ? e : corruptionOf(metadata, e);
+                }
+            } else if (!isStoredAsIs(metadata)) {
+                // Encrypted frames are addressable, so only the frames covering the range are decrypted;
+                // compressed content has to be decoded from the start. Only the requested range is written.
+                // Chunked content starts at the chunk holding offset.
+                boolean chunked = BlobStore.isChunked(metadata.getCodec());
+                boolean framesAddressable = !chunked
+                        && CompressionCodecs.NONE == CompressionCodecs.forName(metadata.getCodec());
+                try (InputStream in = chunked
+                        ? blobStore.openChunkedRange(metadata.getStoredFilename(), keyFor(metadata), offset)
+                        : framesAddressable
+                        ? blobStore.openEncryptedRange(metadata.getStoredFilename(), keyFor(metadata), offset, length)
+                        : blobStore.openStream(metadata.getStoredFilename(), metadata.getCodec(), keyFor(metadata))) {
+                    written = copyRange(in, chunked || framesAddressable ? 0 : offset, length, counted);
+                }
+            } else {
+                try (FileChannel source = blobStore.openChannel(metadata.getStoredFilename())) {
+                    long size = source.size();
+                    if (offset >= size) {
+                        return 0;
+                    }
+                    // Straight to the target, which keeps the transfer zero-copy; no checksum is read here
+                    written = transferFully(source, offset, Math.min(length, size - offset), target,
+                            TransferListener.NONE);
+                }
+            }
+            RETRIEVE_FILE_RANGE_METRICS.addBytesOut(written);
+            return written;
+        } catch (NoSuchFileException e) {
+            RETRIEVE_FILE_RANGE_METRICS.recordError();
+            System.err.println("Stored file not found on disk: " + metadata.getStoredFilename());
+            return -1;
+        } catch (BlobStore.CorruptBlobException e) {
+            if (repairCorrupt(e, repairIfCorrupt) && counted.getCount() == 0) {
+                return copyToChannel(metadata, offset, length, target, false);
+            }
+            RETRIEVE_FILE_RANGE_METRICS.recordError();
+            return -1;
+        }
     }
 
     /**
      * Deletes a file from the locker system.
-     * Deletes the file from disk and its metadata from the database.
+     * The file is tombstoned in a single UPDATE and disappears from the locker immediately;
+     * its stored content is reclaimed later by the background {@link TombstoneSweeper}.
      * @param fileId The ID of the file to delete.
      * @param userId The ID of the user requesting the deletion (for access control).
      * @return true if the file was deleted successfully, false otherwise.
      */
     public boolean deleteFile(int fileId, int userId) {
+        long startNanos = System.nanoTime();
         try {
-            FileMetadata metadata = fileDAO.getFileByIdAndUserId(fileId, userId);
-            if (metadata == null) {
+            int deleted = deleteFiles(userId, List.of(fileId));
+            if (deleted == -1) {
+                DELETE_FILE_METRICS.recordError();
+            } else if (deleted == 0) {
                 System.err.println("File not found or not owned by user for deletion.");
-                return false;
             }
+            return deleted == 1;
+        } finally {
+            DELETE_FILE_METRICS.record(startNanos);
+        }
+    }
 
-            Path filePath = Paths.get(LOCKER_DIR, metadata.getStoredFilename());
-            boolean fileDeleted = Files.deleteIfExists(filePath);
-
-            boolean metadataDeleted = fileDAO.deleteFileMetadata(fileId, userId);
+    /**
+     * Deletes many files at once. All of them are tombstoned in one transaction and the call returns
+     * without touching the disk; the background sweeper unlinks their content at a bounded rate.
+     * @param userId The ID of the user requesting the deletion (for access control).
+     * @param fileIds The IDs of the files to delete. Files not owned by the user are skipped.
+     * @return The number of files deleted, or -1 if the deletion failed (in which case none were deleted).
+     */
+    public int deleteFiles(int userId, Collection<Integer> fileIds) {
+        long startNanos = System.nanoTime();
+        try {
+            try {
+                int deleted = fileDAO.tombstoneFiles(userId, fileIds);
+                filenameSearch.filesRemoved(userId, fileIds); // IDs the user does not own are in no index of theirs
+                if (deleted > 0) {
+                    quotaManager.filesRemoved(userId);
+                }
+                if (contentIndexer != null && deleted > 0) {
+                    contentIndexer.filesRemoved(userId, fileIds);
+                }
+                System.out.println("Deleted " + deleted + " of " + fileIds.size() + " requested files.");
+                return deleted;
+            } catch (SQLException e) {
+                DELETE_FILES_METRICS.recordError();
+                System.err.println("Database error during file deletion: " + e.getMessage());
+                return -1;
+            }
+        } finally {
+            DELETE_FILES_METRICS.record(startNanos);
+        }
+    }
 
-            if (fileDeleted && metadataDeleted) {
-                System.out.println("File and metadata deleted successfully: " + metadata.getOriginalFilename());
-                return true;
-            } else {
-                System.err.println("Failed to delete file or metadata fully for: " + metadata.getOriginalFilename());
-                // Consider rollback if one operation succeeds and the other fails
-                return false;
+    /**
+     * Gets one file's metadata, such as its name and size before it is streamed.
+     * @param fileId The ID of the file.
+     * @param userId The ID of the user requesting the file (for access control).
+     * @return The FileMetadata, or null if the file is not found, not owned by the user, or on error.
+     */
+    public FileMetadata getFile(int fileId, int userId) {
+        long startNanos = System.nanoTime();
+        try {
+            try {
+                return fileDAO.getFileByIdAndUserId(fileId, userId);
+            } catch (SQLException e) {
+                GET_FILE_METRICS.recordError();
+                System.err.println("Database error getting file: " + e.getMessage());
+                return null;
             }
-        } catch (SQLException e) {
-            System.err.println("Database error during file deletion: " + e.getMessage());
-            return false;
-        } catch (IOException e) {
-            System.err.println("Error deleting file from disk: " + e.getMessage());
-            return false;
+        } finally {
+            GET_FILE_METRICS.record(startNanos);
         }
     }
 
@@ -164,11 +1442,433 @@ public class FileLockerService {
      * @return A list of FileMetadata objects.
      */
     public List<FileMetadata> getUserFiles(int userId) {
+        long startNanos = System.nanoTime();
+        try {
+            try {
+                return fileDAO.getFilesByUserId(userId);
+            } catch (SQLException e) {
+                GET_USER_FILES_METRICS.recordError();
+                System.err.println("Database error getting user files: " + e.getMessage());
+                return List.of(); // Return empty list on error
+            }
+        } finally {
+            GET_USER_FILES_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Gets one page of a user's files, ordered by upload date.
+     * @param userId The ID of the user.
+     * @param after The last file of the previous page, or null for the first page.
+     * @param pageSize The maximum number of files to return.
+     * @return A list of at most pageSize FileMetadata objects.
+     */
+    public List<FileMetadata> getUserFilesPage(int userId, FileMetadata after, int pageSize) {
+        long startNanos = System.nanoTime();
+        try {
+            try {
+                return after == null
+                        ? fileDAO.getFilesByUserIdAfter(userId, null, 0, pageSize)
+                        : fileDAO.getFilesByUserIdAfter(userId, after.getUploadDate(), after.getId(), pageSize);
+            } catch (SQLException e) {
+                GET_USER_FILES_PAGE_METRICS.recordError();
+                System.err.println("Database error getting user files page: " + e.getMessage());
+                return List.of(); // Return empty list on error
+            }
+        } finally {
+            GET_USER_FILES_PAGE_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Counts the files in a user's locker.
+     * @param userId The ID of the user.
+     * @return The number of files, or 0 if they could not be counted.
+     */
+    public int countUserFiles(int userId) {
+        long startNanos = System.nanoTime();
+        try {
+            try {
+                return fileDAO.countFilesByUserId(userId);
+            } catch (SQLException e) {
+                COUNT_USER_FILES_METRICS.recordError();
+                System.err.println("Database error counting user files: " + e.getMessage());
+                return 0;
+            }
+        } finally {
+            COUNT_USER_FILES_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Searches a user's files by name, ignoring case: names starting with the query come first, then
+     * names containing it. The user's index is built from the database on their first search and then
+     * kept current by uploads and deletes, so later searches do not touch the database.
+     * @param userId The ID of the user.
+     * @param query The text to look for.
+     * @param limit The maximum number of files to return.
+     * @return The matching files, or an empty list on error. They carry no stored filename.
+     */
+    public List<FileMetadata> searchFiles(int userId, String query, int limit) {
+        long startNanos = System.nanoTime();
+        try {
+            try {
+                return filenameSearch.search(userId, query, limit);
+            } catch (SQLException e) {
+                SEARCH_FILES_METRICS.recordError();
+                System.err.println("Database error building the filename index: " + e.getMessage());
+                return List.of(); // Return empty list on error
+            }
+        } finally {
+            SEARCH_FILES_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Searches the contents of a user's text files, best matches first. Files are indexed in the
+     * background shortly after upload, so a file uploaded a moment ago may not be found yet.
+     * @param userId The ID of the user.
+     * @param query The words to look for; files containing any of them match.
+     * @param limit The maximum number of files to return.
+     * @return The matching files with their scores, or an empty list on error or if indexing is disabled.
+     */
+    public List<SearchHit> searchContent(int userId, String query, int limit) {
+        long startNanos = System.nanoTime();
+        try {
+            if (contentIndexer == null) {
+                return List.of();
+            }
+            try {
+                List<SearchHit> hits = new ArrayList<>();
+                for (ContentIndex.Hit hit : contentIndexer.search(userId, query, limit)) {
+                    FileMetadata metadata = fileDAO.getFileByIdAndUserId(hit.getFileId(), userId);
+                    if (metadata != null) { // Deleted since; its removal may still be queued
+                        hits.add(new SearchHit(metadata, hit.getScore()));
+                    }
+                }
+                return hits;
+            } catch (IOException e) {
+                SEARCH_CONTENT_METRICS.recordError();
+                System.err.println("Error reading the content index: " + e.getMessage());
+                return List.of();
+            } catch (SQLException e) {
+                SEARCH_CONTENT_METRICS.recordError();
+                System.err.println("Database error during content search: " + e.getMessage());
+                return List.of();
+            }
+        } finally {
+            SEARCH_CONTENT_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Gets how much of their quota a user has used. Served from the cached usage counter.
+     * @param userId The ID of the user.
+     * @return The StorageUsage, or null if it could not be read.
+     */
+    public StorageUsage getStorageUsage(int userId) {
+        long startNanos = System.nanoTime();
+        try {
+            try {
+                return quotaManager.getUsage(userId);
+            } catch (SQLException e) {
+                GET_STORAGE_USAGE_METRICS.recordError();
+                System.err.println("Database error getting storage usage: " + e.getMessage());
+                return null;
+            }
+        } finally {
+            GET_STORAGE_USAGE_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Sets a user's storage quota. Uploads already in progress are not affected.
+     * @param userId The ID of the user.
+     * @param quotaBytes The quota in bytes, or StorageUsage.UNLIMITED for the default quota
+     *                   (digitallocker.quota.defaultBytes, unlimited unless set).
+     * @return true if the quota was saved.
+     */
+    public boolean setQuota(int userId, long quotaBytes) {
         try {
-            return fileDAO.getFilesByUserId(userId);
+            return quotaManager.setQuota(userId, quotaBytes);
         } catch (SQLException e) {
-            System.err.println("Database error getting user files: " + e.getMessage());
-            return List.of(); // Return empty list on error
+            System.err.println("Database error setting storage quota: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Compares the stored files on disk with the files table. Orphan blobs (no row refers to them)
+     * and missing blobs (live rows refer to them but they are not on disk) are counted and sampled;
+     * when repairing, orphan blobs are deleted and files whose content is missing are deleted from
+     * their owners' lockers. Runs on the calling thread and may take long on a large locker.
+     * @param repair false for a dry run that only reports, true to also fix what is found.
+     * @return The ReconcileReport, or null if the comparison could not be completed.
+     */
+    public ReconcileReport reconcileStorage(boolean repair) {
+        long startNanos = System.nanoTime();
+        try {
+            try {
+                return new OrphanReconciler(fileDAO, blobStore, this::deleteFiles, RECONCILE_THREADS,
+                        RECONCILE_PAGE_SIZE, RECONCILE_GRACE_MS).reconcile(repair);
+            } catch (IOException e) {
+                RECONCILE_STORAGE_METRICS.recordError();
+                System.err.println("File system error during reconciliation: " + e.getMessage());
+                return null;
+            } catch (SQLException e) {
+                RECONCILE_STORAGE_METRICS.recordError();
+                System.err.println("Database error during reconciliation: " + e.getMessage());
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        } finally {
+            RECONCILE_STORAGE_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Lists the files, of any user, whose stored content was found corrupt by the integrity scrubber
+     * or by a verified retrieval. Uploading the same content again repairs them.
+     * @param limit The maximum number of corrupt stored files to look at.
+     * @return The affected files, or null if they could not be listed.
+     */
+    public List<FileMetadata> getCorruptFiles(int limit) {
+        long startNanos = System.nanoTime();
+        try {
+            try {
+                List<FileMetadata> files = new ArrayList<>();
+                for (BlobIntegrity blob : DAOFactory.getBlobDAO().getCorruptBlobs(limit)) {
+                    files.addAll(fileDAO.getFilesByStoredFilename(blob.getSha256()));
+                }
+                return files;
+            } catch (SQLException e) {
+                GET_CORRUPT_FILES_METRICS.recordError();
+                System.err.println("Database error listing corrupt files: " + e.getMessage());
+                return null;
+            }
+        } finally {
+            GET_CORRUPT_FILES_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Gets the deduplication figures for the whole locker, i.e. logical versus unique bytes stored.
+     * @return The DedupStats, or null if they could not be read.
+     */
+    public DedupStats getDedupStats() {
+        long startNanos = System.nanoTime();
+        try {
+            try {
+                return blobStore.getDedupStats();
+            } catch (SQLException e) {
+                GET_DEDUP_STATS_METRICS.recordError();
+                System.err.println("Database error getting deduplication stats: " + e.getMessage());
+                return null;
+            }
+        } finally {
+            GET_DEDUP_STATS_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Loops over transferTo, which may move fewer bytes than requested in a single call.
+     * Bytes are moved in blocks of at most TRANSFER_BLOCK_SIZE so progress and cancellation are seen in between.
+     */
+    private static long transferFully(FileChannel source, long position, long count, WritableByteChannel target,
+                                      TransferListener listener) throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            ProgressInputStream.checkCancelled(listener);
+            long n = source.transferTo(position + transferred,
+                    Math.min(count - transferred, TRANSFER_BLOCK_SIZE), target);
+            if (n <= 0) {
+                if (position + transferred >= source.size()) {
+                    break; // File shrank underneath us
+                }
+                Thread.yield(); // Non-blocking target that is momentarily full
+                continue;
+            }
+            transferred += n;
+            listener.bytesTransferred(n);
+        }
+        return transferred;
+    }
+
+    /**
+     * Decodes a stream, discards the bytes before offset and writes at most length bytes to the channel.
+     */
+    private static long copyRange(InputStream in, long offset, long length, WritableByteChannel target)
+            throws IOException {
+        long skipped = 0;
+        while (skipped < offset) {
+            long n = in.skip(offset - skipped);
+            if (n <= 0) {
+                if (in.read() == -1) {
+                    return 0; // Offset is past the end of the file
+                }
+                n = 1;
+            }
+            skipped += n;
+        }
+        byte[] buffer = new byte[64 * 1024];
+        long written = 0;
+        while (written < length) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, length - written));
+            if (read == -1) {
+                break;
+            }
+            ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+            while (chunk.hasRemaining()) {
+                if (target.write(chunk) == 0) {
+                    Thread.yield(); // Non-blocking target that is momentarily full
+                }
+            }
+            written += read;
+        }
+        return written;
+    }
+
+    private static boolean isStoredAsIs(FileMetadata metadata) {
+        return !metadata.isEncrypted() && !BlobStore.isChunked(metadata.getCodec())
+                && CompressionCodecs.NONE == CompressionCodecs.forName(metadata.getCodec());
+    }
+
+    /**
+     * @return The key new files of this user are encrypted with, or null if encryption is disabled.
+     */
+    private SecretKey dataKeyFor(int userId) throws IOException, SQLException {
+        if (!ENCRYPTION_ENABLED) {
+            return null;
+        }
+        return requireKeyManager().getDataKey(userId);
+    }
+
+    /**
+     * @return The key an existing file is encrypted with, or null if it is stored unencrypted.
+     */
+    private SecretKey keyFor(FileMetadata metadata) throws IOException, SQLException {
+        return metadata.isEncrypted() ? requireKeyManager().getDataKey(metadata.getUserId()) : null;
+    }
+
+    private static KeyManager requireKeyManager() throws IOException {
+        if (keyManager == null) {
+            throw new IOException("Encryption keys are unavailable: the master key could not be loaded.");
+        }
+        return keyManager;
+    }
+
+    /**
+     * Loads the process-wide key manager. Without it encrypted files cannot be read and, if encryption
+     * is enabled, nothing can be uploaded; the error is reported once here and again on each such call.
+     */
+    private static synchronized void initKeyManager() {
+        if (keyManager == null) {
+            try {
+                keyManager = new KeyManager(Paths.get(MASTER_KEY_FILE), DAOFactory.getKeyDAO(), KEY_CACHE_MAX_ENTRIES, KEY_CACHE_TTL_MS);
+            } catch (IOException e) {
+                System.err.println("Failed to load master key: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Gets the counters of the cache of unwrapped per-user data keys.
+     * @return The current CacheStats, or null if encryption keys are unavailable.
+     */
+    public CacheStats getDataKeyCacheStats() {
+        return keyManager == null ? null : keyManager.getCacheStats();
+    }
+
+    /**
+     * Gets the counters of the cache of per-user usage counters behind the quota checks.
+     * @return The current CacheStats.
+     */
+    public CacheStats getQuotaCacheStats() {
+        return quotaManager.getCacheStats();
+    }
+
+    /**
+     * Gets the counters of the cache that serves ownership-checked metadata lookups.
+     * The journal backend answers those lookups from memory and leaves this cache unused.
+     * @return The current CacheStats.
+     */
+    public CacheStats getMetadataCacheStats() {
+        return JdbcFileDAO.getMetadataCacheStats();
+    }
+
+    /**
+     * Makes a newly saved file, or a file's new version, searchable by name at once and queues it for content
+     * indexing. The upload date is the database's, so until the row is read back the index shows the time of the
+     * upload call instead.
+     */
+    private void indexAdded(FileMetadata metadata, int fileId) {
+        metadata.setId(fileId);
+        if (metadata.getUploadDate() == null) {
+            metadata.setUploadDate(new Timestamp(System.currentTimeMillis()));
+        }
+        filenameSearch.fileAdded(metadata);
+        if (contentIndexer != null) {
+            contentIndexer.fileAdded(metadata.getUserId(), fileId, () -> {
+                try {
+                    return blobStore.openStream(metadata.getStoredFilename(), metadata.getCodec(), keyFor(metadata));
+                } catch (SQLException e) {
+                    throw new IOException("Could not load the data key: " + e.getMessage(), e);
+                }
+            });
+        }
+    }
+
+    private void releaseQuietly(String storedName) {
+        try {
+            blobStore.release(storedName);
+        } catch (IOException | SQLException e) {
+            System.err.println("Error cleaning up stored file " + storedName + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Counts the bytes written through to a channel, so a failed range retrieval knows whether any
+     * reached the client, and whether it failed writing to the client rather than reading the stored file.
+     */
+    private static final class CountingChannel implements WritableByteChannel {
+        private final WritableByteChannel target;
+        private long count;
+        private boolean failed;
+
+        CountingChannel(WritableByteChannel target) {
+            this.target = target;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        boolean hasFailed() {
+            return failed;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            try {
+                int n = target.write(src);
+                count += n;
+                return n;
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return target.isOpen();
+        }
+
+        @Override
+        public void close() {
+            // The caller owns the target channel
         }
     }
 }
@@ -0,0 +1,313 @@
+package com.digitallocker.service;
+
+import com.digitallocker.model.FileMetadata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory, case-insensitive index over one user's filenames.
+ * Prefix queries walk a sorted set of names. Substring queries use posting lists of the names'
+ * n-grams: a one- or two-character query reads the list of that unigram or bigram directly, and a
+ * longer query intersects the lists of its trigrams, skipping ahead in each list rather than walking
+ * it, then checks the few candidates left. None of them scans the whole locker. Files are added and
+ * removed one at a time, as they are uploaded and deleted. A removal leaves the file's ID in its
+ * posting lists, where searches skip it, and a list is compacted once half of it is stale, so
+ * removing a file never shifts a list of a million IDs.
+ * <p>
+ * Memory is about 600 bytes per file for 20-odd-character names, postings included, i.e. some
+ * 600 MB for a locker of a million files.
+ */
+public class FilenameIndex {
+    private static final Comparator<Entry> NAME_ORDER =
+            Comparator.<Entry, String>comparing(e -> e.lowerName).thenComparingInt(e -> e.file.getId());
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final NavigableSet<Entry> byName = new TreeSet<>(NAME_ORDER);
+    private final Map<Integer, Entry> byId = new HashMap<>();
+    private final Map<Long, PostingList> grams = new HashMap<>(); // Unigrams, bigrams and trigrams
+
+    /**
+     * Adds a file, or replaces it if its ID is already indexed.
+     * @param file The file; its ID and name must be set.
+     */
+    public void add(FileMetadata file) {
+        Entry entry = new Entry(file);
+        lock.writeLock().lock();
+        try {
+            removeLocked(file.getId());
+            byId.put(file.getId(), entry);
+            byName.add(entry);
+            for (long gram : gramsOf(entry.lowerName)) {
+                grams.computeIfAbsent(gram, g -> new PostingList()).add(file.getId());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a file; does nothing if it is not indexed.
+     * @param fileId The ID of the file.
+     */
+    public void remove(int fileId) {
+        lock.writeLock().lock();
+        try {
+            removeLocked(fileId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param fileId The ID of a file.
+     * @return true if the file is indexed.
+     */
+    public boolean contains(int fileId) {
+        lock.readLock().lock();
+        try {
+            return byId.containsKey(fileId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The number of indexed files.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return byId.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds files whose name contains the query, ignoring case. Names that start with the query come
+     * first, in name order; the other matches follow. Results carry no stored filename.
+     * @param query The text to look for; an empty query matches nothing.
+     * @param limit The maximum number of files to return.
+     * @return At most limit matching files.
+     */
+    public List<FileMetadata> search(String query, int limit) {
+        List<FileMetadata> results = new ArrayList<>();
+        String q = query.toLowerCase(Locale.ROOT);
+        if (q.isEmpty() || limit <= 0) {
+            return results;
+        }
+        lock.readLock().lock();
+        try {
+            for (Entry entry : byName.tailSet(new Entry(q, Integer.MIN_VALUE), true)) {
+                if (results.size() >= limit || !entry.lowerName.startsWith(q)) {
+                    break;
+                }
+                results.add(entry.file);
+            }
+            if (results.size() < limit) {
+                substringByGrams(q, limit, results);
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void substringByGrams(String q, int limit, List<FileMetadata> results) {
+        long[] queryGrams = q.length() < 3 ? new long[]{pack(q, 0, q.length())} : trigramsOf(q);
+        PostingList[] lists = new PostingList[queryGrams.length];
+        for (int i = 0; i < queryGrams.length; i++) {
+            lists[i] = grams.get(queryGrams[i]);
+            if (lists[i] == null) {
+                return; // Some n-gram occurs in no name at all
+            }
+        }
+        Arrays.sort(lists, Comparator.comparingInt(list -> list.size));
+
+        // Leapfrog over the lists: whenever one list is ahead, every other one seeks straight to its ID,
+        // so only IDs present in all of them are ever looked at, however long each list is
+        int[] positions = new int[lists.length];
+        PostingList rarest = lists[0];
+        candidates:
+        while (positions[0] < rarest.size && results.size() < limit) {
+            int fileId = rarest.ids[positions[0]];
+            for (int j = 1; j < lists.length; j++) {
+                positions[j] = lists[j].seek(positions[j], fileId);
+                if (positions[j] == lists[j].size) {
+                    return;
+                }
+                int next = lists[j].ids[positions[j]];
+                if (next != fileId) {
+                    positions[0] = rarest.seek(positions[0], next);
+                    continue candidates;
+                }
+            }
+            positions[0]++;
+            // The file may have been removed or renamed since its ID went into the lists
+            Entry entry = byId.get(fileId);
+            if (entry != null && entry.lowerName.contains(q) && !entry.lowerName.startsWith(q)) {
+                results.add(entry.file);
+            }
+        }
+    }
+
+    private void removeLocked(int fileId) {
+        Entry old = byId.remove(fileId);
+        if (old == null) {
+            return;
+        }
+        byName.remove(old);
+        for (long gram : gramsOf(old.lowerName)) {
+            PostingList list = grams.get(gram);
+            if (list != null && ++list.stale > list.size / 2) {
+                compact(gram, list);
+            }
+        }
+    }
+
+    /** Drops the IDs of files that are gone or whose name no longer has the n-gram. */
+    private void compact(long gram, PostingList list) {
+        String text = unpack(gram);
+        int kept = 0;
+        for (int i = 0; i < list.size; i++) {
+            Entry entry = byId.get(list.ids[i]);
+            if (entry != null && entry.lowerName.contains(text)) {
+                list.ids[kept++] = list.ids[i];
+            }
+        }
+        list.size = kept;
+        list.stale = 0;
+        if (kept == 0) {
+            grams.remove(gram);
+        } else if (kept < list.ids.length / 4) {
+            list.ids = Arrays.copyOf(list.ids, Math.max(4, kept * 2));
+        }
+    }
+
+    /** @return The distinct unigrams, bigrams and trigrams of a lower-case string, each packed into a long. */
+    private static long[] gramsOf(String s) {
+        long[] result = new long[Math.max(s.length(), 3 * s.length() - 3)];
+        int count = 0;
+        for (int length = 1; length <= 3; length++) {
+            for (int i = 0; i + length <= s.length(); i++) {
+                result[count++] = pack(s, i, length);
+            }
+        }
+        return distinct(result, count);
+    }
+
+    /** @return The distinct trigrams of a lower-case string of at least three characters. */
+    private static long[] trigramsOf(String s) {
+        long[] result = new long[s.length() - 2];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = pack(s, i, 3);
+        }
+        return distinct(result, result.length);
+    }
+
+    /** Packs up to three characters and their count into a long, so n-grams of every length share one map. */
+    private static long pack(String s, int start, int length) {
+        long packed = length;
+        for (int i = start; i < start + length; i++) {
+            packed = (packed << 16) | s.charAt(i);
+        }
+        return packed;
+    }
+
+    private static String unpack(long packed) {
+        int length = 1;
+        while (packed >>> (16 * length) != length) {
+            length++;
+        }
+        char[] chars = new char[length];
+        for (int i = length - 1; i >= 0; i--) {
+            chars[i] = (char) packed;
+            packed >>>= 16;
+        }
+        return new String(chars);
+    }
+
+    private static long[] distinct(long[] values, int count) {
+        Arrays.sort(values, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || values[i] != values[i - 1]) {
+                values[distinct++] = values[i];
+            }
+        }
+        return Arrays.copyOf(values, distinct);
+    }
+
+    private static final class Entry {
+        final FileMetadata file;
+        final String lowerName;
+
+        Entry(FileMetadata file) {
+            // Keep only what a result row shows; the stored name is looked up again on retrieval anyway
+            this.file = new FileMetadata(file.getId(), file.getUserId(), file.getOriginalFilename(), null,
+                    file.getUploadDate());
+            this.file.setCodec(file.getCodec());
+            this.file.setSizeBytes(file.getSizeBytes());
+            this.file.setEncrypted(file.isEncrypted());
+            this.lowerName = file.getOriginalFilename().toLowerCase(Locale.ROOT);
+        }
+
+        // A search key, positioned before every entry with this name
+        Entry(String lowerName, int id) {
+            this.file = new FileMetadata(id, 0, lowerName, null, null);
+            this.lowerName = lowerName;
+        }
+    }
+
+    /**
+     * File IDs containing one n-gram, kept sorted; IDs normally arrive in increasing order, so adds append.
+     * Up to stale of them may belong to files since removed or renamed.
+     */
+    private static final class PostingList {
+        int[] ids = new int[4];
+        int size;
+        int stale;
+
+        void add(int id) {
+            int index = size == 0 || ids[size - 1] < id ? size : Arrays.binarySearch(ids, 0, size, id);
+            if (index < 0) {
+                index = -index - 1;
+            } else if (index < size) {
+                return; // Already present
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, index, ids, index + 1, size - index);
+            ids[index] = id;
+            size++;
+        }
+
+        /**
+         * @return The index of the first ID at or after from that is not less than id, or size if there is
+         *         none. Gallops forward from from, so short skips stay cheap in a long list.
+         */
+        int seek(int from, int id) {
+            if (from >= size || ids[from] >= id) {
+                return Math.min(from, size);
+            }
+            int low = from + 1; // ids[low - 1] < id from here on
+            int step = 1;
+            while (low + step - 1 < size && ids[low + step - 1] < id) {
+                low += step;
+                step <<= 1;
+            }
+            int index = Arrays.binarySearch(ids, low, Math.min(low + step, size), id);
+            return index >= 0 ? index : -index - 1;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.digitallocker.service;
+
+import com.digitallocker.dao.FileDAO;
+import com.digitallocker.model.FileMetadata;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-user {@link FilenameIndex}es, built from the FileDAO on a user's first search and then kept
+ * current by the upload and delete paths. Only the most recently searched users stay indexed;
+ * an evicted user's index is rebuilt on their next search.
+ */
+public class FilenameSearch {
+    private static final int LOAD_PAGE_SIZE = 10_000;
+
+    private final FileDAO fileDAO;
+    private final Map<Integer, UserIndex> indexes; // In search order, for eviction; guarded by itself
+    private final Map<Integer, UserIndex> byUser = new ConcurrentHashMap<>(); // The same indexes, for peek
+
+    /**
+     * @param fileDAO The DAO the indexes are built from.
+     * @param maxIndexedUsers The maximum number of users whose index is kept in memory.
+     */
+    public FilenameSearch(FileDAO fileDAO, int maxIndexedUsers) {
+        this.fileDAO = fileDAO;
+        this.indexes = new LinkedHashMap<Integer, UserIndex>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, UserIndex> eldest) {
+                if (size() > maxIndexedUsers) {
+                    byUser.remove(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Searches a user's filenames, building the user's index first if needed.
+     * @param userId The ID of the user.
+     * @param query The text to look for, ignoring case.
+     * @param limit The maximum number of files to return.
+     * @return The matching files; see {@link FilenameIndex#search(String, int)} for the order.
+     * @throws SQLException If the user's index had to be built and the files could not be read.
+     */
+    public List<FileMetadata> search(int userId, String query, int limit) throws SQLException {
+        UserIndex index;
+        boolean builder = false;
+        synchronized (indexes) {
+            index = indexes.get(userId);
+            if (index == null) {
+                index = new UserIndex();
+                indexes.put(userId, index);
+                byUser.put(userId, index);
+                builder = true;
+            }
+        }
+        if (builder) {
+            build(userId, index); // Outside the map's lock: other users are not held up by a large locker
+        }
+        try {
+            index.ready.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw e;
+        }
+        return index.files.search(query, limit);
+    }
+
+    /**
+     * Adds a newly stored file to its owner's index, if the owner is indexed.
+     * @param file The file; its ID, owner and name must be set.
+     */
+    public void fileAdded(FileMetadata file) {
+        UserIndex index = peek(file.getUserId());
+        if (index != null) {
+            index.files.add(file);
+        }
+    }
+
+    /**
+     * Removes deleted files from their owner's index, if the owner is indexed.
+     * @param userId The ID of the user who owned the files.
+     * @param fileIds The IDs of the deleted files.
+     */
+    public void filesRemoved(int userId, Collection<Integer> fileIds) {
+        UserIndex index = peek(userId);
+        if (index != null) {
+            index.removeAll(fileIds);
+        }
+    }
+
+    /**
+     * @return The number of users whose index is in memory (or being built).
+     */
+    public int getIndexedUsers() {
+        synchronized (indexes) {
+            return indexes.size();
+        }
+    }
+
+    private UserIndex peek(int userId) {
+        // Not indexes.get(), which would count as an access and keep users who upload but never search
+        return byUser.get(userId);
+    }
+
+    /**
+     * Loads a user's files page by page. Uploads and deletes arriving meanwhile already go to the
+     * index, so a page read before a delete must not bring the deleted file back.
+     */
+    private void build(int userId, UserIndex index) {
+        try {
+            FileMetadata after = null;
+            List<FileMetadata> page;
+            do {
+                page = after == null
+                        ? fileDAO.getFilesByUserIdAfter(userId, null, 0, LOAD_PAGE_SIZE)
+                        : fileDAO.getFilesByUserIdAfter(userId, after.getUploadDate(), after.getId(), LOAD_PAGE_SIZE);
+                for (FileMetadata file : page) {
+                    index.addLoaded(file);
+                }
+                if (!page.isEmpty()) {
+                    after = page.get(page.size() - 1);
+                }
+            } while (page.size() == LOAD_PAGE_SIZE);
+            index.finishBuild();
+            index.ready.complete(null);
+        } catch (SQLException | RuntimeException e) {
+            synchronized (indexes) {
+                indexes.remove(userId, index); // The next search tries again
+                byUser.remove(userId, index);
+            }
+            index.ready.completeExceptionally(e);
+        }
+    }
+
+    private static final class UserIndex {
+        final FilenameIndex files = new FilenameIndex();
+        final CompletableFuture<Void> ready = new CompletableFuture<>();
+        private Set<Integer> removedDuringBuild = new HashSet<>(); // null once built
+
+        synchronized void addLoaded(FileMetadata file) {
+            if (!removedDuringBuild.contains(file.getId()) && !files.contains(file.getId())) {
+                files.add(file);
+            }
+        }
+
+        synchronized void removeAll(Collection<Integer> fileIds) {
+            for (int fileId : fileIds) {
+                files.remove(fileId);
+                if (removedDuringBuild != null) {
+                    removedDuringBuild.add(fileId);
+                }
+            }
+        }
+
+        synchronized void finishBuild() {
+            removedDuringBuild = null;
+        }
+    }
+}
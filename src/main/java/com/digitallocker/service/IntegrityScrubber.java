@@ -0,0 +1,215 @@
+package com.digitallocker.service;
+
+import com.digitallocker.dao.BlobDAO;
+import com.digitallocker.model.BlobIntegrity;
+import com.digitallocker.util.Metrics;
+import com.digitallocker.util.OperationMetrics;
+import com.digitallocker.util.RateLimiter;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.NoSuchFileException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+import java.util.zip.ZipException;
+
+/**
+ * Background detection of bit rot and truncated blobs.
+ * Every blob is re-read from disk at a bounded byte rate, so scrubbing does not compete with user
+ * traffic, and its size and CRC-32C are compared with what was recorded when it was written. Each
+ * blob's outcome is saved as it is checked, and blobs verified within the re-verify interval are
+ * skipped, so a restarted scrubber carries on where it stopped. A mismatch is confirmed under the
+ * blob's lock before the blob is flagged corrupt. A corrupt blob is restored from the replica at once
+ * if there is one; otherwise a later upload of the same content replaces the corrupt copy. Blobs
+ * stored before checksums were kept get their checksum recorded on first scrub. Blobs in the cold tier are
+ * checked there, inflated, so scrubbing never promotes them.
+ * Files stored before deduplication have no blobs row and are not scrubbed.
+ */
+public class IntegrityScrubber {
+    // Per-operation call, error and latency metrics, also exposed over JMX (see Metrics)
+    private static final OperationMetrics VERIFY_METRICS = Metrics.operation("IntegrityScrubber", "verify");
+
+    private static final int BATCH_SIZE = 500;
+
+    private final BlobDAO blobDAO;
+    private final BlobStore blobStore;
+    private final RateLimiter rateLimiter;
+    private final long intervalMillis;
+    private final long reverifyAfterMillis;
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong blobsVerified = new AtomicLong();
+    private final AtomicLong bytesVerified = new AtomicLong();
+    private final AtomicLong corruptFound = new AtomicLong();
+    private final AtomicLong repaired = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * @param blobDAO The DAO the checksums and scrub results are kept in.
+     * @param blobStore The store holding the blobs.
+     * @param bytesPerSecond The maximum rate at which blobs are read.
+     * @param intervalMillis The pause between passes.
+     * @param reverifyAfterMillis How long a verified blob is trusted before it is read again.
+     */
+    public IntegrityScrubber(BlobDAO blobDAO, BlobStore blobStore, double bytesPerSecond, long intervalMillis,
+                             long reverifyAfterMillis) {
+        this.blobDAO = blobDAO;
+        this.blobStore = blobStore;
+        this.rateLimiter = new RateLimiter(bytesPerSecond);
+        this.intervalMillis = intervalMillis;
+        this.reverifyAfterMillis = reverifyAfterMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "integrity-scrubber");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    /**
+     * Starts scrubbing periodically in the background.
+     */
+    public void start() {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                scrub();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                System.err.println("Integrity scrubber error: " + e.getMessage());
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background scrub. A blob being read is abandoned and checked again next time.
+     */
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Runs one pass over the blobs that are due for verification.
+     * @return The number of blobs found corrupt in this pass.
+     * @throws InterruptedException If the pass was interrupted while rate limited.
+     */
+    public int scrub() throws InterruptedException {
+        long verifiedBefore = System.currentTimeMillis() - reverifyAfterMillis;
+        int corrupt = 0;
+        String after = "";
+        List<BlobIntegrity> batch;
+        do {
+            try {
+                batch = blobDAO.getBlobsToVerify(after, verifiedBefore, BATCH_SIZE);
+            } catch (SQLException e) {
+                failures.incrementAndGet();
+                System.err.println("Database error listing blobs to verify: " + e.getMessage());
+                break;
+            }
+            for (BlobIntegrity blob : batch) {
+                after = blob.getSha256();
+                if (!verify(blob)) {
+                    corrupt++;
+                }
+            }
+        } while (batch.size() == BATCH_SIZE);
+
+        if (corrupt > 0) {
+            System.err.println("Integrity scrubber found " + corrupt + " corrupt stored files.");
+        }
+        return corrupt;
+    }
+
+    /**
+     * Re-reads one blob and records the outcome.
+     * @return false if the blob was found corrupt.
+     */
+    private boolean verify(BlobIntegrity blob) throws InterruptedException {
+        long startNanos = System.nanoTime();
+        try {
+            Checksum crc = new CRC32C();
+            long bytes;
+            try (InputStream in = blobStore.openStoredBytes(blob.getSha256())) {
+                bytes = BlobStore.checksum(in, crc, rateLimiter);
+            } catch (NoSuchFileException e) {
+                bytes = -1; // Lost from disk: as good as corrupt, unless it was released meanwhile
+            } catch (ZipException | EOFException e) {
+                bytes = -2; // A cold copy that no longer inflates
+            }
+            bytesVerified.addAndGet(Math.max(0, bytes));
+            VERIFY_METRICS.addBytesIn(Math.max(0, bytes));
+
+            if (bytes >= 0 && blob.matches(bytes, crc.getValue())) {
+                blobsVerified.incrementAndGet();
+                blobDAO.recordVerification(blob.getSha256(),
+                        blob.getCrc32c() == BlobIntegrity.UNKNOWN ? crc.getValue() : BlobIntegrity.UNKNOWN, false);
+                return true;
+            }
+            if (!blobStore.confirmCorrupt(blob.getSha256())) {
+                return true; // Replaced or released while it was being read
+            }
+            blobsVerified.incrementAndGet();
+            if (blobStore.repairFromReplica(blob.getSha256())) {
+                repaired.incrementAndGet();
+                return true;
+            }
+            corruptFound.incrementAndGet();
+            System.err.println("Stored file " + blob.getSha256() + " is corrupt: "
+                    + (bytes == -1 ? "missing from disk" : bytes < 0 ? "cold copy unreadable"
+                    : bytes + " bytes on disk, CRC-32C " + Long.toHexString(crc.getValue())) + ", expected " + blob);
+            return false;
+        } catch (InterruptedIOException e) {
+            throw new InterruptedException();
+        } catch (IOException | SQLException e) {
+            VERIFY_METRICS.recordError();
+            failures.incrementAndGet();
+            System.err.println("Could not verify stored file " + blob.getSha256() + ": " + e.getMessage());
+            return true;
+        } finally {
+            VERIFY_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * @return The number of blobs checked since startup.
+     */
+    public long getBlobsVerified() {
+        return blobsVerified.get();
+    }
+
+    /**
+     * @return The number of bytes read for verification since startup.
+     */
+    public long getBytesVerified() {
+        return bytesVerified.get();
+    }
+
+    /**
+     * @return The number of blobs found corrupt since startup.
+     */
+    public long getCorruptFound() {
+        return corruptFound.get();
+    }
+
+    /**
+     * @return The number of corrupt blobs restored from the replica since startup.
+     */
+    public long getRepaired() {
+        return repaired.get();
+    }
+
+    /**
+     * @return The number of blobs that could not be checked since startup (each is retried next pass).
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+}
@@ -0,0 +1,136 @@
+package com.digitallocker.service;
+
+import com.digitallocker.dao.KeyDAO;
+import com.digitallocker.util.CacheStats;
+import com.digitallocker.util.LruCache;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+
+/**
+ * Per-user data keys for encryption at rest.
+ * Every user gets a random AES-256 data key, stored in the user_keys table wrapped (AES key wrap)
+ * with a master key that lives in a local file. Unwrapped keys are cached, so encrypting or
+ * decrypting a file normally costs no database round trip and no unwrap.
+ */
+public class KeyManager {
+    private static final int KEY_BYTES = 32;
+
+    private final SecretKey masterKey;
+    private final KeyDAO keyDAO;
+    private final LruCache<Integer, SecretKey> cache;
+
+    /**
+     * @param masterKeyFile The file holding the 32-byte master key. It is created, readable by
+     *                      the owner only, if it does not exist.
+     * @param keyDAO The DAO storing the wrapped data keys.
+     * @param maxCachedKeys The maximum number of unwrapped keys kept in memory.
+     * @param cacheTtlMillis How long an unwrapped key stays cached.
+     * @throws IOException If the master key cannot be read or created.
+     */
+    public KeyManager(Path masterKeyFile, KeyDAO keyDAO, int maxCachedKeys, long cacheTtlMillis) throws IOException {
+        this.masterKey = loadOrCreateMasterKey(masterKeyFile);
+        this.keyDAO = keyDAO;
+        this.cache = new LruCache<>(maxCachedKeys, cacheTtlMillis);
+    }
+
+    /**
+     * Gets a user's data key, creating it on first use.
+     * @param userId The ID of the user.
+     * @return The user's AES data key.
+     * @throws SQLException If the wrapped key cannot be read or stored.
+     * @throws IOException If the wrapped key cannot be unwrapped (e.g. a different master key).
+     */
+    public SecretKey getDataKey(int userId) throws SQLException, IOException {
+        SecretKey key = cache.get(userId);
+        if (key != null) {
+            return key;
+        }
+        long stamp = cache.stamp();
+        byte[] wrapped = keyDAO.getWrappedKey(userId);
+        if (wrapped == null) {
+            keyDAO.addWrappedKey(userId, wrap(newDataKey()));
+            wrapped = keyDAO.getWrappedKey(userId); // Whoever inserted first wins
+            if (wrapped == null) {
+                throw new SQLException("Data key for user " + userId + " could not be stored.");
+            }
+        }
+        key = unwrap(wrapped);
+        cache.putIfNotInvalidated(userId, key, stamp);
+        return key;
+    }
+
+    /**
+     * @return The hit and miss counters of the unwrapped key cache.
+     */
+    public CacheStats getCacheStats() {
+        return cache.getStats();
+    }
+
+    private byte[] wrap(SecretKey dataKey) throws IOException {
+        try {
+            Cipher cipher = Cipher.getInstance("AESWrap");
+            cipher.init(Cipher.WRAP_MODE, masterKey);
+            return cipher.wrap(dataKey);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not wrap data key: " + e.getMessage(), e);
+        }
+    }
+
+    private SecretKey unwrap(byte[] wrapped) throws IOException {
+        try {
+            Cipher cipher = Cipher.getInstance("AESWrap");
+            cipher.init(Cipher.UNWRAP_MODE, masterKey);
+            return (SecretKey) cipher.unwrap(wrapped, "AES", Cipher.SECRET_KEY);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not unwrap data key (wrong master key?): " + e.getMessage(), e);
+        }
+    }
+
+    private static SecretKey newDataKey() throws IOException {
+        try {
+            KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(KEY_BYTES * 8);
+            return generator.generateKey();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not generate data key: " + e.getMessage(), e);
+        }
+    }
+
+    private static SecretKey loadOrCreateMasterKey(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            byte[] key = new byte[KEY_BYTES];
+            new SecureRandom().nextBytes(key);
+            try {
+                // Create the file owner-only from the start, so the key is never readable by others
+                try {
+                    Files.createFile(file, PosixFilePermissions.asFileAttribute(
+                            PosixFilePermissions.fromString("rw-------")));
+                } catch (UnsupportedOperationException e) {
+                    // Not a POSIX file system; rely on the directory's permissions
+                    Files.createFile(file);
+                }
+                Files.write(file, key, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                System.out.println("Created master key file: " + file.toAbsolutePath());
+            } catch (FileAlreadyExistsException e) {
+                // Another process created it first; use theirs
+            }
+        }
+        byte[] key = Files.readAllBytes(file);
+        if (key.length != KEY_BYTES) {
+            throw new IOException("Master key file " + file + " must hold exactly " + KEY_BYTES + " bytes.");
+        }
+        return new SecretKeySpec(key, "AES");
+    }
+}
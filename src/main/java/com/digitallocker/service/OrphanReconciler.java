@@ -0,0 +1,383 @@
+package com.digitallocker.service;
+
+import com.digitallocker.dao.FileDAO;
+import com.digitallocker.model.FileMetadata;
+import com.digitallocker.model.ReconcileReport;
+import com.digitallocker.util.Metrics;
+import com.digitallocker.util.OperationMetrics;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Finds where the locker directory and the files table disagree, and optionally fixes it.
+ * A crash between storing content and saving its row leaves an orphan blob on disk; content lost
+ * from disk leaves rows pointing at nothing. Neither side is loaded into memory: the sharded layout
+ * is walked in name order, its leaf directories listed in parallel a few at a time, and merge-joined
+ * against the table's stored filenames, read in sorted pages. Legacy flat files, which the shard
+ * migrator normally clears out, are looked up one by one.
+ * <p>
+ * Both sides change while the walk runs, so every finding is checked again before it is reported or
+ * repaired. Blobs written or reused within the grace period are never treated as orphans, as their
+ * rows may simply not be saved yet. Repair deletes orphan blobs and deletes the rows of missing
+ * blobs, like a user would, so usage counters and search indexes follow.
+ * <p>
+ * Chunks of versioned files are referenced by their manifests, not by rows, and are left out of the
+ * walk; an orphaned manifest releases its chunks when it is deleted. Earlier versions whose content
+ * is missing are not reported, as only a file as a whole can be deleted. Blobs in the cold tier are
+ * not walked, but count as present for the rows that refer to them.
+ */
+public class OrphanReconciler {
+    // Per-operation call, error and latency metrics, also exposed over JMX (see Metrics)
+    private static final OperationMetrics RECONCILE_METRICS = Metrics.operation("OrphanReconciler", "reconcile");
+
+    private static final int SHARD_DIR_LENGTH = 2;
+    private static final int MAX_SAMPLES = 100;
+
+    private final FileDAO fileDAO;
+    private final BlobStore blobStore;
+    private final FileRemover remover;
+    private final int threads;
+    private final int pageSize;
+    private final long graceMillis;
+
+    /** Deletes files the way the service does; returns the number deleted, or -1 on failure. */
+    public interface FileRemover {
+        int remove(int userId, Collection<Integer> fileIds);
+    }
+
+    /**
+     * @param fileDAO The DAO the stored filenames are read from.
+     * @param blobStore The store whose directory is walked.
+     * @param remover Deletes the rows of files whose content is missing.
+     * @param threads The number of directories listed at once.
+     * @param pageSize The number of stored filenames read from the table per query.
+     * @param graceMillis How long a blob must go unwritten before it can be an orphan.
+     */
+    public OrphanReconciler(FileDAO fileDAO, BlobStore blobStore, FileRemover remover, int threads, int pageSize,
+                            long graceMillis) {
+        this.fileDAO = fileDAO;
+        this.blobStore = blobStore;
+        this.remover = remover;
+        this.threads = threads;
+        this.pageSize = pageSize;
+        this.graceMillis = graceMillis;
+    }
+
+    /**
+     * Compares disk and table on the calling thread. Only one run at a time.
+     * @param repair false to only report, true to also delete orphan blobs and the rows of missing blobs.
+     * @return What was found and, when repairing, fixed.
+     * @throws IOException If the locker directory cannot be listed.
+     * @throws SQLException If the stored filenames cannot be read.
+     * @throws InterruptedException If the thread is interrupted.
+     */
+    public synchronized ReconcileReport reconcile(boolean repair) throws IOException, SQLException, InterruptedException {
+        long startNanos = System.nanoTime();
+        try {
+            Run run = new Run(repair);
+            ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "orphan-reconciler");
+                t.setDaemon(true);
+                return t;
+            });
+            try {
+                run.mergeJoin(new ShardWalk(pool));
+            } finally {
+                pool.shutdownNow();
+            }
+            run.checkFlatFiles();
+            ReconcileReport report = run.report((System.nanoTime() - startNanos) / 1_000_000);
+            System.out.println("Orphan reconciliation finished: " + report);
+            return report;
+        } catch (IOException | SQLException | InterruptedException | RuntimeException e) {
+            RECONCILE_METRICS.recordError();
+            throw e;
+        } finally {
+            RECONCILE_METRICS.record(startNanos);
+        }
+    }
+
+    /** The counters and checks of one reconcile() call. */
+    private final class Run {
+        final boolean repair;
+        long blobsScanned;
+        long storedNamesScanned;
+        long orphanBlobs;
+        long orphanBytes;
+        long recentBlobsSkipped;
+        long missingBlobs;
+        long rowsWithMissingBlob;
+        long strayFiles;
+        long blobsDeleted;
+        long rowsDeleted;
+        long failed;
+        final List<String> orphanSamples = new ArrayList<>();
+        final List<String> missingSamples = new ArrayList<>();
+
+        // The current page of stored filenames
+        List<String> page = Collections.emptyList();
+        int pagePos;
+        boolean lastPage;
+
+        Run(boolean repair) {
+            this.repair = repair;
+        }
+
+        void mergeJoin(ShardWalk disk) throws IOException, SQLException, InterruptedException {
+            String blob = disk.next();
+            String row = nextStoredName();
+            while (blob != null || row != null) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException();
+                }
+                int cmp = blob == null ? 1 : row == null ? -1 : blob.compareTo(row);
+                if (cmp == 0) {
+                    blobsScanned++;
+                    blob = disk.next();
+                    row = nextStoredName();
+                } else if (cmp < 0) {
+                    blobsScanned++;
+                    checkOrphan(blob);
+                    blob = disk.next();
+                } else {
+                    checkMissing(row);
+                    row = nextStoredName();
+                }
+            }
+            strayFiles += disk.stray;
+        }
+
+        void checkFlatFiles() throws IOException, SQLException {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(blobStore.getRoot(),
+                    entry -> Files.isRegularFile(entry) && BlobStore.isShardable(entry.getFileName().toString()))) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    blobsScanned++;
+                    if (fileDAO.countFilesByStoredFilename(name) == 0) {
+                        checkOrphan(name);
+                    }
+                }
+            }
+        }
+
+        String nextStoredName() throws SQLException {
+            if (pagePos == page.size()) {
+                if (lastPage) {
+                    return null;
+                }
+                String after = page.isEmpty() ? "" : page.get(page.size() - 1);
+                page = fileDAO.getStoredFilenamesAfter(after, pageSize);
+                pagePos = 0;
+                lastPage = page.size() < pageSize;
+                if (page.isEmpty()) {
+                    return null;
+                }
+            }
+            storedNamesScanned++;
+            return page.get(pagePos++);
+        }
+
+        /**
+         * A blob no row referred to when the table was read. Young blobs are skipped: their upload may
+         * still be saving its row, or may have reused them since.
+         */
+        void checkOrphan(String name) {
+            try {
+                Path file = blobStore.resolve(name);
+                long modified;
+                long size;
+                try {
+                    modified = Files.getLastModifiedTime(file).toMillis();
+                    size = Files.size(file);
+                } catch (NoSuchFileException e) {
+                    return; // Released meanwhile
+                }
+                if (modified > System.currentTimeMillis() - graceMillis) {
+                    recentBlobsSkipped++;
+                    return;
+                }
+                orphanBlobs++;
+                orphanBytes += size;
+                sample(orphanSamples, name);
+                if (repair && blobStore.deleteOrphan(name, graceMillis,
+                        () -> fileDAO.countFilesByStoredFilename(name) == 0)) {
+                    blobsDeleted++;
+                }
+            } catch (IOException | SQLException e) {
+                failed++;
+                System.err.println("Could not check stored file " + name + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * A stored filename the walk did not find. It may be a flat file, or have been stored since.
+         */
+        void checkMissing(String name) {
+            try {
+                if (blobStore.isStored(name)) {
+                    return; // Found after all, possibly in the cold tier
+                }
+                List<FileMetadata> rows = fileDAO.getFilesByStoredFilename(name);
+                if (rows.isEmpty()) {
+                    return; // Only tombstoned rows, which the sweeper purges whether or not the blob exists
+                }
+                missingBlobs++;
+                rowsWithMissingBlob += rows.size();
+                sample(missingSamples, name);
+                if (repair && !blobStore.isStored(name)) {
+                    Map<Integer, List<Integer>> idsByUser = new LinkedHashMap<>();
+                    for (FileMetadata row : rows) {
+                        idsByUser.computeIfAbsent(row.getUserId(), u -> new ArrayList<>()).add(row.getId());
+                    }
+                    for (Map.Entry<Integer, List<Integer>> user : idsByUser.entrySet()) {
+                        int deleted = remover.remove(user.getKey(), user.getValue());
+                        if (deleted < 0) {
+                            failed++;
+                        } else {
+                            rowsDeleted += deleted;
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                failed++;
+                System.err.println("Could not check rows of stored file " + name + ": " + e.getMessage());
+            }
+        }
+
+        ReconcileReport report(long elapsedMillis) {
+            return new ReconcileReport(repair, blobsScanned, storedNamesScanned, orphanBlobs, orphanBytes,
+                    recentBlobsSkipped, missingBlobs, rowsWithMissingBlob, strayFiles, blobsDeleted, rowsDeleted,
+                    failed, orphanSamples, missingSamples, elapsedMillis);
+        }
+    }
+
+    private static void sample(List<String> samples, String name) {
+        if (samples.size() < MAX_SAMPLES) {
+            samples.add(name);
+        }
+    }
+
+    /**
+     * The names of the blobs in the sharded layout, in ascending order. A blob's directories are the
+     * first four characters of its name, so visiting directories in name order and sorting each leaf
+     * yields every name in order. Leaves are listed on the pool, up to twice as many ahead as there are
+     * threads, so memory holds a bounded number of leaves whatever the size of the store.
+     */
+    private final class ShardWalk {
+        private final ExecutorService pool;
+        private final Iterator<Path> topDirs;
+        private final Deque<Path> pendingLeaves = new ArrayDeque<>();
+        private final Deque<Future<Leaf>> listing = new ArrayDeque<>();
+        private List<String> current = Collections.emptyList();
+        private int pos;
+        long stray;
+
+        ShardWalk(ExecutorService pool) throws IOException {
+            this.pool = pool;
+            this.topDirs = sortedShardDirs(blobStore.getRoot()).iterator();
+        }
+
+        String next() throws IOException, InterruptedException {
+            while (pos == current.size()) {
+                fill();
+                if (listing.isEmpty()) {
+                    return null;
+                }
+                Leaf leaf;
+                try {
+                    leaf = listing.removeFirst().get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                }
+                current = leaf.names;
+                pos = 0;
+                stray += leaf.stray;
+            }
+            return current.get(pos++);
+        }
+
+        /** Keeps up to 2 * threads leaves being listed ahead of the merge. */
+        private void fill() throws IOException {
+            while (listing.size() < threads * 2) {
+                while (pendingLeaves.isEmpty() && topDirs.hasNext()) {
+                    pendingLeaves.addAll(sortedShardDirs(topDirs.next()));
+                }
+                if (pendingLeaves.isEmpty()) {
+                    return;
+                }
+                Path leafDir = pendingLeaves.removeFirst();
+                listing.addLast(pool.submit(() -> listLeaf(leafDir)));
+            }
+        }
+    }
+
+    /** The sorted blob names of one leaf directory, and how many files in it did not belong there. */
+    private static final class Leaf {
+        final List<String> names;
+        final long stray;
+
+        Leaf(List<String> names, long stray) {
+            this.names = names;
+            this.stray = stray;
+        }
+    }
+
+    private static Leaf listLeaf(Path leafDir) throws IOException {
+        String prefix = leafDir.getParent().getFileName().toString() + leafDir.getFileName();
+        List<String> names = new ArrayList<>();
+        long stray = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(leafDir)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (name.endsWith(BlobStore.CHUNK_SUFFIX)) {
+                    continue; // A chunk: accounted for by the manifests that list it
+                }
+                if (name.startsWith(prefix) && Files.isRegularFile(entry)) {
+                    names.add(name);
+                } else {
+                    stray++; // Out of order for the merge and not where resolve() looks; reported only
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return new Leaf(names, 0); // Removed meanwhile
+        }
+        Collections.sort(names);
+        return new Leaf(names, stray);
+    }
+
+    /** Lists the two-character shard directories of dir in name order, skipping the store's own dot directories. */
+    private static List<Path> sortedShardDirs(Path dir) throws IOException {
+        List<Path> dirs = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir, entry -> {
+            String name = entry.getFileName().toString();
+            return name.length() == SHARD_DIR_LENGTH && name.charAt(0) != '.' && Files.isDirectory(entry);
+        })) {
+            for (Path entry : entries) {
+                dirs.add(entry);
+            }
+        } catch (NoSuchFileException e) {
+            return dirs;
+        }
+        dirs.sort(null);
+        return dirs;
+    }
+}
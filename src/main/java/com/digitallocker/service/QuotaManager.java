@@ -0,0 +1,180 @@
+package com.digitallocker.service;
+
+import com.digitallocker.dao.UserDAO;
+import com.digitallocker.model.StorageUsage;
+import com.digitallocker.util.CacheStats;
+import com.digitallocker.util.LruCache;
+
+import java.sql.SQLException;
+
+/**
+ * Storage quota checks for uploads, answered from an in-memory copy of each user's usage counter.
+ * An upload reserves its size before any bytes are copied and turns the reservation into usage once
+ * its row is saved, so concurrent uploads cannot together overshoot the quota. The counters
+ * themselves are maintained by the DAOs; a cached copy is dropped on delete and expires after a
+ * while, which also picks up changes made by other processes.
+ */
+public class QuotaManager {
+    private final UserDAO userDAO;
+    private final long defaultQuotaBytes;
+    private final LruCache<Integer, Account> accounts;
+    private final Object loadLock = new Object();
+
+    /**
+     * @param userDAO The DAO the counters and quotas are read from.
+     * @param defaultQuotaBytes The quota of users without one of their own, or StorageUsage.UNLIMITED.
+     * @param maxCachedUsers The maximum number of users whose usage is kept in memory.
+     * @param ttlMillis How long a cached usage is trusted before it is read again.
+     */
+    public QuotaManager(UserDAO userDAO, long defaultQuotaBytes, int maxCachedUsers, long ttlMillis) {
+        this.userDAO = userDAO;
+        this.defaultQuotaBytes = defaultQuotaBytes;
+        this.accounts = new LruCache<>(maxCachedUsers, ttlMillis);
+    }
+
+    /**
+     * Reserves room for an upload that is about to be copied.
+     * @param userId The ID of the uploading user.
+     * @param bytes The size of the upload.
+     * @return The reservation, or null if the upload would exceed the user's quota.
+     * @throws SQLException If the user's usage had to be read and could not be.
+     */
+    public Reservation reserve(int userId, long bytes) throws SQLException {
+        Account account = account(userId);
+        synchronized (account) {
+            if (account.quotaBytes != StorageUsage.UNLIMITED
+                    && account.usedBytes + account.reservedBytes + bytes > account.quotaBytes) {
+                return null;
+            }
+            account.reservedBytes += bytes;
+        }
+        return new Reservation(account, bytes);
+    }
+
+    /**
+     * @param userId The ID of the user.
+     * @return The bytes the user may still upload, net of uploads in progress; Long.MAX_VALUE without a quota.
+     * @throws SQLException If the user's usage had to be read and could not be.
+     */
+    public long getRemainingBytes(int userId) throws SQLException {
+        Account account = account(userId);
+        synchronized (account) {
+            return account.quotaBytes == StorageUsage.UNLIMITED ? Long.MAX_VALUE
+                    : Math.max(0, account.quotaBytes - account.usedBytes - account.reservedBytes);
+        }
+    }
+
+    /**
+     * @param userId The ID of the user.
+     * @return The user's usage and effective quota.
+     * @throws SQLException If the user's usage had to be read and could not be.
+     */
+    public StorageUsage getUsage(int userId) throws SQLException {
+        Account account = account(userId);
+        synchronized (account) {
+            return new StorageUsage(userId, account.usedBytes, account.quotaBytes);
+        }
+    }
+
+    /**
+     * Sets a user's own quota.
+     * @param userId The ID of the user.
+     * @param quotaBytes The quota in bytes, or StorageUsage.UNLIMITED for the default quota.
+     * @return true if the user exists.
+     * @throws SQLException If the quota could not be saved.
+     */
+    public boolean setQuota(int userId, long quotaBytes) throws SQLException {
+        try {
+            return userDAO.setQuota(userId, quotaBytes);
+        } finally {
+            accounts.invalidate(userId);
+        }
+    }
+
+    /**
+     * Forgets a user's cached usage after files were deleted; the next check reads the counter again.
+     * @param userId The ID of the user.
+     */
+    public void filesRemoved(int userId) {
+        accounts.invalidate(userId);
+    }
+
+    /**
+     * @return The counters of the usage cache.
+     */
+    public CacheStats getCacheStats() {
+        return accounts.getStats();
+    }
+
+    private Account account(int userId) throws SQLException {
+        Account account = accounts.get(userId);
+        if (account != null) {
+            return account;
+        }
+        // One loader at a time, so two racing misses cannot each cache an account and split the reservations
+        synchronized (loadLock) {
+            account = accounts.get(userId);
+            if (account == null) {
+                long stamp = accounts.stamp();
+                StorageUsage usage = userDAO.getStorageUsage(userId);
+                long quotaBytes = usage == null || usage.isUnlimited() ? defaultQuotaBytes : usage.getQuotaBytes();
+                account = new Account(usage == null ? 0 : usage.getUsedBytes(), quotaBytes);
+                accounts.putIfNotInvalidated(userId, account, stamp);
+            }
+            return account;
+        }
+    }
+
+    /** A user's cached usage; guarded by itself. */
+    private static final class Account {
+        final long quotaBytes;
+        long usedBytes;
+        long reservedBytes;
+
+        Account(long usedBytes, long quotaBytes) {
+            this.usedBytes = usedBytes;
+            this.quotaBytes = quotaBytes;
+        }
+    }
+
+    /**
+     * Room held for one upload. Exactly one of {@link #commit} and {@link #release} takes effect;
+     * calling release after commit does nothing, so it can go in a finally block.
+     */
+    public static final class Reservation {
+        private final Account account;
+        private final long bytes;
+        private boolean done;
+
+        private Reservation(Account account, long bytes) {
+            this.account = account;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Counts the upload as used space, once its row is saved.
+         * @param actualBytes The size actually stored, which may differ if the file changed while it was read.
+         */
+        public void commit(long actualBytes) {
+            synchronized (account) {
+                if (!done) {
+                    account.reservedBytes -= bytes;
+                    account.usedBytes += actualBytes;
+                    done = true;
+                }
+            }
+        }
+
+        /**
+         * Gives the room back, for an upload that was not saved.
+         */
+        public void release() {
+            synchronized (account) {
+                if (!done) {
+                    account.reservedBytes -= bytes;
+                    done = true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package com.digitallocker.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The durable queue of blob changes the replica has yet to apply. Changes are appended to a log file
+ * as lines of "+&lt;millis&gt; &lt;name&gt;" (a blob was stored) or "-&lt;millis&gt; &lt;name&gt;" (one was deleted), and
+ * a checkpoint file holds the offset up to which the replica has applied them, so a restarted process
+ * carries on where it stopped. Applying an entry twice is harmless, which keeps the bookkeeping simple:
+ * the checkpoint is moved back before the log is ever shortened, never after.
+ * <p>
+ * Appends are written but not forced to disk unless fsync is set; they survive the process dying but
+ * not the machine, and the replicator's catch-up scan finds whatever such a crash lost.
+ */
+class ReplicationLog {
+    static final char STORED = '+';
+    static final char DELETED = '-';
+
+    private static final String LOG_FILE = "log";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final long COMPACT_AFTER_BYTES = 1024 * 1024; // Applied bytes kept before the log is rewritten
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Path dir;
+    private final Path logFile;
+    private final Path checkpointFile;
+    private final boolean fsync;
+    private FileChannel channel;
+    private long appliedOffset; // Everything before this has reached the replica
+    private long endOffset;
+    private long pending; // Entries between appliedOffset and endOffset
+    private long oldestPendingMillis; // When the first pending entry was appended, 0 if none are
+
+    /**
+     * Opens the log in dir, creating it if needed. A line left half written by a crash is dropped.
+     * @param dir The directory holding the log and its checkpoint.
+     * @param fsync Whether every append is forced to disk.
+     * @throws IOException If the log cannot be opened.
+     */
+    ReplicationLog(Path dir, boolean fsync) throws IOException {
+        this.dir = dir;
+        this.logFile = dir.resolve(LOG_FILE);
+        this.checkpointFile = dir.resolve(CHECKPOINT_FILE);
+        this.fsync = fsync;
+        Files.createDirectories(dir);
+        this.channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.endOffset = channel.size();
+        this.appliedOffset = Math.min(readCheckpoint(), endOffset);
+        recover();
+    }
+
+    /**
+     * Records that a blob was stored or deleted.
+     * @param op {@link #STORED} or {@link #DELETED}.
+     * @param name The blob's stored name.
+     * @throws IOException If the entry cannot be written.
+     */
+    synchronized void append(char op, String name) throws IOException {
+        long now = System.currentTimeMillis();
+        ByteBuffer line = StandardCharsets.UTF_8.encode(op + Long.toString(now) + ' ' + name + '\n');
+        long position = endOffset;
+        while (line.hasRemaining()) {
+            position += channel.write(line, position);
+        }
+        if (fsync) {
+            channel.force(false);
+        }
+        endOffset = position;
+        if (pending++ == 0) {
+            oldestPendingMillis = now;
+        }
+    }
+
+    /**
+     * Reads the oldest entries the replica has not applied yet.
+     * @param max The maximum number of entries to return.
+     * @return The entries in log order; empty if the replica is up to date.
+     * @throws IOException If the log cannot be read.
+     */
+    synchronized List<Entry> readPending(int max) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        long position = appliedOffset;
+        StringBuilder line = new StringBuilder();
+        long lineStart = position;
+        while (entries.size() < max && position < endOffset) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), endOffset - position));
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining() && entries.size() < max) {
+                char c = (char) (buffer.get() & 0xFF); // Names and timestamps are ASCII
+                position++;
+                if (c != '\n') {
+                    line.append(c);
+                    continue;
+                }
+                Entry entry = Entry.parse(line, position);
+                if (entry == null) {
+                    // Kept as a no-op, so that the checkpoint still moves past it
+                    System.err.println("Skipping malformed replication log entry at offset " + lineStart + ": " + line);
+                    entry = new Entry('?', System.currentTimeMillis(), null, position);
+                }
+                entries.add(entry);
+                line.setLength(0);
+                lineStart = position;
+            }
+            if (entries.size() == max) {
+                break;
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Records that the replica has applied every entry up to offset, and shortens the log once enough
+     * of it has been applied.
+     * @param offset The end offset of the last entry applied.
+     * @param count The number of entries applied.
+     * @throws IOException If the checkpoint cannot be written; the entries are then applied again later.
+     */
+    synchronized void checkpoint(long offset, int count) throws IOException {
+        appliedOffset = offset;
+        pending = Math.max(0, pending - count);
+        oldestPendingMillis = pending == 0 ? 0 : oldestPendingTimestamp();
+        if (appliedOffset == endOffset) {
+            // Everything applied: start over from an empty log
+            writeCheckpoint(0);
+            channel.truncate(0);
+            appliedOffset = 0;
+            endOffset = 0;
+        } else if (appliedOffset >= COMPACT_AFTER_BYTES) {
+            compact();
+        } else {
+            writeCheckpoint(appliedOffset);
+        }
+    }
+
+    /**
+     * @return The number of entries the replica has not applied yet.
+     */
+    synchronized long getPending() {
+        return pending;
+    }
+
+    /**
+     * @return How long ago the oldest entry not applied yet was appended, or 0 if the replica is up to date.
+     */
+    synchronized long getLagMillis() {
+        return pending == 0 ? 0 : Math.max(0, System.currentTimeMillis() - oldestPendingMillis);
+    }
+
+    /**
+     * @return The size of the log file in bytes.
+     */
+    synchronized long getSizeBytes() {
+        return endOffset;
+    }
+
+    synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Drops a trailing half-written line and counts the entries still to apply.
+     */
+    private void recover() throws IOException {
+        long lastNewline = -1;
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        long position = appliedOffset;
+        while (position < endOffset) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    lastNewline = position + i;
+                    pending++;
+                }
+            }
+            position += read;
+        }
+        long validEnd = lastNewline == -1 ? appliedOffset : lastNewline + 1;
+        if (validEnd < endOffset) {
+            System.err.println("Dropping " + (endOffset - validEnd) + " bytes of a torn replication log entry.");
+            channel.truncate(validEnd);
+            endOffset = validEnd;
+        }
+        oldestPendingMillis = pending == 0 ? 0 : oldestPendingTimestamp();
+    }
+
+    /**
+     * Rewrites the log without its applied entries. The checkpoint is reset first, so a crash in
+     * between replays the applied entries again rather than skipping pending ones.
+     */
+    private void compact() throws IOException {
+        writeCheckpoint(0);
+        Path compacted = dir.resolve(LOG_FILE + ".compact");
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long position = appliedOffset;
+            while (position < endOffset) {
+                position += channel.transferTo(position, endOffset - position, out);
+            }
+            out.force(false);
+        }
+        channel.close();
+        Files.move(compacted, logFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        channel = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        endOffset = channel.size();
+        appliedOffset = 0;
+    }
+
+    private long oldestPendingTimestamp() throws IOException {
+        List<Entry> next = readPending(1);
+        return next.isEmpty() ? System.currentTimeMillis() : next.get(0).appendedMillis;
+    }
+
+    private long readCheckpoint() throws IOException {
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(checkpointFile), StandardCharsets.US_ASCII).trim());
+        } catch (NoSuchFileException e) {
+            return 0;
+        } catch (NumberFormatException e) {
+            System.err.println("Replication checkpoint is unreadable; replaying the whole log.");
+            return 0;
+        }
+    }
+
+    private void writeCheckpoint(long offset) throws IOException {
+        Path tmp = dir.resolve(CHECKPOINT_FILE + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            out.write(StandardCharsets.US_ASCII.encode(Long.toString(offset)));
+            if (fsync) {
+                out.force(false);
+            }
+        }
+        Files.move(tmp, checkpointFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * One change to apply to the replica.
+     */
+    static final class Entry {
+        final char op; // STORED, DELETED, or '?' for a malformed line, which is skipped
+        final long appendedMillis;
+        final String name;
+        final long endOffset; // Where the next entry starts; the checkpoint once this one is applied
+
+        Entry(char op, long appendedMillis, String name, long endOffset) {
+            this.op = op;
+            this.appendedMillis = appendedMillis;
+            this.name = name;
+            this.endOffset = endOffset;
+        }
+
+        static Entry parse(CharSequence line, long endOffset) {
+            int space = -1;
+            for (int i = 0; i < line.length(); i++) {
+                if (line.charAt(i) == ' ') {
+                    space = i;
+                    break;
+                }
+            }
+            if (space < 2 || space == line.length() - 1) {
+                return null;
+            }
+            char op = line.charAt(0);
+            if (op != STORED && op != DELETED) {
+                return null;
+            }
+            try {
+                long millis = Long.parseLong(line.subSequence(1, space).toString());
+                return new Entry(op, millis, line.subSequence(space + 1, line.length()).toString(), endOffset);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+}
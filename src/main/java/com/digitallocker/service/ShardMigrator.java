@@ -0,0 +1,152 @@
+package com.digitallocker.service;
+
+import com.digitallocker.model.MigrationProgress;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Online migration of stored files from the flat locker directory into the sharded layout.
+ * Files are moved in small batches with a pause in between, while the application keeps serving
+ * requests: {@link BlobStore#resolve} finds a blob under either layout, and each move happens under
+ * the blob's lock so it cannot race with a delete of the same blob.
+ */
+public class ShardMigrator {
+    private final BlobStore blobStore;
+    private final int batchSize;
+    private final long pauseMillis;
+
+    private final AtomicLong totalFlatFiles = new AtomicLong();
+    private final AtomicLong migrated = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final Set<Path> failedFiles = ConcurrentHashMap.newKeySet();
+    private volatile boolean running;
+    private volatile boolean complete;
+    private Thread worker;
+
+    /**
+     * @param blobStore The store whose files are migrated.
+     * @param batchSize The number of files moved between pauses.
+     * @param pauseMillis The pause between batches, leaving disk time to user traffic.
+     */
+    public ShardMigrator(BlobStore blobStore, int batchSize, long pauseMillis) {
+        this.blobStore = blobStore;
+        this.batchSize = batchSize;
+        this.pauseMillis = pauseMillis;
+    }
+
+    /**
+     * Starts the migration on a background thread. Does nothing if it is already running.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        worker = new Thread(() -> {
+            try {
+                migrate();
+            } catch (InterruptedException e) {
+                System.out.println("Shard migration paused: " + getProgress());
+            } catch (IOException e) {
+                System.err.println("Shard migration failed: " + e.getMessage());
+            } finally {
+                running = false;
+            }
+        }, "shard-migrator");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Stops a background migration after the current file. It can be started again later.
+     */
+    public synchronized void stop() {
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Runs the migration on the calling thread until no flat files are left.
+     * @throws IOException If the locker directory cannot be listed.
+     * @throws InterruptedException If the thread is interrupted between batches.
+     */
+    public void migrate() throws IOException, InterruptedException {
+        complete = false;
+        migrated.set(0);
+        failed.set(0);
+        failedFiles.clear();
+        totalFlatFiles.set(countFlatFiles());
+        System.out.println("Shard migration started: " + totalFlatFiles.get() + " files to move.");
+
+        List<Path> batch;
+        while (!(batch = nextBatch()).isEmpty()) {
+            for (Path flatFile : batch) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException();
+                }
+                try {
+                    if (blobStore.moveToShardedLayout(flatFile)) {
+                        migrated.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    failed.incrementAndGet();
+                    failedFiles.add(flatFile);
+                    System.err.println("Could not migrate " + flatFile.getFileName() + ": " + e.getMessage());
+                }
+            }
+            Thread.sleep(pauseMillis);
+        }
+        complete = failed.get() == 0;
+        System.out.println("Shard migration finished: " + getProgress());
+    }
+
+    /**
+     * @return A snapshot of how far the migration has got.
+     */
+    public MigrationProgress getProgress() {
+        return new MigrationProgress(totalFlatFiles.get(), migrated.get(), failed.get(), running, complete);
+    }
+
+    private long countFlatFiles() throws IOException {
+        long count = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(blobStore.getRoot(), ShardMigrator::isFlatBlob)) {
+            for (Path ignored : entries) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Lists up to batchSize flat files. The directory is re-listed for every batch rather than
+     * iterated while entries are being moved out of it.
+     */
+    private List<Path> nextBatch() throws IOException {
+        List<Path> batch = new ArrayList<>(batchSize);
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(blobStore.getRoot(), ShardMigrator::isFlatBlob)) {
+            for (Path entry : entries) {
+                if (failedFiles.contains(entry)) {
+                    continue; // Failed files stay flat and are reported; they are retried on the next run
+                }
+                batch.add(entry);
+                if (batch.size() == batchSize) {
+                    break;
+                }
+            }
+        }
+        return batch;
+    }
+
+    private static boolean isFlatBlob(Path entry) {
+        return Files.isRegularFile(entry) && BlobStore.isShardable(entry.getFileName().toString());
+    }
+}
@@ -0,0 +1,520 @@
+package com.digitallocker.service;
+
+import com.digitallocker.dao.FileDAO;
+import com.digitallocker.model.BlobIntegrity;
+import com.digitallocker.model.FileMetadata;
+import com.digitallocker.model.TierUsage;
+import com.digitallocker.util.Metrics;
+import com.digitallocker.util.OperationMetrics;
+import com.digitallocker.util.RateLimiter;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Hot/cold storage tiering driven by access recency.
+ * A periodic pass moves the blobs of files nobody has uploaded or retrieved for a while from the
+ * locker directory to a second, compressed root, at a bounded byte rate. A cold copy is the blob's
+ * bytes exactly as they were on disk, deflated, so the size and CRC-32C recorded when the blob was
+ * written still describe it once inflated; every move in either direction is checked against them.
+ * Reading a cold blob promotes it back first (see {@link BlobStore#openChannel}), so callers never
+ * notice the tier. Which tier holds a file is recorded in its files row: in batches after each
+ * demotion batch, and within seconds of a promotion.
+ * <p>
+ * Chunked files are demoted chunk by chunk, then their manifest. Only the current content of a
+ * file is demoted; the blobs of earlier versions stay where they are until read.
+ */
+public class StorageTiering implements StorageTieringMBean {
+    // Per-operation call, error and latency metrics, also exposed over JMX (see Metrics)
+    private static final OperationMetrics DEMOTE_METRICS = Metrics.operation("StorageTiering", "demote");
+    private static final OperationMetrics PROMOTE_METRICS = Metrics.operation("StorageTiering", "promote");
+
+    private static final String TMP_DIR = ".tmp";
+    private static final String COLD_SUFFIX = ".z"; // Deflated
+    private static final int BATCH_SIZE = 500;
+    private static final long TIER_FLUSH_MILLIS = 2_000; // How long a promoted file may still be recorded as cold
+    private static final long USAGE_REFRESH_MILLIS = 60_000;
+
+    private final FileDAO fileDAO;
+    private final BlobStore blobStore;
+    private final Path coldRoot;
+    private final Path coldTmp;
+    private final RateLimiter rateLimiter;
+    private final long intervalMillis;
+    private final long coldAfterMillis;
+    private final int compressionLevel;
+    private final ScheduledExecutorService scheduler;
+    private final Set<String> promotedNames = ConcurrentHashMap.newKeySet(); // Rows still to be recorded as hot
+
+    private volatile List<TierUsage> usage = new ArrayList<>();
+    private final AtomicLong blobsDemoted = new AtomicLong();
+    private final AtomicLong bytesDemoted = new AtomicLong();
+    private final AtomicLong coldBytesWritten = new AtomicLong();
+    private final AtomicLong blobsPromoted = new AtomicLong();
+    private final AtomicLong bytesPromoted = new AtomicLong();
+    private final AtomicLong promotionFailures = new AtomicLong();
+    private final AtomicLong passesRun = new AtomicLong();
+
+    /**
+     * @param fileDAO The DAO the access times and tiers are kept in.
+     * @param blobStore The store holding the hot blobs.
+     * @param coldRoot The root of the cold tier.
+     * @param bytesPerSecond The maximum rate at which blobs are read for demotion.
+     * @param intervalMillis The pause between demotion passes.
+     * @param coldAfterMillis How long a file must go unused before it is demoted.
+     * @param compressionLevel The deflate level of cold copies, 1 to 9.
+     */
+    public StorageTiering(FileDAO fileDAO, BlobStore blobStore, Path coldRoot, double bytesPerSecond,
+                          long intervalMillis, long coldAfterMillis, int compressionLevel) throws IOException {
+        this.fileDAO = fileDAO;
+        this.blobStore = blobStore;
+        this.coldRoot = coldRoot;
+        this.coldTmp = coldRoot.resolve(TMP_DIR);
+        this.rateLimiter = new RateLimiter(bytesPerSecond);
+        this.intervalMillis = intervalMillis;
+        this.coldAfterMillis = coldAfterMillis;
+        this.compressionLevel = compressionLevel;
+        Files.createDirectories(coldTmp);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "storage-tiering");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    /**
+     * Starts the periodic demotion pass and the recording of promotions, and registers the tiering
+     * counters over JMX.
+     */
+    public void start() {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                demoteColdFiles();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                System.err.println("Storage tiering error: " + e.getMessage());
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::flushPromoted, TIER_FLUSH_MILLIS, TIER_FLUSH_MILLIS,
+                TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::refreshUsage, 0, USAGE_REFRESH_MILLIS, TimeUnit.MILLISECONDS);
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("com.digitallocker:type=StorageTiering");
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            System.err.println("Could not register storage tiering MBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops tiering. A blob being demoted is abandoned and stays hot; promotions not yet recorded
+     * are recorded before this returns.
+     */
+    public void stop() {
+        scheduler.shutdownNow();
+        flushPromoted();
+    }
+
+    /**
+     * Runs one demotion pass over the files unused for longer than the cold-after period.
+     * @return The number of files rows moved to the cold tier.
+     * @throws InterruptedException If the pass was interrupted while rate limited.
+     */
+    public int demoteColdFiles() throws InterruptedException {
+        Timestamp usedBefore = new Timestamp(System.currentTimeMillis() - coldAfterMillis);
+        int demoted = 0;
+        int afterId = 0;
+        List<FileMetadata> batch;
+        do {
+            try {
+                batch = fileDAO.getColdCandidates(usedBefore, afterId, BATCH_SIZE);
+            } catch (SQLException e) {
+                System.err.println("Database error listing files to demote: " + e.getMessage());
+                break;
+            }
+            Set<String> moved = new LinkedHashSet<>();
+            for (FileMetadata file : batch) {
+                afterId = file.getId();
+                if (moved.contains(file.getStoredFilename()) || demote(file)) {
+                    moved.add(file.getStoredFilename());
+                }
+            }
+            if (!moved.isEmpty()) {
+                try {
+                    demoted += fileDAO.setStorageTier(moved, FileMetadata.TIER_COLD);
+                } catch (SQLException e) {
+                    System.err.println("Database error recording demoted files: " + e.getMessage());
+                }
+                for (String name : moved) {
+                    if (!isCold(name)) {
+                        markHot(name); // Promoted again before its rows were recorded as cold
+                    }
+                }
+            }
+        } while (batch.size() == BATCH_SIZE);
+
+        passesRun.incrementAndGet();
+        refreshUsage();
+        if (demoted > 0) {
+            System.out.println("Storage tiering moved " + demoted + " files to the cold tier.");
+        }
+        return demoted;
+    }
+
+    /**
+     * Demotes the content of one file.
+     * @return true if the file's blob is now in the cold tier.
+     */
+    private boolean demote(FileMetadata file) throws InterruptedException {
+        long startNanos = System.nanoTime();
+        try {
+            if (BlobStore.isChunked(file.getCodec())) {
+                for (String chunk : blobStore.chunkNames(file.getStoredFilename())) {
+                    blobStore.demote(chunk, coldAfterMillis, rateLimiter);
+                }
+            }
+            return blobStore.demote(file.getStoredFilename(), coldAfterMillis, rateLimiter);
+        } catch (InterruptedIOException e) {
+            throw new InterruptedException();
+        } catch (IOException | SQLException e) {
+            DEMOTE_METRICS.recordError();
+            System.err.println("Could not demote stored file " + file.getStoredFilename() + ": " + e.getMessage());
+            return false;
+        } finally {
+            DEMOTE_METRICS.record(startNanos);
+        }
+    }
+
+    /**
+     * Tells whether a blob has a copy in the cold tier.
+     */
+    boolean isCold(String storedName) {
+        return Files.exists(coldPath(storedName));
+    }
+
+    /**
+     * @return When the blob was demoted, or -1 if it has no cold copy.
+     */
+    long coldModifiedMillis(String storedName) throws IOException {
+        try {
+            return Files.getLastModifiedTime(coldPath(storedName)).toMillis();
+        } catch (NoSuchFileException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Opens the cold copy of a blob as its raw on-disk bytes, without promoting it.
+     * @throws NoSuchFileException If the blob has no cold copy.
+     */
+    InputStream openCold(String storedName) throws IOException {
+        return new InflaterInputStream(new BufferedInputStream(Files.newInputStream(coldPath(storedName)), 64 * 1024));
+    }
+
+    /**
+     * Writes a compressed copy of a blob's raw bytes to the cold tier's staging area, checking them
+     * against the size and checksum recorded for the blob as they are read.
+     * @param raw The blob's bytes as stored in the hot tier. It is read to the end but not closed.
+     * @param integrity What was recorded when the blob was written.
+     * @param limiter Throttles the read in bytes per second.
+     * @return The staged copy, to be passed to {@link #commitCold}, or null if the bytes do not match the record.
+     * @throws IOException If the copy cannot be written.
+     */
+    Path stageCold(InputStream raw, BlobIntegrity integrity, RateLimiter limiter) throws IOException {
+        Path staged = Files.createTempFile(coldTmp, "cold-", ".part");
+        boolean kept = false;
+        Deflater deflater = new Deflater(compressionLevel);
+        try {
+            Checksum crc = new CRC32C();
+            long bytes = 0;
+            try (OutputStream out = new DeflaterOutputStream(Files.newOutputStream(staged), deflater, 64 * 1024)) {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = raw.read(buffer)) != -1) {
+                    try {
+                        limiter.acquire(read);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Demotion interrupted");
+                    }
+                    crc.update(buffer, 0, read);
+                    out.write(buffer, 0, read);
+                    bytes += read;
+                }
+            }
+            DEMOTE_METRICS.addBytesIn(bytes);
+            if (!integrity.matches(bytes, crc.getValue())) {
+                System.err.println("Not demoting " + integrity.getSha256() + ": it does not match its checksum.");
+                return null;
+            }
+            kept = true;
+            return staged;
+        } finally {
+            deflater.end();
+            if (!kept) {
+                Files.deleteIfExists(staged);
+            }
+        }
+    }
+
+    /**
+     * Moves a staged copy into the cold tier. Called by the blob store under the blob's lock, right
+     * before it deletes the hot copy.
+     * @param storedBytes The size of the blob in the hot tier.
+     */
+    void commitCold(String storedName, Path staged, long storedBytes) throws IOException {
+        Path target = coldPath(storedName);
+        Files.createDirectories(target.getParent());
+        long written = Files.size(staged);
+        Files.move(staged, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        blobsDemoted.incrementAndGet();
+        bytesDemoted.addAndGet(storedBytes);
+        coldBytesWritten.addAndGet(written);
+        DEMOTE_METRICS.addBytesOut(written);
+    }
+
+    /**
+     * Inflates a blob's cold copy into dir, checked against the size and checksum recorded for the blob.
+     * Called by the blob store under the blob's lock.
+     * @param integrity What was recorded when the blob was written.
+     * @param dir A directory on the hot root's file system, for the copy to be moved into place from.
+     * @param crc Receives the checksum of the copy.
+     * @return The copy, or null if there is no cold copy or it does not match the record.
+     * @throws IOException If the cold copy cannot be read.
+     */
+    Path fetchCold(String storedName, BlobIntegrity integrity, Path dir, Checksum crc) throws IOException {
+        InputStream in;
+        try {
+            in = openCold(storedName);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        Path copy = Files.createTempFile(dir, "promote-", ".part");
+        boolean kept = false;
+        try {
+            long copied;
+            try (InputStream source = in;
+                 OutputStream out = new CheckedOutputStream(Files.newOutputStream(copy), crc)) {
+                copied = source.transferTo(out);
+            }
+            if (!integrity.matches(copied, crc.getValue())) {
+                promotionFailures.incrementAndGet();
+                System.err.println("The cold copy of " + storedName + " does not match its checksum.");
+                return null;
+            }
+            kept = true;
+            return copy;
+        } finally {
+            if (!kept) {
+                Files.deleteIfExists(copy);
+            }
+        }
+    }
+
+    /**
+     * Deletes a blob's cold copy, once a hot copy supersedes it or the blob is released.
+     * @return true if there was a cold copy.
+     */
+    boolean discardCold(String storedName) throws IOException {
+        return Files.deleteIfExists(coldPath(storedName));
+    }
+
+    /**
+     * Queues the rows of a blob now back in the hot tier to be recorded as hot. Returns at once.
+     */
+    void markHot(String storedName) {
+        promotedNames.add(storedName);
+    }
+
+    /**
+     * Counts a finished promotion and queues its rows to be recorded as hot.
+     * @param storedBytes The size of the promoted blob.
+     * @param startNanos When the promotion started, as System.nanoTime().
+     */
+    void promoted(String storedName, long storedBytes, long startNanos) {
+        blobsPromoted.incrementAndGet();
+        bytesPromoted.addAndGet(storedBytes);
+        PROMOTE_METRICS.addBytesIn(storedBytes);
+        PROMOTE_METRICS.record(startNanos);
+        markHot(storedName);
+    }
+
+    /**
+     * Counts a promotion that failed; the blob stays cold and the read fails.
+     */
+    void promotionFailed(String storedName, Exception e, long startNanos) {
+        promotionFailures.incrementAndGet();
+        PROMOTE_METRICS.recordError();
+        PROMOTE_METRICS.record(startNanos);
+        System.err.println("Could not promote stored file " + storedName + ": " + e.getMessage());
+    }
+
+    private void flushPromoted() {
+        if (promotedNames.isEmpty()) {
+            return;
+        }
+        List<String> names = new ArrayList<>();
+        for (Iterator<String> it = promotedNames.iterator(); it.hasNext(); ) {
+            names.add(it.next());
+            it.remove(); // One by one, so a name queued meanwhile is kept for the next flush
+        }
+        try {
+            fileDAO.setStorageTier(names, FileMetadata.TIER_HOT);
+        } catch (SQLException e) {
+            promotedNames.addAll(names); // Retried on the next flush
+            System.err.println("Database error recording promoted files: " + e.getMessage());
+        }
+    }
+
+    private void refreshUsage() {
+        try {
+            usage = fileDAO.getTierUsage();
+        } catch (SQLException e) {
+            System.err.println("Database error reading storage tier usage: " + e.getMessage());
+        }
+    }
+
+    private Path coldPath(String storedName) {
+        return BlobStore.shardedPath(coldRoot, storedName + COLD_SUFFIX);
+    }
+
+    private TierUsage usageOf(String tier) {
+        for (TierUsage tierUsage : usage) {
+            if (tierUsage.getTier().equals(tier)) {
+                return tierUsage;
+            }
+        }
+        return new TierUsage(tier, 0, 0);
+    }
+
+    /**
+     * @return The number of live files in the hot tier, as of the last refresh (at most a minute old).
+     */
+    @Override
+    public long getHotFiles() {
+        return usageOf(FileMetadata.TIER_HOT).getFileCount();
+    }
+
+    /**
+     * @return The original bytes of the live files in the hot tier, as of the last refresh.
+     */
+    @Override
+    public long getHotBytes() {
+        return usageOf(FileMetadata.TIER_HOT).getTotalBytes();
+    }
+
+    /**
+     * @return The number of live files in the cold tier, as of the last refresh.
+     */
+    @Override
+    public long getColdFiles() {
+        return usageOf(FileMetadata.TIER_COLD).getFileCount();
+    }
+
+    /**
+     * @return The original bytes of the live files in the cold tier, as of the last refresh.
+     */
+    @Override
+    public long getColdBytes() {
+        return usageOf(FileMetadata.TIER_COLD).getTotalBytes();
+    }
+
+    /**
+     * @return The number of blobs moved to the cold tier since startup.
+     */
+    @Override
+    public long getBlobsDemoted() {
+        return blobsDemoted.get();
+    }
+
+    /**
+     * @return The hot-tier bytes of the blobs moved to the cold tier since startup.
+     */
+    @Override
+    public long getBytesDemoted() {
+        return bytesDemoted.get();
+    }
+
+    /**
+     * @return The compressed bytes written to the cold tier since startup.
+     */
+    @Override
+    public long getColdBytesWritten() {
+        return coldBytesWritten.get();
+    }
+
+    /**
+     * @return The number of blobs brought back to the hot tier since startup.
+     */
+    @Override
+    public long getBlobsPromoted() {
+        return blobsPromoted.get();
+    }
+
+    /**
+     * @return The bytes brought back to the hot tier since startup.
+     */
+    @Override
+    public long getBytesPromoted() {
+        return bytesPromoted.get();
+    }
+
+    /**
+     * @return The number of promotions that failed since startup.
+     */
+    @Override
+    public long getPromotionFailures() {
+        return promotionFailures.get();
+    }
+
+    /**
+     * @return The number of promoted blobs whose rows are not yet recorded as hot.
+     */
+    @Override
+    public long getPendingTierUpdates() {
+        return promotedNames.size();
+    }
+
+    /**
+     * @return The number of demotion passes completed since startup.
+     */
+    @Override
+    public long getPassesRun() {
+        return passesRun.get();
+    }
+}
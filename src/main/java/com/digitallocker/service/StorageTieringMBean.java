@@ -0,0 +1,31 @@
+package com.digitallocker.service;
+
+/**
+ * JMX view of hot/cold storage tiering. Promotion latency is the "promote" operation's histogram
+ * (see Metrics).
+ */
+public interface StorageTieringMBean {
+    long getHotFiles();
+
+    long getHotBytes();
+
+    long getColdFiles();
+
+    long getColdBytes();
+
+    long getBlobsDemoted();
+
+    long getBytesDemoted();
+
+    long getColdBytesWritten();
+
+    long getBlobsPromoted();
+
+    long getBytesPromoted();
+
+    long getPromotionFailures();
+
+    long getPendingTierUpdates();
+
+    long getPassesRun();
+}
@@ -0,0 +1,179 @@
+package com.digitallocker.service;
+
+import com.digitallocker.dao.FileDAO;
+import com.digitallocker.model.FileMetadata;
+import com.digitallocker.model.FileVersion;
+import com.digitallocker.util.RateLimiter;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background reclamation of deleted files.
+ * Deletes only tombstone rows; this sweeper later removes each tombstoned row and its earlier versions
+ * and drops their blob references, at a bounded rate so that reclaiming a mass delete does not compete with uploads for
+ * disk I/O. Anything that fails is simply retried on the next pass.
+ */
+public class TombstoneSweeper {
+    private static final int BATCH_SIZE = 500;
+
+    private final FileDAO fileDAO;
+    private final BlobStore blobStore;
+    private final RateLimiter rateLimiter;
+    private final long intervalMillis;
+    private final ScheduledExecutorService scheduler;
+
+    // Blobs whose row was purged but whose reference could not be released yet
+    private final Set<String> pendingReleases = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong filesPurged = new AtomicLong();
+    private final AtomicLong blobsDeleted = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * @param fileDAO The DAO used to find and purge tombstoned rows.
+     * @param blobStore The store holding the files' content.
+     * @param filesPerSecond The maximum number of files reclaimed per second.
+     * @param intervalMillis The pause between sweeps.
+     */
+    public TombstoneSweeper(FileDAO fileDAO, BlobStore blobStore, double filesPerSecond, long intervalMillis) {
+        this.fileDAO = fileDAO;
+        this.blobStore = blobStore;
+        this.rateLimiter = new RateLimiter(filesPerSecond);
+        this.intervalMillis = intervalMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "tombstone-sweeper");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    /**
+     * Starts sweeping periodically in the background.
+     */
+    public void start() {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                sweep();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                System.err.println("Tombstone sweeper error: " + e.getMessage());
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background sweeps. A sweep in progress is interrupted.
+     */
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Runs one full pass over the tombstoned rows.
+     * @return The number of files reclaimed in this pass.
+     * @throws InterruptedException If the pass was interrupted while rate limited.
+     */
+    public int sweep() throws InterruptedException {
+        int reclaimed = 0;
+
+        for (String storedName : pendingReleases) {
+            rateLimiter.acquire(1);
+            if (release(storedName)) {
+                pendingReleases.remove(storedName);
+            }
+        }
+
+        int afterId = 0;
+        List<FileMetadata> batch;
+        do {
+            try {
+                batch = fileDAO.getTombstonedFiles(afterId, BATCH_SIZE);
+            } catch (SQLException e) {
+                failures.incrementAndGet();
+                System.err.println("Database error listing tombstoned files: " + e.getMessage());
+                break;
+            }
+            for (FileMetadata file : batch) {
+                afterId = file.getId();
+                rateLimiter.acquire(1);
+                try {
+                    // Earlier versions first; each is deleted by one call only, so its content is released once
+                    for (FileVersion version : fileDAO.deleteFileVersions(file.getId(), 0)) {
+                        if (!release(version.getStoredFilename())) {
+                            pendingReleases.add(version.getStoredFilename());
+                        }
+                    }
+                    // Then the row, before its blob: the DELETE succeeds only once, so a blob reference is never released twice
+                    if (!fileDAO.purgeFileMetadata(file.getId())) {
+                        continue;
+                    }
+                } catch (SQLException e) {
+                    failures.incrementAndGet();
+                    System.err.println("Database error purging file " + file.getId() + ": " + e.getMessage());
+                    continue;
+                }
+                filesPurged.incrementAndGet();
+                reclaimed++;
+                if (!release(file.getStoredFilename())) {
+                    pendingReleases.add(file.getStoredFilename());
+                }
+            }
+        } while (batch.size() == BATCH_SIZE);
+
+        if (reclaimed > 0) {
+            System.out.println("Tombstone sweeper reclaimed " + reclaimed + " files.");
+        }
+        return reclaimed;
+    }
+
+    /**
+     * @return The number of files reclaimed since startup.
+     */
+    public long getFilesPurged() {
+        return filesPurged.get();
+    }
+
+    /**
+     * @return The number of blobs deleted from disk since startup.
+     */
+    public long getBlobsDeleted() {
+        return blobsDeleted.get();
+    }
+
+    /**
+     * @return The number of failed reclamation steps since startup (each is retried).
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return The number of blob references waiting to be retried.
+     */
+    public int getPendingReleases() {
+        return pendingReleases.size();
+    }
+
+    private boolean release(String storedName) {
+        try {
+            if (blobStore.release(storedName)) {
+                blobsDeleted.incrementAndGet();
+            }
+            return true;
+        } catch (IOException | SQLException e) {
+            failures.incrementAndGet();
+            System.err.println("Error releasing stored file " + storedName + ": " + e.getMessage());
+            return false;
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package com.digitallocker.service;
+
+import com.digitallocker.model.UploadSession;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the on-disk state of chunked upload sessions.
+ * Each session lives in its own staging directory holding the data written so far and a small
+ * manifest. A chunk only counts once its bytes have been forced to disk and the manifest has been
+ * atomically replaced, so after a crash the manifest always describes a durable prefix of the data.
+ * Sessions that take no chunk for longer than the time to live are treated as abandoned: a background
+ * thread deletes their staging directories and forgets their locks.
+ */
+class UploadSessionManager {
+    private static final String STAGING_DIR = ".staging";
+    private static final String DATA_FILE = "data";
+    private static final String MANIFEST_FILE = "session.properties";
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final Path stagingRoot;
+    private final long ttlMillis;
+    private final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private final AtomicLong sessionsExpired = new AtomicLong();
+
+    /**
+     * @param lockerRoot The locker directory; sessions are staged in its .staging subdirectory.
+     * @param ttlMillis How long a session may go without a chunk before it is discarded.
+     * @param sweepIntervalMillis The pause between sweeps for abandoned sessions.
+     */
+    UploadSessionManager(Path lockerRoot, long ttlMillis, long sweepIntervalMillis) {
+        this.stagingRoot = lockerRoot.resolve(STAGING_DIR);
+        this.ttlMillis = ttlMillis;
+        try {
+            Files.createDirectories(stagingRoot);
+        } catch (IOException e) {
+            System.err.println("Failed to create upload staging directory: " + e.getMessage());
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "upload-session-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::expireStale, sweepIntervalMillis, sweepIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a new, empty upload session.
+     */
+    UploadSession open(int userId, String originalFilename, int chunkSize) throws IOException {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        String sessionId = UUID.randomUUID().toString();
+        Path dir = stagingRoot.resolve(sessionId);
+        Files.createDirectories(dir);
+        Files.createFile(dir.resolve(DATA_FILE));
+        UploadSession session = new UploadSession(sessionId, userId, originalFilename, chunkSize, 0, 0L, false);
+        writeManifest(session);
+        return session;
+    }
+
+    /**
+     * Appends one chunk at the position implied by its index. Re-sending a chunk that is already
+     * durable is a no-op, so clients can safely retry the last chunk after a timeout.
+     * @param maxBytes The most the session may hold in total; copying stops as soon as the chunk would go past it.
+     * @return The updated session.
+     * @throws IOException If the chunk is out of order, too large, over maxBytes, or cannot be written.
+     */
+    UploadSession appendChunk(String sessionId, int userId, int chunkIndex, InputStream in, long maxBytes)
+            throws IOException {
+        synchronized (lockFor(sessionId)) {
+            UploadSession session = loadOwned(sessionId, userId);
+            if (chunkIndex < session.getCommittedChunks()) {
+                return session; // Already durable: duplicate delivery of a retried chunk
+            }
+            if (session.isFinalChunkReceived()) {
+                throw new IOException("Upload session " + sessionId + " has already received its final chunk.");
+            }
+            if (chunkIndex > session.getCommittedChunks()) {
+                throw new IOException("Expected chunk " + session.getCommittedChunks() + " but received " + chunkIndex + ".");
+            }
+
+            int chunkSize = session.getChunkSize();
+            long offset = session.getCommittedBytes();
+            long written = 0;
+            long allowed = Math.min(chunkSize, Math.max(0, maxBytes - offset));
+            try (FileChannel channel = FileChannel.open(dataFile(sessionId), StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+                channel.truncate(offset); // Drop whatever an interrupted append left behind
+                channel.position(offset);
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                int read;
+                while (written < allowed
+                        && (read = in.read(buffer, 0, (int) Math.min(buffer.length, allowed - written))) != -1) {
+                    ByteBuffer bb = ByteBuffer.wrap(buffer, 0, read);
+                    while (bb.hasRemaining()) {
+                        channel.write(bb);
+                    }
+                    written += read;
+                }
+                if (written == allowed && in.read() != -1) {
+                    channel.truncate(offset);
+                    throw new IOException(allowed < chunkSize
+                            ? "Chunk " + chunkIndex + " would exceed the storage quota."
+                            : "Chunk " + chunkIndex + " is larger than the session chunk size of " + chunkSize + " bytes.");
+                }
+                channel.force(false);
+            }
+
+            session.setCommittedChunks(session.getCommittedChunks() + 1);
+            session.setCommittedBytes(offset + written);
+            session.setFinalChunkReceived(written < chunkSize);
+            writeManifest(session);
+            return session;
+        }
+    }
+
+    /**
+     * Reloads a session after a restart, discarding any bytes past the last durable chunk.
+     * @return The session, positioned at its last durable chunk.
+     */
+    UploadSession resume(String sessionId, int userId) throws IOException {
+        synchronized (lockFor(sessionId)) {
+            UploadSession session = loadOwned(sessionId, userId);
+            Path data = dataFile(sessionId);
+            try (FileChannel channel = FileChannel.open(data, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+                if (channel.size() > session.getCommittedBytes()) {
+                    channel.truncate(session.getCommittedBytes());
+                }
+                if (channel.size() < session.getCommittedBytes()) {
+                    throw new IOException("Staged data for session " + sessionId + " is shorter than its manifest records.");
+                }
+            }
+            return session;
+        }
+    }
+
+    /**
+     * Lists the sessions a user has not yet committed or aborted.
+     */
+    List<UploadSession> listSessions(int userId) throws IOException {
+        List<UploadSession> sessions = new ArrayList<>();
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(stagingRoot)) {
+            for (Path dir : dirs) {
+                UploadSession session = readManifest(dir.getFileName().toString());
+                if (session != null && session.getUserId() == userId) {
+                    sessions.add(session);
+                }
+            }
+        }
+        return sessions;
+    }
+
+    /**
+     * Removes a session's staging directory and everything in it.
+     */
+    void discard(String sessionId) throws IOException {
+        synchronized (lockFor(sessionId)) {
+            Path dir = sessionDir(sessionId);
+            if (Files.exists(dir)) {
+                try (Stream<Path> paths = Files.walk(dir)) {
+                    for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                        Files.deleteIfExists(path);
+                    }
+                }
+            }
+        }
+        locks.remove(sessionId);
+    }
+
+    /**
+     * Discards every session that has not taken a chunk within the time to live, and drops the locks
+     * of sessions that no longer exist. A session being worked on is never discarded, since its lock
+     * is held and the check is repeated under it.
+     * @return The number of sessions discarded.
+     */
+    int expireStale() {
+        long cutoff = System.currentTimeMillis() - ttlMillis;
+        int expired = 0;
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(stagingRoot)) {
+            for (Path dir : dirs) {
+                String sessionId = dir.getFileName().toString();
+                if (!sessionExists(sessionId)) {
+                    continue; // Not a session directory
+                }
+                try {
+                    if (lastActivity(dir) >= cutoff) {
+                        continue;
+                    }
+                    synchronized (lockFor(sessionId)) {
+                        if (!Files.exists(dir) || lastActivity(dir) >= cutoff) {
+                            continue;
+                        }
+                        discard(sessionId);
+                    }
+                    expired++;
+                    System.out.println("Discarded abandoned upload session: " + sessionId);
+                } catch (IOException | IllegalArgumentException e) {
+                    System.err.println("Failed to discard abandoned upload session " + sessionId + ": " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to sweep upload sessions: " + e.getMessage());
+        }
+        // Locks are also taken for ids that never named a session, e.g. a bad id from a client
+        for (Iterator<String> it = locks.keySet().iterator(); it.hasNext(); ) {
+            String sessionId = it.next();
+            if (!sessionExists(sessionId)) {
+                it.remove();
+            }
+        }
+        sessionsExpired.addAndGet(expired);
+        return expired;
+    }
+
+    /**
+     * @return The number of abandoned sessions discarded since startup.
+     */
+    long getSessionsExpired() {
+        return sessionsExpired.get();
+    }
+
+    /**
+     * @return The number of session locks currently held in memory.
+     */
+    int getLockCount() {
+        return locks.size();
+    }
+
+    Path dataFile(String sessionId) {
+        return sessionDir(sessionId).resolve(DATA_FILE);
+    }
+
+    Object lockFor(String sessionId) {
+        return locks.computeIfAbsent(sessionId, id -> new Object());
+    }
+
+    private UploadSession loadOwned(String sessionId, int userId) throws IOException {
+        UploadSession session = readManifest(sessionId);
+        if (session == null || session.getUserId() != userId) {
+            throw new IOException("Upload session not found or not owned by user: " + sessionId);
+        }
+        return session;
+    }
+
+    private boolean sessionExists(String sessionId) {
+        try {
+            return Files.exists(sessionDir(sessionId));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return When the session last changed: the manifest is replaced on every chunk, and the directory
+     *         itself stands in until the first manifest is written.
+     */
+    private static long lastActivity(Path dir) throws IOException {
+        Path manifest = dir.resolve(MANIFEST_FILE);
+        return Files.exists(manifest)
+                ? Files.getLastModifiedTime(manifest).toMillis()
+                : Files.getLastModifiedTime(dir).toMillis();
+    }
+
+    private Path sessionDir(String sessionId) {
+        // Parsing rejects anything that is not a UUID, which also keeps ids from escaping the staging directory
+        return stagingRoot.resolve(UUID.fromString(sessionId).toString());
+    }
+
+    private UploadSession readManifest(String sessionId) throws IOException {
+        Path manifest;
+        try {
+            manifest = sessionDir(sessionId).resolve(MANIFEST_FILE);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (!Files.exists(manifest)) {
+            return null;
+        }
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(manifest)) {
+            props.load(in);
+        }
+        return new UploadSession(
+                sessionId,
+                Integer.parseInt(props.getProperty("userId")),
+                props.getProperty("originalFilename"),
+                Integer.parseInt(props.getProperty("chunkSize")),
+                Integer.parseInt(props.getProperty("committedChunks")),
+                Long.parseLong(props.getProperty("committedBytes")),
+                Boolean.parseBoolean(props.getProperty("finalChunkReceived")));
+    }
+
+    private void writeManifest(UploadSession session) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("userId", Integer.toString(session.getUserId()));
+        props.setProperty("originalFilename", session.getOriginalFilename());
+        props.setProperty("chunkSize", Integer.toString(session.getChunkSize()));
+        props.setProperty("committedChunks", Integer.toString(session.getCommittedChunks()));
+        props.setProperty("committedBytes", Long.toString(session.getCommittedBytes()));
+        props.setProperty("finalChunkReceived", Boolean.toString(session.isFinalChunkReceived()));
+
+        Path dir = sessionDir(session.getSessionId());
+        Path tmp = dir.resolve(MANIFEST_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             OutputStream out = Channels.newOutputStream(channel)) {
+            props.store(out, "Upload session " + session.getSessionId());
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tmp, dir.resolve(MANIFEST_FILE), StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,120 @@
+package com.digitallocker.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.SplittableRandom;
+
+/**
+ * Splits a stream into content-defined chunks with a gear rolling hash (as in FastCDC).
+ * A cut is made where the hash of the last 64 bytes matches a mask, so boundaries depend on the
+ * content around them rather than on their offset: an insertion or deletion only changes the chunks
+ * it touches, and the chunks after it line up with those of the unedited version again.
+ * Chunks are between a quarter of and four times the average size; below the average a stricter
+ * mask is used and above it a looser one, which keeps sizes close to the average.
+ */
+public class Chunker {
+    // Fixed forever: a different table moves every boundary, and with them all sharing between versions
+    private static final long GEAR_SEED = 0x5DEECE66DL;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom random = new SplittableRandom(GEAR_SEED);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final InputStream in;
+    private final int minSize;
+    private final int averageSize;
+    private final int maxSize;
+    private final long strictMask;
+    private final long looseMask;
+    private final byte[] buffer;
+    private int start; // First byte of buffer not yet handed out
+    private int end; // One past the last byte read into buffer
+    private boolean eof;
+
+    /**
+     * @param in The stream to split. It is read to the end but not closed.
+     * @param averageSize The target chunk size; rounded down to a power of two, at least 256.
+     */
+    public Chunker(InputStream in, int averageSize) {
+        this.in = in;
+        this.averageSize = Integer.highestOneBit(Math.max(256, averageSize));
+        this.minSize = this.averageSize / 4;
+        this.maxSize = this.averageSize * 4;
+        int bits = Integer.numberOfTrailingZeros(this.averageSize);
+        // High bits of the hash depend on the most bytes, so the masks test those
+        this.strictMask = -1L << (64 - (bits + 1));
+        this.looseMask = -1L << (64 - (bits - 1));
+        this.buffer = new byte[maxSize * 2];
+    }
+
+    /**
+     * @return The largest chunk {@link #nextChunk} can return.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Reads the next chunk.
+     * @param chunk Receives the chunk's bytes; must hold at least getMaxSize() bytes.
+     * @return The chunk's length, or -1 at the end of the stream.
+     * @throws IOException If the stream cannot be read.
+     */
+    public int nextChunk(byte[] chunk) throws IOException {
+        if (end - start < maxSize && !eof) {
+            fill();
+        }
+        if (start == end) {
+            return -1;
+        }
+        int length = cutPoint(buffer, start, end - start);
+        System.arraycopy(buffer, start, chunk, 0, length);
+        start += length;
+        return length;
+    }
+
+    private void fill() throws IOException {
+        System.arraycopy(buffer, start, buffer, 0, end - start);
+        end -= start;
+        start = 0;
+        while (end < buffer.length) {
+            int read = in.read(buffer, end, buffer.length - end);
+            if (read == -1) {
+                eof = true;
+                return;
+            }
+            end += read;
+        }
+    }
+
+    /**
+     * Finds the end of the chunk starting at offset. The first minSize bytes are never a boundary,
+     * so they are not hashed at all.
+     */
+    private int cutPoint(byte[] data, int offset, int available) {
+        if (available <= minSize) {
+            return available;
+        }
+        int limit = Math.min(available, maxSize);
+        int normal = Math.min(averageSize, limit);
+        long hash = 0;
+        int i = minSize;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xFF];
+            if ((hash & strictMask) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < limit; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xFF];
+            if ((hash & looseMask) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+}
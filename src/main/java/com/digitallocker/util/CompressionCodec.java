@@ -0,0 +1,36 @@
+package com.digitallocker.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A streaming compression format for stored files.
+ * The codec's name is recorded with every stored file, so a file is always read back with the
+ * codec it was written with, whatever the store's current setting. See {@link CompressionCodecs}.
+ */
+public interface CompressionCodec {
+
+    /**
+     * @return The short, stable name recorded in the database (at most 16 characters).
+     */
+    String getName();
+
+    /**
+     * Wraps a stream so that everything written to it is compressed. Closing the returned
+     * stream finishes the compressed data and closes the underlying stream.
+     * @param out The stream receiving compressed bytes.
+     * @return A stream accepting uncompressed bytes.
+     * @throws IOException If the stream cannot be set up.
+     */
+    OutputStream compress(OutputStream out) throws IOException;
+
+    /**
+     * Wraps a stream of compressed bytes so that reading it yields the original bytes.
+     * Closing the returned stream closes the underlying stream.
+     * @param in The stream of compressed bytes.
+     * @return A stream of uncompressed bytes.
+     * @throws IOException If the stream cannot be set up.
+     */
+    InputStream decompress(InputStream in) throws IOException;
+}
@@ -0,0 +1,76 @@
+package com.digitallocker.util;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the available compression codecs, looked up by the name stored in the database.
+ * "none" and "deflate" are always available; other codecs can be added with {@link #register}
+ * before the first file using them is stored or read.
+ */
+public final class CompressionCodecs {
+    public static final CompressionCodec NONE = new CompressionCodec() {
+        @Override
+        public String getName() {
+            return "none";
+        }
+
+        @Override
+        public OutputStream compress(OutputStream out) {
+            return out;
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) {
+            return in;
+        }
+    };
+
+    private static final Map<String, CompressionCodec> CODECS = new ConcurrentHashMap<>();
+
+    static {
+        register(NONE);
+        register(new DeflateCodec(Integer.getInteger("digitallocker.compression.level", DeflateCodec.DEFAULT_LEVEL)));
+    }
+
+    private CompressionCodecs() {
+    }
+
+    /**
+     * Makes a codec available under its name, replacing any codec previously registered under it.
+     * @param codec The codec to register.
+     */
+    public static void register(CompressionCodec codec) {
+        if (codec.getName().length() > 16) {
+            throw new IllegalArgumentException("Codec name too long: " + codec.getName());
+        }
+        CODECS.put(codec.getName(), codec);
+    }
+
+    /**
+     * Looks up a codec by name. A null name (rows written before compression existed) means "none".
+     * @param name The codec's name.
+     * @return The registered CompressionCodec.
+     * @throws IllegalArgumentException If no codec is registered under the name.
+     */
+    public static CompressionCodec forName(String name) {
+        if (name == null) {
+            return NONE;
+        }
+        CompressionCodec codec = CODECS.get(name);
+        if (codec == null) {
+            throw new IllegalArgumentException("Unknown compression codec: " + name);
+        }
+        return codec;
+    }
+
+    /**
+     * @return The codec new files are compressed with, from the digitallocker.compression.codec
+     *         system property ("deflate" by default, "none" to turn compression off).
+     */
+    public static CompressionCodec getDefault() {
+        return forName(System.getProperty("digitallocker.compression.codec", "deflate"));
+    }
+}
@@ -0,0 +1,521 @@
+package com.digitallocker.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded JDBC connection pool.
+ * Connections handed out are lightweight proxies: closing one returns the physical
+ * connection to the pool instead of tearing down the TCP session. Each physical
+ * connection keeps a small LRU cache of prepared statements, so the DAOs' usual
+ * prepare/close cycle does not re-parse the same SQL on every call.
+ */
+public class ConnectionPool {
+    private final String jdbcUrl;
+    private final String user;
+    private final String password;
+    private final int minSize;
+    private final int maxSize;
+    private final long borrowTimeoutMillis;
+    private final long idleTimeoutMillis;
+    private final long validationIntervalMillis;
+    private final int statementCacheSize;
+
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger totalConnections = new AtomicInteger();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final ScheduledExecutorService evictor;
+    private volatile boolean shutdown;
+
+    // Statistics
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong borrowTimeouts = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong destroyedCount = new AtomicLong();
+    private final AtomicLong validationFailures = new AtomicLong();
+    private final AtomicLong statementCacheHits = new AtomicLong();
+    private final AtomicLong statementCacheMisses = new AtomicLong();
+
+    /**
+     * Creates a new pool. No connections are opened until the first borrow or evictor run.
+     * @param jdbcUrl The JDBC URL of the database.
+     * @param user The database user.
+     * @param password The database password.
+     * @param minSize The number of connections kept open even when idle.
+     * @param maxSize The maximum number of connections the pool will open.
+     * @param borrowTimeoutMillis How long a caller waits for a free connection before failing.
+     * @param idleTimeoutMillis How long a connection may sit idle before it is evicted (down to minSize).
+     * @param validationIntervalMillis Connections idle for longer than this are validated before being handed out.
+     * @param statementCacheSize The number of prepared statements cached per physical connection (0 disables caching).
+     */
+    public ConnectionPool(String jdbcUrl, String user, String password, int minSize, int maxSize,
+                          long borrowTimeoutMillis, long idleTimeoutMillis, long validationIntervalMillis,
+                          int statementCacheSize) {
+        if (maxSize < 1 || minSize < 0 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min=" + minSize + ", max=" + maxSize);
+        }
+        this.jdbcUrl = jdbcUrl;
+        this.user = user;
+        this.password = password;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.validationIntervalMillis = validationIntervalMillis;
+        this.statementCacheSize = statementCacheSize;
+        this.permits = new Semaphore(maxSize, true);
+
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "db-pool-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000L, Math.min(idleTimeoutMillis / 2, 30_000L));
+        evictor.scheduleWithFixedDelay(this::evictAndReplenish, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrows a connection from the pool, waiting up to the configured borrow timeout.
+     * The caller must close the returned connection to give it back.
+     * @return A pooled Connection.
+     * @throws SQLException If no connection becomes available in time or a new one cannot be opened.
+     */
+    public Connection borrow() throws SQLException {
+        if (shutdown) {
+            throw new SQLException("Connection pool has been shut down.");
+        }
+        long start = System.nanoTime();
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection.", e);
+        }
+        long waited = System.nanoTime() - start;
+        totalWaitNanos.addAndGet(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        if (!acquired) {
+            borrowTimeouts.incrementAndGet();
+            throw new SQLTransientConnectionException(
+                    "Timed out after " + borrowTimeoutMillis + " ms waiting for a database connection.");
+        }
+
+        try {
+            PooledConnection pooled;
+            while ((pooled = idle.pollFirst()) != null) {
+                if (validate(pooled)) {
+                    return checkOut(pooled);
+                }
+                validationFailures.incrementAndGet();
+                destroy(pooled);
+            }
+            // We hold a permit, so if the pool is at capacity at least one connection is idle.
+            while (totalConnections.get() >= maxSize && (pooled = idle.pollLast()) != null) {
+                destroy(pooled);
+            }
+            return checkOut(create());
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a snapshot of the pool's current state and counters.
+     * @return A PoolStats object.
+     */
+    public PoolStats getStats() {
+        long borrows = borrowCount.get();
+        return new PoolStats(
+                totalConnections.get(),
+                activeConnections.get(),
+                idle.size(),
+                permits.getQueueLength(),
+                borrows,
+                borrowTimeouts.get(),
+                borrows == 0 ? 0 : totalWaitNanos.get() / borrows / 1_000L,
+                maxWaitNanos.get() / 1_000L,
+                createdCount.get(),
+                destroyedCount.get(),
+                validationFailures.get(),
+                statementCacheHits.get(),
+                statementCacheMisses.get());
+    }
+
+    /**
+     * Closes all idle connections and stops the evictor. Borrowed connections are closed as they are returned.
+     */
+    public void shutdown() {
+        shutdown = true;
+        evictor.shutdownNow();
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            destroy(pooled);
+        }
+    }
+
+    private Connection checkOut(PooledConnection pooled) {
+        borrowCount.incrementAndGet();
+        activeConnections.incrementAndGet();
+        return pooled.newHandle();
+    }
+
+    private void release(PooledConnection pooled) {
+        activeConnections.decrementAndGet();
+        try {
+            if (shutdown || pooled.broken || pooled.physical.isClosed()) {
+                destroy(pooled);
+                return;
+            }
+            if (!pooled.physical.getAutoCommit()) {
+                // Never hand an open transaction to the next borrower.
+                pooled.physical.rollback();
+                pooled.physical.setAutoCommit(true);
+            }
+            pooled.lastUsedMillis = System.currentTimeMillis();
+            idle.offerFirst(pooled); // LIFO keeps the hot connections hot and lets the cold ones age out
+        } catch (SQLException e) {
+            System.err.println("Discarding pooled connection after reset failure: " + e.getMessage());
+            destroy(pooled);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private boolean validate(PooledConnection pooled) {
+        try {
+            if (pooled.physical.isClosed()) {
+                return false;
+            }
+            if (System.currentTimeMillis() - pooled.lastUsedMillis < validationIntervalMillis) {
+                return true;
+            }
+            return pooled.physical.isValid(5);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private PooledConnection create() throws SQLException {
+        Connection physical = DriverManager.getConnection(jdbcUrl, user, password);
+        totalConnections.incrementAndGet();
+        createdCount.incrementAndGet();
+        return new PooledConnection(physical);
+    }
+
+    private void destroy(PooledConnection pooled) {
+        totalConnections.decrementAndGet();
+        destroyedCount.incrementAndGet();
+        pooled.closeStatements();
+        try {
+            pooled.physical.close();
+        } catch (SQLException e) {
+            System.err.println("Error closing pooled connection: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Evicts connections idle for longer than the idle timeout (down to minSize) and tops the pool back up to minSize.
+     */
+    private void evictAndReplenish() {
+        try {
+            long now = System.currentTimeMillis();
+            Iterator<PooledConnection> it = idle.descendingIterator(); // oldest first
+            while (it.hasNext() && totalConnections.get() > minSize) {
+                PooledConnection pooled = it.next();
+                if (now - pooled.lastUsedMillis > idleTimeoutMillis && idle.remove(pooled)) {
+                    destroy(pooled);
+                }
+            }
+            while (!shutdown && totalConnections.get() < minSize && permits.tryAcquire()) {
+                try {
+                    idle.offerLast(create());
+                } finally {
+                    permits.release();
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Connection pool could not replenish idle connections: " + e.getMessage());
+        } catch (RuntimeException e) {
+            System.err.println("Connection pool evictor error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A physical connection plus its per-connection prepared statement cache.
+     */
+    private final class PooledConnection {
+        private final Connection physical;
+        private final Map<String, CachedStatement> statementCache;
+        private volatile long lastUsedMillis = System.currentTimeMillis();
+        private volatile boolean broken;
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+            this.statementCache = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                    if (size() <= statementCacheSize) {
+                        return false;
+                    }
+                    eldest.getValue().evict();
+                    return true;
+                }
+            };
+        }
+
+        Connection newHandle() {
+            return (Connection) Proxy.newProxyInstance(
+                    ConnectionPool.class.getClassLoader(),
+                    new Class<?>[]{Connection.class},
+                    new ConnectionHandle(this));
+        }
+
+        PreparedStatement prepare(Connection handle, String sql, Integer autoGeneratedKeys) throws SQLException {
+            if (statementCacheSize <= 0) {
+                return autoGeneratedKeys == null
+                        ? physical.prepareStatement(sql)
+                        : physical.prepareStatement(sql, autoGeneratedKeys);
+            }
+            String key = autoGeneratedKeys == null ? sql : autoGeneratedKeys + "|" + sql;
+            CachedStatement cached = statementCache.get(key);
+            if (cached != null && !cached.inUse && !cached.statement.isClosed()) {
+                statementCacheHits.incrementAndGet();
+                cached.inUse = true;
+                return cached.newHandle(handle);
+            }
+            statementCacheMisses.incrementAndGet();
+            PreparedStatement statement = autoGeneratedKeys == null
+                    ? physical.prepareStatement(sql)
+                    : physical.prepareStatement(sql, autoGeneratedKeys);
+            CachedStatement entry = new CachedStatement(statement);
+            entry.inUse = true;
+            if (cached == null || cached.statement.isClosed()) {
+                // The same SQL may legitimately be open twice on one connection; only cache the first.
+                statementCache.put(key, entry);
+            } else {
+                entry.evicted = true;
+            }
+            return entry.newHandle(handle);
+        }
+
+        void closeStatements() {
+            for (CachedStatement cached : statementCache.values()) {
+                cached.evict();
+            }
+            statementCache.clear();
+        }
+    }
+
+    /**
+     * A physical prepared statement owned by a connection's cache.
+     */
+    private static final class CachedStatement {
+        private final PreparedStatement statement;
+        // The driver's settings when the statement was prepared, restored for the next borrower
+        private final int defaultFetchSize;
+        private final int defaultFetchDirection;
+        private final long defaultMaxRows;
+        private final int defaultMaxFieldSize;
+        private final int defaultQueryTimeout;
+        private boolean inUse;
+        private boolean evicted;
+        private boolean settingsChanged;
+
+        CachedStatement(PreparedStatement statement) throws SQLException {
+            this.statement = statement;
+            this.defaultFetchSize = statement.getFetchSize();
+            this.defaultFetchDirection = statement.getFetchDirection();
+            this.defaultMaxRows = statement.getLargeMaxRows();
+            this.defaultMaxFieldSize = statement.getMaxFieldSize();
+            this.defaultQueryTimeout = statement.getQueryTimeout();
+        }
+
+        PreparedStatement newHandle(Connection connectionHandle) {
+            return (PreparedStatement) Proxy.newProxyInstance(
+                    ConnectionPool.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class},
+                    new StatementHandle(this, connectionHandle));
+        }
+
+        void evict() {
+            evicted = true;
+            if (!inUse) {
+                closeQuietly();
+            }
+        }
+
+        void giveBack() {
+            inUse = false;
+            if (evicted) {
+                closeQuietly();
+                return;
+            }
+            try {
+                statement.clearParameters();
+                statement.clearBatch();
+                if (settingsChanged) {
+                    // Max rows first: drivers may refuse a fetch size above the max rows still set
+                    statement.setLargeMaxRows(defaultMaxRows);
+                    statement.setFetchSize(defaultFetchSize);
+                    statement.setFetchDirection(defaultFetchDirection);
+                    statement.setMaxFieldSize(defaultMaxFieldSize);
+                    statement.setQueryTimeout(defaultQueryTimeout);
+                    settingsChanged = false;
+                }
+            } catch (SQLException e) {
+                // Closed statements are prepared afresh by the next borrower
+                System.err.println("Discarding cached statement after reset failure: " + e.getMessage());
+                evicted = true;
+                closeQuietly();
+            }
+        }
+
+        private void closeQuietly() {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                System.err.println("Error closing cached statement: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Invocation handler for the Connection proxies handed to callers.
+     */
+    private final class ConnectionHandle implements InvocationHandler {
+        private final PooledConnection pooled;
+        private boolean closed;
+
+        ConnectionHandle(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        release(pooled);
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || pooled.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "PooledConnection[" + pooled.physical + "]";
+                default:
+                    break;
+            }
+            if (closed) {
+                throw new SQLException("Connection has already been returned to the pool.");
+            }
+            try {
+                if ("prepareStatement".equals(name) && args.length == 1) {
+                    return pooled.prepare((Connection) proxy, (String) args[0], null);
+                }
+                if ("prepareStatement".equals(name) && args.length == 2 && args[1] instanceof Integer) {
+                    return pooled.prepare((Connection) proxy, (String) args[0], (Integer) args[1]);
+                }
+                return method.invoke(pooled.physical, args);
+            } catch (InvocationTargetException e) {
+                throw markIfBroken(e.getCause());
+            } catch (SQLException e) {
+                throw markIfBroken(e);
+            }
+        }
+
+        private Throwable markIfBroken(Throwable t) {
+            if (t instanceof SQLException) {
+                String state = ((SQLException) t).getSQLState();
+                if (state != null && state.startsWith("08")) {
+                    pooled.broken = true; // connection exception class: never reuse this connection
+                }
+            }
+            return t;
+        }
+    }
+
+    /**
+     * Invocation handler for the PreparedStatement proxies handed to callers.
+     */
+    private static final class StatementHandle implements InvocationHandler {
+        // Setters whose effect would otherwise outlive the borrower; see CachedStatement.giveBack
+        private static final Set<String> RESETTABLE_SETTINGS = new HashSet<>(Arrays.asList(
+                "setFetchSize", "setFetchDirection", "setMaxRows", "setLargeMaxRows", "setMaxFieldSize",
+                "setQueryTimeout"));
+
+        private final CachedStatement cached;
+        private final Connection connectionHandle;
+        private boolean closed;
+
+        StatementHandle(CachedStatement cached, Connection connectionHandle) {
+            this.cached = cached;
+            this.connectionHandle = connectionHandle;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        cached.giveBack();
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || cached.statement.isClosed();
+                case "getConnection":
+                    return connectionHandle;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "CachedStatement[" + cached.statement + "]";
+                default:
+                    break;
+            }
+            if (closed) {
+                throw new SQLException("Statement has already been closed.");
+            }
+            if (RESETTABLE_SETTINGS.contains(method.getName())) {
+                cached.settingsChanged = true;
+            }
+            try {
+                return method.invoke(cached.statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
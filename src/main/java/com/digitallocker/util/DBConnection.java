@@ -1,35 +1,85 @@
 package com.digitallocker.util;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 
 /**
  * Utility class for managing database connections.
+ * Connections are borrowed from a shared, bounded {@link ConnectionPool}; closing them returns them to the pool.
+ * Pool sizing can be tuned with the digitallocker.db.pool.* system properties.
  */
 public class DBConnection {
-    private static final String JDBC_URL = "jdbc:mysql://localhost:3306/digitallocker?useSSL=false&serverTimezone=UTC";
-    private static final String USER = "root"; // Replace with your MySQL username
-    private static final String PASSWORD = "password"; // Replace with your MySQL password
+    // rewriteBatchedStatements lets the driver send a JDBC batch of inserts as multi-row INSERT statements.
+    // The digitallocker.db.* properties point the DAOs elsewhere, e.g. at an embedded database for benchmarks.
+    private static final String JDBC_URL = System.getProperty("digitallocker.db.url",
+            "jdbc:mysql://localhost:3306/digitallocker?useSSL=false&serverTimezone=UTC&rewriteBatchedStatements=true");
+    private static final String USER = System.getProperty("digitallocker.db.user", "root"); // Replace with your MySQL username
+    private static final String PASSWORD = System.getProperty("digitallocker.db.password", "password"); // Replace with your MySQL password
+
+    private static final int POOL_MIN_SIZE = Integer.getInteger("digitallocker.db.pool.minSize", 2);
+    private static final int POOL_MAX_SIZE = Integer.getInteger("digitallocker.db.pool.maxSize", 10);
+    private static final long BORROW_TIMEOUT_MS = Long.getLong("digitallocker.db.pool.borrowTimeoutMs", 30_000L);
+    private static final long IDLE_TIMEOUT_MS = Long.getLong("digitallocker.db.pool.idleTimeoutMs", 600_000L);
+    private static final long VALIDATION_INTERVAL_MS = Long.getLong("digitallocker.db.pool.validationIntervalMs", 5_000L);
+    private static final int STATEMENT_CACHE_SIZE = Integer.getInteger("digitallocker.db.pool.statementCacheSize", 32);
+
+    private static volatile ConnectionPool pool;
 
     /**
-     * Establishes and returns a connection to the database.
-     * @return A Connection object to the database.
-     * @throws SQLException If a database access error occurs.
+     * Borrows a connection to the database from the shared pool.
+     * @return A Connection object to the database. Closing it returns it to the pool.
+     * @throws SQLException If a database access error occurs or no connection is available in time.
      */
     public static Connection getConnection() throws SQLException {
-        try {
-            // Load the MySQL JDBC driver
-            Class.forName("com.mysql.cj.jdbc.Driver");
-        } catch (ClassNotFoundException e) {
-            System.err.println("MySQL JDBC Driver not found.");
-            throw new SQLException("MySQL JDBC Driver not found.", e);
+        return getPool().borrow();
+    }
+
+    /**
+     * Returns a snapshot of the connection pool's statistics.
+     * @return The current PoolStats.
+     * @throws SQLException If the pool cannot be initialised.
+     */
+    public static PoolStats getPoolStats() throws SQLException {
+        return getPool().getStats();
+    }
+
+    /**
+     * Closes all pooled connections. Subsequent calls to getConnection start a fresh pool.
+     */
+    public static synchronized void shutdownPool() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
         }
-        return DriverManager.getConnection(JDBC_URL, USER, PASSWORD);
+    }
+
+    private static ConnectionPool getPool() throws SQLException {
+        ConnectionPool current = pool;
+        if (current == null) {
+            synchronized (DBConnection.class) {
+                current = pool;
+                if (current == null) {
+                    if (JDBC_URL.startsWith("jdbc:mysql:")) {
+                        try {
+                            // Load the MySQL JDBC driver; other drivers register themselves
+                            Class.forName("com.mysql.cj.jdbc.Driver");
+                        } catch (ClassNotFoundException e) {
+                            System.err.println("MySQL JDBC Driver not found.");
+                            throw new SQLException("MySQL JDBC Driver not found.", e);
+                        }
+                    }
+                    current = new ConnectionPool(JDBC_URL, USER, PASSWORD, POOL_MIN_SIZE, POOL_MAX_SIZE,
+                            BORROW_TIMEOUT_MS, IDLE_TIMEOUT_MS, VALIDATION_INTERVAL_MS, STATEMENT_CACHE_SIZE);
+                    pool = current;
+                }
+            }
+        }
+        return current;
     }
 
     /**
      * Closes the given database connection, statement, and result set.
+     * For pooled connections this returns the connection to the pool.
      * @param conn The Connection to close.
      * @param stmt The Statement to close (can be null).
      * @param rs The ResultSet to close (can be null).
@@ -37,10 +87,19 @@ public class DBConnection {
     public static void close(Connection conn, java.sql.Statement stmt, java.sql.ResultSet rs) {
         try {
             if (rs != null) rs.close();
+        } catch (SQLException e) {
+            System.err.println("Error closing database resources: " + e.getMessage());
+        }
+        try {
             if (stmt != null) stmt.close();
+        } catch (SQLException e) {
+            System.err.println("Error closing database resources: " + e.getMessage());
+        }
+        try {
+            // Always attempt to close the connection, otherwise a failed rs/stmt close would leak a pool slot
             if (conn != null) conn.close();
         } catch (SQLException e) {
             System.err.println("Error closing database resources: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+}
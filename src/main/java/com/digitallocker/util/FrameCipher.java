@@ -0,0 +1,376 @@
+package com.digitallocker.util;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Encryption at rest as a sequence of independently authenticated AES-GCM frames.
+ * <p>
+ * Layout: a 20-byte header (magic, frame size, random 96-bit nonce) followed by frames of
+ * frameSize plaintext bytes plus a 16-byte tag. The last frame is always shorter than frameSize
+ * (possibly empty) and is marked as last in its associated data, so truncating a blob at a frame
+ * boundary or reordering frames fails authentication. Every frame's IV is the nonce with the frame
+ * index folded in, which makes frames addressable: a ranged read decrypts only the frames it covers.
+ * <p>
+ * Frames are sealed and opened on a shared, bounded executor with a bounded number of frames in
+ * flight per stream, so one large file uses several cores without buffering the whole file.
+ */
+public class FrameCipher {
+    public static final int DEFAULT_FRAME_SIZE = 64 * 1024;
+    private static final int MAGIC = 0x444C4B31; // "DLK1"
+    private static final int HEADER_LENGTH = 4 + 4 + 12;
+    private static final int TAG_LENGTH = 16;
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES/GCM is not available", e); // Mandatory on every Java platform
+        }
+    });
+
+    private final ExecutorService executor;
+    private final int maxInFlight;
+    private final int frameSize;
+
+    /**
+     * @param executor The pool frames are sealed and opened on. It should be bounded; frames are leaf tasks.
+     * @param maxInFlight The maximum number of frames a single stream has queued or running at once.
+     * @param frameSize The plaintext size of every frame but the last, for new blobs.
+     */
+    public FrameCipher(ExecutorService executor, int maxInFlight, int frameSize) {
+        if (frameSize <= 0 || frameSize > MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("Invalid frame size: " + frameSize);
+        }
+        this.executor = executor;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.frameSize = frameSize;
+    }
+
+    /**
+     * Wraps a stream so that everything written to it is encrypted. The header is written at once;
+     * closing the returned stream seals the last frame and closes the underlying stream.
+     * @param out The stream receiving the encrypted blob.
+     * @param key The AES key.
+     * @return A stream accepting plaintext.
+     * @throws IOException If the header cannot be written.
+     */
+    public OutputStream encrypt(OutputStream out, SecretKey key) throws IOException {
+        byte[] header = ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC).putInt(frameSize)
+                .put(randomNonce()).array();
+        out.write(header);
+        return new EncryptingOutputStream(out, key, header);
+    }
+
+    /**
+     * Wraps an encrypted blob so that reading it yields the plaintext.
+     * @param in The encrypted blob, from its first byte. Closing the returned stream closes it.
+     * @param key The AES key.
+     * @return A stream of plaintext.
+     * @throws IOException If the header is missing or invalid.
+     */
+    public InputStream decrypt(InputStream in, SecretKey key) throws IOException {
+        byte[] header = readHeader(in);
+        return new DecryptingInputStream(in, key, header, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Decrypts part of an encrypted blob, reading and authenticating only the frames that cover
+     * the requested range.
+     * @param channel The encrypted blob. Its position is moved; closing the returned stream closes it.
+     * @param key The AES key.
+     * @param offset The plaintext position of the first byte wanted.
+     * @param length The number of plaintext bytes wanted.
+     * @return A stream positioned at offset (empty if offset is past the end); it ends at the end of the
+     *         last covering frame, so callers should stop after length bytes.
+     * @throws IOException If the header is invalid or the frame holding offset fails authentication.
+     */
+    public InputStream decryptRange(FileChannel channel, SecretKey key, long offset, long length) throws IOException {
+        channel.position(0);
+        InputStream in = Channels.newInputStream(channel);
+        byte[] header = readHeader(in);
+        int blobFrameSize = ByteBuffer.wrap(header).getInt(4);
+        long sealedFrameSize = blobFrameSize + (long) TAG_LENGTH;
+        long body = channel.size() - HEADER_LENGTH;
+        long plaintextSize = body - (body + sealedFrameSize - 1) / sealedFrameSize * TAG_LENGTH;
+        if (offset >= plaintextSize) {
+            in.close();
+            return InputStream.nullInputStream();
+        }
+        long end = Math.min(plaintextSize, offset + Math.min(length, plaintextSize - offset));
+        long firstFrame = offset / blobFrameSize;
+        long endFrame = (end + blobFrameSize - 1) / blobFrameSize;
+
+        channel.position(HEADER_LENGTH + firstFrame * (blobFrameSize + (long) TAG_LENGTH));
+        InputStream plain = new DecryptingInputStream(in, key, header, firstFrame, endFrame);
+        long toSkip = offset - firstFrame * blobFrameSize;
+        while (toSkip > 0) {
+            long n = plain.skip(toSkip);
+            if (n <= 0) {
+                break; // Blob ended early; the caller sees a short read
+            }
+            toSkip -= n;
+        }
+        return plain;
+    }
+
+    private static byte[] readHeader(InputStream in) throws IOException {
+        byte[] header = in.readNBytes(HEADER_LENGTH);
+        if (header.length < HEADER_LENGTH) {
+            throw new EOFException("Encrypted blob is truncated: missing header");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not an encrypted blob");
+        }
+        int blobFrameSize = buffer.getInt(4);
+        if (blobFrameSize <= 0 || blobFrameSize > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame size in encrypted blob: " + blobFrameSize);
+        }
+        return header;
+    }
+
+    private static byte[] randomNonce() {
+        byte[] nonce = new byte[12];
+        RANDOM.nextBytes(nonce);
+        return nonce;
+    }
+
+    private static byte[] seal(SecretKey key, byte[] header, long index, boolean last, byte[] plain, int length)
+            throws GeneralSecurityException {
+        Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, frameIv(header, index)));
+        cipher.updateAAD(frameAad(header, index, last));
+        return cipher.doFinal(plain, 0, length);
+    }
+
+    private static byte[] open(SecretKey key, byte[] header, long index, boolean last, byte[] sealed)
+            throws GeneralSecurityException {
+        Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, frameIv(header, index)));
+        cipher.updateAAD(frameAad(header, index, last));
+        return cipher.doFinal(sealed);
+    }
+
+    private static byte[] frameIv(byte[] header, long index) {
+        byte[] iv = new byte[12];
+        System.arraycopy(header, 8, iv, 0, 12);
+        for (int i = 0; i < 8; i++) {
+            iv[4 + i] ^= (byte) (index >>> (56 - 8 * i));
+        }
+        return iv;
+    }
+
+    private static byte[] frameAad(byte[] header, long index, boolean last) {
+        return ByteBuffer.allocate(HEADER_LENGTH + 9).put(header).putLong(index).put((byte) (last ? 1 : 0)).array();
+    }
+
+    private static byte[] await(Future<byte[]> frame, long index) throws IOException {
+        try {
+            return frame.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for frame " + index);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof AEADBadTagException) {
+                throw new IOException("Encrypted frame " + index + " failed authentication", cause);
+            }
+            throw new IOException("Could not process encrypted frame " + index + ": " + cause.getMessage(), cause);
+        }
+    }
+
+    private final class EncryptingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final SecretKey key;
+        private final byte[] header;
+        private final ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>();
+        private byte[] buffer = new byte[frameSize];
+        private int buffered;
+        private long nextIndex;
+        private long writtenIndex;
+        private boolean closed;
+
+        EncryptingOutputStream(OutputStream out, SecretKey key, byte[] header) {
+            this.out = out;
+            this.key = key;
+            this.header = header;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            while (len > 0) {
+                int n = Math.min(len, frameSize - buffered);
+                System.arraycopy(b, off, buffer, buffered, n);
+                buffered += n;
+                off += n;
+                len -= n;
+                if (buffered == frameSize) {
+                    submit(false); // A full frame is never the last one
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            while (!inFlight.isEmpty()) {
+                writeOldest();
+            }
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                submit(true);
+                while (!inFlight.isEmpty()) {
+                    writeOldest();
+                }
+            } finally {
+                for (Future<byte[]> frame : inFlight) {
+                    frame.cancel(true);
+                }
+                out.close();
+            }
+        }
+
+        private void submit(boolean last) throws IOException {
+            byte[] plain = buffer;
+            int length = buffered;
+            long index = nextIndex++;
+            inFlight.add(executor.submit(() -> seal(key, header, index, last, plain, length)));
+            buffer = last ? null : new byte[frameSize];
+            buffered = 0;
+            while (inFlight.size() > maxInFlight) {
+                writeOldest();
+            }
+        }
+
+        private void writeOldest() throws IOException {
+            out.write(await(inFlight.poll(), writtenIndex++));
+        }
+    }
+
+    private final class DecryptingInputStream extends InputStream {
+        private final InputStream in;
+        private final SecretKey key;
+        private final byte[] header;
+        private final int sealedFrameSize;
+        private final long endFrame;
+        private final ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>();
+        private long nextIndex;
+        private long readIndex;
+        private boolean sawLast;
+        private byte[] current = new byte[0];
+        private int position;
+
+        DecryptingInputStream(InputStream in, SecretKey key, byte[] header, long firstFrame, long endFrame) {
+            this.in = in;
+            this.key = key;
+            this.header = header;
+            this.sealedFrameSize = ByteBuffer.wrap(header).getInt(4) + TAG_LENGTH;
+            this.endFrame = endFrame;
+            this.nextIndex = firstFrame;
+            this.readIndex = firstFrame;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (position == current.length) {
+                fill();
+                if (inFlight.isEmpty()) {
+                    return -1;
+                }
+                current = await(inFlight.poll(), readIndex++);
+                position = 0;
+            }
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n) {
+                if (position == current.length) {
+                    fill();
+                    if (inFlight.isEmpty()) {
+                        break;
+                    }
+                    current = await(inFlight.poll(), readIndex++);
+                    position = 0;
+                }
+                int step = (int) Math.min(n - skipped, current.length - position);
+                position += step;
+                skipped += step;
+            }
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Future<byte[]> frame : inFlight) {
+                frame.cancel(true);
+            }
+            inFlight.clear();
+            in.close();
+        }
+
+        /**
+         * Reads ahead and queues frames for decryption until maxInFlight are pending.
+         */
+        private void fill() throws IOException {
+            while (inFlight.size() < maxInFlight && !sawLast && nextIndex < endFrame) {
+                byte[] sealed = in.readNBytes(sealedFrameSize);
+                if (sealed.length < TAG_LENGTH) {
+                    throw new EOFException("Encrypted blob is truncated at frame " + nextIndex);
+                }
+                boolean last = sealed.length < sealedFrameSize;
+                sawLast = last;
+                long index = nextIndex++;
+                inFlight.add(executor.submit(() -> open(key, header, index, last, sealed)));
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.digitallocker.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A dedicated, bounded pool for CPU-heavy password hashing.
+ * At most poolSize hashes run at once and at most queueCapacity wait; beyond that, work is rejected
+ * at once instead of queueing without bound, so a burst of logins degrades into fast "busy" failures
+ * rather than a saturated CPU and unbounded latency for everyone. Queue wait and hashing time are
+ * measured separately.
+ */
+public class HashingExecutor {
+    private final ThreadPoolExecutor executor;
+    private final int queueCapacity;
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalQueueWaitNanos = new AtomicLong();
+    private final AtomicLong maxQueueWaitNanos = new AtomicLong();
+    private final AtomicLong totalHashNanos = new AtomicLong();
+    private final AtomicLong maxHashNanos = new AtomicLong();
+
+    /**
+     * @param poolSize The number of hashing threads; at most the number of cores.
+     * @param queueCapacity The number of hashes that may wait for a thread.
+     */
+    public HashingExecutor(int poolSize, int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+                    Thread t = new Thread(r, "password-hasher");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Schedules a hashing task.
+     * @param task The task.
+     * @return A future completed with the task's result, or exceptionally with a
+     *         RejectedExecutionException if the queue is full.
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        long queuedAt = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                long startedAt = System.nanoTime();
+                record(totalQueueWaitNanos, maxQueueWaitNanos, startedAt - queuedAt);
+                try {
+                    result.complete(task.call());
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                } finally {
+                    record(totalHashNanos, maxHashNanos, System.nanoTime() - startedAt);
+                    completed.incrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * @return A snapshot of the pool's queue depth, counters and latencies.
+     */
+    public HashingStats getStats() {
+        long done = Math.max(1, completed.get());
+        return new HashingStats(executor.getMaximumPoolSize(), executor.getActiveCount(), executor.getQueue().size(),
+                queueCapacity, completed.get(), rejected.get(),
+                totalQueueWaitNanos.get() / done / 1000, maxQueueWaitNanos.get() / 1000,
+                totalHashNanos.get() / done / 1000, maxHashNanos.get() / 1000);
+    }
+
+    /**
+     * Stops accepting work; queued hashes still complete.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private static void record(AtomicLong total, AtomicLong max, long nanos) {
+        total.addAndGet(nanos);
+        max.accumulateAndGet(nanos, Math::max);
+    }
+}
@@ -0,0 +1,87 @@
+package com.digitallocker.util;
+
+/**
+ * Point-in-time snapshot of the password hashing executor's state and counters.
+ */
+public class HashingStats {
+    private final int poolSize;
+    private final int activeThreads;
+    private final int queueDepth;
+    private final int queueCapacity;
+    private final long completedCount;
+    private final long rejectedCount;
+    private final long averageQueueWaitMicros;
+    private final long maxQueueWaitMicros;
+    private final long averageHashMicros;
+    private final long maxHashMicros;
+
+    public HashingStats(int poolSize, int activeThreads, int queueDepth, int queueCapacity,
+                        long completedCount, long rejectedCount, long averageQueueWaitMicros, long maxQueueWaitMicros,
+                        long averageHashMicros, long maxHashMicros) {
+        this.poolSize = poolSize;
+        this.activeThreads = activeThreads;
+        this.queueDepth = queueDepth;
+        this.queueCapacity = queueCapacity;
+        this.completedCount = completedCount;
+        this.rejectedCount = rejectedCount;
+        this.averageQueueWaitMicros = averageQueueWaitMicros;
+        this.maxQueueWaitMicros = maxQueueWaitMicros;
+        this.averageHashMicros = averageHashMicros;
+        this.maxHashMicros = maxHashMicros;
+    }
+
+    // Getters
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public int getActiveThreads() {
+        return activeThreads;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public long getCompletedCount() {
+        return completedCount;
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    public long getAverageQueueWaitMicros() {
+        return averageQueueWaitMicros;
+    }
+
+    public long getMaxQueueWaitMicros() {
+        return maxQueueWaitMicros;
+    }
+
+    public long getAverageHashMicros() {
+        return averageHashMicros;
+    }
+
+    public long getMaxHashMicros() {
+        return maxHashMicros;
+    }
+
+    @Override
+    public String toString() {
+        return "HashingStats{poolSize=" + poolSize
+                + ", active=" + activeThreads
+                + ", queueDepth=" + queueDepth + "/" + queueCapacity
+                + ", completed=" + completedCount
+                + ", rejected=" + rejectedCount
+                + ", avgQueueWaitMicros=" + averageQueueWaitMicros
+                + ", maxQueueWaitMicros=" + maxQueueWaitMicros
+                + ", avgHashMicros=" + averageHashMicros
+                + ", maxHashMicros=" + maxHashMicros
+                + "}";
+    }
+}
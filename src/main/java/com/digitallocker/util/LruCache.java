@@ -0,0 +1,117 @@
+package com.digitallocker.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, thread-safe LRU cache whose entries also expire after a fixed time to live.
+ * Writers can guard against racing with invalidations: take a {@link #stamp()} before loading
+ * a value and pass it to {@link #putIfNotInvalidated}; the value is dropped if any invalidation
+ * happened in between, so a slow load can never resurrect an entry that was just removed.
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public class LruCache<K, V> {
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LinkedHashMap<K, CacheEntry<V>> map;
+    private long invalidations;
+
+    // Statistics, guarded by this
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+    /**
+     * @param maxEntries The maximum number of entries kept; the least recently used entry is evicted beyond that.
+     * @param ttlMillis How long an entry stays valid after it was put.
+     */
+    public LruCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlMillis * 1_000_000L;
+        this.map = new LinkedHashMap<K, CacheEntry<V>>(Math.min(maxEntries, 1024), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+                if (size() > LruCache.this.maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param key The key to look up.
+     * @return The cached value, or null if absent or expired.
+     */
+    public synchronized V get(K key) {
+        CacheEntry<V> entry = map.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (System.nanoTime() - entry.createdNanos > ttlNanos) {
+            map.remove(key);
+            expirations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    /**
+     * @return A token to pass to {@link #putIfNotInvalidated} after loading a value.
+     */
+    public synchronized long stamp() {
+        return invalidations;
+    }
+
+    /**
+     * Caches a value unless an invalidation happened since the stamp was taken.
+     * @param key The key.
+     * @param value The value to cache.
+     * @param stamp The value of {@link #stamp()} taken before the value was loaded.
+     */
+    public synchronized void putIfNotInvalidated(K key, V value, long stamp) {
+        if (stamp == invalidations) {
+            map.put(key, new CacheEntry<>(value, System.nanoTime()));
+        }
+    }
+
+    /**
+     * Removes an entry.
+     * @param key The key to remove.
+     */
+    public synchronized void invalidate(K key) {
+        invalidations++;
+        map.remove(key);
+    }
+
+    /**
+     * Removes every entry.
+     */
+    public synchronized void invalidateAll() {
+        invalidations++;
+        map.clear();
+    }
+
+    /**
+     * @return A snapshot of the cache's counters.
+     */
+    public synchronized CacheStats getStats() {
+        return new CacheStats(map.size(), maxEntries, hits, misses, evictions, expirations);
+    }
+
+    private static final class CacheEntry<V> {
+        private final V value;
+        private final long createdNanos;
+
+        CacheEntry(V value, long createdNanos) {
+            this.value = value;
+            this.createdNanos = createdNanos;
+        }
+    }
+}
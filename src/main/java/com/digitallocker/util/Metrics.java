@@ -0,0 +1,119 @@
+package com.digitallocker.util;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide registry of {@link OperationMetrics}.
+ * Each operation is registered once, as an MBean named
+ * com.digitallocker:type=Operation,component=&lt;component&gt;,name=&lt;operation&gt;, so it can be watched
+ * with jconsole or any JMX client. Unless digitallocker.metrics.reportIntervalMs is 0, a text
+ * snapshot of every operation that was called is also printed periodically.
+ */
+public final class Metrics {
+    private static final long REPORT_INTERVAL_MS = Long.getLong("digitallocker.metrics.reportIntervalMs", 60_000L);
+
+    private static final ConcurrentMap<String, OperationMetrics> OPERATIONS = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService reporter;
+    private static long lastReportedCalls = -1;
+
+    private Metrics() {
+    }
+
+    /**
+     * Gets the metrics of an operation, registering them on first use. Call once per operation and
+     * keep the result in a static final field; the lookup itself is not meant for the hot path.
+     * @param component The class the operation belongs to, e.g. "FileDAO".
+     * @param operation The method name, e.g. "addFileMetadata".
+     * @return The operation's metrics.
+     */
+    public static OperationMetrics operation(String component, String operation) {
+        OperationMetrics metrics = OPERATIONS.computeIfAbsent(component + "." + operation, key -> {
+            OperationMetrics created = new OperationMetrics(component, operation);
+            register(created);
+            return created;
+        });
+        startReporter();
+        return metrics;
+    }
+
+    /**
+     * @return Every registered operation, ordered by component and name.
+     */
+    public static List<OperationMetrics> getOperations() {
+        List<OperationMetrics> operations = new ArrayList<>(OPERATIONS.values());
+        operations.sort(Comparator.comparing(OperationMetrics::getComponent)
+                .thenComparing(OperationMetrics::getOperation));
+        return operations;
+    }
+
+    /**
+     * Formats every operation that has been called as a table. Latencies are in microseconds.
+     * @return The snapshot text.
+     */
+    public static String snapshot() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-20s %-26s %10s %7s %12s %12s %10s %10s %10s %10s %10s%n",
+                "component", "operation", "calls", "errors", "bytesIn", "bytesOut",
+                "mean_us", "p50_us", "p99_us", "p999_us", "max_us"));
+        for (OperationMetrics operation : getOperations()) {
+            if (operation.getCalls() > 0) {
+                sb.append(operation).append(System.lineSeparator());
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void register(OperationMetrics metrics) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("com.digitallocker:type=Operation,component="
+                    + ObjectName.quote(metrics.getComponent()) + ",name=" + ObjectName.quote(metrics.getOperation()));
+            if (!server.isRegistered(name)) {
+                server.registerMBean(metrics, name);
+            }
+        } catch (JMException e) {
+            System.err.println("Could not register metrics MBean for " + metrics.getComponent() + "."
+                    + metrics.getOperation() + ": " + e.getMessage());
+        }
+    }
+
+    private static synchronized void startReporter() {
+        if (reporter != null || REPORT_INTERVAL_MS <= 0) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(Metrics::report, REPORT_INTERVAL_MS, REPORT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Prints a snapshot, unless nothing was called since the last one.
+     */
+    private static void report() {
+        long calls = 0;
+        for (OperationMetrics operation : OPERATIONS.values()) {
+            calls += operation.getCalls();
+        }
+        synchronized (Metrics.class) {
+            if (calls == lastReportedCalls) {
+                return;
+            }
+            lastReportedCalls = calls;
+        }
+        System.out.print("Operation metrics:" + System.lineSeparator() + snapshot());
+    }
+}
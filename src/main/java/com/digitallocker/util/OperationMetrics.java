@@ -0,0 +1,151 @@
+package com.digitallocker.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and a latency histogram for one service or DAO operation.
+ * Typical use, with the instance held in a static final field:
+ * <pre>
+ * long start = System.nanoTime();
+ * try {
+ *     ...
+ * } catch (SQLException e) {
+ *     METRICS.recordError();
+ *     throw e;
+ * } finally {
+ *     METRICS.record(start);
+ * }
+ * </pre>
+ * All recording methods are lock-free and allocation-free.
+ */
+public class OperationMetrics implements OperationMetricsMBean {
+    private final String component;
+    private final String operation;
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    OperationMetrics(String component, String operation) {
+        this.component = component;
+        this.operation = operation;
+    }
+
+    /**
+     * Counts one call and records its latency.
+     * @param startNanos The System.nanoTime() taken when the call started.
+     */
+    public void record(long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        calls.increment();
+        totalNanos.add(nanos);
+        latencies.record(nanos);
+        if (nanos > maxNanos.get()) {
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+    }
+
+    /**
+     * Counts one failed call; the call itself is still counted by {@link #record(long)}.
+     */
+    public void recordError() {
+        errors.increment();
+    }
+
+    /**
+     * @param bytes The number of bytes the call received, e.g. uploaded.
+     */
+    public void addBytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    /**
+     * @param bytes The number of bytes the call sent, e.g. retrieved.
+     */
+    public void addBytesOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    public String getComponent() {
+        return component;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    @Override
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getMeanMicros() {
+        long count = calls.sum();
+        return count == 0 ? 0 : totalNanos.sum() / count / 1000;
+    }
+
+    @Override
+    public long getMaxMicros() {
+        return maxNanos.get() / 1000;
+    }
+
+    @Override
+    public long getP50Micros() {
+        return percentileNanos(0.50) / 1000;
+    }
+
+    @Override
+    public long getP99Micros() {
+        return percentileNanos(0.99) / 1000;
+    }
+
+    @Override
+    public long getP999Micros() {
+        return percentileNanos(0.999) / 1000;
+    }
+
+    /**
+     * Histogram buckets report their upper bound, which can lie above the largest value actually seen.
+     */
+    private long percentileNanos(double quantile) {
+        return Math.min(latencies.percentile(quantile), maxNanos.get());
+    }
+
+    @Override
+    public void reset() {
+        calls.reset();
+        errors.reset();
+        bytesIn.reset();
+        bytesOut.reset();
+        totalNanos.reset();
+        maxNanos.set(0);
+        latencies.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-20s %-26s %10d %7d %12d %12d %10d %10d %10d %10d %10d",
+                component, operation, getCalls(), getErrors(), getBytesIn(), getBytesOut(),
+                getMeanMicros(), getP50Micros(), getP99Micros(), getP999Micros(), getMaxMicros());
+    }
+}
@@ -0,0 +1,29 @@
+package com.digitallocker.util;
+
+/**
+ * JMX view of one instrumented operation. Latencies are in microseconds.
+ */
+public interface OperationMetricsMBean {
+    long getCalls();
+
+    long getErrors();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getMeanMicros();
+
+    long getMaxMicros();
+
+    long getP50Micros();
+
+    long getP99Micros();
+
+    long getP999Micros();
+
+    /**
+     * Zeroes all counters and the latency histogram.
+     */
+    void reset();
+}
@@ -0,0 +1,98 @@
+package com.digitallocker.util;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * PBKDF2-HMAC-SHA256 password hashing.
+ * Hashes are stored as "pbkdf2-sha256$iterations$salt$hash" (Base64), so the cost can be raised
+ * later without invalidating existing hashes; {@link #needsRehash} tells when a stored hash should
+ * be upgraded. Hashing is deliberately slow: call it from a bounded pool, never from the EDT.
+ */
+public class PasswordHasher {
+    public static final int DEFAULT_ITERATIONS = 600_000; // OWASP recommendation for PBKDF2-HMAC-SHA256
+    private static final String PREFIX = "pbkdf2-sha256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final int iterations;
+
+    public PasswordHasher(int iterations) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("Iterations must be positive: " + iterations);
+        }
+        this.iterations = iterations;
+    }
+
+    /**
+     * Hashes a password with a fresh random salt.
+     * @param password The password.
+     * @return The encoded hash, to be stored as is.
+     */
+    public String hash(char[] password) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        return PREFIX + "$" + iterations + "$" + base64.encodeToString(salt) + "$"
+                + base64.encodeToString(pbkdf2(password, salt, iterations));
+    }
+
+    /**
+     * Checks a password against a stored hash, in time independent of where they differ.
+     * Stored values that are not PBKDF2 hashes are treated as plain-text passwords from before
+     * hashing was introduced.
+     * @param password The password to check.
+     * @param stored The stored hash.
+     * @return true if the password matches.
+     */
+    public boolean verify(char[] password, String stored) {
+        if (stored == null) {
+            return false;
+        }
+        if (!stored.startsWith(PREFIX + "$")) {
+            return MessageDigest.isEqual(new String(password).getBytes(StandardCharsets.UTF_8),
+                    stored.getBytes(StandardCharsets.UTF_8));
+        }
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4) {
+            return false;
+        }
+        try {
+            int storedIterations = Integer.parseInt(parts[1]);
+            byte[] salt = Base64.getDecoder().decode(parts[2]);
+            byte[] expected = Base64.getDecoder().decode(parts[3]);
+            return MessageDigest.isEqual(expected, pbkdf2(password, salt, storedIterations));
+        } catch (IllegalArgumentException e) {
+            return false; // Malformed hash
+        }
+    }
+
+    /**
+     * @param stored The stored hash.
+     * @return true if the stored value is a plain-text password or was hashed at a different cost.
+     */
+    public boolean needsRehash(String stored) {
+        return stored == null || !stored.startsWith(PREFIX + "$" + iterations + "$");
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    private static byte[] pbkdf2(char[] password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2WithHmacSHA256 is not available", e); // Mandatory on every Java platform
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
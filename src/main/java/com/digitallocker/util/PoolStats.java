@@ -0,0 +1,110 @@
+package com.digitallocker.util;
+
+/**
+ * Point-in-time snapshot of connection pool state and counters.
+ */
+public class PoolStats {
+    private final int totalConnections;
+    private final int activeConnections;
+    private final int idleConnections;
+    private final int threadsAwaiting;
+    private final long borrowCount;
+    private final long borrowTimeouts;
+    private final long averageWaitMicros;
+    private final long maxWaitMicros;
+    private final long createdCount;
+    private final long destroyedCount;
+    private final long validationFailures;
+    private final long statementCacheHits;
+    private final long statementCacheMisses;
+
+    public PoolStats(int totalConnections, int activeConnections, int idleConnections, int threadsAwaiting,
+                     long borrowCount, long borrowTimeouts, long averageWaitMicros, long maxWaitMicros,
+                     long createdCount, long destroyedCount, long validationFailures,
+                     long statementCacheHits, long statementCacheMisses) {
+        this.totalConnections = totalConnections;
+        this.activeConnections = activeConnections;
+        this.idleConnections = idleConnections;
+        this.threadsAwaiting = threadsAwaiting;
+        this.borrowCount = borrowCount;
+        this.borrowTimeouts = borrowTimeouts;
+        this.averageWaitMicros = averageWaitMicros;
+        this.maxWaitMicros = maxWaitMicros;
+        this.createdCount = createdCount;
+        this.destroyedCount = destroyedCount;
+        this.validationFailures = validationFailures;
+        this.statementCacheHits = statementCacheHits;
+        this.statementCacheMisses = statementCacheMisses;
+    }
+
+    // Getters
+    public int getTotalConnections() {
+        return totalConnections;
+    }
+
+    public int getActiveConnections() {
+        return activeConnections;
+    }
+
+    public int getIdleConnections() {
+        return idleConnections;
+    }
+
+    public int getThreadsAwaiting() {
+        return threadsAwaiting;
+    }
+
+    public long getBorrowCount() {
+        return borrowCount;
+    }
+
+    public long getBorrowTimeouts() {
+        return borrowTimeouts;
+    }
+
+    public long getAverageWaitMicros() {
+        return averageWaitMicros;
+    }
+
+    public long getMaxWaitMicros() {
+        return maxWaitMicros;
+    }
+
+    public long getCreatedCount() {
+        return createdCount;
+    }
+
+    public long getDestroyedCount() {
+        return destroyedCount;
+    }
+
+    public long getValidationFailures() {
+        return validationFailures;
+    }
+
+    public long getStatementCacheHits() {
+        return statementCacheHits;
+    }
+
+    public long getStatementCacheMisses() {
+        return statementCacheMisses;
+    }
+
+    @Override
+    public String toString() {
+        return "PoolStats{total=" + totalConnections
+                + ", active=" + activeConnections
+                + ", idle=" + idleConnections
+                + ", awaiting=" + threadsAwaiting
+                + ", borrows=" + borrowCount
+                + ", borrowTimeouts=" + borrowTimeouts
+                + ", avgWaitUs=" + averageWaitMicros
+                + ", maxWaitUs=" + maxWaitMicros
+                + ", created=" + createdCount
+                + ", destroyed=" + destroyedCount
+                + ", validationFailures=" + validationFailures
+                + ", stmtCacheHits=" + statementCacheHits
+                + ", stmtCacheMisses=" + statementCacheMisses
+                + "}";
+    }
+}
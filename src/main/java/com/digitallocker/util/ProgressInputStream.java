@@ -0,0 +1,54 @@
+package com.digitallocker.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Reports every block read to a {@link TransferListener}, and stops with an InterruptedIOException
+ * once the listener cancels or the reading thread is interrupted.
+ */
+public class ProgressInputStream extends FilterInputStream {
+    private final TransferListener listener;
+
+    public ProgressInputStream(InputStream in, TransferListener listener) {
+        super(in);
+        this.listener = listener;
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkCancelled(listener);
+        int b = super.read();
+        if (b != -1) {
+            listener.bytesTransferred(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkCancelled(listener);
+        int n = super.read(b, off, len);
+        if (n > 0) {
+            listener.bytesTransferred(n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        checkCancelled(listener);
+        return super.skip(n); // Skipped bytes are not transferred
+    }
+
+    /**
+     * @throws InterruptedIOException If the listener cancelled or the current thread was interrupted.
+     */
+    public static void checkCancelled(TransferListener listener) throws InterruptedIOException {
+        if (listener.isCancelled() || Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Transfer cancelled");
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.digitallocker.util;
+
+/**
+ * A simple token-bucket rate limiter for background work.
+ * Permits accrue continuously at the configured rate, up to one second's worth of burst.
+ */
+public class RateLimiter {
+    private final double permitsPerSecond;
+    private final double maxPermits;
+    private double storedPermits;
+    private long lastRefillNanos;
+
+    /**
+     * @param permitsPerSecond The sustained rate, e.g. files or bytes per second. Must be positive.
+     */
+    public RateLimiter(double permitsPerSecond) {
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive: " + permitsPerSecond);
+        }
+        this.permitsPerSecond = permitsPerSecond;
+        this.maxPermits = permitsPerSecond;
+        this.storedPermits = 0;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Blocks until the given number of permits is available and takes them.
+     * Requests larger than the burst size are allowed; they simply wait proportionally longer.
+     * @param permits The number of permits to take.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public void acquire(long permits) throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            refill();
+            storedPermits -= permits; // May go negative: the debt is paid off by waiting
+            waitNanos = storedPermits >= 0 ? 0 : (long) (-storedPermits / permitsPerSecond * 1_000_000_000L);
+        }
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1_000_000L, (int) (waitNanos % 1_000_000L));
+        }
+    }
+
+    public double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        storedPermits = Math.min(maxPermits, storedPermits + (now - lastRefillNanos) / 1_000_000_000.0 * permitsPerSecond);
+        lastRefillNanos = now;
+    }
+}
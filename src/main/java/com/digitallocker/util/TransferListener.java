@@ -0,0 +1,26 @@
+package com.digitallocker.util;
+
+/**
+ * Receives progress from a long-running upload or retrieval and can cancel it.
+ * Callbacks may come from any thread, including several at once for a batch upload.
+ */
+public interface TransferListener {
+    /** A listener that ignores progress and never cancels. */
+    TransferListener NONE = count -> {
+    };
+
+    /**
+     * Called as data moves.
+     * @param count The number of bytes moved since the previous call.
+     */
+    void bytesTransferred(long count);
+
+    /**
+     * Polled between blocks of data; once it returns true the transfer stops with an
+     * InterruptedIOException and its partial output is discarded.
+     * @return true if the transfer should stop.
+     */
+    default boolean isCancelled() {
+        return false;
+    }
+}
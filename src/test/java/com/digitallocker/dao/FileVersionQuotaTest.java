@@ -0,0 +1,150 @@
+package com.digitallocker.dao;
+
+import com.digitallocker.model.FileMetadata;
+import com.digitallocker.model.FileVersion;
+import com.digitallocker.model.User;
+import com.digitallocker.util.ConnectionPool;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Every version a file keeps counts towards its owner's quota, on both metadata backends.
+ */
+class FileVersionQuotaTest {
+    private static final long NEVER = Long.MAX_VALUE / 2;
+
+    private static ConnectionPool pool;
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Creates an in-memory H2 database in MySQL mode from database_schema.sql, with a pool of its own.
+     */
+    @BeforeAll
+    static void createDatabase() throws IOException, SQLException {
+        pool = new ConnectionPool("jdbc:h2:mem:quota-test;MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1",
+                "sa", "", 0, 2, 5_000, 600_000, 5_000, 8);
+        StringBuilder sql = new StringBuilder();
+        for (String line : Files.readAllLines(Paths.get("database_schema.sql"), StandardCharsets.UTF_8)) {
+            int comment = line.indexOf("--");
+            String trimmed = (comment >= 0 ? line.substring(0, comment) : line).trim();
+            if (!trimmed.startsWith("CREATE DATABASE") && !trimmed.startsWith("USE ")) {
+                sql.append(trimmed).append('\n');
+            }
+        }
+        try (Connection conn = pool.borrow();
+             Statement stmt = conn.createStatement()) {
+            for (String statement : sql.toString().trim().split(";\\s*")) {
+                stmt.execute(statement);
+            }
+        }
+    }
+
+    @AfterAll
+    static void dropDatabase() throws SQLException {
+        try (Connection conn = pool.borrow();
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP ALL OBJECTS");
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    void versionsCountTowardsUsageInMySql() throws SQLException {
+        checkVersionUsage(new JdbcUserDAO(pool), new JdbcFileDAO(pool), "jdbc");
+    }
+
+    @Test
+    void versionsCountTowardsUsageInTheJournal() throws Exception {
+        try (MetadataJournal journal = new MetadataJournal(dir, true, NEVER, NEVER)) {
+            checkVersionUsage(new JournalUserDAO(journal), new JournalFileDAO(journal), "journal");
+        }
+    }
+
+    @Test
+    void journalReplayRecomputesVersionUsage() throws Exception {
+        int userId;
+        int fileId;
+        try (MetadataJournal journal = new MetadataJournal(dir, true, NEVER, NEVER)) {
+            UserDAO users = new JournalUserDAO(journal);
+            FileDAO files = new JournalFileDAO(journal);
+            userId = users.registerUser(new User("replay", "hash"));
+            fileId = files.addFileMetadata(file(userId, "doc.txt", "v1", 1000));
+            saveVersion(files, fileId, userId, "v2", 400);
+            saveVersion(files, fileId, userId, "v3", 300);
+            files.deleteFileVersions(fileId, 1);
+            assertEquals(700, users.getStorageUsage(userId).getUsedBytes());
+        }
+        try (MetadataJournal journal = new MetadataJournal(dir, true, NEVER, NEVER)) {
+            assertEquals(700, new JournalUserDAO(journal).getStorageUsage(userId).getUsedBytes());
+            new JournalFileDAO(journal).tombstoneFiles(userId, List.of(fileId));
+        }
+        try (MetadataJournal journal = new MetadataJournal(dir, true, NEVER, NEVER)) {
+            assertEquals(0, new JournalUserDAO(journal).getStorageUsage(userId).getUsedBytes());
+        }
+    }
+
+    private static void checkVersionUsage(UserDAO users, FileDAO files, String name) throws SQLException {
+        int userId = users.registerUser(new User("quota-" + name, "hash"));
+        int fileId = files.addFileMetadata(file(userId, "doc.txt", "v1", 1000));
+        assertEquals(1000, used(users, userId));
+
+        // Re-uploading the same name keeps the old content as a version, which still takes up space
+        assertEquals(2, saveVersion(files, fileId, userId, "v2", 1500));
+        assertEquals(2500, used(users, userId));
+        assertEquals(3, saveVersion(files, fileId, userId, "v3", 700));
+        assertEquals(3200, used(users, userId));
+
+        // Pruning down to the newest earlier version gives back the oldest one's bytes
+        List<FileVersion> pruned = files.deleteFileVersions(fileId, 1);
+        assertEquals(1, pruned.size());
+        assertEquals(1000, pruned.get(0).getSizeBytes());
+        assertEquals(2200, used(users, userId));
+
+        // A version saved against content that has changed since is refused and charges nothing
+        FileMetadata stale = file(userId, "doc.txt", "v1", 1000);
+        stale.setId(fileId);
+        FileVersion previous = new FileVersion(fileId, 0, "v1", "none", 1000, false, null, false);
+        assertEquals(-1, files.addFileVersion(stale, previous, file(userId, "doc.txt", "v4", 100)));
+        assertEquals(2200, used(users, userId));
+
+        // Deleting the file releases it together with its versions
+        assertEquals(1, files.tombstoneFiles(userId, List.of(fileId)));
+        assertEquals(0, used(users, userId));
+    }
+
+    /**
+     * Replaces a file's content the way FileLockerService does.
+     * @return The new version's number.
+     */
+    private static int saveVersion(FileDAO files, int fileId, int userId, String storedName, long size)
+            throws SQLException {
+        FileMetadata current = files.getFileByIdAndUserId(fileId, userId);
+        FileVersion previous = new FileVersion(fileId, 0, current.getStoredFilename(), current.getCodec(),
+                current.getSizeBytes(), current.isEncrypted(), current.getUploadDate(), false);
+        return files.addFileVersion(current, previous, file(userId, current.getOriginalFilename(), storedName, size));
+    }
+
+    private static FileMetadata file(int userId, String name, String storedName, long size) {
+        return new FileMetadata(userId, name, storedName, "none", size, false);
+    }
+
+    private static long used(UserDAO users, int userId) throws SQLException {
+        return users.getStorageUsage(userId).getUsedBytes();
+    }
+}
@@ -0,0 +1,165 @@
+package com.digitallocker.dao;
+
+import com.digitallocker.model.FileMetadata;
+import com.digitallocker.model.User;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MetadataJournalTest {
+    private static final long NEVER = Long.MAX_VALUE / 2; // No automatic snapshots during a test
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void committedChangesSurviveACrash() throws Exception {
+        Path live = dir.resolve("live");
+        int userId;
+        List<Integer> fileIds = new ArrayList<>();
+        try (MetadataJournal journal = open(live)) {
+            userId = new JournalUserDAO(journal).registerUser(new User("alice", "hash"));
+            JournalFileDAO files = new JournalFileDAO(journal);
+            for (int i = 0; i < 5; i++) {
+                fileIds.add(files.addFileMetadata(file(userId, "file" + i, 100)));
+            }
+            files.tombstoneFiles(userId, List.of(fileIds.get(0)));
+            crashImage(live, dir.resolve("crashed"));
+        }
+
+        try (MetadataJournal journal = open(dir.resolve("crashed"))) {
+            assertNotNull(new JournalUserDAO(journal).getUserByUsername("alice"));
+            JournalFileDAO files = new JournalFileDAO(journal);
+            assertEquals(4, files.getFilesByUserId(userId).size());
+            assertNull(files.getFileByIdAndUserId(fileIds.get(0), userId));
+            assertEquals("file4", files.getFileByIdAndUserId(fileIds.get(4), userId).getOriginalFilename());
+            assertEquals(400, new JournalUserDAO(journal).getStorageUsage(userId).getUsedBytes());
+            // IDs keep counting from where they were, so none is handed out twice
+            assertEquals(fileIds.get(4) + 1, files.addFileMetadata(file(userId, "file5", 100)));
+        }
+    }
+
+    @Test
+    void tornLastFrameIsDroppedAndTheJournalStaysWritable() throws Exception {
+        Path live = dir.resolve("live");
+        int userId;
+        try (MetadataJournal journal = open(live)) {
+            userId = new JournalUserDAO(journal).registerUser(new User("bob", "hash"));
+            new JournalFileDAO(journal).addFileMetadata(file(userId, "kept", 10));
+            crashImage(live, dir.resolve("crashed"));
+        }
+        Path crashed = dir.resolve("crashed");
+        Path newest = newestSegment(crashed);
+        long validLength = Files.size(newest);
+        // The process died halfway through writing the next frame
+        Files.write(newest, new byte[]{0, 0, 0, 40, 1, 2, 3, 4, 5, 6}, StandardOpenOption.APPEND);
+
+        try (MetadataJournal journal = open(crashed)) {
+            assertEquals(validLength, Files.size(newest));
+            JournalFileDAO files = new JournalFileDAO(journal);
+            assertEquals(1, files.getFilesByUserId(userId).size());
+            files.addFileMetadata(file(userId, "after", 10));
+        }
+        try (MetadataJournal journal = open(crashed)) {
+            assertEquals(2, new JournalFileDAO(journal).getFilesByUserId(userId).size());
+        }
+    }
+
+    @Test
+    void journalWrittenAfterASnapshotIsReplayedOnTopOfIt() throws Exception {
+        Path live = dir.resolve("live");
+        int userId;
+        try (MetadataJournal journal = open(live)) {
+            userId = new JournalUserDAO(journal).registerUser(new User("carol", "hash"));
+            JournalFileDAO files = new JournalFileDAO(journal);
+            files.addFileMetadata(file(userId, "before", 10));
+            journal.snapshot();
+            files.addFileMetadata(file(userId, "after", 20));
+            crashImage(live, dir.resolve("crashed"));
+        }
+
+        try (MetadataJournal journal = open(dir.resolve("crashed"))) {
+            List<FileMetadata> files = new JournalFileDAO(journal).getFilesByUserId(userId);
+            assertEquals(2, files.size());
+            assertEquals(30, new JournalUserDAO(journal).getStorageUsage(userId).getUsedBytes());
+        }
+    }
+
+    @Test
+    void damageBeforeTheLastSegmentStopsTheStoreFromOpening() throws Exception {
+        Path live = dir.resolve("live");
+        try (MetadataJournal journal = open(live)) {
+            int userId = new JournalUserDAO(journal).registerUser(new User("dave", "hash"));
+            new JournalFileDAO(journal).addFileMetadata(file(userId, "a", 10));
+            crashImage(live, dir.resolve("crashed"));
+        }
+        Path crashed = dir.resolve("crashed");
+        Path damaged = newestSegment(crashed);
+        byte[] bytes = Files.readAllBytes(damaged);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(damaged, bytes);
+        // A later segment makes the damaged one not the newest, so it cannot be a torn write
+        Path next = damaged.resolveSibling(String.format("journal-%08d.log", segmentNumber(damaged) + 1));
+        Files.createFile(next);
+
+        assertThrows(IOException.class, () -> open(crashed));
+    }
+
+    @Test
+    void secondOpenOfTheSameDirectoryIsRefused() throws Exception {
+        try (MetadataJournal journal = open(dir)) {
+            assertThrows(IOException.class, () -> open(dir));
+        }
+    }
+
+    private static MetadataJournal open(Path dir) throws IOException {
+        return new MetadataJournal(dir, true, NEVER, NEVER);
+    }
+
+    private static FileMetadata file(int userId, String name, long size) {
+        return new FileMetadata(userId, name, name + ".blob", "none", size, false);
+    }
+
+    /**
+     * Copies the store's files as they are on disk while it is open, which is what a crash leaves behind.
+     */
+    private static void crashImage(Path from, Path to) throws IOException {
+        Files.createDirectories(to);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(from)) {
+            for (Path file : stream) {
+                if (!file.getFileName().toString().equals("LOCK")) {
+                    Files.copy(file, to.resolve(file.getFileName()));
+                }
+            }
+        }
+    }
+
+    private static Path newestSegment(Path dir) throws IOException {
+        Path newest = null;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "journal-*.log")) {
+            for (Path file : stream) {
+                if (newest == null || segmentNumber(file) > segmentNumber(newest)) {
+                    newest = file;
+                }
+            }
+        }
+        return newest;
+    }
+
+    private static long segmentNumber(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring("journal-".length(), name.length() - ".log".length()));
+    }
+}
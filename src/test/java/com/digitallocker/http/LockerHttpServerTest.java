@@ -0,0 +1,185 @@
+package com.digitallocker.http;
+
+import com.digitallocker.service.AuthService;
+import com.digitallocker.service.FileLockerService;
+import com.digitallocker.service.TestLocker;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Each route's status codes, and the byte ranges downloads answer with, over a real socket.
+ */
+class LockerHttpServerTest {
+    private static final long QUOTA = 100_000;
+
+    @TempDir
+    static Path dir;
+
+    private static LockerHttpServer server;
+    private static HttpClient client;
+    private static String base;
+
+    @BeforeAll
+    static void startServer() throws IOException {
+        TestLocker.start(dir, Map.of("digitallocker.quota.defaultBytes", Long.toString(QUOTA)));
+        server = new LockerHttpServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                new AuthService(), new FileLockerService());
+        server.start();
+        client = HttpClient.newHttpClient();
+        base = "http://127.0.0.1:" + server.getPort();
+    }
+
+    @AfterAll
+    static void stopServer() {
+        server.stop(0);
+        TestLocker.stop();
+    }
+
+    @Test
+    void registerAndLogin() throws Exception {
+        assertEquals(201, post("/api/register", "username=alice&password=secret").statusCode());
+        assertEquals(409, post("/api/register", "username=alice&password=other").statusCode());
+        assertEquals(400, post("/api/register", "username=bob").statusCode());
+        assertEquals(405, send(request("/api/register").GET()).statusCode());
+
+        assertEquals(401, post("/api/login", "username=alice&password=wrong").statusCode());
+        assertEquals(400, post("/api/login", "password=secret").statusCode());
+        HttpResponse<byte[]> login = post("/api/login", "username=alice&password=secret");
+        assertEquals(200, login.statusCode());
+        assertTrue(field(login, "token").length() > 0);
+    }
+
+    @Test
+    void logoutEndsTheSession() throws Exception {
+        String token = login("carol");
+        assertEquals(200, send(authorized("/api/files", token).GET()).statusCode());
+        assertEquals(204, send(authorized("/api/logout", token).POST(HttpRequest.BodyPublishers.noBody())).statusCode());
+        assertEquals(401, send(authorized("/api/logout", token).POST(HttpRequest.BodyPublishers.noBody())).statusCode());
+        assertEquals(401, send(authorized("/api/files", token).GET()).statusCode());
+    }
+
+    @Test
+    void filesNeedAToken() throws Exception {
+        assertEquals(401, send(request("/api/files").GET()).statusCode());
+        assertEquals(401, send(request("/api/files/1").GET()).statusCode());
+        assertEquals(401, send(request("/api/files/1").DELETE()).statusCode());
+        assertEquals(401, send(authorized("/api/files", "not-a-token").GET()).statusCode());
+    }
+
+    @Test
+    void uploadListDownloadAndDelete() throws Exception {
+        String token = login("dave");
+        byte[] content = new byte[40_000];
+        new Random(1).nextBytes(content);
+
+        assertEquals(400, send(authorized("/api/files", token).PUT(HttpRequest.BodyPublishers.ofByteArray(content)))
+                .statusCode()); // No name
+        HttpResponse<byte[]> upload = send(authorized("/api/files?name=data.bin", token)
+                .PUT(HttpRequest.BodyPublishers.ofByteArray(content)));
+        assertEquals(201, upload.statusCode());
+        String id = field(upload, "id");
+        // Declared larger than what is left of the quota, so refused before the body is read. The JDK server
+        // drains up to 64 KiB of an unread body; past that it resets the connection instead of answering
+        int overQuota = (int) QUOTA - content.length + 1;
+        assertEquals(413, send(authorized("/api/files?name=big.bin", token)
+                .PUT(HttpRequest.BodyPublishers.ofByteArray(new byte[overQuota]))).statusCode());
+
+        HttpResponse<byte[]> list = send(authorized("/api/files", token).GET());
+        assertEquals(200, list.statusCode());
+        assertTrue(text(list).contains("\"name\":\"data.bin\""));
+        assertEquals(200, send(authorized("/api/files?q=data", token).GET()).statusCode());
+        assertEquals(400, send(authorized("/api/files?cursor=bogus", token).GET()).statusCode());
+        assertEquals(405, send(authorized("/api/files", token).DELETE()).statusCode());
+
+        HttpResponse<byte[]> whole = send(authorized("/api/files/" + id, token).GET());
+        assertEquals(200, whole.statusCode());
+        assertArrayEquals(content, whole.body());
+        assertEquals("bytes", whole.headers().firstValue("Accept-Ranges").orElse(null));
+
+        HttpResponse<byte[]> middle = download(id, token, "bytes=1000-1999");
+        assertEquals(206, middle.statusCode());
+        assertEquals("bytes 1000-1999/40000", middle.headers().firstValue("Content-Range").orElse(null));
+        assertArrayEquals(Arrays.copyOfRange(content, 1000, 2000), middle.body());
+        HttpResponse<byte[]> open = download(id, token, "bytes=39000-");
+        assertEquals(206, open.statusCode());
+        assertArrayEquals(Arrays.copyOfRange(content, 39_000, 40_000), open.body());
+        HttpResponse<byte[]> suffix = download(id, token, "bytes=-10");
+        assertEquals(206, suffix.statusCode());
+        assertArrayEquals(Arrays.copyOfRange(content, 39_990, 40_000), suffix.body());
+        HttpResponse<byte[]> unsatisfiable = download(id, token, "bytes=40000-");
+        assertEquals(416, unsatisfiable.statusCode());
+        assertEquals("bytes */40000", unsatisfiable.headers().firstValue("Content-Range").orElse(null));
+        assertEquals(200, download(id, token, "bytes=0-1,5-6").statusCode()); // Several ranges: the whole file
+
+        String other = login("erin");
+        assertEquals(404, send(authorized("/api/files/" + id, other).GET()).statusCode()); // Not the owner
+        assertEquals(404, send(authorized("/api/files/" + id, other).DELETE()).statusCode());
+        assertEquals(404, send(authorized("/api/files/abc", token).GET()).statusCode());
+        assertEquals(405, send(authorized("/api/files/" + id, token)
+                .PUT(HttpRequest.BodyPublishers.noBody())).statusCode());
+
+        assertEquals(204, send(authorized("/api/files/" + id, token).DELETE()).statusCode());
+        assertEquals(404, send(authorized("/api/files/" + id, token).GET()).statusCode());
+    }
+
+    private static String login(String username) throws Exception {
+        String form = "username=" + username + "&password=secret";
+        assertEquals(201, post("/api/register", form).statusCode());
+        return field(post("/api/login", form), "token");
+    }
+
+    private static HttpResponse<byte[]> download(String id, String token, String range) throws Exception {
+        return send(authorized("/api/files/" + id, token).header("Range", range).GET());
+    }
+
+    private static HttpResponse<byte[]> post(String path, String form) throws Exception {
+        return send(request(path).header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(form)));
+    }
+
+    private static HttpRequest.Builder authorized(String path, String token) {
+        return request(path).header("Authorization", "Bearer " + token);
+    }
+
+    private static HttpRequest.Builder request(String path) {
+        return HttpRequest.newBuilder(URI.create(base + path));
+    }
+
+    private static HttpResponse<byte[]> send(HttpRequest.Builder request) throws Exception {
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    private static String text(HttpResponse<byte[]> response) {
+        return new String(response.body(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return A string or number field of a JSON response.
+     */
+    private static String field(HttpResponse<byte[]> response, String name) {
+        Matcher m = Pattern.compile("\"" + name + "\":\"?([^\",}]*)").matcher(text(response));
+        assertTrue(m.find(), name + " missing from " + text(response));
+        return m.group(1);
+    }
+}
@@ -0,0 +1,167 @@
+package com.digitallocker.service;
+
+import com.digitallocker.dao.BlobDAO;
+import com.digitallocker.dao.JournalBlobDAO;
+import com.digitallocker.dao.MetadataJournal;
+import com.digitallocker.model.DedupStats;
+import com.digitallocker.util.CompressionCodecs;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BlobStoreTest {
+    private static final long NEVER = Long.MAX_VALUE / 2;
+    private static final int CHUNK_SIZE = 4096;
+    /** Offset and length pairs: the start, across frame and chunk boundaries, and past the end. */
+    private static final long[][] RANGES = {
+            {0, 100}, {65_000, 70_000}, {200 * 1024 - 10, 1000}, {200 * 1024 + 5, 100}};
+
+    @TempDir
+    Path dir;
+
+    private MetadataJournal journal;
+    private BlobDAO blobDAO;
+    private BlobStore store;
+
+    @BeforeEach
+    void openStore() throws IOException {
+        journal = new MetadataJournal(dir.resolve("metadata"), false, NEVER, NEVER);
+        blobDAO = new JournalBlobDAO(journal);
+        store = new BlobStore(dir.resolve("locker"), blobDAO, CompressionCodecs.NONE, CHUNK_SIZE);
+    }
+
+    @AfterEach
+    void closeStore() throws IOException {
+        journal.close();
+    }
+
+    @Test
+    void identicalContentIsStoredOnceAndKeptUntilItsLastReference() throws IOException, SQLException {
+        byte[] content = content(16 * 1024, 2);
+        BlobStore.StoredBlob first = store.store(new ByteArrayInputStream(content), null);
+        BlobStore.StoredBlob second = store.store(new ByteArrayInputStream(content), null);
+        assertEquals(first.getName(), second.getName());
+        assertFalse(first.isDeduplicated());
+        assertTrue(second.isDeduplicated());
+        assertEquals(1, stats().getBlobCount());
+        assertEquals(2, stats().getReferenceCount());
+        assertEquals(content.length, stats().getUniqueBytes());
+        assertEquals(2L * content.length, stats().getLogicalBytes());
+
+        assertFalse(store.release(first.getName()));
+        assertTrue(store.isStored(first.getName()));
+        assertEquals(content.length, readAll(second));
+        assertTrue(store.release(second.getName()));
+        assertFalse(store.isStored(second.getName()));
+        assertEquals(0, stats().getBlobCount());
+        assertEquals(0, stats().getReferenceCount());
+    }
+
+    @Test
+    void differentContentIsNotShared() throws IOException, SQLException {
+        BlobStore.StoredBlob first = store.store(new ByteArrayInputStream(content(1024, 3)), null);
+        BlobStore.StoredBlob second = store.store(new ByteArrayInputStream(content(1024, 4)), null);
+        assertFalse(first.getName().equals(second.getName()));
+        assertFalse(second.isDeduplicated());
+        assertEquals(2, stats().getBlobCount());
+
+        assertTrue(store.release(first.getName()));
+        assertTrue(store.isStored(second.getName()));
+        assertEquals(1, stats().getReferenceCount());
+    }
+
+    @Test
+    void healingALostManifestKeepsOneReferenceToEachChunk() throws IOException, SQLException {
+        byte[] content = content(64 * 1024, 1);
+        BlobStore.StoredBlob first = store.storeChunked(new ByteArrayInputStream(content), null);
+        assertTrue(first.isCreated());
+        long blobs = stats().getBlobCount();
+
+        Files.delete(store.resolve(first.getName()));
+        BlobStore.StoredBlob healed = store.storeChunked(new ByteArrayInputStream(content), null);
+        assertEquals(first.getName(), healed.getName());
+        assertFalse(healed.isCreated());
+        assertFalse(healed.isDeduplicated()); // Its content was written again
+        assertEquals(blobs, stats().getBlobCount());
+        assertEquals(content.length, readAll(healed));
+
+        // The manifest's two references are all that keep the chunks alive
+        assertFalse(store.release(first.getName()));
+        store.release(healed.getName());
+        assertEquals(0, stats().getBlobCount());
+        assertEquals(0, stats().getReferenceCount());
+    }
+
+    @Test
+    void rangesOfEncryptedContent() throws IOException, SQLException {
+        SecretKey key = key();
+        byte[] content = content(200 * 1024, 5); // Several frames, stored uncompressed
+        BlobStore.StoredBlob blob = store.store(new ByteArrayInputStream(content), key);
+        assertTrue(blob.isEncrypted());
+        assertEquals(CompressionCodecs.NONE.getName(), blob.getCodec());
+        for (long[] range : RANGES) {
+            try (InputStream in = store.openEncryptedRange(blob.getName(), key, range[0], range[1])) {
+                assertArrayEquals(slice(content, range), readUpTo(in, range[1]));
+            }
+        }
+    }
+
+    @Test
+    void rangesOfEncryptedChunkedContent() throws IOException, SQLException {
+        SecretKey key = key();
+        byte[] content = content(200 * 1024, 6);
+        BlobStore.StoredBlob blob = store.storeChunked(new ByteArrayInputStream(content), key);
+        assertTrue(BlobStore.isChunked(blob.getCodec()));
+        for (long[] range : RANGES) {
+            try (InputStream in = store.openChunkedRange(blob.getName(), key, range[0])) {
+                assertArrayEquals(slice(content, range), readUpTo(in, range[1]));
+            }
+        }
+    }
+
+    private static byte[] slice(byte[] content, long[] range) {
+        int from = (int) Math.min(content.length, range[0]);
+        return Arrays.copyOfRange(content, from, (int) Math.min(content.length, range[0] + range[1]));
+    }
+
+    private static byte[] readUpTo(InputStream in, long length) throws IOException {
+        return in.readNBytes((int) length);
+    }
+
+    private static SecretKey key() {
+        return new SecretKeySpec(content(32, 7), "AES");
+    }
+
+    private DedupStats stats() throws SQLException {
+        return blobDAO.getDedupStats();
+    }
+
+    private long readAll(BlobStore.StoredBlob blob) throws IOException {
+        try (InputStream in = store.openStream(blob.getName(), blob.getCodec(), null)) {
+            return in.readAllBytes().length;
+        }
+    }
+
+    private static byte[] content(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,244 @@
+package com.digitallocker.service;
+
+import com.digitallocker.util.FrameCipher;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ContentIndexTest {
+    private static ExecutorService executor;
+    private static FrameCipher cipher;
+
+    @TempDir
+    Path dir;
+
+    @BeforeAll
+    static void startExecutor() {
+        executor = Executors.newFixedThreadPool(2);
+        cipher = new FrameCipher(executor, 2, FrameCipher.DEFAULT_FRAME_SIZE);
+    }
+
+    @AfterAll
+    static void stopExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void searchRanksAcrossSegments() throws IOException {
+        ContentIndex index = ContentIndex.open(dir);
+        index.addSegment(List.of(doc(1, "quarterly budget report"), doc(2, "holiday photos")));
+        index.addSegment(List.of(doc(3, "budget budget budget draft")));
+        assertEquals(List.of(3, 1), ids(index.search("budget", 10)));
+        assertEquals(List.of(3), ids(index.search("budget", 1)));
+        assertEquals(List.of(), ids(index.search("missing", 10)));
+        assertEquals(3, index.getDocumentCount());
+    }
+
+    @Test
+    void deletedFilesStopMatchingAndStayDeletedAfterReopen() throws IOException {
+        ContentIndex index = ContentIndex.open(dir);
+        index.addSegment(List.of(doc(1, "alpha shared"), doc(2, "beta shared")));
+        index.delete(List.of(1, 99)); // 99 was never indexed
+        assertEquals(List.of(2), ids(index.search("shared", 10)));
+        assertEquals(1, index.getDocumentCount());
+
+        index = ContentIndex.open(dir);
+        assertEquals(List.of(2), ids(index.search("shared", 10)));
+        assertEquals(List.of(), ids(index.search("alpha", 10)));
+    }
+
+    @Test
+    void mergeDropsDeletedFilesAndKeepsTheRest() throws IOException {
+        ContentIndex index = ContentIndex.open(dir);
+        for (int i = 0; i < 5; i++) {
+            index.addSegment(List.of(doc(i, "common word" + i)));
+        }
+        index.delete(List.of(0, 2));
+        assertFalse(index.mergeIfNeeded(5));
+        assertTrue(index.mergeIfNeeded(4));
+
+        assertEquals(1, index.getSegmentCount());
+        assertEquals(1, countFiles("seg-*.idx"));
+        assertEquals(0, countFiles("deleted.*"));
+        assertEquals(List.of(1, 3, 4), sorted(ids(index.search("common", 10))));
+        assertEquals(List.of(), ids(index.search("word0", 10)));
+
+        index = ContentIndex.open(dir);
+        assertEquals(3, index.getDocumentCount());
+        assertEquals(List.of(3), ids(index.search("word3", 10)));
+    }
+
+    @Test
+    void scoresDoNotDependOnHowTheIndexIsSplit() throws IOException {
+        ContentIndex index = ContentIndex.open(dir);
+        index.addSegment(List.of(doc(1, "apple banana"), doc(2, "apple cherry cherry")));
+        index.addSegment(List.of(doc(3, "banana cherry")));
+        List<ContentIndex.Hit> before = index.search("apple cherry", 10);
+        index.mergeIfNeeded(1);
+        List<ContentIndex.Hit> after = index.search("apple cherry", 10);
+        assertEquals(ids(before), ids(after));
+        for (int i = 0; i < before.size(); i++) {
+            assertEquals(before.get(i).getScore(), after.get(i).getScore(), 1e-9);
+        }
+    }
+
+    @Test
+    void fileIndexedAgainReplacesItsEarlierText() throws IOException {
+        ContentIndex index = ContentIndex.open(dir);
+        index.addSegment(List.of(doc(1, "draft text"), doc(2, "other text")));
+        index.addSegment(List.of(doc(1, "final text")));
+        assertEquals(List.of(), ids(index.search("draft", 10)));
+        assertEquals(List.of(1), ids(index.search("final", 10)));
+        assertEquals(2, index.search("text", 10).size()); // Not counted twice
+        assertEquals(2, index.getDocumentCount());
+
+        index = ContentIndex.open(dir);
+        assertEquals(List.of(), ids(index.search("draft", 10)));
+        assertEquals(2, index.getDocumentCount());
+        index.mergeIfNeeded(1);
+        assertEquals(List.of(1), ids(index.search("final", 10)));
+        assertEquals(List.of(), ids(index.search("draft", 10)));
+    }
+
+    @Test
+    void fileIndexedAgainAfterItsDeletionMatchesAgain() throws IOException {
+        ContentIndex index = ContentIndex.open(dir);
+        index.addSegment(List.of(doc(1, "old words")));
+        index.delete(List.of(1));
+        index.addSegment(List.of(doc(1, "new words")));
+        assertEquals(List.of(1), ids(index.search("new", 10)));
+        assertEquals(List.of(), ids(index.search("old", 10)));
+
+        index = ContentIndex.open(dir);
+        assertEquals(List.of(1), ids(index.search("words", 10)));
+        assertEquals(1, index.getDocumentCount());
+    }
+
+    @Test
+    void encryptedIndexLeavesNoPlaintextOnDisk() throws IOException {
+        SecretKey key = key(1);
+        ContentIndex index = ContentIndex.open(dir, key, cipher);
+        index.addSegment(List.of(doc(1, "confidential salary figures"), doc(2, "public notes")));
+        index.delete(List.of(2));
+        assertFalse(diskContains("confidential"));
+        assertFalse(diskContains("salary"));
+
+        index = ContentIndex.open(dir, key, cipher);
+        assertEquals(List.of(1), ids(index.search("salary", 10)));
+        assertEquals(List.of(), ids(index.search("public", 10)));
+    }
+
+    @Test
+    void encryptedIndexIsUnreadableWithoutItsKey() throws IOException {
+        ContentIndex index = ContentIndex.open(dir, key(1), cipher);
+        index.addSegment(List.of(doc(1, "secret")));
+        // Damaged or foreign segments are skipped rather than failing the search
+        assertEquals(List.of(), ids(ContentIndex.open(dir, key(2), cipher).search("secret", 10)));
+        assertEquals(List.of(), ids(ContentIndex.open(dir).search("secret", 10)));
+    }
+
+    @Test
+    void plaintextIndexIsRewrittenEncrypted() throws IOException {
+        ContentIndex index = ContentIndex.open(dir);
+        index.addSegment(List.of(doc(1, "legacy plaintext"), doc(2, "gone")));
+        index.delete(List.of(2));
+        assertTrue(diskContains("legacy"));
+
+        SecretKey key = key(1);
+        index = ContentIndex.open(dir, key, cipher);
+        assertTrue(index.encryptPlaintext());
+        assertFalse(index.encryptPlaintext());
+        assertFalse(diskContains("legacy"));
+        assertEquals(0, countFiles("deleted.log"));
+        assertEquals(List.of(1), ids(ContentIndex.open(dir, key, cipher).search("legacy", 10)));
+    }
+
+    @Test
+    void tornDeletionRecordIsCutOff() throws IOException {
+        SecretKey key = key(1);
+        ContentIndex index = ContentIndex.open(dir, key, cipher);
+        index.addSegment(List.of(doc(1, "one"), doc(2, "two"), doc(3, "three")));
+        index.delete(List.of(1));
+        Path log = dir.resolve("deleted.enc");
+        long valid = Files.size(log);
+        Files.write(log, new byte[]{0, 0, 0, 60, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        index = ContentIndex.open(dir, key, cipher);
+        assertEquals(valid, Files.size(log));
+        index.delete(List.of(2));
+        index = ContentIndex.open(dir, key, cipher);
+        assertEquals(List.of(3), ids(index.search("one two three", 10)));
+    }
+
+    private static ContentIndex.Document doc(int fileId, String text) {
+        return new ContentIndex.Document(fileId, text);
+    }
+
+    private static List<Integer> ids(List<ContentIndex.Hit> hits) {
+        List<Integer> ids = new ArrayList<>();
+        for (ContentIndex.Hit hit : hits) {
+            ids.add(hit.getFileId());
+        }
+        return ids;
+    }
+
+    private static List<Integer> sorted(List<Integer> ids) {
+        List<Integer> copy = new ArrayList<>(ids);
+        copy.sort(null);
+        return copy;
+    }
+
+    private int countFiles(String glob) throws IOException {
+        int count = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, glob)) {
+            for (Path ignored : stream) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private boolean diskContains(String word) throws IOException {
+        byte[] needle = word.getBytes(StandardCharsets.UTF_8);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path file : stream) {
+                byte[] data = Files.readAllBytes(file);
+                for (int i = 0; i + needle.length <= data.length; i++) {
+                    int j = 0;
+                    while (j < needle.length && data[i + j] == needle[j]) {
+                        j++;
+                    }
+                    if (j == needle.length) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static SecretKey key(int seed) {
+        byte[] key = new byte[32];
+        new Random(seed).nextBytes(key);
+        return new SecretKeySpec(key, "AES");
+    }
+}
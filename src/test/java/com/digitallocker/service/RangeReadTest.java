@@ -0,0 +1,121 @@
+package com.digitallocker.service;
+
+import com.digitallocker.model.FileMetadata;
+import com.digitallocker.util.CompressionCodecs;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Byte ranges of unencrypted content; BlobStoreTest covers the encrypted and chunked streams the
+ * ranges are read through when encryption is on.
+ */
+class RangeReadTest {
+    private static final int SIZE = 200 * 1024;
+
+    @TempDir
+    static Path dir;
+
+    private static int userId;
+    private static FileLockerService service;
+
+    @BeforeAll
+    static void openLocker() throws SQLException {
+        TestLocker.start(dir, Map.of("digitallocker.encryption.enabled", "false"));
+        userId = TestLocker.registerUser("ranger");
+        service = new FileLockerService();
+    }
+
+    @AfterAll
+    static void closeLocker() {
+        TestLocker.stop();
+    }
+
+    @Test
+    void rangesOfPlainContent() throws IOException {
+        byte[] content = random(SIZE, 1);
+        FileMetadata file = upload("plain.bin", content);
+        assertEquals(CompressionCodecs.NONE.getName(), file.getCodec());
+        checkRanges(file, content);
+    }
+
+    @Test
+    void rangesOfCompressedContent() throws IOException {
+        byte[] content = text(SIZE);
+        FileMetadata file = upload("compressed.txt", content);
+        assertNotEquals(CompressionCodecs.NONE.getName(), file.getCodec());
+        checkRanges(file, content);
+    }
+
+    @Test
+    void rangesOfChunkedContent() throws IOException {
+        upload("chunked.bin", random(SIZE, 2));
+        byte[] content = random(SIZE, 3);
+        FileMetadata file = upload("chunked.bin", content); // A new version is stored as chunks
+        assertTrue(BlobStore.isChunked(file.getCodec()));
+        checkRanges(file, content);
+    }
+
+    private static void checkRanges(FileMetadata file, byte[] content) {
+        assertArrayEquals(Arrays.copyOfRange(content, 0, 100), range(file, 0, 100));
+        assertArrayEquals(Arrays.copyOfRange(content, 70_000, 150_000), range(file, 70_000, 80_000));
+        assertArrayEquals(Arrays.copyOfRange(content, SIZE - 10, SIZE), range(file, SIZE - 10, 1000));
+        assertArrayEquals(content, range(file, 0, Long.MAX_VALUE));
+        assertArrayEquals(new byte[0], range(file, SIZE + 5, 100));
+        assertArrayEquals(new byte[0], range(file, 1000, 0));
+        assertEquals(-1, service.retrieveFileRange(file.getId(), userId, -1, 10,
+                Channels.newChannel(new ByteArrayOutputStream())));
+        assertEquals(-1, service.retrieveFileRange(file.getId(), userId + 1, 0, 10,
+                Channels.newChannel(new ByteArrayOutputStream()))); // Not the owner
+    }
+
+    private static byte[] range(FileMetadata file, long offset, long length) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long written = service.retrieveFileRange(file.getId(), userId, offset, length, Channels.newChannel(out));
+        assertEquals(out.size(), written);
+        return out.toByteArray();
+    }
+
+    private static FileMetadata upload(String name, byte[] content) throws IOException {
+        Path source = dir.resolve(name);
+        Files.write(source, content);
+        assertTrue(service.uploadFile(userId, source.toFile()));
+        for (FileMetadata file : service.getUserFiles(userId)) {
+            if (file.getOriginalFilename().equals(name)) {
+                return file;
+            }
+        }
+        throw new AssertionError(name + " was not uploaded");
+    }
+
+    private static byte[] random(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] text(int size) {
+        StringBuilder text = new StringBuilder(size);
+        for (int line = 0; text.length() < size; line++) {
+            text.append("Line ").append(line).append(" of a log that compresses well.\n");
+        }
+        return text.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+}
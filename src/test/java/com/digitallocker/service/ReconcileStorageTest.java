@@ -0,0 +1,101 @@
+package com.digitallocker.service;
+
+import com.digitallocker.dao.DAOFactory;
+import com.digitallocker.model.FileMetadata;
+import com.digitallocker.model.ReconcileReport;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReconcileStorageTest {
+    private static final long GRACE_MS = 60_000;
+
+    @TempDir
+    static Path dir;
+
+    private static int userId;
+    private static FileLockerService service;
+    private static BlobStore store; // The same directory, for content no row refers to
+
+    @BeforeAll
+    static void openLocker() throws SQLException {
+        TestLocker.start(dir, Map.of("digitallocker.reconcile.graceMs", Long.toString(GRACE_MS)));
+        userId = TestLocker.registerUser("reconciler");
+        service = new FileLockerService();
+        store = new BlobStore(TestLocker.lockerDir(), DAOFactory.getBlobDAO());
+    }
+
+    @AfterAll
+    static void closeLocker() {
+        TestLocker.stop();
+    }
+
+    @Test
+    void dryRunReportsWhatRepairThenFixes() throws IOException, SQLException {
+        upload("kept.txt", "content that stays");
+        FileMetadata lost = upload("lost.txt", "content lost from disk");
+        Files.delete(BlobStore.shardedPath(TestLocker.lockerDir(), lost.getStoredFilename()));
+        // A crash after storing content and before saving its row, long enough ago to be an orphan
+        String orphan = store.store(bytes("content nobody saved"), null).getName();
+        Path orphanPath = BlobStore.shardedPath(TestLocker.lockerDir(), orphan);
+        Files.setLastModifiedTime(orphanPath, FileTime.fromMillis(System.currentTimeMillis() - 2 * GRACE_MS));
+        // Stored moments ago: its row may still be on its way
+        String recent = store.store(bytes("content being uploaded"), null).getName();
+
+        ReconcileReport dryRun = service.reconcileStorage(false);
+        assertFalse(dryRun.isRepair());
+        assertEquals(1, dryRun.getOrphanBlobs());
+        assertEquals(List.of(orphan), dryRun.getOrphanSamples());
+        assertEquals(1, dryRun.getRecentBlobsSkipped());
+        assertEquals(1, dryRun.getRowsWithMissingBlob());
+        assertEquals(0, dryRun.getBlobsDeleted());
+        assertEquals(0, dryRun.getRowsDeleted());
+        // Nothing was touched
+        assertTrue(Files.exists(orphanPath));
+        assertEquals(2, service.getUserFiles(userId).size());
+
+        ReconcileReport repair = service.reconcileStorage(true);
+        assertTrue(repair.isRepair());
+        assertEquals(1, repair.getBlobsDeleted());
+        assertEquals(1, repair.getRowsDeleted());
+        assertEquals(0, repair.getFailed());
+        assertFalse(Files.exists(orphanPath));
+        assertTrue(store.isStored(recent));
+        List<FileMetadata> files = service.getUserFiles(userId);
+        assertEquals(1, files.size());
+        assertEquals("kept.txt", files.get(0).getOriginalFilename());
+
+        assertTrue(service.reconcileStorage(false).isConsistent());
+    }
+
+    private static FileMetadata upload(String name, String content) throws IOException {
+        Path source = dir.resolve(name);
+        Files.write(source, content.getBytes(StandardCharsets.UTF_8));
+        assertTrue(service.uploadFile(userId, source.toFile()));
+        for (FileMetadata file : service.getUserFiles(userId)) {
+            if (file.getOriginalFilename().equals(name)) {
+                return file;
+            }
+        }
+        throw new AssertionError(name + " was not uploaded");
+    }
+
+    private static ByteArrayInputStream bytes(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,119 @@
+package com.digitallocker.service;
+
+import com.digitallocker.model.FileMetadata;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Ranged retrievals, which the HTTP server serves, check stored content and repair it from the replica
+ * like retrievals to a file do.
+ */
+class RetrieveFileRangeTest {
+    private static final int SIZE = 300 * 1024; // Several encrypted frames
+
+    @TempDir
+    static Path dir;
+
+    private static int userId;
+    private static FileLockerService service;
+
+    @BeforeAll
+    static void openLocker() throws SQLException {
+        TestLocker.start(dir, Map.of(
+                "digitallocker.retrieve.verifyChecksum", "true",
+                "digitallocker.replication.dir", dir.resolve("replica").toString()));
+        userId = TestLocker.registerUser("reader");
+        service = new FileLockerService();
+    }
+
+    @AfterAll
+    static void closeLocker() {
+        FileLockerService.getReplicator().stop();
+        TestLocker.stop();
+    }
+
+    @Test
+    void damageFoundBeforeAnyByteIsSentIsRepairedAndServed() throws Exception {
+        byte[] content = content(1);
+        FileMetadata file = upload("early.bin", content);
+        damage(file, 100); // In the first frame
+
+        assertArrayEquals(Arrays.copyOfRange(content, 0, 1000), range(file, 0, 1000));
+        assertArrayEquals(content, range(file, 0, Long.MAX_VALUE));
+    }
+
+    @Test
+    void damageFoundAfterTheRangeIsSentFailsTheRetrievalAndIsRepaired() throws Exception {
+        byte[] content = content(2);
+        FileMetadata file = upload("late.bin", content);
+        damage(file, SIZE - 100); // Past the range, in the last frame
+
+        // The range has gone out before the checksum is compared, so it is not sent again
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(-1, service.retrieveFileRange(file.getId(), userId, 0, 1000, Channels.newChannel(out)));
+        assertArrayEquals(Arrays.copyOfRange(content, 0, 1000), range(file, 0, 1000));
+        assertArrayEquals(content, range(file, 0, Long.MAX_VALUE));
+    }
+
+    private static FileMetadata upload(String name, byte[] content) throws Exception {
+        Path source = dir.resolve(name);
+        Files.write(source, content);
+        assertTrue(service.uploadFile(userId, source.toFile()));
+        awaitReplication();
+        for (FileMetadata file : service.getUserFiles(userId)) {
+            if (file.getOriginalFilename().equals(name)) {
+                return file;
+            }
+        }
+        throw new AssertionError(name + " was not uploaded");
+    }
+
+    private static byte[] range(FileMetadata file, long offset, long length) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel target = Channels.newChannel(out);
+        long written = service.retrieveFileRange(file.getId(), userId, offset, length, target);
+        assertEquals(out.size(), written);
+        return out.toByteArray();
+    }
+
+    /**
+     * Flips one stored byte, keeping the size, as a failing disk would.
+     */
+    private static void damage(FileMetadata file, int at) throws IOException {
+        Path stored = BlobStore.shardedPath(TestLocker.lockerDir(), file.getStoredFilename());
+        byte[] bytes = Files.readAllBytes(stored);
+        bytes[at] ^= 1;
+        Files.write(stored, bytes);
+    }
+
+    private static void awaitReplication() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (FileLockerService.getReplicator().getBacklog() > 0) {
+            assertTrue(System.currentTimeMillis() < deadline, "replication did not catch up");
+            Thread.sleep(20);
+        }
+    }
+
+    private static byte[] content(long seed) {
+        byte[] bytes = new byte[SIZE];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
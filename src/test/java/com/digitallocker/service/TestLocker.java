@@ -0,0 +1,74 @@
+package com.digitallocker.service;
+
+import com.digitallocker.dao.DAOFactory;
+import com.digitallocker.model.User;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A locker of its own under a temporary directory, on the journal metadata backend, so service and
+ * HTTP tests need no MySQL server. FileLockerService and DAOFactory read these properties once, when they are
+ * first used, so {@link #start} must run before that; every test class gets a fresh JVM for this
+ * (see the surefire configuration in pom.xml).
+ */
+public final class TestLocker {
+    private static final List<String> SET = new ArrayList<>();
+    private static Path root;
+
+    private TestLocker() {
+    }
+
+    public static void start(Path dir) {
+        start(dir, Map.of());
+    }
+
+    /**
+     * @param dir The directory holding the locker, its metadata and its keys.
+     * @param extra Further digitallocker.* properties for the test class, e.g. a replication directory.
+     */
+    public static void start(Path dir, Map<String, String> extra) {
+        root = dir;
+        set("digitallocker.metadata.backend", "journal");
+        set("digitallocker.metadata.dir", dir.resolve("metadata").toString());
+        set("digitallocker.metadata.fsync", "false");
+        set("digitallocker.storage.dir", lockerDir().toString());
+        set("digitallocker.encryption.masterKeyFile", dir.resolve("master.key").toString());
+        set("digitallocker.contentIndex.enabled", "false");
+        set("digitallocker.scrub.enabled", "false");
+        set("digitallocker.migration.onStartup", "false");
+        for (Map.Entry<String, String> property : extra.entrySet()) {
+            set(property.getKey(), property.getValue());
+        }
+    }
+
+    /**
+     * Closes the metadata journal and clears the properties {@link #start} set.
+     */
+    public static void stop() {
+        DAOFactory.shutdown();
+        for (String name : SET) {
+            System.clearProperty(name);
+        }
+        SET.clear();
+    }
+
+    /**
+     * @return The directory the service stores blobs in.
+     */
+    public static Path lockerDir() {
+        return root.resolve("locker");
+    }
+
+    public static int registerUser(String username) throws SQLException {
+        return DAOFactory.getUserDAO().registerUser(new User(username, "hash"));
+    }
+
+    private static void set(String name, String value) {
+        System.setProperty(name, value);
+        SET.add(name);
+    }
+}
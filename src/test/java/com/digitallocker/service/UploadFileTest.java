@@ -0,0 +1,66 @@
+package com.digitallocker.service;
+
+import com.digitallocker.dao.BlobDAO;
+import com.digitallocker.dao.DAOFactory;
+import com.digitallocker.model.DedupStats;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UploadFileTest {
+    @TempDir
+    static Path dir;
+
+    private static int userId;
+    private static BlobDAO blobDAO;
+    private static FileLockerService service;
+
+    @BeforeAll
+    static void openLocker() throws SQLException {
+        TestLocker.start(dir);
+        userId = TestLocker.registerUser("uploader");
+        blobDAO = DAOFactory.getBlobDAO();
+        // Re-reading the current content for a new version is interrupted, after the new content is stored
+        BlobStore failing = new BlobStore(TestLocker.lockerDir(), blobDAO) {
+            @Override
+            public InputStream openVerifiedStream(String storedName, String codec, SecretKey key) throws IOException {
+                throw new ClosedByInterruptException();
+            }
+        };
+        service = new FileLockerService(DAOFactory.getFileDAO(), failing);
+    }
+
+    @AfterAll
+    static void closeLocker() {
+        TestLocker.stop();
+    }
+
+    @Test
+    void contentStoredBeforeAFailureIsReleased() throws IOException, SQLException {
+        Path source = dir.resolve("report.txt");
+        Files.write(source, "first draft".getBytes(StandardCharsets.UTF_8));
+        assertTrue(service.uploadFile(userId, source.toFile()));
+        DedupStats before = blobDAO.getDedupStats();
+
+        Files.write(source, "second draft, rewritten from the top".getBytes(StandardCharsets.UTF_8));
+        assertFalse(service.uploadFile(userId, source.toFile()));
+        DedupStats after = blobDAO.getDedupStats();
+        assertEquals(before.getBlobCount(), after.getBlobCount());
+        assertEquals(before.getReferenceCount(), after.getReferenceCount());
+        assertEquals(1, service.getUserFiles(userId).size());
+    }
+}
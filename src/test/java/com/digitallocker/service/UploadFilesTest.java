@@ -0,0 +1,73 @@
+package com.digitallocker.service;
+
+import com.digitallocker.model.FileMetadata;
+import com.digitallocker.model.FileVersion;
+import com.digitallocker.model.UploadResult;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UploadFilesTest {
+    @TempDir
+    static Path dir;
+
+    private static int userId;
+    private static FileLockerService service;
+
+    @BeforeAll
+    static void openLocker() throws SQLException {
+        TestLocker.start(dir);
+        userId = TestLocker.registerUser("batcher");
+        service = new FileLockerService();
+    }
+
+    @AfterAll
+    static void closeLocker() {
+        TestLocker.stop();
+    }
+
+    @Test
+    void filesSharingANameBecomeVersionsOfOneFile() throws IOException {
+        File first = write("a", "notes.txt", "first notes");
+        File other = write("a", "other.txt", "something else");
+        File second = write("b", "notes.txt", "second notes, longer");
+        File third = write("c", "notes.txt", "third");
+
+        List<UploadResult> results = service.uploadFiles(userId, List.of(first, other, second, third));
+        for (UploadResult result : results) {
+            assertTrue(result.isSuccess(), result.getErrorMessage());
+        }
+        int fileId = results.get(0).getFileId();
+        assertEquals(fileId, results.get(2).getFileId());
+        assertEquals(fileId, results.get(3).getFileId());
+
+        List<FileMetadata> files = service.getUserFiles(userId);
+        assertEquals(2, files.size()); // One live notes.txt, not three
+        List<FileVersion> versions = service.getFileVersions(fileId, userId);
+        assertEquals(3, versions.size()); // The current one and the two it replaced
+
+        // The last file of the batch is the current content
+        Path retrieved = dir.resolve("retrieved.txt");
+        assertTrue(service.retrieveFile(fileId, userId, retrieved));
+        assertArrayEquals("third".getBytes(StandardCharsets.UTF_8), Files.readAllBytes(retrieved));
+    }
+
+    private static File write(String subdir, String name, String content) throws IOException {
+        Path file = Files.createDirectories(dir.resolve(subdir)).resolve(name);
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return file.toFile();
+    }
+}
@@ -0,0 +1,106 @@
+package com.digitallocker.service;
+
+import com.digitallocker.dao.BlobDAO;
+import com.digitallocker.dao.DAOFactory;
+import com.digitallocker.model.UploadResult;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UploadQuotaTest {
+    private static final long QUOTA = 10_000;
+
+    @TempDir
+    static Path dir;
+
+    private static final AtomicInteger STORES = new AtomicInteger();
+    private static BlobDAO blobDAO;
+    private static FileLockerService service;
+    private static int written;
+
+    @BeforeAll
+    static void openLocker() {
+        TestLocker.start(dir, Map.of("digitallocker.quota.defaultBytes", Long.toString(QUOTA)));
+        blobDAO = DAOFactory.getBlobDAO();
+        // Counts every copy into the store, so a rejected upload can be shown to have copied nothing
+        BlobStore counting = new BlobStore(TestLocker.lockerDir(), blobDAO) {
+            @Override
+            public StoredBlob store(InputStream in, SecretKey key) throws IOException, SQLException {
+                STORES.incrementAndGet();
+                return super.store(in, key);
+            }
+
+            @Override
+            public StoredBlob storeChunked(InputStream in, SecretKey key) throws IOException, SQLException {
+                STORES.incrementAndGet();
+                return super.storeChunked(in, key);
+            }
+        };
+        service = new FileLockerService(DAOFactory.getFileDAO(), counting);
+    }
+
+    @AfterAll
+    static void closeLocker() {
+        TestLocker.stop();
+    }
+
+    @Test
+    void uploadOverTheQuotaIsRejectedBeforeItIsCopied() throws IOException, SQLException {
+        int userId = TestLocker.registerUser("single");
+        assertTrue(service.uploadFile(userId, write("fits.bin", 6_000)));
+        int stores = STORES.get();
+
+        assertFalse(service.uploadFile(userId, write("too-big.bin", 5_000)));
+        assertEquals(stores, STORES.get());
+        assertEquals(1, blobDAO.getDedupStats().getBlobCount());
+        assertEquals(1, service.getUserFiles(userId).size());
+        assertEquals(6_000, service.getStorageUsage(userId).getUsedBytes());
+    }
+
+    @Test
+    void batchOverTheQuotaIsRejectedWhole() throws IOException, SQLException {
+        int userId = TestLocker.registerUser("batch");
+        int stores = STORES.get();
+        long blobs = blobDAO.getDedupStats().getBlobCount();
+
+        // Each file fits on its own; together they do not
+        List<UploadResult> results = service.uploadFiles(userId,
+                List.of(write("a.bin", 6_000), write("b.bin", 6_000)));
+        for (UploadResult result : results) {
+            assertFalse(result.isSuccess());
+        }
+        assertEquals(stores, STORES.get());
+        assertEquals(blobs, blobDAO.getDedupStats().getBlobCount());
+        assertEquals(0, service.getUserFiles(userId).size());
+    }
+
+    /**
+     * Writes a file of distinct content, so no upload is deduplicated against another.
+     */
+    private static File write(String name, int size) throws IOException {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) (i * 31 + written * 7 + (i >> 8));
+        }
+        written++;
+        Path file = Files.createDirectories(dir.resolve("source")).resolve(name);
+        Files.write(file, bytes);
+        return file.toFile();
+    }
+}
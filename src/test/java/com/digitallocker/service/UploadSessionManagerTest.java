@@ -0,0 +1,113 @@
+package com.digitallocker.service;
+
+import com.digitallocker.model.UploadSession;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UploadSessionManagerTest {
+    private static final long HOUR = 3_600_000L; // No session expires during a test
+    private static final int CHUNK_SIZE = 1024;
+    private static final long NO_QUOTA = Long.MAX_VALUE;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void resumeAfterARestartContinuesFromTheLastDurableChunk() throws IOException {
+        byte[] content = content(CHUNK_SIZE * 2 + 100, 1);
+        UploadSessionManager sessions = manager();
+        UploadSession session = sessions.open(1, "big.bin", CHUNK_SIZE);
+        String id = session.getSessionId();
+        sessions.appendChunk(id, 1, 0, chunk(content, 0), NO_QUOTA);
+        // The process died halfway through appending the next chunk
+        Files.write(sessions.dataFile(id), Arrays.copyOfRange(content, CHUNK_SIZE, CHUNK_SIZE + 300),
+                StandardOpenOption.APPEND);
+
+        UploadSessionManager restarted = manager();
+        UploadSession resumed = restarted.resume(id, 1);
+        assertEquals(1, resumed.getCommittedChunks());
+        assertEquals(CHUNK_SIZE, resumed.getCommittedBytes());
+        assertEquals(CHUNK_SIZE, Files.size(restarted.dataFile(id)));
+
+        restarted.appendChunk(id, 1, 1, chunk(content, 1), NO_QUOTA);
+        UploadSession done = restarted.appendChunk(id, 1, 2, chunk(content, 2), NO_QUOTA);
+        assertTrue(done.isFinalChunkReceived());
+        assertEquals(content.length, done.getCommittedBytes());
+        assertArrayEquals(content, Files.readAllBytes(restarted.dataFile(id)));
+    }
+
+    @Test
+    void duplicateChunkDeliveryIsIgnored() throws IOException {
+        byte[] content = content(CHUNK_SIZE * 2, 2);
+        UploadSessionManager sessions = manager();
+        String id = sessions.open(1, "retried.bin", CHUNK_SIZE).getSessionId();
+        sessions.appendChunk(id, 1, 0, chunk(content, 0), NO_QUOTA);
+        // The client timed out waiting for the answer and sends chunk 0 again, with whatever bytes
+        UploadSession again = sessions.appendChunk(id, 1, 0, new ByteArrayInputStream(content(CHUNK_SIZE, 3)),
+                NO_QUOTA);
+        assertEquals(1, again.getCommittedChunks());
+        assertEquals(CHUNK_SIZE, Files.size(sessions.dataFile(id)));
+
+        sessions.appendChunk(id, 1, 1, chunk(content, 1), NO_QUOTA);
+        assertArrayEquals(content, Files.readAllBytes(sessions.dataFile(id)));
+    }
+
+    @Test
+    void oversizeAndOutOfOrderChunksAreRejected() throws IOException {
+        UploadSessionManager sessions = manager();
+        String id = sessions.open(1, "strict.bin", CHUNK_SIZE).getSessionId();
+
+        assertThrows(IOException.class, () -> sessions.appendChunk(id, 1, 0,
+                new ByteArrayInputStream(content(CHUNK_SIZE + 1, 4)), NO_QUOTA));
+        assertThrows(IOException.class, () -> sessions.appendChunk(id, 1, 1,
+                new ByteArrayInputStream(content(CHUNK_SIZE, 5)), NO_QUOTA));
+        // Nothing of either was kept, so the session still starts at chunk 0
+        UploadSession session = sessions.resume(id, 1);
+        assertEquals(0, session.getCommittedChunks());
+        assertEquals(0, Files.size(sessions.dataFile(id)));
+
+        // A chunk that would go past the quota is refused the same way
+        assertThrows(IOException.class, () -> sessions.appendChunk(id, 1, 0,
+                new ByteArrayInputStream(content(CHUNK_SIZE, 6)), CHUNK_SIZE / 2));
+        assertEquals(0, Files.size(sessions.dataFile(id)));
+    }
+
+    @Test
+    void sessionsBelongToTheUserWhoOpenedThem() throws IOException {
+        UploadSessionManager sessions = manager();
+        String id = sessions.open(1, "mine.bin", CHUNK_SIZE).getSessionId();
+        assertThrows(IOException.class, () -> sessions.appendChunk(id, 2, 0,
+                new ByteArrayInputStream(content(10, 7)), NO_QUOTA));
+        assertThrows(IOException.class, () -> sessions.resume(id, 2));
+        assertEquals(1, sessions.listSessions(1).size());
+        assertEquals(0, sessions.listSessions(2).size());
+    }
+
+    private UploadSessionManager manager() {
+        return new UploadSessionManager(dir, HOUR, HOUR);
+    }
+
+    private static ByteArrayInputStream chunk(byte[] content, int index) {
+        int from = index * CHUNK_SIZE;
+        return new ByteArrayInputStream(Arrays.copyOfRange(content, from, Math.min(content.length, from + CHUNK_SIZE)));
+    }
+
+    private static byte[] content(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
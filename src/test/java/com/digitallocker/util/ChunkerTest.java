@@ -0,0 +1,136 @@
+package com.digitallocker.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChunkerTest {
+    private static final int AVERAGE = 4096;
+
+    @Test
+    void chunksJoinBackToTheInput() throws IOException {
+        byte[] data = random(1 << 20, 1);
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (byte[] chunk : chunk(new ByteArrayInputStream(data))) {
+            joined.write(chunk);
+        }
+        assertArrayEquals(data, joined.toByteArray());
+    }
+
+    @Test
+    void chunkSizesStayWithinBounds() throws IOException {
+        List<byte[]> chunks = chunk(new ByteArrayInputStream(random(1 << 20, 2)));
+        long total = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            int length = chunks.get(i).length;
+            total += length;
+            assertTrue(length <= 4 * AVERAGE, "chunk " + i + " is " + length + " bytes");
+            if (i < chunks.size() - 1) {
+                assertTrue(length >= AVERAGE / 4, "chunk " + i + " is " + length + " bytes");
+            }
+        }
+        double average = (double) total / chunks.size();
+        assertTrue(average > AVERAGE / 2.0 && average < AVERAGE * 2.0, "average chunk is " + average + " bytes");
+    }
+
+    @Test
+    void boundariesDoNotDependOnHowTheStreamIsRead() throws IOException {
+        byte[] data = random(256 * 1024, 3);
+        List<byte[]> whole = chunk(new ByteArrayInputStream(data));
+        List<byte[]> trickled = chunk(new TrickleInputStream(new ByteArrayInputStream(data)));
+        assertEquals(whole.size(), trickled.size());
+        for (int i = 0; i < whole.size(); i++) {
+            assertArrayEquals(whole.get(i), trickled.get(i));
+        }
+    }
+
+    @Test
+    void insertionOnlyChangesTheChunksAroundIt() throws IOException {
+        byte[] original = random(1 << 20, 4);
+        byte[] edited = new byte[original.length + 100];
+        int at = original.length / 2;
+        System.arraycopy(original, 0, edited, 0, at);
+        System.arraycopy(random(100, 5), 0, edited, at, 100);
+        System.arraycopy(original, at, edited, at + 100, original.length - at);
+
+        List<byte[]> before = chunk(new ByteArrayInputStream(original));
+        List<byte[]> after = chunk(new ByteArrayInputStream(edited));
+        Set<ByteBuffer> beforeSet = new HashSet<>();
+        for (byte[] chunk : before) {
+            beforeSet.add(ByteBuffer.wrap(chunk));
+        }
+        int changed = 0;
+        for (byte[] chunk : after) {
+            if (!beforeSet.contains(ByteBuffer.wrap(chunk))) {
+                changed++;
+            }
+        }
+        // Only the chunk holding the insertion, and at most the one after it, are new
+        assertTrue(changed >= 1 && changed <= 2, changed + " of " + after.size() + " chunks changed");
+    }
+
+    @Test
+    void deletionAtTheStartRealignsLaterChunks() throws IOException {
+        byte[] original = random(1 << 20, 6);
+        byte[] edited = new byte[original.length - 10];
+        System.arraycopy(original, 10, edited, 0, edited.length);
+
+        List<byte[]> before = chunk(new ByteArrayInputStream(original));
+        List<byte[]> after = chunk(new ByteArrayInputStream(edited));
+        for (int i = 1; i <= 5; i++) {
+            // Count from the end, which the edit did not touch
+            assertArrayEquals(before.get(before.size() - i), after.get(after.size() - i));
+        }
+    }
+
+    @Test
+    void emptyStreamHasNoChunks() throws IOException {
+        Chunker chunker = new Chunker(new ByteArrayInputStream(new byte[0]), AVERAGE);
+        assertEquals(-1, chunker.nextChunk(new byte[chunker.getMaxSize()]));
+    }
+
+    private static List<byte[]> chunk(InputStream in) throws IOException {
+        Chunker chunker = new Chunker(in, AVERAGE);
+        byte[] buffer = new byte[chunker.getMaxSize()];
+        List<byte[]> chunks = new ArrayList<>();
+        int length;
+        while ((length = chunker.nextChunk(buffer)) != -1) {
+            byte[] chunk = new byte[length];
+            System.arraycopy(buffer, 0, chunk, 0, length);
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    private static byte[] random(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    /** Hands out at most 7 bytes per read, as a slow socket might. */
+    private static final class TrickleInputStream extends FilterInputStream {
+        TrickleInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return in.read(b, off, Math.min(len, 7));
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.digitallocker.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConnectionPoolTest {
+    private static final String URL = "jdbc:h2:mem:pool-test;DB_CLOSE_DELAY=-1";
+    private static final String SELECT = "SELECT n FROM numbers ORDER BY n";
+
+    private ConnectionPool pool;
+
+    @BeforeEach
+    void createTable() throws SQLException {
+        pool = new ConnectionPool(URL, "sa", "", 0, 2, 200, 600_000, 5_000, 2);
+        try (Connection conn = pool.borrow(); Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS numbers (n INT)");
+            stmt.execute("DELETE FROM numbers");
+            stmt.execute("INSERT INTO numbers VALUES (1), (2), (3), (4), (5)");
+        }
+    }
+
+    @AfterEach
+    void shutdown() {
+        pool.shutdown();
+    }
+
+    @Test
+    void closedConnectionIsReused() throws SQLException {
+        Connection first = pool.borrow();
+        Connection physical = first.unwrap(Connection.class);
+        first.close();
+        try (Connection second = pool.borrow()) {
+            assertEquals(physical, second.unwrap(Connection.class));
+        }
+        PoolStats stats = pool.getStats();
+        assertEquals(1, stats.getCreatedCount());
+        assertEquals(0, stats.getActiveConnections());
+        assertEquals(1, stats.getIdleConnections());
+    }
+
+    @Test
+    void borrowTimesOutWhenThePoolIsExhausted() throws SQLException {
+        try (Connection a = pool.borrow(); Connection b = pool.borrow()) {
+            assertThrows(SQLTransientConnectionException.class, pool::borrow);
+        }
+        assertEquals(1, pool.getStats().getBorrowTimeouts());
+        pool.borrow().close(); // Both came back
+    }
+
+    @Test
+    void openTransactionIsRolledBackOnReturn() throws SQLException {
+        try (Connection conn = pool.borrow(); Statement stmt = conn.createStatement()) {
+            conn.setAutoCommit(false);
+            stmt.execute("DELETE FROM numbers");
+        }
+        try (Connection conn = pool.borrow()) {
+            assertTrue(conn.getAutoCommit());
+            assertEquals(5, count(conn));
+        }
+    }
+
+    @Test
+    void preparedStatementIsReusedFromTheCache() throws SQLException {
+        try (Connection conn = pool.borrow()) {
+            PreparedStatement first = conn.prepareStatement(SELECT);
+            PreparedStatement physical = first.unwrap(PreparedStatement.class);
+            first.close();
+            try (PreparedStatement second = conn.prepareStatement(SELECT)) {
+                assertEquals(physical, second.unwrap(PreparedStatement.class));
+                assertEquals(5, rows(second));
+            }
+        }
+        PoolStats stats = pool.getStats();
+        assertEquals(1, stats.getStatementCacheHits());
+        assertEquals(1, stats.getStatementCacheMisses());
+    }
+
+    @Test
+    void sameSqlOpenTwiceGetsTwoStatements() throws SQLException {
+        try (Connection conn = pool.borrow();
+             PreparedStatement first = conn.prepareStatement(SELECT);
+             PreparedStatement second = conn.prepareStatement(SELECT)) {
+            assertFalse(first.unwrap(PreparedStatement.class).equals(second.unwrap(PreparedStatement.class)));
+        }
+    }
+
+    @Test
+    void leastRecentlyUsedStatementIsEvicted() throws SQLException {
+        try (Connection conn = pool.borrow()) {
+            PreparedStatement a = conn.prepareStatement("SELECT 1");
+            PreparedStatement physicalA = a.unwrap(PreparedStatement.class);
+            a.close();
+            conn.prepareStatement("SELECT 2").close();
+            conn.prepareStatement("SELECT 3").close(); // The cache holds two, so SELECT 1 goes
+            assertTrue(physicalA.isClosed());
+            try (PreparedStatement again = conn.prepareStatement("SELECT 1")) {
+                assertFalse(again.isClosed());
+            }
+        }
+        assertEquals(0, pool.getStats().getStatementCacheHits());
+        assertEquals(4, pool.getStats().getStatementCacheMisses());
+    }
+
+    @Test
+    void statementEvictedWhileInUseStaysOpenUntilClosed() throws SQLException {
+        try (Connection conn = pool.borrow()) {
+            PreparedStatement inUse = conn.prepareStatement(SELECT);
+            conn.prepareStatement("SELECT 2").close();
+            conn.prepareStatement("SELECT 3").close();
+            assertEquals(5, rows(inUse));
+            PreparedStatement physical = inUse.unwrap(PreparedStatement.class);
+            inUse.close();
+            assertTrue(physical.isClosed());
+        }
+    }
+
+    @Test
+    void statementSettingsAreResetForTheNextBorrower() throws SQLException {
+        int defaultFetchSize;
+        int defaultTimeout;
+        try (Connection conn = pool.borrow(); PreparedStatement stmt = conn.prepareStatement(SELECT)) {
+            defaultFetchSize = stmt.getFetchSize();
+            defaultTimeout = stmt.getQueryTimeout();
+            stmt.setFetchSize(2);
+            stmt.setMaxRows(2);
+            stmt.setQueryTimeout(7);
+            assertEquals(2, rows(stmt));
+        }
+        try (Connection conn = pool.borrow(); PreparedStatement stmt = conn.prepareStatement(SELECT)) {
+            assertEquals(1, pool.getStats().getStatementCacheHits());
+            assertEquals(defaultFetchSize, stmt.getFetchSize());
+            assertEquals(0, stmt.getMaxRows());
+            assertEquals(defaultTimeout, stmt.getQueryTimeout());
+            assertEquals(5, rows(stmt));
+        }
+    }
+
+    @Test
+    void parametersAreClearedForTheNextBorrower() throws SQLException {
+        String sql = "SELECT n FROM numbers WHERE n > ?";
+        try (Connection conn = pool.borrow(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, 3);
+            assertEquals(2, rows(stmt));
+        }
+        try (Connection conn = pool.borrow(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+            assertThrows(SQLException.class, stmt::executeQuery);
+        }
+    }
+
+    @Test
+    void closedHandleCannotBeUsed() throws SQLException {
+        Connection conn = pool.borrow();
+        conn.close();
+        assertTrue(conn.isClosed());
+        assertThrows(SQLException.class, () -> conn.prepareStatement(SELECT));
+    }
+
+    private static int rows(PreparedStatement stmt) throws SQLException {
+        int rows = 0;
+        try (ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                rows++;
+            }
+        }
+        return rows;
+    }
+
+    private static int count(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM numbers")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.digitallocker.util;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FrameCipherTest {
+    private static final int FRAME_SIZE = 1024;
+    private static final int HEADER_LENGTH = 20;
+    private static final int TAG_LENGTH = 16;
+
+    private static ExecutorService executor;
+    private static FrameCipher cipher;
+
+    @BeforeAll
+    static void startExecutor() {
+        executor = Executors.newFixedThreadPool(4);
+        cipher = new FrameCipher(executor, 4, FRAME_SIZE);
+    }
+
+    @AfterAll
+    static void stopExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void roundTripsContentOfEverySize() throws IOException {
+        SecretKey key = key(1);
+        for (int size : new int[]{0, 1, FRAME_SIZE - 1, FRAME_SIZE, FRAME_SIZE + 1, 10 * FRAME_SIZE, 10 * FRAME_SIZE + 7}) {
+            byte[] plain = content(size);
+            assertArrayEquals(plain, decrypt(encrypt(plain, key), key), "size " + size);
+        }
+    }
+
+    @Test
+    void sameContentEncryptsDifferentlyEachTime() throws IOException {
+        SecretKey key = key(1);
+        byte[] plain = content(3 * FRAME_SIZE);
+        byte[] first = encrypt(plain, key);
+        byte[] second = encrypt(plain, key);
+        assertArrayEquals(plain, decrypt(second, key));
+        assertFalse(Arrays.equals(first, second)); // A fresh nonce per blob
+    }
+
+    @Test
+    void rangeDecryptsOnlyWhatIsAskedFor(@TempDir Path dir) throws IOException {
+        SecretKey key = key(1);
+        byte[] plain = content(5 * FRAME_SIZE + 100);
+        Path file = dir.resolve("blob");
+        Files.write(file, encrypt(plain, key));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             InputStream in = cipher.decryptRange(channel, key, FRAME_SIZE + 10, 2 * FRAME_SIZE)) {
+            byte[] range = in.readNBytes(2 * FRAME_SIZE);
+            assertArrayEquals(Arrays.copyOfRange(plain, FRAME_SIZE + 10, 3 * FRAME_SIZE + 10), range);
+        }
+    }
+
+    @Test
+    void flippedBitIsRejected() throws IOException {
+        SecretKey key = key(1);
+        byte[] sealed = encrypt(content(3 * FRAME_SIZE + 5), key);
+        for (int position : new int[]{HEADER_LENGTH + 3, HEADER_LENGTH + FRAME_SIZE + TAG_LENGTH + 1, sealed.length - 1}) {
+            byte[] tampered = sealed.clone();
+            tampered[position] ^= 1;
+            assertThrows(IOException.class, () -> decrypt(tampered, key), "byte " + position);
+        }
+    }
+
+    @Test
+    void tamperedHeaderIsRejected() throws IOException {
+        SecretKey key = key(1);
+        byte[] sealed = encrypt(content(100), key);
+        sealed[HEADER_LENGTH - 1] ^= 1; // The nonce, which every frame authenticates
+        assertThrows(IOException.class, () -> decrypt(sealed, key));
+    }
+
+    @Test
+    void droppedLastFrameIsRejected() throws IOException {
+        SecretKey key = key(1);
+        byte[] sealed = encrypt(content(3 * FRAME_SIZE + 5), key);
+        byte[] truncated = Arrays.copyOf(sealed, HEADER_LENGTH + 3 * (FRAME_SIZE + TAG_LENGTH));
+        assertThrows(IOException.class, () -> decrypt(truncated, key));
+    }
+
+    @Test
+    void reorderedFramesAreRejected() throws IOException {
+        SecretKey key = key(1);
+        byte[] sealed = encrypt(content(3 * FRAME_SIZE + 5), key);
+        int frame = FRAME_SIZE + TAG_LENGTH;
+        byte[] swapped = sealed.clone();
+        System.arraycopy(sealed, HEADER_LENGTH, swapped, HEADER_LENGTH + frame, frame);
+        System.arraycopy(sealed, HEADER_LENGTH + frame, swapped, HEADER_LENGTH, frame);
+        assertThrows(IOException.class, () -> decrypt(swapped, key));
+    }
+
+    @Test
+    void wrongKeyIsRejected() throws IOException {
+        byte[] sealed = encrypt(content(100), key(1));
+        assertThrows(IOException.class, () -> decrypt(sealed, key(2)));
+    }
+
+    @Test
+    void plaintextIsNotMistakenForABlob() {
+        assertThrows(IOException.class, () -> decrypt(content(100), key(1)));
+    }
+
+    private static byte[] encrypt(byte[] plain, SecretKey key) throws IOException {
+        ByteArrayOutputStream sealed = new ByteArrayOutputStream();
+        try (OutputStream out = cipher.encrypt(sealed, key)) {
+            out.write(plain);
+        }
+        return sealed.toByteArray();
+    }
+
+    private static byte[] decrypt(byte[] sealed, SecretKey key) throws IOException {
+        try (InputStream in = cipher.decrypt(new ByteArrayInputStream(sealed), key)) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static SecretKey key(int seed) {
+        byte[] key = new byte[32];
+        new Random(seed).nextBytes(key);
+        return new SecretKeySpec(key, "AES");
+    }
+
+    private static byte[] content(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
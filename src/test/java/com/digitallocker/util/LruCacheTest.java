@@ -0,0 +1,71 @@
+package com.digitallocker.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class LruCacheTest {
+
+    @Test
+    void putWithCurrentStampIsCached() {
+        LruCache<String, String> cache = new LruCache<>(10, 60_000);
+        long stamp = cache.stamp();
+        cache.putIfNotInvalidated("a", "1", stamp);
+        assertEquals("1", cache.get("a"));
+    }
+
+    @Test
+    void invalidationAfterStampDropsThePut() {
+        LruCache<String, String> cache = new LruCache<>(10, 60_000);
+        long stamp = cache.stamp();
+        // A slow load races with a delete of the same key
+        cache.invalidate("a");
+        cache.putIfNotInvalidated("a", "stale", stamp);
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    void invalidationOfAnotherKeyAlsoDropsThePut() {
+        LruCache<String, String> cache = new LruCache<>(10, 60_000);
+        long stamp = cache.stamp();
+        cache.invalidate("b");
+        cache.putIfNotInvalidated("a", "1", stamp);
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    void invalidateAllClearsAndMovesTheStamp() {
+        LruCache<String, String> cache = new LruCache<>(10, 60_000);
+        cache.putIfNotInvalidated("a", "1", cache.stamp());
+        long stamp = cache.stamp();
+        cache.invalidateAll();
+        assertNull(cache.get("a"));
+        cache.putIfNotInvalidated("b", "2", stamp);
+        assertNull(cache.get("b"));
+        cache.putIfNotInvalidated("b", "2", cache.stamp());
+        assertEquals("2", cache.get("b"));
+    }
+
+    @Test
+    void leastRecentlyUsedEntryIsEvicted() {
+        LruCache<String, String> cache = new LruCache<>(2, 60_000);
+        cache.putIfNotInvalidated("a", "1", cache.stamp());
+        cache.putIfNotInvalidated("b", "2", cache.stamp());
+        cache.get("a"); // b is now the eldest
+        cache.putIfNotInvalidated("c", "3", cache.stamp());
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("3", cache.get("c"));
+        assertEquals(1, cache.getStats().getEvictions());
+    }
+
+    @Test
+    void expiredEntryIsAMiss() throws InterruptedException {
+        LruCache<String, String> cache = new LruCache<>(10, 1);
+        cache.putIfNotInvalidated("a", "1", cache.stamp());
+        Thread.sleep(20);
+        assertNull(cache.get("a"));
+        assertEquals(1, cache.getStats().getExpirations());
+    }
+}